@@ -0,0 +1,363 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import org.elasticsearch.action.admin.cluster.node.info.NodesInfoResponse;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.node.Node;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.elasticsearch.common.settings.ImmutableSettings.settingsBuilder;
+import static org.elasticsearch.node.NodeBuilder.nodeBuilder;
+
+/**
+ * End-to-end ingest throughput of an embedded node running the plugin, driven over HTTP the same way Postgres drives it.
+ * <p>
+ * Each invocation is one transaction:  a batch of INSERTs, UPDATEs or VACUUMed DELETEs (picked according to
+ * <code>mix</code>), followed by <code>_zdbxid</code> to mark the transaction committed.  Concurrency is JMH's
+ * thread count, so for example:
+ * <pre>
+ *     java -jar benchmarks/target/benchmarks.jar IngestBenchmark -t 4 -p dataset=so_comments -p mix=60:35:5
+ * </pre>
+ * Throughput mode reports batches/s along with a "docs" counter in docs/s, sample mode reports the latency
+ * percentiles of a whole batch, and the size of the index is printed once each trial finishes
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+public class IngestBenchmark {
+
+    private static final String INDEX = "db.schema.table.idx";
+
+    @State(Scope.Benchmark)
+    public static class Cluster {
+
+        @Param({"tutorial", "so_comments"})
+        public SyntheticRows dataset;
+
+        /**
+         * rows per transaction
+         */
+        @Param({"100", "1000"})
+        public int batchSize;
+
+        /**
+         * the relative weights of INSERT, UPDATE and DELETE batches
+         */
+        @Param({"100:0:0", "70:25:5"})
+        public String mix;
+
+        /**
+         * "_zdbframes" is what Postgres sends INSERTs and UPDATEs to, "_zdbbulk" is the original JSON bulk format
+         */
+        @Param({"_zdbframes", "_zdbbulk"})
+        public String endpoint;
+
+        @Param({"5"})
+        public int shards;
+
+        private final AtomicInteger threads = new AtomicInteger();
+        private final AtomicLong xids = new AtomicLong(1000);
+        private final AtomicLong sequence = new AtomicLong();
+        private File home;
+        private Node node;
+        private String url;
+        private int[] weights;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            home = new File(System.getProperty("java.io.tmpdir"), "zdb_ingest-" + System.currentTimeMillis());
+
+            Settings settings = settingsBuilder()
+                    .put("http.enabled", true)
+                    .put("network.host", "127.0.0.1")
+                    .put("cluster.name", "ZomboDB_Ingest_Benchmark")
+                    .put("node.name", "benchmark")
+                    .put("path.home", home.getAbsolutePath())
+                    .build();
+
+            node = nodeBuilder().settings(settings).local(true).loadConfigSettings(false).node();
+
+            NodesInfoResponse info = node.client().admin().cluster().prepareNodesInfo().setHttp(true).get();
+            InetSocketTransportAddress address = (InetSocketTransportAddress) info.getNodes()[0].getHttp().address().publishAddress();
+            url = "http://" + address.address().getHostString() + ":" + address.address().getPort() + "/" + INDEX;
+
+            node.client().admin().indices().prepareCreate(INDEX).setSource(indexSettings()).get();
+            node.client().admin().cluster().prepareHealth(INDEX).setWaitForGreenStatus().get();
+
+            String[] parts = mix.split(":");
+            weights = new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2])};
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws Exception {
+            try {
+                node.client().admin().indices().prepareRefresh(INDEX).get();
+                IndicesStatsResponse stats = node.client().admin().indices().prepareStats(INDEX).setStore(true).setDocs(true).get();
+                System.out.println();
+                System.out.println("index size: " + stats.getTotal().getStore().getSize() +
+                        ", docs: " + stats.getTotal().getDocs().getCount() +
+                        ", deleted docs: " + stats.getTotal().getDocs().getDeleted());
+            } finally {
+                node.close();
+                delete(home);
+            }
+        }
+
+        /**
+         * The same mappings Postgres creates, without its custom analyzers
+         */
+        private XContentBuilder indexSettings() throws IOException {
+            XContentBuilder builder = JsonXContent.contentBuilder();
+            builder.startObject();
+
+            builder.startObject("mappings");
+            builder.startObject("data");
+            builder.startObject("_source").field("enabled", false).endObject();
+            builder.startObject("_routing").field("required", true).endObject();
+            builder.startObject("_all").field("enabled", true).endObject();
+            builder.startObject("_field_names").field("index", "no").field("store", false).endObject();
+            builder.startObject("_meta").field("primary_key", "id").field("always_resolve_joins", false).endObject();
+            builder.field("date_detection", false);
+            builder.startObject("properties");
+            builder.startObject("_xid").field("type", "long").field("index", "not_analyzed").field("include_in_all", false)
+                    .startObject("fielddata").field("format", "doc_values").endObject().endObject();
+            builder.startObject("_prev_ctid").field("type", "string").field("index", "not_analyzed").field("store", true).field("include_in_all", false)
+                    .startObject("fielddata").field("format", "paged_bytes").endObject().endObject();
+            builder.startObject("_zdb_seq").field("type", "long").field("index", "not_analyzed").field("include_in_all", false)
+                    .startObject("fielddata").field("format", "doc_values").endObject().endObject();
+            dataset.mapping(builder);
+            builder.endObject();
+            builder.endObject();
+
+            builder.startObject("state");
+            builder.startObject("_source").field("enabled", false).endObject();
+            builder.startObject("_routing").field("required", true).endObject();
+            builder.startObject("_all").field("enabled", false).endObject();
+            builder.startObject("properties").startObject("_ctid").field("type", "string").field("index", "not_analyzed").endObject().endObject();
+            builder.endObject();
+
+            builder.startObject("committed");
+            builder.startObject("_routing").field("required", true).endObject();
+            builder.startObject("_all").field("enabled", false).endObject();
+            builder.startObject("properties");
+            builder.startObject("_zdb_committed_block").field("type", "long").field("index", "not_analyzed").endObject();
+            builder.startObject("_zdb_committed_xids").field("type", "binary").field("store", true).endObject();
+            builder.endObject();
+            builder.endObject();
+            builder.endObject();
+
+            builder.startObject("settings");
+            builder.field("refresh_interval", -1);
+            builder.field("number_of_shards", shards);
+            builder.field("number_of_replicas", 0);
+            builder.endObject();
+
+            builder.endObject();
+            return builder;
+        }
+
+        private static void delete(File file) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children)
+                    delete(child);
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * The rows a thread has written, which its UPDATEs and DELETEs pick from.  Every thread has its own
+     * range of block numbers, so ctids never collide
+     */
+    @State(Scope.Thread)
+    public static class Rows {
+        private static final int ROWS_PER_BLOCK = 100;
+
+        private final List<String> live = new ArrayList<>();
+        private Random rnd;
+        private long nextBlock;
+        private int nextOffset = ROWS_PER_BLOCK;
+        private long nextId;
+
+        @Setup(Level.Trial)
+        public void setup(Cluster cluster) {
+            int thread = cluster.threads.getAndIncrement();
+            rnd = new Random(thread);
+            nextBlock = (long) thread << 24;
+            nextId = (long) thread << 40;
+        }
+
+        private long nextCtid() {
+            if (nextOffset == ROWS_PER_BLOCK) {
+                nextBlock++;
+                nextOffset = 0;
+            }
+            return (nextBlock << 16) | ++nextOffset;
+        }
+
+        /**
+         * Removes a random row from the live rows, as an UPDATE or DELETE would
+         */
+        private String take() {
+            int i = rnd.nextInt(live.size());
+            String ctid = live.get(i);
+            live.set(i, live.get(live.size() - 1));
+            live.remove(live.size() - 1);
+            return ctid;
+        }
+    }
+
+    /**
+     * Reported next to batches/s in throughput mode
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Docs {
+        public long docs;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            docs = 0;
+        }
+    }
+
+    @Benchmark
+    public void transaction(Cluster cluster, Rows rows, Docs docs) throws Exception {
+        long xid = cluster.xids.incrementAndGet();
+        int pick = rows.rnd.nextInt(cluster.weights[0] + cluster.weights[1] + cluster.weights[2]);
+        int size = Math.min(cluster.batchSize, rows.live.size());
+
+        if (pick < cluster.weights[0] || size == 0) {
+            size = cluster.batchSize;
+            write(cluster, rows, xid, size, false);
+        } else if (pick < cluster.weights[0] + cluster.weights[1]) {
+            write(cluster, rows, xid, size, true);
+        } else {
+            vacuum(cluster, rows, size);
+            docs.docs += size;
+            return;     // VACUUM isn't a transaction that commits anything
+        }
+
+        post(cluster.url + "/_zdbxid", String.valueOf(xid).getBytes(StandardCharsets.UTF_8));
+        docs.docs += size;
+    }
+
+    private static void write(Cluster cluster, Rows rows, long xid, int count, boolean update) throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        List<String> written = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            String ctid = ctid(rows.nextCtid());
+            String prevCtid = update ? rows.take() : null;
+            long sequence = cluster.sequence.incrementAndGet();
+            XContentBuilder row = JsonXContent.contentBuilder().startObject();
+            cluster.dataset.row(row, rows.nextId++, rows.rnd);
+
+            if ("_zdbframes".equals(cluster.endpoint)) {
+                row.endObject();
+                byte[] json = row.bytes().toBytes();
+                ctid(body, ctid);
+                ctid(body, prevCtid == null ? "0-0" : prevCtid);
+                littleEndian(body, xid, 8);
+                littleEndian(body, sequence, 8);
+                littleEndian(body, json.length, 4);
+                body.write(json);
+            } else {
+                row.field("_xid", xid).field("_zdb_seq", sequence);
+                if (prevCtid != null)
+                    row.field("_prev_ctid", prevCtid);
+                row.endObject();
+                body.write(("{\"index\":{\"_id\":\"" + ctid + "\"}}\n").getBytes(StandardCharsets.UTF_8));
+                body.write(row.bytes().toBytes());
+                body.write('\n');
+            }
+            written.add(ctid);
+        }
+
+        post(cluster.url + "/data/" + cluster.endpoint, body.toByteArray());
+        rows.live.addAll(written);
+    }
+
+    /**
+     * Postgres sends deleted rows to <code>_zdbvacuum</code> once VACUUM finds them dead
+     */
+    private static void vacuum(Cluster cluster, Rows rows, int count) throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++)
+            ctid(body, rows.take());
+        post(cluster.url + "/data/_zdbvacuum", body.toByteArray());
+    }
+
+    private static String ctid(long ctid) {
+        return (ctid >>> 16) + "-" + (ctid & 0xFFFF);
+    }
+
+    private static void ctid(OutputStream out, String ctid) throws IOException {
+        int dash = ctid.indexOf('-');
+        littleEndian(out, Long.parseLong(ctid.substring(0, dash)), 4);
+        littleEndian(out, Long.parseLong(ctid.substring(dash + 1)), 2);
+    }
+
+    private static void littleEndian(OutputStream out, long value, int bytes) throws IOException {
+        for (int i = 0; i < bytes; i++)
+            out.write((int) (value >>> (i * 8)));
+    }
+
+    private static String post(String url, byte[] body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body);
+        }
+
+        int status = conn.getResponseCode();
+        String response;
+        try (InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+            response = Streams.copyToString(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+
+        if (status >= 400 || response.contains("\"errors\":true"))
+            throw new IOException(url + " failed with " + status + ": " + response);
+        return response;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link SourcePatcher} against parsing a document into a Map and serializing it back out, which is
+ * how {@link ZombodbBulkAction} used to set "_prev_ctid" on UPDATEd rows
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class SourcePatcherBenchmark {
+
+    /**
+     * approximate size of each document, in bytes
+     */
+    @Param({"1024", "10240", "102400"})
+    public int size;
+
+    private BytesReference source;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        Random rnd = new Random(0);
+        XContentBuilder builder = JsonXContent.contentBuilder();
+
+        // a typical wide row: a handful of scalar columns and one big text column
+        builder.startObject();
+        builder.field("id", 12345);
+        builder.field("title", "The quick brown fox");
+        builder.field("price", 19.99);
+        builder.field("in_stock", true);
+        builder.startArray("tags").value("one").value("two").value("three").endArray();
+        builder.field("_xid", 987654L);
+        builder.field("_prev_ctid", "1234-17");
+
+        StringBuilder body = new StringBuilder(size);
+        while (body.length() < size - 200)
+            body.append("word").append(rnd.nextInt(10000)).append(' ');
+        builder.field("body", body.toString());
+        builder.endObject();
+
+        source = new BytesArray(builder.bytes().toBytes());
+    }
+
+    @Benchmark
+    public BytesReference sourceAsMap() {
+        IndexRequest doc = new IndexRequest("idx", "data", "1").source(source);
+        Map<String, Object> data = doc.sourceAsMap();
+        Number xid = (Number) data.get("_xid");
+        String prevCtid = (String) data.get("_prev_ctid");
+
+        data.put("_prev_ctid", prevCtid + ":" + xid.longValue());
+        doc.source(data);
+        return doc.source();
+    }
+
+    @Benchmark
+    public BytesReference streaming() throws IOException {
+        SourcePatcher patcher = new SourcePatcher(source, null);
+        return patcher.setPrevCtid(patcher.getPrevCtid() + ":" + patcher.getXid());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Synthetic rows shaped like the tables ZomboDB's tutorial and tests use, with similar field types and text lengths
+ */
+enum SyntheticRows {
+
+    /**
+     * TUTORIAL.md's "products" table:  a few short text columns, a keyword array and a long description
+     */
+    tutorial {
+        @Override
+        void mapping(XContentBuilder builder) throws IOException {
+            builder.startObject("id").field("type", "long").endObject();
+            builder.startObject("name").field("type", "string").endObject();
+            builder.startObject("keywords").field("type", "string").field("index", "not_analyzed").endObject();
+            builder.startObject("short_summary").field("type", "string").endObject();
+            builder.startObject("long_description").field("type", "string").endObject();
+            builder.startObject("price").field("type", "long").endObject();
+            builder.startObject("inventory_count").field("type", "integer").endObject();
+            builder.startObject("discontinued").field("type", "boolean").endObject();
+            builder.startObject("availability_date").field("type", "date").field("format", "yyyy-MM-dd").endObject();
+        }
+
+        @Override
+        void row(XContentBuilder builder, long id, Random rnd) throws IOException {
+            builder.field("id", id);
+            builder.field("name", words(rnd, 2 + rnd.nextInt(3)));
+            builder.startArray("keywords");
+            for (int i = rnd.nextInt(5); i >= 0; i--)
+                builder.value(word(rnd));
+            builder.endArray();
+            builder.field("short_summary", words(rnd, 8 + rnd.nextInt(8)));
+            builder.field("long_description", words(rnd, 100 + rnd.nextInt(300)));
+            builder.field("price", rnd.nextInt(100000));
+            builder.field("inventory_count", rnd.nextInt(1000));
+            builder.field("discontinued", rnd.nextInt(10) == 0);
+            builder.field("availability_date", String.format("%04d-%02d-%02d", 2010 + rnd.nextInt(8), 1 + rnd.nextInt(12), 1 + rnd.nextInt(28)));
+        }
+    },
+
+    /**
+     * The tests' StackOverflow comments:  small numeric columns and one comment-sized text column
+     */
+    so_comments {
+        @Override
+        void mapping(XContentBuilder builder) throws IOException {
+            builder.startObject("id").field("type", "long").endObject();
+            builder.startObject("post_id").field("type", "long").endObject();
+            builder.startObject("score").field("type", "integer").endObject();
+            builder.startObject("text").field("type", "string").endObject();
+            builder.startObject("creation_date").field("type", "date").endObject();
+            builder.startObject("user_display_name").field("type", "string").field("index", "not_analyzed").endObject();
+            builder.startObject("user_id").field("type", "long").endObject();
+        }
+
+        @Override
+        void row(XContentBuilder builder, long id, Random rnd) throws IOException {
+            builder.field("id", id);
+            builder.field("post_id", rnd.nextInt(10000000));
+            builder.field("score", rnd.nextInt(20));
+            builder.field("text", words(rnd, 10 + rnd.nextInt(80)));
+            builder.field("creation_date", 1230768000000L + (long) (rnd.nextDouble() * 250000000000L));
+            builder.field("user_display_name", word(rnd) + rnd.nextInt(1000));
+            builder.field("user_id", rnd.nextInt(5000000));
+        }
+    };
+
+    /**
+     * Writes the "properties" of the dataset's columns
+     */
+    abstract void mapping(XContentBuilder builder) throws IOException;
+
+    /**
+     * Writes the columns of one row into an already started object
+     */
+    abstract void row(XContentBuilder builder, long id, Random rnd) throws IOException;
+
+    private static final String[] VOCABULARY = new String[4096];
+
+    static {
+        Random rnd = new Random(0);
+        for (int i = 0; i < VOCABULARY.length; i++) {
+            char[] chars = new char[3 + rnd.nextInt(8)];
+            for (int j = 0; j < chars.length; j++)
+                chars[j] = (char) ('a' + rnd.nextInt(26));
+            VOCABULARY[i] = new String(chars);
+        }
+    }
+
+    private static String word(Random rnd) {
+        // a skewed distribution, so that some words are far more common than others, like real text
+        int i = (int) (VOCABULARY.length * Math.pow(rnd.nextDouble(), 3));
+        return VOCABULARY[i];
+    }
+
+    private static String words(Random rnd, int count) {
+        StringBuilder sb = new StringBuilder(count * 8);
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                sb.append(' ');
+            sb.append(word(rnd));
+        }
+        return sb.toString();
+    }
+}
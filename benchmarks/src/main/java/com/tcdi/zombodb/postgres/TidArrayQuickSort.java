@@ -0,0 +1,54 @@
+/*
+ * Portions Copyright 2013-2015 Technology Concepts & Design, Inc
+ * Portions Copyright 2015-2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import com.tcdi.zombodb.query_parser.utils.Utils;
+
+/**
+ * The block-number-only quick sort _pgtid used before {@link TidArrayRadixSort}, kept as {@link TidSortBenchmark}'s baseline.
+ * A copy of the plugin's test-only reference, which this module can't depend on
+ */
+class TidArrayQuickSort {
+
+    byte[] tmp = new byte[10];
+    void quickSort(byte[] array, int offset, int low, int high) {
+
+        if (high <= low)
+            return;
+
+        int i = low;
+        int j = high;
+        int pivot = Utils.decodeInteger(array, offset + ((low+(high-low)/2) * 10));
+        while (i <= j) {
+            while (Utils.decodeInteger(array, offset+i*10) < pivot)
+                i++;
+            while (Utils.decodeInteger(array, offset+j*10) > pivot)
+                j--;
+            if (i <= j) {
+                System.arraycopy(array, offset+i*10, tmp, 0, 10);
+                System.arraycopy(array, offset+j*10, array, offset+i*10, 10);
+                System.arraycopy(tmp, 0, array, offset+j*10, 10);
+                i++;
+                j--;
+            }
+        }
+        if (low < j)
+            quickSort(array, offset, low, j);
+        if (i < high)
+            quickSort(array, offset, i, high);
+    }
+}
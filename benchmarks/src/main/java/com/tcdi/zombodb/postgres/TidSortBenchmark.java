@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import com.tcdi.zombodb.query_parser.utils.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link TidArrayRadixSort}, both on the calling thread alone and sharing its passes with a
+ * fixed pool, against the original {@link TidArrayQuickSort} on _pgtid-shaped buffers
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class TidSortBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Pool {
+
+        /**
+         * threads in the pool the parallel radix sort shares its passes with, standing in for the "zombodb" pool
+         */
+        @Param({"2", "4", "8"})
+        public int threads;
+
+        private ExecutorService executor;
+
+        @Setup(Level.Trial)
+        public void start() {
+            executor = Executors.newFixedThreadPool(threads);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            executor.shutdownNow();
+        }
+    }
+
+    @Param({"1000000", "10000000", "50000000"})
+    public int many;
+
+    /**
+     * "random" spreads rows across every possible block, "table" looks like a real heap where
+     * ~100 rows share each block
+     */
+    @Param({"random", "table"})
+    public String distribution;
+
+    private byte[] unsorted;
+    private byte[] array;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        Random rnd = new Random(0);
+        unsorted = new byte[1 + 8 + 4 + (many * 10)];
+        int offset = 0;
+
+        unsorted[0] = 0;
+        offset++;
+        offset += Utils.encodeLong(many, unsorted, offset);
+        offset += Utils.encodeFloat(1, unsorted, offset);
+
+        int blocks = Math.max(1, many / 100);
+        for (int i = 0; i < many; i++) {
+            int blockno = "random".equals(distribution) ? rnd.nextInt(Integer.MAX_VALUE) : rnd.nextInt(blocks);
+            char offno = (char) (1 + rnd.nextInt(291));
+
+            offset += Utils.encodeInteger(blockno, unsorted, offset);
+            offset += Utils.encodeCharacter(offno, unsorted, offset);
+            offset += Utils.encodeFloat(rnd.nextFloat(), unsorted, offset);
+        }
+        array = new byte[unsorted.length];
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() {
+        System.arraycopy(unsorted, 0, array, 0, unsorted.length);
+    }
+
+    @Benchmark
+    public byte[] quickSort() {
+        new TidArrayQuickSort().quickSort(array, 13, 0, many - 1);
+        return array;
+    }
+
+    @Benchmark
+    public byte[] radixSort() {
+        TidArrayRadixSort.sort(array, 13, many);
+        return array;
+    }
+
+    @Benchmark
+    public byte[] parallelRadixSort(Pool pool) {
+        TidArrayRadixSort.sort(array, 13, many, pool.executor);
+        return array;
+    }
+}
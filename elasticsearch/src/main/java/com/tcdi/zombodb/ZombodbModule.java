@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb;
+
+import com.tcdi.zombodb.postgres.BulkBackpressure;
+import com.tcdi.zombodb.query.CommittedXidCache;
+import com.tcdi.zombodb.query.UpdatedCtidCache;
+import com.tcdi.zombodb.query.VisibilityBitSetCache;
+import com.tcdi.zombodb.query_parser.metadata.IndexMetadataService;
+import org.elasticsearch.common.inject.AbstractModule;
+
+/**
+ * Binds ZomboDB's node-level services
+ */
+public class ZombodbModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(IndexMetadataService.class).asEagerSingleton();
+        bind(BulkBackpressure.class).asEagerSingleton();
+        bind(VisibilityBitSetCache.class).asEagerSingleton();
+        bind(CommittedXidCache.class).asEagerSingleton();
+        bind(UpdatedCtidCache.class).asEagerSingleton();
+    }
+}
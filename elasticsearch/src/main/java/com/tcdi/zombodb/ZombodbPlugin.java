@@ -16,11 +16,20 @@
  */
 package com.tcdi.zombodb;
 
+import com.tcdi.zombodb.action.prevctid.PrevCtidAction;
+import com.tcdi.zombodb.action.prevctid.TransportPrevCtidAction;
+import com.tcdi.zombodb.action.stats.StatsAction;
+import com.tcdi.zombodb.action.stats.TransportStatsAction;
+import com.tcdi.zombodb.action.tidlist.TIDListAction;
+import com.tcdi.zombodb.action.tidlist.TransportTIDListAction;
 import com.tcdi.zombodb.postgres.*;
 import com.tcdi.zombodb.query.ZomboDBVisibilityQueryParser;
 import org.elasticsearch.action.ActionModule;
+import org.elasticsearch.cluster.settings.Validator;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.settings.IndexDynamicSettingsModule;
 import org.elasticsearch.indices.query.IndicesQueriesModule;
 import org.elasticsearch.plugins.AbstractPlugin;
 import org.elasticsearch.rest.RestModule;
@@ -28,11 +37,28 @@ import org.xbib.elasticsearch.action.termlist.TermlistAction;
 import org.xbib.elasticsearch.action.termlist.TransportTermlistAction;
 import org.xbib.elasticsearch.rest.action.termlist.RestTermlistAction;
 
+import java.util.ArrayList;
+import java.util.Collection;
+
 public class ZombodbPlugin extends AbstractPlugin {
 
+    private final Settings settings;
+
     @Inject
     public ZombodbPlugin(Settings settings) {
-        // noop
+        this.settings = settings;
+    }
+
+    @Override
+    public Collection<Class<? extends Module>> modules() {
+        Collection<Class<? extends Module>> modules = new ArrayList<>();
+        modules.add(ZombodbModule.class);
+        return modules;
+    }
+
+    @Override
+    public Settings additionalSettings() {
+        return AsyncRestHelper.threadPoolSettings(settings);
     }
 
     public void onModule(RestModule module) {
@@ -45,17 +71,27 @@ public class ZombodbPlugin extends AbstractPlugin {
         module.addRestAction(ZombodbMultiSearchAction.class);
         module.addRestAction(RestTermlistAction.class);
         module.addRestAction(ZombodbBulkAction.class);
+        module.addRestAction(ZombodbVacuumAction.class);
         module.addRestAction(ZombodbCommitXIDAction.class);
+        module.addRestAction(ZombodbCompactAction.class);
+        module.addRestAction(ZombodbStatsAction.class);
     }
 
     public void onModule(ActionModule module) {
         module.registerAction(TermlistAction.INSTANCE, TransportTermlistAction.class);
+        module.registerAction(TIDListAction.INSTANCE, TransportTIDListAction.class);
+        module.registerAction(StatsAction.INSTANCE, TransportStatsAction.class);
+        module.registerAction(PrevCtidAction.INSTANCE, TransportPrevCtidAction.class);
     }
 
     public void onModule(IndicesQueriesModule module) {
         module.addQuery(ZomboDBVisibilityQueryParser.class);
     }
 
+    public void onModule(IndexDynamicSettingsModule module) {
+        module.addDynamicSetting(PostgresTIDResponseAction.PARALLELISM_SETTING, Validator.POSITIVE_INTEGER);
+    }
+
     @Override
     public String name() {
         return "Zombodb";
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.prevctid;
+
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequest;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+import java.util.Collection;
+
+public class PrevCtidRequest extends BroadcastOperationRequest<PrevCtidRequest> {
+
+    private String type;
+
+    private String[] ids = Strings.EMPTY_ARRAY;
+
+    private boolean realtime;
+
+    PrevCtidRequest() {
+    }
+
+    public PrevCtidRequest(String... indices) {
+        super(indices);
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * The ids (ctids) of the documents whose <code>_prev_ctid</code> values should be resolved
+     */
+    public void setIds(Collection<String> ids) {
+        this.ids = ids.toArray(new String[ids.size()]);
+    }
+
+    public String[] getIds() {
+        return ids;
+    }
+
+    /**
+     * Should shards with unrefreshed changes resolve the ids with realtime gets, rather than only looking in
+     * their current searcher?  See {@link TransportPrevCtidAction}
+     */
+    void setRealtime(boolean realtime) {
+        this.realtime = realtime;
+    }
+
+    boolean isRealtime() {
+        return realtime;
+    }
+
+    static PrevCtidRequest from(StreamInput in) throws IOException {
+        PrevCtidRequest request = new PrevCtidRequest();
+        request.readFrom(in);
+        return request;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        type = in.readOptionalString();
+        ids = in.readStringArray();
+        realtime = in.readBoolean();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeOptionalString(type);
+        out.writeStringArray(ids);
+        out.writeBoolean(realtime);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.prevctid;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequestBuilder;
+import org.elasticsearch.client.Client;
+
+import java.util.Collection;
+
+/**
+ * A request to resolve the <code>_prev_ctid</code> values of a batch of documents, by id
+ */
+public class PrevCtidRequestBuilder extends BroadcastOperationRequestBuilder<PrevCtidRequest, PrevCtidResponse, PrevCtidRequestBuilder, Client> {
+
+    public PrevCtidRequestBuilder(Client client) {
+        super(client, new PrevCtidRequest());
+    }
+
+    public PrevCtidRequestBuilder setType(String type) {
+        request.setType(type);
+        return this;
+    }
+
+    public PrevCtidRequestBuilder setIds(Collection<String> ids) {
+        request.setIds(ids);
+        return this;
+    }
+
+    @Override
+    protected void doExecute(ActionListener<PrevCtidResponse> listener) {
+        client.execute(PrevCtidAction.INSTANCE, request, listener);
+    }
+}
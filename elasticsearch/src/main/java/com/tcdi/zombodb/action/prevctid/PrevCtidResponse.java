@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.prevctid;
+
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A response for the prevctid action:  the <code>_prev_ctid</code> of every requested id that was found, keyed by id.
+ * Ids that don't exist in the index are simply missing from {@link #getPrevCtids()}
+ */
+public class PrevCtidResponse extends BroadcastOperationResponse {
+
+    private Map<String, String> prevCtids;
+
+    PrevCtidResponse() {
+    }
+
+    PrevCtidResponse(int totalShards, int successfulShards, int failedShards,
+                     List<ShardOperationFailedException> shardFailures,
+                     Map<String, String> prevCtids) {
+        super(totalShards, successfulShards, failedShards, shardFailures);
+        this.prevCtids = prevCtids;
+    }
+
+    public Map<String, String> getPrevCtids() {
+        return prevCtids;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        int cnt = in.readVInt();
+        prevCtids = new HashMap<>(cnt);
+        for (int i = 0; i < cnt; i++)
+            prevCtids.put(in.readString(), in.readString());
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(prevCtids.size());
+        for (Map.Entry<String, String> entry : prevCtids.entrySet()) {
+            out.writeString(entry.getKey());
+            out.writeString(entry.getValue());
+        }
+    }
+}
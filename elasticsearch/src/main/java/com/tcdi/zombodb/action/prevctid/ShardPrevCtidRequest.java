@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.prevctid;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.io.IOException;
+
+class ShardPrevCtidRequest extends BroadcastShardOperationRequest {
+
+    private String index;
+
+    private PrevCtidRequest request;
+
+    ShardPrevCtidRequest() {
+    }
+
+    public ShardPrevCtidRequest(String index, ShardId shardId, PrevCtidRequest request) {
+        super(shardId, request);
+        this.index = index;
+        this.request = request;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public PrevCtidRequest getRequest() {
+        return request;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        index = in.readString();
+        request = PrevCtidRequest.from(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(index);
+        request.writeTo(out);
+    }
+}
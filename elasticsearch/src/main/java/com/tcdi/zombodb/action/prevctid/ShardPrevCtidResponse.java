@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.prevctid;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.io.IOException;
+
+class ShardPrevCtidResponse extends BroadcastShardOperationResponse {
+
+    /**
+     * the requested ids that live on this shard
+     */
+    private String[] ids;
+
+    /**
+     * the <code>_prev_ctid</code> of each of the {@link #ids}, in the same order
+     */
+    private String[] prevCtids;
+
+    ShardPrevCtidResponse() {
+    }
+
+    public ShardPrevCtidResponse(ShardId shardId, String[] ids, String[] prevCtids) {
+        super(shardId);
+        this.ids = ids;
+        this.prevCtids = prevCtids;
+    }
+
+    public String[] getIds() {
+        return ids;
+    }
+
+    public String[] getPrevCtids() {
+        return prevCtids;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        ids = in.readStringArray();
+        prevCtids = in.readStringArray();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeStringArray(ids);
+        out.writeStringArray(prevCtids);
+    }
+}
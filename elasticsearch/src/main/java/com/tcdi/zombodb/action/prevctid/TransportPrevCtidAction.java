@@ -0,0 +1,315 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.prevctid;
+
+import com.tcdi.zombodb.action.stats.ZomboDBMetrics;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.TransportBroadcastOperationAction;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.get.GetField;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.index.mapper.internal.UidFieldMapper;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Resolves the <code>_prev_ctid</code> of a batch of documents, by id, on every primary shard of an index
+ * at the same time.  Since a document's routing is its <code>_prev_ctid</code>, which is exactly what we don't
+ * know yet, every shard is asked about every id.
+ * <p>
+ * Each shard looks its ids up in a single pass over its current searcher:  the ids are sorted and sought, in
+ * order, through one {@link TermsEnum} over each segment's <code>_uid</code> terms, and only the documents
+ * that are found have their stored <code>_prev_ctid</code> loaded.  That's one terms dictionary seek per id per
+ * segment, which is what a realtime get that misses the version map costs too, but without acquiring a
+ * searcher and pulling a new TermsEnum for every id on every shard.
+ * <p>
+ * A searcher can't see documents written since the shard was last refreshed, so the ids that no shard found
+ * are asked for again, with {@link PrevCtidRequest#isRealtime()} set.  In that second round, shards whose
+ * engine has unrefreshed changes resolve them with realtime gets, which find documents that are still only
+ * in the translog without having to refresh the index, and the rest look in their searcher again.  The ids in
+ * the second round are the ones from the latest batches, so it's usually short, and often not needed at all.
+ * <p>
+ * A document found in a shard's searcher is taken as is.  ZomboDB only deletes a row's document once Postgres
+ * has VACUUMed the row, and _zdbvacuum refreshes the index when it has no refresh interval, so a ctid can't be
+ * reused, and looked up here, while its deleted document is still visible
+ */
+public class TransportPrevCtidAction
+        extends TransportBroadcastOperationAction<PrevCtidRequest, PrevCtidResponse, ShardPrevCtidRequest, ShardPrevCtidResponse> {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(TransportPrevCtidAction.class.getName());
+
+    private static final String[] FIELDS = {"_prev_ctid"};
+    private static final Set<String> FIELDS_SET = Collections.singleton("_prev_ctid");
+
+    private final IndicesService indicesService;
+
+    @Inject
+    public TransportPrevCtidAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                   TransportService transportService,
+                                   IndicesService indicesService,
+                                   ActionFilters actionFilters) {
+        super(settings, PrevCtidAction.NAME, threadPool, clusterService, transportService, actionFilters);
+        this.indicesService = indicesService;
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.GET;
+    }
+
+    @Override
+    protected PrevCtidRequest newRequest() {
+        return new PrevCtidRequest();
+    }
+
+    @Override
+    protected PrevCtidResponse newResponse(PrevCtidRequest request, AtomicReferenceArray shardsResponses, ClusterState clusterState) {
+        int successfulShards = 0;
+        int failedShards = 0;
+        List<ShardOperationFailedException> shardFailures = null;
+        Map<String, String> prevCtids = new HashMap<>(request.getIds().length);
+
+        for (int i = 0; i < shardsResponses.length(); i++) {
+            Object shardResponse = shardsResponses.get(i);
+            if (shardResponse instanceof BroadcastShardOperationFailedException) {
+                BroadcastShardOperationFailedException e = (BroadcastShardOperationFailedException) shardResponse;
+                logger.error(e.getMessage(), e);
+                failedShards++;
+                if (shardFailures == null) {
+                    shardFailures = new LinkedList<>();
+                }
+                shardFailures.add(new DefaultShardOperationFailedException(e));
+            } else if (shardResponse instanceof ShardPrevCtidResponse) {
+                ShardPrevCtidResponse resp = (ShardPrevCtidResponse) shardResponse;
+                successfulShards++;
+                for (int j = 0; j < resp.getIds().length; j++)
+                    prevCtids.put(resp.getIds()[j], resp.getPrevCtids()[j]);
+            }
+        }
+
+        return new PrevCtidResponse(shardsResponses.length(), successfulShards, failedShards, shardFailures, prevCtids);
+    }
+
+    @Override
+    protected ShardPrevCtidRequest newShardRequest(int numShards, ShardRouting shard, PrevCtidRequest request) {
+        return new ShardPrevCtidRequest(shard.getIndex(), shard.shardId(), request);
+    }
+
+    @Override
+    protected ShardPrevCtidResponse newShardResponse() {
+        return new ShardPrevCtidResponse();
+    }
+
+    /**
+     * Only primary shards are guaranteed to have seen the documents written by the previous batch
+     */
+    @Override
+    protected GroupShardsIterator shards(ClusterState clusterState, PrevCtidRequest request, String[] concreteIndices) {
+        return clusterService.operationRouting().searchShards(clusterState, request.indices(), concreteIndices, null, "_primary");
+    }
+
+    @Override
+    protected ClusterBlockException checkGlobalBlock(ClusterState state, PrevCtidRequest request) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.READ);
+    }
+
+    @Override
+    protected ClusterBlockException checkRequestBlock(ClusterState state, PrevCtidRequest request, String[] concreteIndices) {
+        return state.blocks().indicesBlockedException(ClusterBlockLevel.READ, concreteIndices);
+    }
+
+    /**
+     * Runs the request, then runs it again, in realtime, for whichever ids it didn't find
+     */
+    @Override
+    protected void doExecute(final PrevCtidRequest request, final ActionListener<PrevCtidResponse> listener) {
+        if (request.isRealtime()) {
+            super.doExecute(request, listener);
+            return;
+        }
+
+        super.doExecute(request, new ActionListener<PrevCtidResponse>() {
+            @Override
+            public void onResponse(final PrevCtidResponse first) {
+                List<String> missing = new ArrayList<>();
+                for (String id : request.getIds()) {
+                    if (!first.getPrevCtids().containsKey(id))
+                        missing.add(id);
+                }
+
+                if (missing.isEmpty()) {
+                    listener.onResponse(first);
+                    return;
+                }
+
+                PrevCtidRequest realtime = new PrevCtidRequest(request.indices());
+                realtime.indicesOptions(request.indicesOptions());
+                realtime.setType(request.getType());
+                realtime.setIds(missing);
+                realtime.setRealtime(true);
+
+                TransportPrevCtidAction.super.doExecute(realtime, new ActionListener<PrevCtidResponse>() {
+                    @Override
+                    public void onResponse(PrevCtidResponse second) {
+                        List<ShardOperationFailedException> shardFailures = new ArrayList<>();
+                        shardFailures.addAll(Arrays.asList(first.getShardFailures()));
+                        shardFailures.addAll(Arrays.asList(second.getShardFailures()));
+
+                        Map<String, String> prevCtids = new HashMap<>(first.getPrevCtids());
+                        prevCtids.putAll(second.getPrevCtids());
+
+                        listener.onResponse(new PrevCtidResponse(
+                                first.getTotalShards() + second.getTotalShards(),
+                                first.getSuccessfulShards() + second.getSuccessfulShards(),
+                                first.getFailedShards() + second.getFailedShards(),
+                                shardFailures, prevCtids));
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        listener.onFailure(e);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    @Override
+    protected ShardPrevCtidResponse shardOperation(ShardPrevCtidRequest request) throws ElasticsearchException {
+        IndexShard indexShard = indicesService.indexServiceSafe(request.getIndex()).shardSafe(request.shardId().id());
+        PrevCtidRequest prevCtidRequest = request.getRequest();
+        List<String> ids = new ArrayList<>();
+        List<String> prevCtids = new ArrayList<>();
+        long start = System.nanoTime();
+
+        if (prevCtidRequest.isRealtime() && indexShard.engine().refreshNeeded()) {
+            for (String id : prevCtidRequest.getIds()) {
+                GetResult result = indexShard.getService().get(prevCtidRequest.getType(), id, FIELDS, true, Versions.MATCH_ANY, VersionType.INTERNAL, FetchSourceContext.DO_NOT_FETCH_SOURCE, false);
+                if (!result.isExists())
+                    continue;
+
+                GetField field = result.getField("_prev_ctid");
+                if (field == null || field.getValue() == null)
+                    throw new ElasticsearchException("Found null _prev_ctid for " + id);
+
+                ids.add(id);
+                prevCtids.add(String.valueOf(field.getValue()));
+            }
+            ZomboDBMetrics.recordTime("prevctid", "realtime", start);
+        } else {
+            try (Engine.Searcher searcher = indexShard.acquireSearcher("zdbprevctid")) {
+                lookup(searcher.reader(), prevCtidRequest.getType(), prevCtidRequest.getIds(), ids, prevCtids);
+            } catch (IOException ioe) {
+                throw new ElasticsearchException(ioe.getMessage(), ioe);
+            }
+            ZomboDBMetrics.recordTime("prevctid", "shard", start);
+        }
+
+        return new ShardPrevCtidResponse(request.shardId(), ids.toArray(new String[ids.size()]), prevCtids.toArray(new String[prevCtids.size()]));
+    }
+
+    /**
+     * Looks every id up in the <code>_uid</code> terms of each segment of <code>reader</code>, adding the ids that are
+     * found, and their <code>_prev_ctid</code>s, to <code>foundIds</code> and <code>prevCtids</code>
+     */
+    private static void lookup(IndexReader reader, String type, String[] ids, List<String> foundIds, List<String> prevCtids) throws IOException {
+        // seeking in term order keeps each segment's terms dictionary walking forward.  ctids are ascii, so
+        // sorting the ids sorts their _uids too
+        String[] sorted = ids.clone();
+        Arrays.sort(sorted);
+
+        BytesRef[] uids = new BytesRef[sorted.length];
+        for (int i = 0; i < sorted.length; i++)
+            uids[i] = Uid.createUidAsBytes(type, sorted[i]);
+
+        boolean[] found = new boolean[sorted.length];
+        for (AtomicReaderContext context : reader.leaves()) {
+            AtomicReader segment = context.reader();
+            Terms terms = segment.terms(UidFieldMapper.NAME);
+            if (terms == null)
+                continue;
+
+            Bits liveDocs = segment.getLiveDocs();
+            TermsEnum termsEnum = terms.iterator(null);
+            DocsEnum docsEnum = null;
+
+            for (int i = 0; i < uids.length; i++) {
+                // an id is only ever live once per shard
+                if (found[i] || !termsEnum.seekExact(uids[i]))
+                    continue;
+
+                docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_NONE);
+                int doc = docsEnum.nextDoc();
+                if (doc == DocIdSetIterator.NO_MORE_DOCS)
+                    continue;
+
+                String prevCtid = segment.document(doc, FIELDS_SET).get("_prev_ctid");
+                if (prevCtid == null)
+                    throw new ElasticsearchException("Found null _prev_ctid for " + sorted[i]);
+
+                found[i] = true;
+                foundIds.add(sorted[i]);
+                prevCtids.add(prevCtid);
+            }
+        }
+    }
+}
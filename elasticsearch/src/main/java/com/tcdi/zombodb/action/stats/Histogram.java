@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.stats;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative longs, in the spirit of HdrHistogram.
+ * <p>
+ * Values below 32 each get their own bucket, and every power of two above that is split into 32
+ * linear sub-buckets, so any value is reported within about 3% of what was recorded, regardless of
+ * its magnitude.  Histograms from different nodes can be {@link #merge(Histogram)}d together
+ */
+public class Histogram implements Streamable, ToXContent {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    public static Histogram readHistogram(StreamInput in) throws IOException {
+        Histogram histogram = new Histogram();
+        histogram.readFrom(in);
+        return histogram;
+    }
+
+    static int bucketFor(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest value that would be counted in <code>bucket</code>
+     */
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long lowest = (SUB_BUCKETS + sub) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+
+        counts.incrementAndGet(bucketFor(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current;
+        while (value < (current = min.get()) && !min.compareAndSet(current, value)) ;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) ;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMin() {
+        return getCount() == 0 ? 0 : min.get();
+    }
+
+    public long getMax() {
+        return getCount() == 0 ? 0 : max.get();
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) getSum() / count;
+    }
+
+    /**
+     * @return the value that <code>percentile</code> percent of the recorded values are at or below
+     */
+    public long percentile(double percentile) {
+        long count = getCount();
+        if (count == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100D * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.max(getMin(), Math.min(getMax(), highestValueIn(i)));
+        }
+        return getMax();
+    }
+
+    /**
+     * @return a copy of this histogram that won't change as more values are recorded
+     */
+    public Histogram snapshot() {
+        Histogram copy = new Histogram();
+        copy.merge(this);
+        return copy;
+    }
+
+    public void merge(Histogram other) {
+        if (other.getCount() == 0)
+            return;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0)
+                counts.addAndGet(i, c);
+        }
+        count.addAndGet(other.getCount());
+        sum.addAndGet(other.getSum());
+
+        long current;
+        long otherMin = other.getMin(), otherMax = other.getMax();
+        while (otherMin < (current = min.get()) && !min.compareAndSet(current, otherMin)) ;
+        while (otherMax > (current = max.get()) && !max.compareAndSet(current, otherMax)) ;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        count.set(in.readVLong());
+        sum.set(in.readVLong());
+        min.set(in.readVLong());
+        max.set(in.readVLong());
+        int nonzero = in.readVInt();
+        for (int i = 0; i < nonzero; i++)
+            counts.set(in.readVInt(), in.readVLong());
+
+        if (count.get() == 0) {
+            min.set(Long.MAX_VALUE);
+            max.set(Long.MIN_VALUE);
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        int nonzero = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            if (counts.get(i) != 0)
+                nonzero++;
+
+        out.writeVLong(getCount());
+        out.writeVLong(getSum());
+        out.writeVLong(getMin());
+        out.writeVLong(getMax());
+        out.writeVInt(nonzero);
+        for (int i = 0; i < BUCKETS && nonzero > 0; i++) {
+            long c = counts.get(i);
+            if (c != 0) {
+                out.writeVInt(i);
+                out.writeVLong(c);
+                nonzero--;
+            }
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("count", getCount());
+        builder.field("min", getMin());
+        builder.field("max", getMax());
+        builder.field("mean", getMean());
+        builder.startObject("percentiles");
+        for (double percentile : PERCENTILES)
+            builder.field(String.valueOf(percentile), percentile(percentile));
+        builder.endObject();
+        return builder;
+    }
+}
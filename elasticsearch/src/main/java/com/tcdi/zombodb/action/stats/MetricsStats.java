@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.stats;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A point-in-time view of {@link ZomboDBMetrics}, from one node or merged across many
+ */
+public class MetricsStats implements Streamable, ToXContent {
+
+    private final Map<String, Map<String, Histogram>> histograms = new TreeMap<>();
+
+    MetricsStats() {
+    }
+
+    public static MetricsStats readMetricsStats(StreamInput in) throws IOException {
+        MetricsStats stats = new MetricsStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    void add(String endpoint, String name, Histogram histogram) {
+        Map<String, Histogram> byName = histograms.get(endpoint);
+        if (byName == null)
+            histograms.put(endpoint, byName = new TreeMap<>());
+
+        Histogram existing = byName.get(name);
+        if (existing == null)
+            byName.put(name, histogram.snapshot());
+        else
+            existing.merge(histogram);
+    }
+
+    public Histogram getHistogram(String endpoint, String name) {
+        Map<String, Histogram> byName = histograms.get(endpoint);
+        return byName == null ? null : byName.get(name);
+    }
+
+    public void merge(MetricsStats other) {
+        for (Map.Entry<String, Map<String, Histogram>> endpoint : other.histograms.entrySet())
+            for (Map.Entry<String, Histogram> entry : endpoint.getValue().entrySet())
+                add(endpoint.getKey(), entry.getKey(), entry.getValue());
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        int endpoints = in.readVInt();
+        for (int i = 0; i < endpoints; i++) {
+            String endpoint = in.readString();
+            int names = in.readVInt();
+            for (int j = 0; j < names; j++)
+                add(endpoint, in.readString(), Histogram.readHistogram(in));
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(histograms.size());
+        for (Map.Entry<String, Map<String, Histogram>> endpoint : histograms.entrySet()) {
+            out.writeString(endpoint.getKey());
+            out.writeVInt(endpoint.getValue().size());
+            for (Map.Entry<String, Histogram> entry : endpoint.getValue().entrySet()) {
+                out.writeString(entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("metrics");
+        for (Map.Entry<String, Map<String, Histogram>> endpoint : histograms.entrySet()) {
+            builder.startObject(endpoint.getKey());
+            for (Map.Entry<String, Histogram> entry : endpoint.getValue().entrySet()) {
+                builder.startObject(entry.getKey());
+                entry.getValue().toXContent(builder, params);
+                builder.endObject();
+            }
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+}
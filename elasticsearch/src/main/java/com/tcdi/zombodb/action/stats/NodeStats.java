@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.stats;
+
+import com.tcdi.zombodb.action.tidlist.TIDListCacheStats;
+import com.tcdi.zombodb.query.CommittedXidCacheStats;
+import com.tcdi.zombodb.query.UpdatedCtidCacheStats;
+import com.tcdi.zombodb.query.VisibilityCacheStats;
+import org.elasticsearch.action.support.nodes.NodeOperationResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * ZomboDB's statistics for a single node
+ */
+public class NodeStats extends NodeOperationResponse implements ToXContent {
+
+    private TIDListCacheStats tidListCacheStats;
+    private CommittedXidCacheStats committedXidCacheStats;
+    private UpdatedCtidCacheStats updatedCtidCacheStats;
+    private VisibilityCacheStats visibilityCacheStats;
+    private MetricsStats metricsStats;
+
+    NodeStats() {
+    }
+
+    NodeStats(DiscoveryNode node, TIDListCacheStats tidListCacheStats, CommittedXidCacheStats committedXidCacheStats, UpdatedCtidCacheStats updatedCtidCacheStats, VisibilityCacheStats visibilityCacheStats, MetricsStats metricsStats) {
+        super(node);
+        this.tidListCacheStats = tidListCacheStats;
+        this.committedXidCacheStats = committedXidCacheStats;
+        this.updatedCtidCacheStats = updatedCtidCacheStats;
+        this.visibilityCacheStats = visibilityCacheStats;
+        this.metricsStats = metricsStats;
+    }
+
+    static NodeStats readNodeStats(StreamInput in) throws IOException {
+        NodeStats stats = new NodeStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    public TIDListCacheStats getTIDListCacheStats() {
+        return tidListCacheStats;
+    }
+
+    public CommittedXidCacheStats getCommittedXidCacheStats() {
+        return committedXidCacheStats;
+    }
+
+    public UpdatedCtidCacheStats getUpdatedCtidCacheStats() {
+        return updatedCtidCacheStats;
+    }
+
+    public VisibilityCacheStats getVisibilityCacheStats() {
+        return visibilityCacheStats;
+    }
+
+    public MetricsStats getMetricsStats() {
+        return metricsStats;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        tidListCacheStats = TIDListCacheStats.readTIDListCacheStats(in);
+        committedXidCacheStats = CommittedXidCacheStats.readCommittedXidCacheStats(in);
+        updatedCtidCacheStats = UpdatedCtidCacheStats.readUpdatedCtidCacheStats(in);
+        visibilityCacheStats = VisibilityCacheStats.readVisibilityCacheStats(in);
+        metricsStats = MetricsStats.readMetricsStats(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        tidListCacheStats.writeTo(out);
+        committedXidCacheStats.writeTo(out);
+        updatedCtidCacheStats.writeTo(out);
+        visibilityCacheStats.writeTo(out);
+        metricsStats.writeTo(out);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("name", getNode().name());
+        builder.field("host", getNode().getHostName());
+        tidListCacheStats.toXContent(builder, params);
+        committedXidCacheStats.toXContent(builder, params);
+        updatedCtidCacheStats.toXContent(builder, params);
+        visibilityCacheStats.toXContent(builder, params);
+        metricsStats.toXContent(builder, params);
+        return builder;
+    }
+}
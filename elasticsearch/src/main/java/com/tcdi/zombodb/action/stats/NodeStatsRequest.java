@@ -13,20 +13,16 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package com.tcdi.zombodb.query;
+package com.tcdi.zombodb.action.stats;
 
-class VisibilityInfo {
-    final int readerOrd;
-    final int maxdoc;
-    final int docid;
-    public final long xid;
-    public final long sequence;
+import org.elasticsearch.action.support.nodes.NodeOperationRequest;
 
-    VisibilityInfo(int readerOrd, int maxdoc, int docid, long xid, long sequence) {
-        this.readerOrd = readerOrd;
-        this.maxdoc = maxdoc;
-        this.docid = docid;
-        this.xid = xid;
-        this.sequence = sequence;
+class NodeStatsRequest extends NodeOperationRequest {
+
+    NodeStatsRequest() {
+    }
+
+    NodeStatsRequest(StatsRequest request, String nodeId) {
+        super(request, nodeId);
     }
 }
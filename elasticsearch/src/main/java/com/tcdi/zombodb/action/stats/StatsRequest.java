@@ -0,0 +1,28 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.stats;
+
+import org.elasticsearch.action.support.nodes.NodesOperationRequest;
+
+/**
+ * A request for ZomboDB's statistics from one or more (by default, all) nodes
+ */
+public class StatsRequest extends NodesOperationRequest<StatsRequest> {
+
+    public StatsRequest(String... nodesIds) {
+        super(nodesIds);
+    }
+}
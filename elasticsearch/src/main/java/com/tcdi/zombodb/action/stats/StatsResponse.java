@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.stats;
+
+import org.elasticsearch.action.support.nodes.NodesOperationResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+public class StatsResponse extends NodesOperationResponse<NodeStats> implements ToXContent {
+
+    StatsResponse() {
+    }
+
+    StatsResponse(ClusterName clusterName, NodeStats[] nodes) {
+        super(clusterName, nodes);
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        nodes = new NodeStats[in.readVInt()];
+        for (int i = 0; i < nodes.length; i++)
+            nodes[i] = NodeStats.readNodeStats(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(nodes.length);
+        for (NodeStats node : nodes)
+            node.writeTo(out);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        MetricsStats cluster = new MetricsStats();
+        for (NodeStats node : nodes)
+            cluster.merge(node.getMetricsStats());
+
+        builder.field("cluster_name", getClusterName().value());
+        builder.startObject("cluster");
+        cluster.toXContent(builder, params);
+        builder.endObject();
+        builder.startObject("nodes");
+        for (NodeStats node : nodes) {
+            builder.startObject(node.getNode().id());
+            node.toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.stats;
+
+import com.tcdi.zombodb.action.tidlist.TransportTIDListAction;
+import com.tcdi.zombodb.query.CommittedXidCache;
+import com.tcdi.zombodb.query.UpdatedCtidCache;
+import com.tcdi.zombodb.query.VisibilityBitSetCache;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesOperationAction;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Gathers ZomboDB's node-level statistics from every node in the cluster
+ */
+public class TransportStatsAction extends TransportNodesOperationAction<StatsRequest, StatsResponse, NodeStatsRequest, NodeStats> {
+
+    private final TransportTIDListAction tidListAction;
+    private final CommittedXidCache committedXidCache;
+    private final UpdatedCtidCache updatedCtidCache;
+    private final VisibilityBitSetCache visibilityCache;
+
+    @Inject
+    public TransportStatsAction(Settings settings, ClusterName clusterName, ThreadPool threadPool,
+                                ClusterService clusterService, TransportService transportService,
+                                TransportTIDListAction tidListAction, CommittedXidCache committedXidCache, UpdatedCtidCache updatedCtidCache,
+                                VisibilityBitSetCache visibilityCache,
+                                ActionFilters actionFilters) {
+        super(settings, StatsAction.NAME, clusterName, threadPool, clusterService, transportService, actionFilters);
+        this.tidListAction = tidListAction;
+        this.committedXidCache = committedXidCache;
+        this.updatedCtidCache = updatedCtidCache;
+        this.visibilityCache = visibilityCache;
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.MANAGEMENT;
+    }
+
+    @Override
+    protected StatsRequest newRequest() {
+        return new StatsRequest();
+    }
+
+    @Override
+    protected StatsResponse newResponse(StatsRequest request, AtomicReferenceArray nodesResponses) {
+        List<NodeStats> stats = new ArrayList<>();
+        for (int i = 0; i < nodesResponses.length(); i++) {
+            Object resp = nodesResponses.get(i);
+            if (resp instanceof NodeStats)
+                stats.add((NodeStats) resp);
+        }
+        return new StatsResponse(clusterName, stats.toArray(new NodeStats[stats.size()]));
+    }
+
+    @Override
+    protected NodeStatsRequest newNodeRequest() {
+        return new NodeStatsRequest();
+    }
+
+    @Override
+    protected NodeStatsRequest newNodeRequest(String nodeId, StatsRequest request) {
+        return new NodeStatsRequest(request, nodeId);
+    }
+
+    @Override
+    protected NodeStats newNodeResponse() {
+        return new NodeStats();
+    }
+
+    @Override
+    protected NodeStats nodeOperation(NodeStatsRequest request) throws ElasticsearchException {
+        return new NodeStats(clusterService.localNode(), tidListAction.getCache().stats(), committedXidCache.stats(), updatedCtidCache.stats(), visibilityCache.stats(), ZomboDBMetrics.stats());
+    }
+
+    @Override
+    protected boolean accumulateExceptions() {
+        return false;
+    }
+}
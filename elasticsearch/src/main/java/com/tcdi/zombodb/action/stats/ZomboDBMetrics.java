@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.stats;
+
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This node's histograms of how long each phase of each ZomboDB endpoint takes, and how much each request
+ * returns.  They're reported by the <code>_zdbstats</code> endpoint.
+ * <p>
+ * Times are recorded in microseconds, under the phase's name with an "_in_micros" suffix
+ */
+public class ZomboDBMetrics {
+
+    private static final ConcurrentMap<String, ConcurrentMap<String, Histogram>> histograms = ConcurrentCollections.newConcurrentMap();
+
+    private ZomboDBMetrics() {
+    }
+
+    public static Histogram histogram(String endpoint, String name) {
+        ConcurrentMap<String, Histogram> byName = histograms.get(endpoint);
+        if (byName == null) {
+            ConcurrentMap<String, Histogram> existing = histograms.putIfAbsent(endpoint, byName = ConcurrentCollections.<String, Histogram>newConcurrentMap());
+            if (existing != null)
+                byName = existing;
+        }
+
+        Histogram histogram = byName.get(name);
+        if (histogram == null) {
+            Histogram existing = byName.putIfAbsent(name, histogram = new Histogram());
+            if (existing != null)
+                histogram = existing;
+        }
+        return histogram;
+    }
+
+    public static void record(String endpoint, String name, long value) {
+        histogram(endpoint, name).record(value);
+    }
+
+    /**
+     * Record the time since <code>startNanos</code>, a value from {@link System#nanoTime()}
+     */
+    public static void recordTime(String endpoint, String phase, long startNanos) {
+        recordNanos(endpoint, phase, System.nanoTime() - startNanos);
+    }
+
+    public static void recordNanos(String endpoint, String phase, long nanos) {
+        histogram(endpoint, phase + "_in_micros").record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public static MetricsStats stats() {
+        MetricsStats stats = new MetricsStats();
+        for (Map.Entry<String, ConcurrentMap<String, Histogram>> endpoint : histograms.entrySet())
+            for (Map.Entry<String, Histogram> entry : endpoint.getValue().entrySet())
+                stats.add(endpoint.getKey(), entry.getKey(), entry.getValue().snapshot());
+        return stats;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.tidlist;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.io.IOException;
+
+class ShardTIDListRequest extends BroadcastShardOperationRequest {
+
+    private String index;
+
+    private String[] filteringAliases;
+
+    private TIDListRequest request;
+
+    ShardTIDListRequest() {
+    }
+
+    public ShardTIDListRequest(String index, ShardId shardId, String[] filteringAliases, TIDListRequest request) {
+        super(shardId, request);
+        this.index = index;
+        this.filteringAliases = filteringAliases;
+        this.request = request;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public String[] getFilteringAliases() {
+        return filteringAliases;
+    }
+
+    public TIDListRequest getRequest() {
+        return request;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        index = in.readString();
+        int cnt = in.readVInt();
+        if (cnt > 0) {
+            filteringAliases = new String[cnt];
+            for (int i = 0; i < cnt; i++)
+                filteringAliases[i] = in.readString();
+        }
+        request = TIDListRequest.from(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(index);
+        if (filteringAliases == null) {
+            out.writeVInt(0);
+        } else {
+            out.writeVInt(filteringAliases.length);
+            for (String alias : filteringAliases)
+                out.writeString(alias);
+        }
+        request.writeTo(out);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.tidlist;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationResponse;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+class ShardTIDListResponse extends BroadcastShardOperationResponse {
+
+    private String index;
+
+    private int many;
+
+    private float maxScore;
+
+    /**
+     * (blockno, offset, score) tuples, encoded just like the _pgtid response body and sorted by block number
+     */
+    private byte[] tids;
+
+    /**
+     * for a limited request sorted by a field, the sort value of each of the {@link #tids}, in the same order
+     */
+    private double[] sortValues;
+
+    /**
+     * when read from another node, the breaker {@link #tids} is charged to, and how much was charged
+     */
+    private CircuitBreaker breaker;
+    private long chargedBytes;
+
+    ShardTIDListResponse(CircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+
+    public ShardTIDListResponse(String index, ShardId shardId, int many, float maxScore, byte[] tids) {
+        super(shardId);
+        this.index = index;
+        this.many = many;
+        this.maxScore = maxScore;
+        this.tids = tids;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public int getMany() {
+        return many;
+    }
+
+    public float getMaxScore() {
+        return maxScore;
+    }
+
+    public byte[] getTids() {
+        return tids;
+    }
+
+    public double[] getSortValues() {
+        return sortValues;
+    }
+
+    void setSortValues(double[] sortValues) {
+        this.sortValues = sortValues;
+    }
+
+    /**
+     * @return how much of the request circuit breaker reading this response charged, and which the
+     * coordinating node has to release once it's done with {@link #getTids()}
+     */
+    long getChargedBytes() {
+        return chargedBytes;
+    }
+
+    /**
+     * Drops the slack the collector left at the end of {@link #tids} (and {@link #sortValues}), so that what's
+     * kept is exactly the <code>many * BYTES_PER_TID</code> bytes a remote node's breaker is charged for reading it
+     */
+    void trim() {
+        int length = many * TIDListResponse.BYTES_PER_TID;
+        if (tids.length > length)
+            tids = Arrays.copyOf(tids, length);
+        if (sortValues != null && sortValues.length > many)
+            sortValues = Arrays.copyOf(sortValues, many);
+    }
+
+    long ramBytesUsed() {
+        return 64 + tids.length + (sortValues != null ? sortValues.length * 8L : 0);
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        index = in.readString();
+        many = in.readVInt();
+        maxScore = in.readFloat();
+        int length = in.readVInt();
+        if (breaker != null) {
+            breaker.addEstimateBytesAndMaybeBreak(length, "<zombodb_tidlist>");
+            chargedBytes = length;
+        }
+        tids = new byte[length];
+        in.readBytes(tids, 0, tids.length);
+        if (in.readBoolean()) {
+            sortValues = new double[many];
+            for (int i = 0; i < many; i++)
+                sortValues[i] = in.readDouble();
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(index);
+        out.writeVInt(many);
+        out.writeFloat(maxScore);
+        out.writeVInt(many * TIDListResponse.BYTES_PER_TID);
+        out.writeBytes(tids, 0, many * TIDListResponse.BYTES_PER_TID);
+        out.writeBoolean(sortValues != null);
+        if (sortValues != null) {
+            for (int i = 0; i < many; i++)
+                out.writeDouble(sortValues[i]);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.tidlist;
+
+import com.tcdi.zombodb.postgres.PostgresTIDResponseAction;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.elasticsearch.index.mapper.internal.UidFieldMapper;
+
+import java.io.IOException;
+
+/**
+ * Loads only the "_uid" stored field of a document and decodes it, in place, into
+ * the Postgres heap tuple id (blockno, offset) it represents.
+ * <p>
+ * ZomboDB document _ids are of the form "blockno-offset", so a "_uid" looks like "data#1234-5"
+ */
+class TIDFieldVisitor extends StoredFieldVisitor {
+
+    private boolean found;
+    private boolean valid;
+    private int blockno;
+    private char offset;
+    private String uid;
+
+    void reset() {
+        found = false;
+        valid = false;
+        blockno = PostgresTIDResponseAction.INVALID_BLOCK_NUMBER;
+        offset = 0;
+        uid = null;
+    }
+
+    @Override
+    public Status needsField(FieldInfo fieldInfo) throws IOException {
+        if (found)
+            return Status.STOP;
+        return UidFieldMapper.NAME.equals(fieldInfo.name) ? Status.YES : Status.NO;
+    }
+
+    @Override
+    public void stringField(FieldInfo fieldInfo, String value) throws IOException {
+        found = true;
+        uid = value;
+        decode(value);
+    }
+
+    private void decode(String value) {
+        int len = value.length();
+        int i = value.indexOf('#') + 1;
+        long block = 0;
+        int off = 0;
+        int digits = 0;
+
+        for (; i < len; i++) {
+            char ch = value.charAt(i);
+            if (ch == '-')
+                break;
+            if (ch < '0' || ch > '9')
+                return;
+            block = block * 10 + (ch - '0');
+            digits++;
+        }
+
+        if (digits == 0 || i == len || block > 0xFFFFFFFFL)
+            return;
+
+        digits = 0;
+        for (i++; i < len; i++) {
+            char ch = value.charAt(i);
+            if (ch < '0' || ch > '9')
+                return;
+            off = off * 10 + (ch - '0');
+            if (++digits > 5)
+                return;
+        }
+
+        if (digits == 0 || off > Character.MAX_VALUE)
+            return;
+
+        blockno = (int) block;
+        offset = (char) off;
+        valid = true;
+    }
+
+    boolean isValid() {
+        return valid;
+    }
+
+    int blockno() {
+        return blockno;
+    }
+
+    char offset() {
+        return offset;
+    }
+
+    String uid() {
+        return uid;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.tidlist;
+
+import org.apache.lucene.index.IndexReader;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.CacheStats;
+import org.elasticsearch.common.cache.RemovalListener;
+import org.elasticsearch.common.cache.RemovalNotification;
+import org.elasticsearch.common.cache.Weigher;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches each shard's {@link ShardTIDListResponse}, keyed on the exact request (which, once rewritten,
+ * includes the query's visibility snapshot) and the shard's top-level {@link IndexReader}.
+ * <p>
+ * A refresh opens a new reader, so entries are never stale.  They're removed as soon as the reader they
+ * were built from is closed, and otherwise evicted least-recently-used once the cache's size in bytes
+ * goes over budget
+ */
+public class TIDListCache {
+
+    private static class Key {
+        private final ShardId shardId;
+        private final Object readerKey;
+        private final BytesReference query;
+        private final boolean scoring;
+        private final int limit;
+        private final String sortField;
+        private final boolean sortDescending;
+        private final String[] filteringAliases;
+        private final int hashCode;
+
+        private Key(ShardId shardId, Object readerKey, ShardTIDListRequest request) {
+            TIDListRequest tidListRequest = request.getRequest();
+            this.shardId = shardId;
+            this.readerKey = readerKey;
+            this.query = tidListRequest.getQuery();
+            this.scoring = tidListRequest.isScoring();
+            this.limit = tidListRequest.getLimit();
+            this.sortField = tidListRequest.getSortField();
+            this.sortDescending = tidListRequest.isSortDescending();
+            this.filteringAliases = request.getFilteringAliases();
+
+            int result = shardId.hashCode();
+            result = 31 * result + readerKey.hashCode();
+            result = 31 * result + query.hashCode();
+            result = 31 * result + (scoring ? 1 : 0);
+            result = 31 * result + limit;
+            result = 31 * result + (sortField != null ? sortField.hashCode() : 0);
+            result = 31 * result + (sortDescending ? 1 : 0);
+            result = 31 * result + Arrays.hashCode(filteringAliases);
+            this.hashCode = result;
+        }
+
+        private long ramBytesUsed() {
+            return query.length() + 64;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+
+            Key other = (Key) obj;
+            return hashCode == other.hashCode &&
+                    readerKey == other.readerKey &&
+                    shardId.equals(other.shardId) &&
+                    scoring == other.scoring &&
+                    limit == other.limit &&
+                    sortDescending == other.sortDescending &&
+                    (sortField == null ? other.sortField == null : sortField.equals(other.sortField)) &&
+                    Arrays.equals(filteringAliases, other.filteringAliases) &&
+                    query.equals(other.query);
+        }
+    }
+
+    private final Cache<Key, ShardTIDListResponse> cache;
+    private final Set<Object> registeredReaders = ConcurrentCollections.newConcurrentSet();
+    private final AtomicLong sizeInBytes = new AtomicLong();
+    private final long maxSizeInBytes;
+
+    public TIDListCache(ByteSizeValue maxSize) {
+        this.maxSizeInBytes = maxSize.bytes();
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(1, maxSizeInBytes))
+                .weigher(new Weigher<Key, ShardTIDListResponse>() {
+                    @Override
+                    public int weigh(Key key, ShardTIDListResponse value) {
+                        return (int) Math.min(Integer.MAX_VALUE, weight(key, value));
+                    }
+                })
+                .removalListener(new RemovalListener<Key, ShardTIDListResponse>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<Key, ShardTIDListResponse> notification) {
+                        sizeInBytes.addAndGet(-weight(notification.getKey(), notification.getValue()));
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    private static long weight(Key key, ShardTIDListResponse value) {
+        return key.ramBytesUsed() + value.ramBytesUsed();
+    }
+
+    public boolean isEnabled() {
+        return maxSizeInBytes > 0;
+    }
+
+    /**
+     * @return the cached response for this shard request against this reader, or null
+     */
+    ShardTIDListResponse get(ShardTIDListRequest request, IndexReader reader) {
+        if (!isEnabled())
+            return null;
+        return cache.getIfPresent(new Key(request.shardId(), reader.getCombinedCoreAndDeletesKey(), request));
+    }
+
+    void put(ShardTIDListRequest request, IndexReader reader, ShardTIDListResponse response) {
+        if (!isEnabled())
+            return;
+
+        final Object readerKey = reader.getCombinedCoreAndDeletesKey();
+        Key key = new Key(request.shardId(), readerKey, request);
+
+        if (registeredReaders.add(readerKey)) {
+            reader.addReaderClosedListener(new IndexReader.ReaderClosedListener() {
+                @Override
+                public void onClose(IndexReader reader) {
+                    invalidate(readerKey);
+                }
+            });
+        }
+
+        response.trim();
+        sizeInBytes.addAndGet(weight(key, response));
+        cache.put(key, response);
+    }
+
+    private void invalidate(Object readerKey) {
+        registeredReaders.remove(readerKey);
+        for (Key key : cache.asMap().keySet()) {
+            if (key.readerKey == readerKey)
+                cache.invalidate(key);
+        }
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    public TIDListCacheStats stats() {
+        CacheStats stats = cache.stats();
+        return new TIDListCacheStats(cache.size(), sizeInBytes.get(), maxSizeInBytes, stats.hitCount(), stats.missCount(), stats.evictionCount());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.tidlist;
+
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.query.QueryBuilder;
+
+import java.io.IOException;
+
+public class TIDListRequest extends BroadcastOperationRequest<TIDListRequest> {
+
+    private BytesReference query = BytesArray.EMPTY;
+
+    private String preference;
+
+    private boolean scoring = true;
+
+    private int limit = -1;
+
+    private String sortField;
+
+    private boolean sortDescending = true;
+
+    TIDListRequest() {
+    }
+
+    public TIDListRequest(String... indices) {
+        super(indices);
+    }
+
+    public void setQuery(QueryBuilder query) {
+        this.query = query.buildAsBytes();
+    }
+
+    public void setQuery(BytesReference query) {
+        this.query = query;
+    }
+
+    public BytesReference getQuery() {
+        return query;
+    }
+
+    public void setPreference(String preference) {
+        this.preference = preference;
+    }
+
+    public String getPreference() {
+        return preference;
+    }
+
+    /**
+     * When false, matching documents aren't scored and every TID is returned with a score of zero
+     */
+    public void setScoring(boolean scoring) {
+        this.scoring = scoring;
+    }
+
+    public boolean isScoring() {
+        return scoring;
+    }
+
+    /**
+     * Only return the top <code>limit</code> TIDs, as ordered by {@link #getSortField()}.  A negative
+     * limit, the default, returns every matching TID
+     */
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * The numeric field that decides the top {@link #getLimit()} TIDs.  <code>null</code> sorts by score
+     */
+    public void setSortField(String sortField) {
+        this.sortField = sortField;
+    }
+
+    public String getSortField() {
+        return sortField;
+    }
+
+    public void setSortDescending(boolean sortDescending) {
+        this.sortDescending = sortDescending;
+    }
+
+    public boolean isSortDescending() {
+        return sortDescending;
+    }
+
+    static TIDListRequest from(StreamInput in) throws IOException {
+        TIDListRequest request = new TIDListRequest();
+        request.readFrom(in);
+        return request;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        query = in.readBytesReference();
+        preference = in.readOptionalString();
+        scoring = in.readBoolean();
+        limit = in.readInt();
+        sortField = in.readOptionalString();
+        sortDescending = in.readBoolean();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeBytesReference(query);
+        out.writeOptionalString(preference);
+        out.writeBoolean(scoring);
+        out.writeInt(limit);
+        out.writeOptionalString(sortField);
+        out.writeBoolean(sortDescending);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.tidlist;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.QueryBuilder;
+
+/**
+ * A request to collect the matching heap tuple ids of one or more indices
+ */
+public class TIDListRequestBuilder extends BroadcastOperationRequestBuilder<TIDListRequest, TIDListResponse, TIDListRequestBuilder, Client> {
+
+    public TIDListRequestBuilder(Client client) {
+        super(client, new TIDListRequest());
+    }
+
+    public TIDListRequestBuilder setQuery(QueryBuilder query) {
+        request.setQuery(query);
+        return this;
+    }
+
+    public TIDListRequestBuilder setPreference(String preference) {
+        request.setPreference(preference);
+        return this;
+    }
+
+    public TIDListRequestBuilder setScoring(boolean scoring) {
+        request.setScoring(scoring);
+        return this;
+    }
+
+    public TIDListRequestBuilder setLimit(int limit) {
+        request.setLimit(limit);
+        return this;
+    }
+
+    /**
+     * @param sortField the numeric field to sort by, or <code>null</code> to sort by score
+     */
+    public TIDListRequestBuilder setSort(String sortField, boolean descending) {
+        request.setSortField(sortField);
+        request.setSortDescending(descending);
+        return this;
+    }
+
+    @Override
+    protected void doExecute(ActionListener<TIDListResponse> listener) {
+        client.execute(TIDListAction.INSTANCE, request, listener);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.tidlist;
+
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationResponse;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.lease.Releasable;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A response for the tidlist action.  Each shard's (blockno, offset, score) tuples are kept as
+ * a separate run, already sorted by block number and encoded just like the _pgtid response body,
+ * so the runs only need to be merged as they're written to Postgres.
+ * <p>
+ * The runs are charged to the coordinating node's request circuit breaker, and the caller must
+ * {@link #close()} the response once it's done with them
+ */
+public class TIDListResponse extends BroadcastOperationResponse implements Releasable {
+
+    /**
+     * sizeof(int4) + sizeof(int2) + sizeof(float4)
+     */
+    public static final int BYTES_PER_TID = 10;
+
+    /**
+     * NULL + totalhits + maxscore
+     */
+    public static final int HEADER_SIZE = 1 + 8 + 4;
+
+    private int many;
+
+    private float maxScore;
+
+    private byte[][] runs;
+
+    private int[] runSizes;
+
+    private CircuitBreaker breaker;
+    private long chargedBytes;
+
+    TIDListResponse() {
+    }
+
+    TIDListResponse(int totalShards, int successfulShards, int failedShards,
+                    List<ShardOperationFailedException> shardFailures,
+                    int many, float maxScore, byte[][] runs, int[] runSizes) {
+        super(totalShards, successfulShards, failedShards, shardFailures);
+        this.many = many;
+        this.maxScore = maxScore;
+        this.runs = runs;
+        this.runSizes = runSizes;
+    }
+
+    public int getMany() {
+        return many;
+    }
+
+    public float getMaxScore() {
+        return maxScore;
+    }
+
+    /**
+     * @return one sorted run of encoded TIDs per successful shard
+     */
+    public byte[][] getRuns() {
+        return runs;
+    }
+
+    /**
+     * @return the number of TIDs in each of {@link #getRuns()}
+     */
+    public int[] getRunSizes() {
+        return runSizes;
+    }
+
+    void charged(CircuitBreaker breaker, long bytes) {
+        this.breaker = breaker;
+        this.chargedBytes = bytes;
+    }
+
+    /**
+     * Release the runs' charge against the request circuit breaker
+     */
+    @Override
+    public synchronized void close() {
+        if (breaker != null && chargedBytes != 0) {
+            breaker.addWithoutBreaking(-chargedBytes);
+            chargedBytes = 0;
+        }
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        many = in.readVInt();
+        maxScore = in.readFloat();
+        runs = new byte[in.readVInt()][];
+        runSizes = new int[runs.length];
+        for (int i = 0; i < runs.length; i++) {
+            runSizes[i] = in.readVInt();
+            runs[i] = new byte[runSizes[i] * BYTES_PER_TID];
+            in.readBytes(runs[i], 0, runs[i].length);
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(many);
+        out.writeFloat(maxScore);
+        out.writeVInt(runs.length);
+        for (int i = 0; i < runs.length; i++) {
+            out.writeVInt(runSizes[i]);
+            out.writeBytes(runs[i], 0, runSizes[i] * BYTES_PER_TID);
+        }
+    }
+}
@@ -0,0 +1,524 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.tidlist;
+
+import com.tcdi.zombodb.action.stats.ZomboDBMetrics;
+import com.tcdi.zombodb.postgres.AsyncRestHelper;
+import com.tcdi.zombodb.postgres.TidArrayRadixSort;
+import com.tcdi.zombodb.query_parser.utils.Utils;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.util.ArrayUtil;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.TransportBroadcastOperationAction;
+import org.elasticsearch.cache.recycler.CacheRecycler;
+import org.elasticsearch.cache.recycler.PageCacheRecycler;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.service.IndexService;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.MultiValueMode;
+import org.elasticsearch.search.internal.DefaultSearchContext;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.search.internal.ShardSearchLocalRequest;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Runs a (rewritten) ZomboDB query directly against each shard and collects the
+ * Postgres heap tuple id (blockno, offset) and score of every matching document
+ * into a compact binary array, without going through SCAN/scroll and {@link org.elasticsearch.search.SearchHit}s.
+ * <p>
+ * Each shard sorts its own array by block number, leaving the coordinating node with
+ * nothing more than a k-way merge of the sorted runs
+ */
+public class TransportTIDListAction
+        extends TransportBroadcastOperationAction<TIDListRequest, TIDListResponse, ShardTIDListRequest, ShardTIDListResponse> {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(TransportTIDListAction.class.getName());
+
+    private final IndicesService indicesService;
+    private final ScriptService scriptService;
+    private final CacheRecycler cacheRecycler;
+    private final PageCacheRecycler pageCacheRecycler;
+    private final BigArrays bigArrays;
+    private final CircuitBreaker breaker;
+    private final TIDListCache cache;
+
+    @Inject
+    public TransportTIDListAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                  TransportService transportService,
+                                  IndicesService indicesService,
+                                  ScriptService scriptService,
+                                  CacheRecycler cacheRecycler,
+                                  PageCacheRecycler pageCacheRecycler,
+                                  BigArrays bigArrays,
+                                  CircuitBreakerService breakerService,
+                                  ActionFilters actionFilters) {
+        super(settings, TIDListAction.NAME, threadPool, clusterService, transportService, actionFilters);
+        this.indicesService = indicesService;
+        this.scriptService = scriptService;
+        this.cacheRecycler = cacheRecycler;
+        this.pageCacheRecycler = pageCacheRecycler;
+        this.bigArrays = bigArrays;
+        this.breaker = breakerService.getBreaker(CircuitBreaker.Name.REQUEST);
+        this.cache = new TIDListCache(settings.getAsMemory("zombodb.tidlist.cache.size", "2%"));
+    }
+
+    public TIDListCache getCache() {
+        return cache;
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.SEARCH;
+    }
+
+    @Override
+    protected TIDListRequest newRequest() {
+        return new TIDListRequest();
+    }
+
+    @Override
+    protected TIDListResponse newResponse(TIDListRequest request, AtomicReferenceArray shardsResponses, ClusterState clusterState) {
+        int successfulShards = 0;
+        int failedShards = 0;
+        List<ShardOperationFailedException> shardFailures = null;
+        List<ShardTIDListResponse> responses = new LinkedList<>();
+        long many = 0;
+        float maxScore = 0;
+
+        for (int i = 0; i < shardsResponses.length(); i++) {
+            Object shardResponse = shardsResponses.get(i);
+            if (shardResponse instanceof BroadcastShardOperationFailedException) {
+                BroadcastShardOperationFailedException e = (BroadcastShardOperationFailedException) shardResponse;
+                logger.error(e.getMessage(), e);
+                failedShards++;
+                if (shardFailures == null) {
+                    shardFailures = new LinkedList<>();
+                }
+                shardFailures.add(new DefaultShardOperationFailedException(e));
+            } else if (shardResponse instanceof ShardTIDListResponse) {
+                ShardTIDListResponse resp = (ShardTIDListResponse) shardResponse;
+                successfulShards++;
+                responses.add(resp);
+                many += resp.getMany();
+                maxScore = Math.max(maxScore, resp.getMaxScore());
+            }
+        }
+
+        // runs that came over the wire were charged to the breaker as they were read.  The rest are
+        // this node's own shards' arrays (or cached ones), and are charged below
+        long charged = 0;
+        for (ShardTIDListResponse resp : responses)
+            charged += resp.getChargedBytes();
+
+        if (request.getLimit() >= 0) {
+            // the winners are copied out, so the shards' arrays aren't needed past this
+            try {
+                return topResponse(request, shardsResponses.length(), successfulShards, failedShards, shardFailures, responses, maxScore);
+            } finally {
+                breaker.addWithoutBreaking(-charged);
+            }
+        }
+
+        try {
+            if (many > Integer.MAX_VALUE)
+                throw new ElasticsearchException("Too many matching rows for a single response: " + many);
+
+            for (ShardTIDListResponse resp : responses) {
+                if (resp.getChargedBytes() == 0) {
+                    long bytes = resp.getMany() * (long) TIDListResponse.BYTES_PER_TID;
+                    breaker.addEstimateBytesAndMaybeBreak(bytes, "<zombodb_tidlist>");
+                    charged += bytes;
+                }
+            }
+        } catch (RuntimeException e) {
+            breaker.addWithoutBreaking(-charged);
+            throw e;
+        }
+
+        byte[][] runs = new byte[responses.size()][];
+        int[] runSizes = new int[responses.size()];
+        int i = 0;
+        for (ShardTIDListResponse resp : responses) {
+            runs[i] = resp.getTids();
+            runSizes[i] = resp.getMany();
+            i++;
+        }
+
+        TIDListResponse response = new TIDListResponse(shardsResponses.length(), successfulShards, failedShards, shardFailures, (int) many, maxScore, runs, runSizes);
+        response.charged(breaker, charged);
+        return response;
+    }
+
+    /**
+     * A limited request only needs the best {@link TIDListRequest#getLimit()} TIDs across all of the
+     * shards' (already limited) candidates.  These are then put back in block number order, as a single run
+     */
+    private TIDListResponse topResponse(final TIDListRequest request, int totalShards, int successfulShards, int failedShards,
+                                        List<ShardOperationFailedException> shardFailures,
+                                        List<ShardTIDListResponse> responses, float maxScore) {
+        List<TopTID> candidates = new ArrayList<>();
+        for (ShardTIDListResponse resp : responses) {
+            for (int i = 0; i < resp.getMany(); i++) {
+                int pos = i * TIDListResponse.BYTES_PER_TID;
+                double value = resp.getSortValues() != null ? resp.getSortValues()[i] : Float.intBitsToFloat(Utils.decodeInteger(resp.getTids(), pos + 6));
+                candidates.add(new TopTID(resp.getTids(), pos, value));
+            }
+        }
+
+        Collections.sort(candidates, new Comparator<TopTID>() {
+            @Override
+            public int compare(TopTID o1, TopTID o2) {
+                return request.isSortDescending() ? Double.compare(o2.value, o1.value) : Double.compare(o1.value, o2.value);
+            }
+        });
+
+        int many = Math.min(request.getLimit(), candidates.size());
+        byte[] tids = new byte[many * TIDListResponse.BYTES_PER_TID];
+        for (int i = 0; i < many; i++) {
+            TopTID tid = candidates.get(i);
+            System.arraycopy(tid.tids, tid.pos, tids, i * TIDListResponse.BYTES_PER_TID, TIDListResponse.BYTES_PER_TID);
+        }
+        TidArrayRadixSort.sort(tids, 0, many, sortExecutor());
+
+        return new TIDListResponse(totalShards, successfulShards, failedShards, shardFailures, many, maxScore, new byte[][]{tids}, new int[]{many});
+    }
+
+    private static class TopTID {
+        private final byte[] tids;
+        private final int pos;
+        private final double value;
+
+        private TopTID(byte[] tids, int pos, double value) {
+            this.tids = tids;
+            this.pos = pos;
+            this.value = value;
+        }
+    }
+
+    @Override
+    protected ShardTIDListRequest newShardRequest() {
+        return new ShardTIDListRequest();
+    }
+
+    @Override
+    protected ShardTIDListRequest newShardRequest(int numShards, ShardRouting shard, TIDListRequest request) {
+        String[] filteringAliases = clusterService.state().metaData().filteringAliases(shard.index(), request.indices());
+        return new ShardTIDListRequest(shard.getIndex(), shard.shardId(), filteringAliases, request);
+    }
+
+    @Override
+    protected ShardTIDListResponse newShardResponse() {
+        // the response is read on this (the coordinating) node, so its array is charged to our breaker
+        return new ShardTIDListResponse(breaker);
+    }
+
+    /**
+     * The tidlist request works against primary or replica shards, honoring the request's search preference
+     */
+    @Override
+    protected GroupShardsIterator shards(ClusterState clusterState, TIDListRequest request, String[] concreteIndices) {
+        Map<String, Set<String>> routingMap = clusterState.metaData().resolveSearchRouting(null, request.indices());
+        return clusterService.operationRouting().searchShards(clusterState, request.indices(), concreteIndices, routingMap, request.getPreference());
+    }
+
+    @Override
+    protected ClusterBlockException checkGlobalBlock(ClusterState state, TIDListRequest request) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.READ);
+    }
+
+    @Override
+    protected ClusterBlockException checkRequestBlock(ClusterState state, TIDListRequest request, String[] concreteIndices) {
+        return state.blocks().indicesBlockedException(ClusterBlockLevel.READ, concreteIndices);
+    }
+
+    @Override
+    protected ShardTIDListResponse shardOperation(ShardTIDListRequest request) throws ElasticsearchException {
+        IndexService indexService = indicesService.indexServiceSafe(request.getIndex());
+        IndexShard indexShard = indexService.shardSafe(request.shardId().id());
+        DefaultSearchContext searchContext = new DefaultSearchContext(0,
+                new ShardSearchLocalRequest(new String[]{"data"}, System.currentTimeMillis(), request.getFilteringAliases()),
+                null, indexShard.acquireSearcher("zdbtidlist"), indexService, indexShard,
+                scriptService, cacheRecycler, pageCacheRecycler, bigArrays, threadPool.estimatedTimeInMillisCounter()
+        );
+
+        // the visibility query needs a SearchContext to find the filter cache
+        SearchContext.setCurrent(searchContext);
+        long shardStart = System.nanoTime();
+        try {
+            ShardTIDListResponse response = cache.get(request, searchContext.searcher().getIndexReader());
+            if (response == null) {
+                response = executeShardRequest(request, searchContext, indexService);
+                cache.put(request, searchContext.searcher().getIndexReader(), response);
+            }
+            ZomboDBMetrics.recordTime("tidlist", "shard", shardStart);
+            return response;
+        } catch (Throwable ex) {
+            logger.error(ex.getMessage(), ex);
+            throw new ElasticsearchException(ex.getMessage(), ex);
+        } finally {
+            searchContext.close();
+            SearchContext.removeCurrent();
+        }
+    }
+
+    private ShardTIDListResponse executeShardRequest(ShardTIDListRequest request, SearchContext searchContext, IndexService indexService) throws IOException {
+        TIDListRequest tidListRequest = request.getRequest();
+        boolean limited = tidListRequest.getLimit() >= 0;
+        boolean scoring = tidListRequest.isScoring() || (limited && tidListRequest.getSortField() == null);
+        TIDCollector collector;
+        Query query;
+
+        searchContext.parsedQuery(indexService.queryParserService().parse(tidListRequest.getQuery()));
+        searchContext.preProcess();
+
+        query = searchContext.query();
+        if (!scoring)
+            query = new ConstantScoreQuery(query);
+
+        if (limited)
+            return topTIDs(request, searchContext, query, scoring);
+
+        long collectStart = System.nanoTime();
+        collector = new TIDCollector(scoring, breaker);
+        try {
+            searchContext.searcher().search(query, collector);
+            ZomboDBMetrics.recordTime("tidlist", "collect", collectStart);
+
+            long sortStart = System.nanoTime();
+            TidArrayRadixSort.sort(collector.tids, 0, collector.many, sortExecutor());
+            ZomboDBMetrics.recordTime("tidlist", "sort", sortStart);
+            ZomboDBMetrics.record("tidlist", "rows", collector.many);
+
+            return new ShardTIDListResponse(request.getIndex(), request.shardId(), collector.many, collector.maxScore, collector.tids);
+        } finally {
+            // the array is charged again on the coordinating node, once it gets there
+            collector.release();
+        }
+    }
+
+    /**
+     * Collects only the shard's top {@link TIDListRequest#getLimit()} documents, by score or by a numeric
+     * field, in a bounded priority queue.  The TIDs are returned in rank order, along with their sort values
+     * when sorting by a field, so the coordinating node can pick the overall winners
+     */
+    private ShardTIDListResponse topTIDs(ShardTIDListRequest request, SearchContext searchContext, Query query, boolean scoring) throws IOException {
+        TIDListRequest tidListRequest = request.getRequest();
+        int limit = tidListRequest.getLimit();
+        boolean byScore = tidListRequest.getSortField() == null;
+        TopDocsCollector<?> collector;
+
+        if (limit == 0)
+            return new ShardTIDListResponse(request.getIndex(), request.shardId(), 0, 0, new byte[0]);
+
+        if (byScore && tidListRequest.isSortDescending())
+            collector = TopScoreDocCollector.create(limit, false);
+        else if (byScore)
+            collector = TopFieldCollector.create(new Sort(new SortField(null, SortField.Type.SCORE, true)), limit, false, true, true, false);
+        else
+            collector = TopFieldCollector.create(new Sort(sortField(searchContext, tidListRequest)), limit, true, scoring, scoring, false);
+
+        searchContext.searcher().search(query, collector);
+
+        ScoreDoc[] scoreDocs = collector.topDocs().scoreDocs;
+        TIDFieldVisitor visitor = new TIDFieldVisitor();
+        byte[] tids = new byte[scoreDocs.length * TIDListResponse.BYTES_PER_TID];
+        double[] sortValues = byScore ? null : new double[scoreDocs.length];
+        float maxScore = 0;
+        int offset = 0;
+
+        for (int i = 0; i < scoreDocs.length; i++) {
+            float score = scoring && !Float.isNaN(scoreDocs[i].score) ? scoreDocs[i].score : 0;
+
+            visitor.reset();
+            searchContext.searcher().doc(scoreDocs[i].doc, visitor);
+            if (!visitor.isValid()) {
+                logger.warn("_uid=/" + visitor.uid() + "/ is not in the proper format.  Defaulting to INVALID_BLOCK_NUMBER");
+                score = 0;
+            }
+
+            if (score > maxScore)
+                maxScore = score;
+
+            if (sortValues != null) {
+                Object value = ((FieldDoc) scoreDocs[i]).fields[0];
+                if (value instanceof Number)
+                    sortValues[i] = ((Number) value).doubleValue();
+                else
+                    sortValues[i] = tidListRequest.isSortDescending() ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+            }
+
+            offset += Utils.encodeInteger(visitor.blockno(), tids, offset);
+            offset += Utils.encodeCharacter(visitor.offset(), tids, offset);
+            offset += Utils.encodeFloat(score, tids, offset);
+        }
+
+        ShardTIDListResponse response = new ShardTIDListResponse(request.getIndex(), request.shardId(), scoreDocs.length, maxScore, tids);
+        response.setSortValues(sortValues);
+        return response;
+    }
+
+    /**
+     * Large sorts share their work with ZomboDB's thread pool rather than tying up more search threads
+     */
+    private Executor sortExecutor() {
+        return threadPool.executor(AsyncRestHelper.THREAD_POOL_NAME);
+    }
+
+    private SortField sortField(SearchContext searchContext, TIDListRequest request) {
+        FieldMapper<?> mapper = searchContext.smartNameFieldMapper(request.getSortField());
+        if (mapper == null)
+            throw new ElasticsearchIllegalArgumentException("No mapping found for sort field [" + request.getSortField() + "]");
+
+        IndexFieldData<?> fieldData = searchContext.fieldData().getForField(mapper);
+        if (!(fieldData instanceof IndexNumericFieldData))
+            throw new ElasticsearchIllegalArgumentException("Sort field [" + request.getSortField() + "] is not numeric");
+
+        MultiValueMode sortMode = request.isSortDescending() ? MultiValueMode.MAX : MultiValueMode.MIN;
+        return new SortField(mapper.names().indexName(), fieldData.comparatorSource(null, sortMode, null), request.isSortDescending());
+    }
+
+    /**
+     * Encodes (blockno, offset, score) for every collected document, in the same little-endian
+     * layout the _pgtid endpoint has always used.
+     * <p>
+     * The array is charged to the request circuit breaker before it's grown, so a shard whose result
+     * is too big for the node fails the request instead of the node
+     */
+    private static class TIDCollector extends Collector {
+        private final TIDFieldVisitor visitor = new TIDFieldVisitor();
+        private final boolean scoring;
+        private final CircuitBreaker breaker;
+        private AtomicReader reader;
+        private Scorer scorer;
+
+        private byte[] tids;
+        private long charged;
+        private int many;
+        private float maxScore;
+
+        private TIDCollector(boolean scoring, CircuitBreaker breaker) {
+            this.scoring = scoring;
+            this.breaker = breaker;
+            this.tids = new byte[reserve(1024 * TIDListResponse.BYTES_PER_TID)];
+        }
+
+        private int reserve(int bytes) {
+            breaker.addEstimateBytesAndMaybeBreak(bytes, "<zombodb_tidlist>");
+            charged += bytes;
+            return bytes;
+        }
+
+        private void grow(int minLength) {
+            if (minLength <= tids.length)
+                return;
+
+            // the old and the new array both exist while it's copied
+            int oldLength = tids.length;
+            tids = Arrays.copyOf(tids, reserve(ArrayUtil.oversize(minLength, 1)));
+            breaker.addWithoutBreaking(-oldLength);
+            charged -= oldLength;
+        }
+
+        private void release() {
+            breaker.addWithoutBreaking(-charged);
+            charged = 0;
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) throws IOException {
+            this.scorer = scorer;
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            float score = scoring ? scorer.score() : 0;
+            int offset = many * TIDListResponse.BYTES_PER_TID;
+
+            visitor.reset();
+            reader.document(doc, visitor);
+            if (!visitor.isValid()) {
+                logger.warn("_uid=/" + visitor.uid() + "/ is not in the proper format.  Defaulting to INVALID_BLOCK_NUMBER");
+                score = 0;
+            }
+
+            if (score > maxScore)
+                maxScore = score;
+
+            grow(offset + TIDListResponse.BYTES_PER_TID);
+            offset += Utils.encodeInteger(visitor.blockno(), tids, offset);
+            offset += Utils.encodeCharacter(visitor.offset(), tids, offset);
+            Utils.encodeFloat(score, tids, offset);
+            many++;
+        }
+
+        @Override
+        public void setNextReader(AtomicReaderContext context) throws IOException {
+            reader = context.reader();
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder() {
+            return true;
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.tcdi.zombodb.highlight;
 
 import com.tcdi.zombodb.query_parser.*;
 import com.tcdi.zombodb.query_parser.metadata.IndexMetadataManager;
+import com.tcdi.zombodb.query_parser.metadata.IndexMetadataService;
 import com.tcdi.zombodb.query_parser.utils.Utils;
 import org.elasticsearch.action.admin.indices.analyze.AnalyzeRequestBuilder;
 import org.elasticsearch.client.Client;
@@ -42,12 +43,19 @@ public class DocumentHighlighter {
     };
 
     public DocumentHighlighter(Client client, String indexName, String primaryKeyFieldname, Map<String, Object> documentData, String queryString) throws ParseException {
+        this(client, null, indexName, primaryKeyFieldname, documentData, queryString);
+    }
+
+    /**
+     * @param metadataService this node's service, or null to ask the master for the index's mapping
+     */
+    public DocumentHighlighter(Client client, IndexMetadataService metadataService, String indexName, String primaryKeyFieldname, Map<String, Object> documentData, String queryString) throws ParseException {
         StringBuilder newQuery = new StringBuilder(queryString.length());
         Utils.extractArrayData(queryString, newQuery);
         QueryParser parser = new QueryParser(new StringReader(newQuery.toString().toLowerCase()));
 
         this.client = client;
-        this.metadataManager = new IndexMetadataManager(client, indexName);
+        this.metadataManager = new IndexMetadataManager(client, metadataService, indexName);
         this.query = parser.parse(metadataManager, true);
 
         analyzeFields(parser, indexName, primaryKeyFieldname, documentData);
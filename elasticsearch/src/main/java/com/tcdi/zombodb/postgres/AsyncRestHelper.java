@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+
+/**
+ * ZomboDB's REST handlers must never block an HTTP worker thread.  Requests are chained together with
+ * {@link ActionListener}s, and CPU-heavy work, such as rewriting a query (see {@link com.tcdi.zombodb.query_parser.rewriters.RemoteLookups})
+ * and sorting large TID arrays, runs on ZomboDB's own "zombodb" thread pool, whose threads never wait on
+ * other requests either
+ */
+public class AsyncRestHelper {
+    private static final ESLogger logger = ESLoggerFactory.getLogger(AsyncRestHelper.class.getName());
+
+    public static final String THREAD_POOL_NAME = "zombodb";
+
+    /**
+     * An {@link ActionListener} whose failures, including any exception thrown by {@link #processResponse(Object)},
+     * are sent back to the client
+     */
+    public static abstract class RestListener<Response> implements ActionListener<Response> {
+        protected final RestChannel channel;
+
+        protected RestListener(RestChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public final void onResponse(Response response) {
+            try {
+                processResponse(response);
+            } catch (Throwable t) {
+                onFailure(t);
+            }
+        }
+
+        protected abstract void processResponse(Response response) throws Exception;
+
+        @Override
+        public void onFailure(Throwable t) {
+            sendFailure(channel, t);
+        }
+    }
+
+    private AsyncRestHelper() {
+    }
+
+    /**
+     * Default settings for the "zombodb" thread pool, unless they've been configured in elasticsearch.yml
+     */
+    public static Settings threadPoolSettings(Settings settings) {
+        String prefix = "threadpool." + THREAD_POOL_NAME + ".";
+        if (settings.get(prefix + "type") != null)
+            return ImmutableSettings.EMPTY;
+
+        // these threads only ever do CPU work, so there's no point having more of them than processors
+        return ImmutableSettings.settingsBuilder()
+                .put(prefix + "type", "fixed")
+                .put(prefix + "size", Runtime.getRuntime().availableProcessors())
+                .put(prefix + "queue_size", 1000)
+                .build();
+    }
+
+    public static void sendFailure(RestChannel channel, Throwable t) {
+        try {
+            channel.sendResponse(new BytesRestResponse(channel, t));
+        } catch (Throwable e) {
+            logger.error("Failed to send failure response", e);
+        }
+    }
+}
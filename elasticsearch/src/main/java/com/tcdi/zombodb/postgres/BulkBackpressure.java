@@ -0,0 +1,378 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import com.tcdi.zombodb.action.stats.ZomboDBMetrics;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.SizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.threadpool.ThreadPoolStats;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Sends ZomboDB's bulk requests without letting a busy bulk thread pool abort the Postgres transaction
+ * they belong to.
+ * <p>
+ * Items the cluster rejects because its bulk queues are full are retried with an exponential backoff
+ * instead of being reported as failures.  Batches larger than <code>zombodb.bulk.split_size</code> are
+ * split by the shard each item is routed to, and at most as many of those parts as this node has bulk threads
+ * are in flight at once, fewer while this node's bulk queue is more than half full.
+ * <p>
+ * Every response also describes the current pressure (see {@link #toXContent(XContentBuilder, Params)}),
+ * including the number of rows Postgres should send per batch:  halved whenever items are rejected, and
+ * grown again while the bulk queue is mostly empty.  Rejections come from the bulk queues every index on
+ * the node shares, so the rejection rate and batch size are the node's, not any one index's, and the
+ * response says so
+ */
+public class BulkBackpressure extends AbstractComponent implements ToXContent {
+
+    private static final String METRICS = "zdbbulk";
+
+    private final ThreadPool threadPool;
+    private final ClusterService clusterService;
+    private final int splitSize;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final int maxRetries;
+    private final TimeValue backoff;
+
+    private int recommendedBatchSize;
+    private double rejectionRate;
+
+    @Inject
+    public BulkBackpressure(Settings settings, ThreadPool threadPool, ClusterService clusterService) {
+        super(settings);
+        this.threadPool = threadPool;
+        this.clusterService = clusterService;
+
+        splitSize = settings.getAsInt("zombodb.bulk.split_size", 5000);
+        minBatchSize = settings.getAsInt("zombodb.bulk.min_batch_size", 100);
+        maxBatchSize = settings.getAsInt("zombodb.bulk.max_batch_size", 10000);
+        maxRetries = settings.getAsInt("zombodb.bulk.max_retries", 8);
+        backoff = settings.getAsTime("zombodb.bulk.backoff", TimeValue.timeValueMillis(50));
+
+        recommendedBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Executes the bulk request, retrying rejected items and splitting it up if it's large.  The listener's
+     * BulkResponse has one item per request, in the same order as the request's items
+     */
+    public void execute(Client client, BulkRequest request, ActionListener<BulkResponse> listener) {
+        List<ActionRequest> requests = request.requests();
+        List<int[]> parts;
+
+        if (requests.size() <= splitSize)
+            parts = partition(new int[requests.size()], splitSize);
+        else
+            parts = partition(shardsOf(requests), splitSize);
+
+        new PacedBulk(client, request, parts, listener).start();
+    }
+
+    /**
+     * @return the batch size recommended to every index bulk-loading through this node
+     */
+    public synchronized int getRecommendedBatchSize() {
+        return recommendedBatchSize;
+    }
+
+    /**
+     * @return the decaying fraction of this node's recent bulk items, for any index, that were rejected
+     */
+    public synchronized double getRejectionRate() {
+        return rejectionRate;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        ThreadPoolStats.Stats pool = bulkPoolStats();
+
+        builder.startObject("backpressure");
+        builder.field("scope", "node");
+        if (pool != null) {
+            builder.field("threads", pool.getThreads());
+            builder.field("active", pool.getActive());
+            builder.field("queue", pool.getQueue());
+            builder.field("queue_capacity", queueCapacity());
+            builder.field("rejected", pool.getRejected());
+        }
+        builder.field("rejection_rate", getRejectionRate());
+        builder.field("recommended_batch_size", getRecommendedBatchSize());
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * Folds the outcome of one bulk attempt into the rejection rate and the recommended batch size
+     */
+    private void observe(int items, int rejected) {
+        if (items == 0)
+            return;
+
+        ThreadPoolStats.Stats pool = bulkPoolStats();
+        int queue = pool == null ? 0 : pool.getQueue();
+
+        synchronized (this) {
+            rejectionRate = 0.8 * rejectionRate + 0.2 * rejected / items;
+            recommendedBatchSize = nextBatchSize(recommendedBatchSize, rejected, queue, queueCapacity(), minBatchSize, maxBatchSize);
+        }
+
+        if (rejected > 0)
+            ZomboDBMetrics.record(METRICS, "rejected", rejected);
+    }
+
+    /**
+     * Multiplicative decrease when anything was rejected, additive increase while the queue is under a
+     * quarter full
+     */
+    static int nextBatchSize(int current, int rejected, int queue, int queueCapacity, int min, int max) {
+        if (rejected > 0)
+            return Math.max(min, current / 2);
+        else if (queueCapacity < 0 || queue * 4 < queueCapacity)
+            return Math.min(max, current + min);
+        return current;
+    }
+
+    /**
+     * Groups item positions by shard, and then into parts of at most <code>maxPartSize</code> items.  Items
+     * keep their relative order within each part
+     *
+     * @param shards the shard each item is routed to
+     */
+    static List<int[]> partition(int[] shards, int maxPartSize) {
+        int nshards = 0;
+        for (int shard : shards)
+            nshards = Math.max(nshards, shard + 1);
+
+        int[] counts = new int[nshards];
+        for (int shard : shards)
+            counts[shard]++;
+
+        int[][] byShard = new int[nshards][];
+        for (int i = 0; i < nshards; i++)
+            byShard[i] = new int[counts[i]];
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < shards.length; i++)
+            byShard[shards[i]][counts[shards[i]]++] = i;
+
+        List<int[]> parts = new ArrayList<>();
+        for (int[] positions : byShard) {
+            for (int from = 0; from < positions.length; from += maxPartSize)
+                parts.add(Arrays.copyOfRange(positions, from, Math.min(positions.length, from + maxPartSize)));
+        }
+        return parts;
+    }
+
+    /**
+     * @return the shard number each request is routed to, or all zeros if that can't be worked out
+     */
+    private int[] shardsOf(List<ActionRequest> requests) {
+        int[] shards = new int[requests.size()];
+        ClusterState state = clusterService.state();
+
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                DocumentRequest doc = (DocumentRequest) requests.get(i);
+                String index = state.metaData().concreteSingleIndex(doc.index(), IndicesOptions.strictSingleIndexNoExpandForbidClosed());
+                shards[i] = clusterService.operationRouting().indexShards(state, index, doc.type(), doc.id(), doc.routing()).shardId().id();
+            }
+        } catch (Exception e) {
+            // let the bulk action report whatever is wrong
+            logger.debug("unable to route bulk items by shard", e);
+            Arrays.fill(shards, 0);
+        }
+
+        return shards;
+    }
+
+    private ThreadPoolStats.Stats bulkPoolStats() {
+        for (ThreadPoolStats.Stats stats : threadPool.stats()) {
+            if (ThreadPool.Names.BULK.equals(stats.getName()))
+                return stats;
+        }
+        return null;
+    }
+
+    /**
+     * @return the capacity of this node's bulk queue, or -1 if it is unbounded
+     */
+    private int queueCapacity() {
+        ThreadPool.Info info = threadPool.info(ThreadPool.Names.BULK);
+        SizeValue size = info == null ? null : info.getQueueSize();
+        return size == null ? -1 : (int) size.singles();
+    }
+
+    private int maxInFlight() {
+        ThreadPool.Info info = threadPool.info(ThreadPool.Names.BULK);
+        return info == null ? 1 : Math.max(1, info.getMax());
+    }
+
+    private boolean saturated() {
+        ThreadPoolStats.Stats pool = bulkPoolStats();
+        int capacity = queueCapacity();
+        return pool != null && capacity > 0 && pool.getQueue() * 2 >= capacity;
+    }
+
+    /**
+     * One bulk request on its way through the cluster as a number of parts
+     */
+    private class PacedBulk {
+        private final Client client;
+        private final BulkRequest template;
+        private final ActionListener<BulkResponse> listener;
+        private final Queue<int[]> pending;
+        private final BulkItemResponse[] items;
+        private final int maxInFlight = maxInFlight();
+        private final long start = System.currentTimeMillis();
+        private int inFlight;
+        private int remaining;
+        private boolean failed;
+
+        private PacedBulk(Client client, BulkRequest template, List<int[]> parts, ActionListener<BulkResponse> listener) {
+            this.client = client;
+            this.template = template;
+            this.listener = listener;
+            this.pending = new LinkedList<>(parts);
+            this.items = new BulkItemResponse[template.requests().size()];
+            this.remaining = parts.size();
+        }
+
+        private void start() {
+            if (remaining == 0)
+                listener.onResponse(new BulkResponse(items, 0));
+            else
+                dispatch();
+        }
+
+        private void dispatch() {
+            List<int[]> ready = new ArrayList<>();
+
+            synchronized (this) {
+                while (!failed && !pending.isEmpty() && (inFlight == 0 || (inFlight < maxInFlight && !saturated()))) {
+                    ready.add(pending.poll());
+                    inFlight++;
+                }
+            }
+
+            for (int[] part : ready)
+                send(part, 0);
+        }
+
+        private void send(final int[] part, final int attempt) {
+            BulkRequest bulk = Requests.bulkRequest();
+            bulk.listenerThreaded(false);
+            bulk.replicationType(template.replicationType());
+            bulk.consistencyLevel(template.consistencyLevel());
+            bulk.timeout(template.timeout());
+            bulk.refresh(template.refresh());
+            for (int position : part)
+                bulk.requests().add(template.requests().get(position));
+
+            client.bulk(bulk, new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(BulkResponse response) {
+                    BulkItemResponse[] responses = response.getItems();
+                    int[] retry = new int[part.length];
+                    int nretry = 0;
+
+                    for (int i = 0; i < responses.length; i++) {
+                        BulkItemResponse item = responses[i];
+                        if (item.isFailed() && item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS && attempt < maxRetries)
+                            retry[nretry++] = part[i];
+                        else
+                            items[part[i]] = item;
+                    }
+
+                    observe(part.length, nretry);
+                    if (nretry > 0)
+                        retry(Arrays.copyOf(retry, nretry), attempt + 1);
+                    else
+                        finished();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    if (ExceptionsHelper.unwrapCause(t) instanceof EsRejectedExecutionException && attempt < maxRetries) {
+                        observe(part.length, part.length);
+                        retry(part, attempt + 1);
+                    } else {
+                        fail(t);
+                    }
+                }
+            });
+        }
+
+        private void retry(final int[] part, final int attempt) {
+            ZomboDBMetrics.record(METRICS, "retried", part.length);
+
+            // not SAME:  that would run the retry, and the bulk request it builds, on the scheduler's only thread
+            threadPool.schedule(TimeValue.timeValueMillis(backoff.millis() << (attempt - 1)), ThreadPool.Names.GENERIC, new Runnable() {
+                @Override
+                public void run() {
+                    send(part, attempt);
+                }
+            });
+        }
+
+        private void finished() {
+            boolean done;
+            synchronized (this) {
+                inFlight--;
+                done = --remaining == 0 && !failed;
+            }
+
+            if (done)
+                listener.onResponse(new BulkResponse(items, System.currentTimeMillis() - start));
+            else
+                dispatch();
+        }
+
+        private void fail(Throwable t) {
+            synchronized (this) {
+                if (failed)
+                    return;
+                failed = true;
+            }
+            listener.onFailure(t);
+        }
+    }
+}
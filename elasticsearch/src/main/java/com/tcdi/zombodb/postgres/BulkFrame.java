@@ -0,0 +1,237 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One row of a binary <code>_zdbframes</code> request.  Postgres sends the row's metadata as fixed-width
+ * fields ahead of its document, so nothing needs to scan the document to find them.
+ * <p>
+ * A request body is any number of frames, back to back, each laid out as (all little-endian):
+ * <pre>
+ *     uint32  blockno   \  the row's ctid
+ *     uint16  offno     /
+ *     uint32  blockno   \  the ctid of the row this one replaces, with an offno of zero for INSERTs
+ *     uint16  offno     /
+ *     int64   xid
+ *     int64   sequence
+ *     uint32  length
+ *     byte[length]      the document, as a JSON, SMILE or CBOR object
+ * </pre>
+ * The "_xid", "_zdb_seq" and "_prev_ctid" fields are added to the document by {@link #buildSource(String)},
+ * once its routing value is known.  For tables with a primary key, that's the key's value, which
+ * {@link #getPkey(String)} reads out of the document with a {@link SourcePatcher}
+ */
+public class BulkFrame {
+
+    public static final int HEADER_SIZE = 4 + 2 + 4 + 2 + 8 + 8 + 4;
+
+    private static final byte[] XID_FIELD = "\"_xid\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEQ_FIELD = ",\"_zdb_seq\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PREV_CTID_FIELD = ",\"_prev_ctid\":\"".getBytes(StandardCharsets.UTF_8);
+
+    private final String id;
+    private final String prevCtid;
+    private final long xid;
+    private final long sequence;
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+
+    private BulkFrame(String id, String prevCtid, long xid, long sequence, byte[] bytes, int offset, int length) {
+        this.id = id;
+        this.prevCtid = prevCtid;
+        this.xid = xid;
+        this.sequence = sequence;
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public static List<BulkFrame> parse(BytesReference content) throws IOException {
+        if (!content.hasArray())
+            content = content.toBytesArray();
+
+        byte[] bytes = content.array();
+        int pos = content.arrayOffset();
+        int end = pos + content.length();
+        List<BulkFrame> frames = new ArrayList<>();
+
+        while (pos < end) {
+            if (end - pos < HEADER_SIZE)
+                throw new IOException("Truncated frame header at byte " + (pos - content.arrayOffset()));
+
+            String id = ctid(bytes, pos);
+            String prevCtid = decodeShort(bytes, pos + 10) == 0 ? null : ctid(bytes, pos + 6);
+            long xid = decodeLong(bytes, pos + 12);
+            long sequence = decodeLong(bytes, pos + 20);
+            long length = decodeInt(bytes, pos + 28) & 0xFFFFFFFFL;
+            pos += HEADER_SIZE;
+
+            if (length > end - pos)
+                throw new IOException("Truncated document for " + id);
+
+            frames.add(new BulkFrame(id, prevCtid, xid, sequence, bytes, pos, (int) length));
+            pos += length;
+        }
+
+        return frames;
+    }
+
+    /**
+     * @return the row's ctid, as "blockno-offno"
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the ctid of the row this one replaces, or null if this row is an INSERT
+     */
+    public String getPrevCtid() {
+        return prevCtid;
+    }
+
+    public long getXid() {
+        return xid;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the value of the document's top-level <code>pkeyFieldname</code> field as a string, or null if it
+     * doesn't have a scalar value, or if the document isn't JSON
+     */
+    public String getPkey(String pkeyFieldname) throws IOException {
+        if (XContentFactory.xContentType(bytes, offset, length) != XContentType.JSON)
+            return null;
+        return new SourcePatcher(new BytesArray(bytes, offset, length), pkeyFieldname).getPkey();
+    }
+
+    /**
+     * @return the document with our "_xid", "_zdb_seq" and "_prev_ctid" fields added to it, in the
+     * same format it was sent in
+     */
+    public BytesReference buildSource(String routing) throws IOException {
+        XContentType type = XContentFactory.xContentType(bytes, offset, length);
+
+        if (type == XContentType.JSON)
+            return appendToJson(routing);
+        else if (type == XContentType.SMILE || type == XContentType.CBOR)
+            return appendToXContent(type, routing);
+        else
+            throw new IOException("Unsupported document format for " + id);
+    }
+
+    /**
+     * JSON documents get the fields spliced in just before their closing brace
+     */
+    private BytesReference appendToJson(String routing) throws IOException {
+        int first = offset, last = offset + length - 1;
+        while (first <= last && isWhitespace(bytes[first]))
+            first++;
+        while (last >= first && isWhitespace(bytes[last]))
+            last--;
+        if (first >= last || bytes[first] != '{' || bytes[last] != '}')
+            throw new IOException("Document for " + id + " is not a JSON object");
+
+        int inner = first + 1;
+        while (inner < last && isWhitespace(bytes[inner]))
+            inner++;
+        boolean hasFields = inner < last;
+
+        byte[] xidValue = Long.toString(xid).getBytes(StandardCharsets.UTF_8);
+        byte[] seqValue = Long.toString(sequence).getBytes(StandardCharsets.UTF_8);
+        byte[] routingValue = JsonStringEncoder.getInstance().quoteAsUTF8(routing);
+        int prefix = last - offset;
+        byte[] source = new byte[prefix + (hasFields ? 1 : 0) + XID_FIELD.length + xidValue.length + SEQ_FIELD.length + seqValue.length + PREV_CTID_FIELD.length + routingValue.length + 2];
+        int pos = 0;
+
+        System.arraycopy(bytes, offset, source, pos, prefix);
+        pos += prefix;
+        if (hasFields)
+            source[pos++] = ',';
+        pos = append(source, pos, XID_FIELD);
+        pos = append(source, pos, xidValue);
+        pos = append(source, pos, SEQ_FIELD);
+        pos = append(source, pos, seqValue);
+        pos = append(source, pos, PREV_CTID_FIELD);
+        pos = append(source, pos, routingValue);
+        source[pos++] = '"';
+        source[pos] = '}';
+
+        return new BytesArray(source);
+    }
+
+    /**
+     * Binary documents are streamed, token by token, into a new document of the same format
+     */
+    private BytesReference appendToXContent(XContentType type, String routing) throws IOException {
+        XContentBuilder builder = XContentFactory.contentBuilder(type);
+        try (XContentParser parser = type.xContent().createParser(bytes, offset, length)) {
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT)
+                throw new IOException("Document for " + id + " is not an object");
+
+            builder.startObject();
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME)
+                builder.copyCurrentStructure(parser);
+            builder.field("_xid", xid);
+            builder.field("_zdb_seq", sequence);
+            builder.field("_prev_ctid", routing);
+            builder.endObject();
+        }
+        return builder.bytes();
+    }
+
+    private static int append(byte[] dest, int pos, byte[] src) {
+        System.arraycopy(src, 0, dest, pos, src.length);
+        return pos + src.length;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    static String ctid(byte[] bytes, int pos) {
+        return (decodeInt(bytes, pos) & 0xFFFFFFFFL) + "-" + decodeShort(bytes, pos + 4);
+    }
+
+    private static int decodeShort(byte[] bytes, int pos) {
+        return (bytes[pos] & 0xFF) | ((bytes[pos + 1] & 0xFF) << 8);
+    }
+
+    private static int decodeInt(byte[] bytes, int pos) {
+        return (bytes[pos] & 0xFF) | ((bytes[pos + 1] & 0xFF) << 8) | ((bytes[pos + 2] & 0xFF) << 16) | ((bytes[pos + 3] & 0xFF) << 24);
+    }
+
+    private static long decodeLong(byte[] bytes, int pos) {
+        return (decodeInt(bytes, pos) & 0xFFFFFFFFL) | ((long) decodeInt(bytes, pos + 4) << 32);
+    }
+}
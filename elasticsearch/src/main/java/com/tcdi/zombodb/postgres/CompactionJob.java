@@ -0,0 +1,595 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import com.tcdi.zombodb.action.stats.ZomboDBMetrics;
+import com.tcdi.zombodb.query.CommittedXidBlock;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.elasticsearch.index.query.FilterBuilders.rangeFilter;
+import static org.elasticsearch.index.query.FilterBuilders.termFilter;
+import static org.elasticsearch.index.query.FilterBuilders.termsFilter;
+import static org.elasticsearch.index.query.QueryBuilders.filteredQuery;
+
+/**
+ * Removes everything from an index that no snapshot at or above the <code>horizon</code> (Postgres' global xmin)
+ * can ever need again, in throttled batches:
+ * <ol>
+ *     <li>rows written by aborted transactions below the horizon, along with their "state" documents</li>
+ *     <li>the versions of updated rows that are superseded by a newer committed version below the horizon, and
+ *     the "state" documents of rows left with only one version</li>
+ *     <li>the "committed" blocks below the horizon, which is folded into each shard's watermark instead</li>
+ * </ol>
+ * Each pass only looks at the rows written since the previous watermark, so it doesn't get more expensive
+ * as the index ages.  Every job then folds the "committed" documents each commit has added to the remaining
+ * blocks (see {@link ZombodbCommitXIDAction}) into one document per block, on every shard
+ */
+class CompactionJob implements Runnable, ToXContent {
+    private static final ESLogger logger = ESLoggerFactory.getLogger(CompactionJob.class.getName());
+
+    private static final String METRICS = "zdbcompact";
+
+    private static final TimeValue KEEP_ALIVE = TimeValue.timeValueMinutes(10);
+
+    /**
+     * One version of an updated row
+     */
+    static class Version {
+        final String id;
+        final long xid;
+        final long sequence;
+        boolean committed;
+
+        Version(String id, long xid, long sequence) {
+            this.id = id;
+            this.xid = xid;
+            this.sequence = sequence;
+        }
+    }
+
+    private final Client client;
+    private final String index;
+    private final String type;
+    private final String[] routingTable;
+    private final long horizon;
+    private final int batchSize;
+    private final TimeValue throttle;
+    private final Map<Long, CommittedXidBlock> blocks = new HashMap<>();
+
+    private final long startedAt = System.currentTimeMillis();
+    private volatile long finishedAt;
+    private volatile String phase = "queued";
+    private volatile String failure;
+    private volatile long watermark;
+    private volatile long dataScanned;
+    private volatile long dataDeleted;
+    private volatile long stateScanned;
+    private volatile long stateDeleted;
+    private volatile long blocksDeleted;
+    private volatile long blocksFolded;
+
+    CompactionJob(Client client, String index, String type, String[] routingTable, long horizon, int batchSize, TimeValue throttle) {
+        this.client = client;
+        this.index = index;
+        this.type = type;
+        this.routingTable = routingTable;
+        this.horizon = horizon;
+        this.batchSize = batchSize;
+        this.throttle = throttle;
+    }
+
+    boolean isRunning() {
+        return finishedAt == 0;
+    }
+
+    String getPhase() {
+        return phase;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+
+        try {
+            phase = "refresh";
+            refresh();
+
+            watermark = readWatermark();
+            if (horizon > watermark) {
+                phase = "aborted";
+                deleteAbortedRows();
+                refresh();
+
+                phase = "superseded";
+                deleteSupersededVersions();
+
+                phase = "watermark";
+                writeWatermark();
+                refresh();
+
+                phase = "committed";
+                deleteCommittedBlocks();
+                refresh();
+            }
+
+            phase = "fold";
+            foldCommittedBlocks();
+
+            phase = "done";
+            ZomboDBMetrics.recordTime(METRICS, "total", start);
+        } catch (Throwable t) {
+            logger.error("Compaction of [{}] below xid {} failed during {}", t, index, horizon, phase);
+            failure = ExceptionsHelper.detailedMessage(t);
+            phase = "failed";
+        } finally {
+            finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    private void deleteAbortedRows() throws IOException, InterruptedException {
+        SearchResponse response = scan(type, rangeFilter("_xid").gte(watermark).lt(horizon), "_xid");
+
+        while ((response = nextBatch(response)) != null) {
+            BulkRequest bulkRequest = Requests.bulkRequest();
+
+            for (SearchHit hit : response.getHits()) {
+                String routing = hit.field("_prev_ctid").getValue();
+                dataScanned++;
+
+                if (!isCommitted(longValue(hit.field("_xid")))) {
+                    bulkRequest.add(new DeleteRequest(index, type, hit.id()).routing(routing));
+                    bulkRequest.add(new DeleteRequest(index, "state", hit.id()).routing(routing));
+                    dataDeleted++;
+                }
+            }
+
+            execute(bulkRequest);
+        }
+    }
+
+    /**
+     * The previous pass left every updated row with only its newest committed version below the previous horizon,
+     * which is this pass' watermark, so only rows with a version written since then can have anything new to
+     * compact.  They're found from the rows written since the watermark, and of those, only the ones with "state"
+     * documents were ever updated
+     */
+    private void deleteSupersededVersions() throws IOException, InterruptedException {
+        SearchResponse response = scan(type, rangeFilter("_xid").gte(watermark).lt(horizon));
+        Set<String> compacted = new HashSet<>();
+
+        while ((response = nextBatch(response)) != null) {
+            Set<String> ctids = new HashSet<>();
+            for (SearchHit hit : response.getHits()) {
+                String routing = hit.field("_prev_ctid").getValue();
+                if (!compacted.contains(routing))
+                    ctids.add(routing);
+            }
+
+            Map<String, List<SearchHit>> statesByCtid = findStates(ctids);
+            if (statesByCtid.isEmpty())
+                continue;
+            compacted.addAll(statesByCtid.keySet());
+
+            Map<String, List<Version>> versionsByCtid = findVersions(statesByCtid.keySet());
+            BulkRequest bulkRequest = Requests.bulkRequest();
+
+            for (Map.Entry<String, List<Version>> entry : versionsByCtid.entrySet()) {
+                String routing = entry.getKey();
+                List<Version> versions = entry.getValue();
+                List<Version> dead = new ArrayList<>();
+
+                for (Version version : versions) {
+                    if (version.xid < horizon)
+                        version.committed = isCommitted(version.xid);
+                }
+
+                boolean resolved = compactVersions(versions, horizon, dead);
+                for (Version version : dead) {
+                    bulkRequest.add(new DeleteRequest(index, type, version.id).routing(routing));
+                    bulkRequest.add(new DeleteRequest(index, "state", version.id).routing(routing));
+                    dataDeleted++;
+                }
+
+                if (resolved) {
+                    // versioned, so that a concurrent UPDATE of the remaining version keeps its new "state" document
+                    for (SearchHit state : statesByCtid.get(routing)) {
+                        bulkRequest.add(new DeleteRequest(index, "state", state.id()).routing(routing).version(state.version()));
+                        stateDeleted++;
+                    }
+                }
+            }
+
+            execute(bulkRequest);
+        }
+    }
+
+    /**
+     * The "state" documents of whichever of the given rows were updated, keyed by their <code>_ctid</code>
+     */
+    private Map<String, List<SearchHit>> findStates(Set<String> ctids) {
+        Map<String, List<SearchHit>> statesByCtid = new HashMap<>();
+        if (ctids.isEmpty())
+            return statesByCtid;
+
+        SearchResponse response = scan("state", termsFilter("_ctid", ctids), "_ctid");
+        while ((response = nextBatch(response)) != null) {
+            for (SearchHit hit : response.getHits()) {
+                String ctid = hit.field("_ctid").getValue();
+                List<SearchHit> states = statesByCtid.get(ctid);
+                if (states == null)
+                    statesByCtid.put(ctid, states = new ArrayList<>());
+                states.add(hit);
+                stateScanned++;
+            }
+        }
+
+        return statesByCtid;
+    }
+
+    /**
+     * Every version of the given updated rows, keyed by their <code>_prev_ctid</code>
+     */
+    private Map<String, List<Version>> findVersions(Set<String> ctids) throws InterruptedException {
+        Map<String, List<Version>> versionsByCtid = new HashMap<>();
+        SearchResponse response = scan(type, termsFilter("_prev_ctid", ctids), "_xid", "_zdb_seq");
+
+        while ((response = nextBatch(response)) != null) {
+            for (SearchHit hit : response.getHits()) {
+                String ctid = hit.field("_prev_ctid").getValue();
+                SearchHitField sequence = hit.field("_zdb_seq");
+                List<Version> versions = versionsByCtid.get(ctid);
+
+                if (versions == null)
+                    versionsByCtid.put(ctid, versions = new ArrayList<>());
+                versions.add(new Version(hit.id(), longValue(hit.field("_xid")), sequence == null ? 0 : longValue(sequence)));
+            }
+        }
+
+        return versionsByCtid;
+    }
+
+    /**
+     * Every snapshot at or above the horizon sees the newest committed version below it, unless it sees an even
+     * newer one, so every older version below the horizon is dead.  Versions at or above the horizon are left alone.
+     *
+     * @param versions an updated row's versions, whose <code>committed</code> flags are set if they're below the horizon
+     * @param dead     where to add the versions that can be deleted
+     * @return true if every version is below the horizon, so the row's "state" documents can be deleted too
+     */
+    static boolean compactVersions(List<Version> versions, long horizon, List<Version> dead) {
+        Collections.sort(versions, new Comparator<Version>() {
+            @Override
+            public int compare(Version o1, Version o2) {
+                int cmp = Long.compare(o2.xid, o1.xid);
+                return cmp == 0 ? Long.compare(o2.sequence, o1.sequence) : cmp;
+            }
+        });
+
+        boolean resolved = true;
+        Version visible = null;
+        for (Version version : versions) {
+            if (version.xid >= horizon)
+                resolved = false;
+            else if (visible == null && version.committed)
+                visible = version;
+            else
+                dead.add(version);
+        }
+
+        return resolved;
+    }
+
+    private void writeWatermark() throws IOException {
+        BulkRequest bulkRequest = Requests.bulkRequest();
+
+        for (String routing : routingTable) {
+            bulkRequest.add(new IndexRequest(index, "committed", CommittedXidBlock.WATERMARK_ID)
+                    .routing(routing)
+                    .source(CommittedXidBlock.BLOCK_FIELD, CommittedXidBlock.WATERMARK_BLOCK, CommittedXidBlock.XIDS_FIELD, CommittedXidBlock.encodeWatermark(horizon)));
+        }
+
+        BulkResponse response = client.bulk(bulkRequest).actionGet();
+        if (response.hasFailures())
+            throw new RuntimeException(response.buildFailureMessage());
+        watermark = horizon;
+    }
+
+    /**
+     * The blocks entirely below the watermark are no longer needed.  Each shard has its own copy
+     */
+    private void deleteCommittedBlocks() throws InterruptedException {
+        SearchResponse response = scan("committed", rangeFilter(CommittedXidBlock.BLOCK_FIELD).gte(0).lt(CommittedXidBlock.blockOf(horizon)));
+
+        Set<String> deleted = new HashSet<>();
+        while ((response = nextBatch(response)) != null) {
+            BulkRequest bulkRequest = Requests.bulkRequest();
+
+            for (SearchHit hit : response.getHits()) {
+                if (!deleted.add(hit.id()))
+                    continue;
+
+                for (String routing : routingTable)
+                    bulkRequest.add(new DeleteRequest(index, "committed", hit.id()).routing(routing));
+                blocksDeleted++;
+            }
+
+            execute(bulkRequest);
+        }
+    }
+
+    /**
+     * One shard's documents for a block, and their union
+     */
+    private static class Fold {
+        final int shard;
+        final CommittedXidBlock xids;
+        final List<String> ids = new ArrayList<>();
+        long version = -1;
+
+        Fold(int shard, long blockno) {
+            this.shard = shard;
+            this.xids = new CommittedXidBlock(blockno);
+        }
+    }
+
+    /**
+     * Every commit adds its own documents to the blocks, so readers have to OR more of them together the longer
+     * it's been since the last compaction.  This folds each shard's documents for a block into the one whose id is
+     * the block number.
+     * <p>
+     * The folded document is written, versioned against what was read, before the ones folded into it are deleted,
+     * so no xid is ever missing from a block.  If something else folded the block in the meantime the write
+     * conflicts and the block is left as it is, and commits that land in the meantime are left for the next time
+     */
+    private void foldCommittedBlocks() throws IOException, InterruptedException {
+        SearchResponse response = scanCommitted(rangeFilter(CommittedXidBlock.BLOCK_FIELD).gte(0), null);
+        Map<String, Fold> folds = new HashMap<>();
+
+        while ((response = nextBatch(response)) != null) {
+            for (SearchHit hit : response.getHits()) {
+                int shard = hit.shard().shardId();
+                long blockno = ((Number) hit.getSource().get(CommittedXidBlock.BLOCK_FIELD)).longValue();
+                String key = shard + ":" + blockno;
+                Fold fold = folds.get(key);
+
+                if (fold == null)
+                    folds.put(key, fold = new Fold(shard, blockno));
+                mergeXids(fold.xids, hit);
+
+                if (hit.id().equals(String.valueOf(blockno)))
+                    fold.version = hit.version();
+                else
+                    fold.ids.add(hit.id());
+            }
+        }
+
+        List<Fold> written = new ArrayList<>();
+        List<Fold> pending = new ArrayList<>();
+        BulkRequest bulkRequest = Requests.bulkRequest();
+        for (Fold fold : folds.values()) {
+            if (fold.ids.isEmpty())
+                continue;
+
+            IndexRequest request = new IndexRequest(index, "committed", String.valueOf(fold.xids.getBlock()))
+                    .routing(routingTable[fold.shard])
+                    .source(CommittedXidBlock.BLOCK_FIELD, fold.xids.getBlock(), CommittedXidBlock.XIDS_FIELD, fold.xids.encode());
+            if (fold.version == -1)
+                request.create(true);
+            else
+                request.version(fold.version);
+
+            bulkRequest.add(request);
+            pending.add(fold);
+            if (bulkRequest.numberOfActions() >= batchSize) {
+                written.addAll(writeFolds(bulkRequest, pending));
+                bulkRequest = Requests.bulkRequest();
+                pending.clear();
+            }
+        }
+        written.addAll(writeFolds(bulkRequest, pending));
+
+        bulkRequest = Requests.bulkRequest();
+        for (Fold fold : written) {
+            for (String id : fold.ids) {
+                bulkRequest.add(new DeleteRequest(index, "committed", id).routing(routingTable[fold.shard]));
+                if (bulkRequest.numberOfActions() >= batchSize) {
+                    execute(bulkRequest);
+                    bulkRequest = Requests.bulkRequest();
+                }
+            }
+            blocksFolded++;
+        }
+        execute(bulkRequest);
+    }
+
+    /**
+     * @return the folds whose documents were written
+     */
+    private List<Fold> writeFolds(BulkRequest bulkRequest, List<Fold> folds) throws InterruptedException {
+        if (bulkRequest.numberOfActions() == 0)
+            return Collections.emptyList();
+
+        BulkResponse response = client.bulk(bulkRequest).actionGet();
+        List<Fold> written = new ArrayList<>();
+        for (BulkItemResponse item : response) {
+            if (!item.isFailed())
+                written.add(folds.get(item.getItemId()));
+            else if (item.getFailure().getStatus() != RestStatus.CONFLICT)
+                throw new RuntimeException(response.buildFailureMessage());
+        }
+
+        if (throttle.millis() > 0)
+            Thread.sleep(throttle.millis());
+        return written;
+    }
+
+    private static void mergeXids(CommittedXidBlock block, SearchHit hit) throws IOException {
+        byte[] bytes = Base64.decode(String.valueOf(hit.getSource().get(CommittedXidBlock.XIDS_FIELD)));
+        block.merge(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Scans "committed" documents along with their versions and sources
+     */
+    private SearchResponse scanCommitted(FilterBuilder filter, String routing) {
+        return client.prepareSearch(index)
+                .setTypes("committed")
+                .setSearchType(SearchType.SCAN)
+                .setScroll(KEEP_ALIVE)
+                .setSize(batchSize)
+                .setRouting(routing)
+                .setQuery(filteredQuery(null, filter))
+                .setVersion(true)
+                .setFetchSource(new String[]{CommittedXidBlock.BLOCK_FIELD, CommittedXidBlock.XIDS_FIELD}, null)
+                .get();
+    }
+
+    private SearchResponse scan(String type, FilterBuilder filter, String... fieldDataFields) {
+        SearchRequestBuilder builder = client.prepareSearch(index)
+                .setTypes(type)
+                .setSearchType(SearchType.SCAN)
+                .setScroll(KEEP_ALIVE)
+                .setSize(batchSize)
+                .setQuery(filteredQuery(null, filter))
+                .setVersion(true)
+                .addField("_prev_ctid");
+
+        for (String field : fieldDataFields)
+            builder.addFieldDataField(field);
+        return builder.get();
+    }
+
+    /**
+     * @return the next batch of the scroll, or null (after clearing the scroll) if there are no more hits
+     */
+    private SearchResponse nextBatch(SearchResponse response) {
+        response = client.prepareSearchScroll(response.getScrollId())
+                .setScroll(KEEP_ALIVE)
+                .get();
+
+        if (response.getHits().getHits().length == 0) {
+            client.prepareClearScroll().addScrollId(response.getScrollId()).get();
+            return null;
+        }
+
+        return response;
+    }
+
+    private void execute(BulkRequest bulkRequest) throws InterruptedException {
+        if (bulkRequest.numberOfActions() == 0)
+            return;
+
+        BulkResponse response = client.bulk(bulkRequest).actionGet();
+        for (BulkItemResponse item : response) {
+            if (item.isFailed() && item.getFailure().getStatus() != RestStatus.CONFLICT)
+                throw new RuntimeException(response.buildFailureMessage());
+        }
+        ZomboDBMetrics.record(METRICS, "deletes", bulkRequest.numberOfActions());
+
+        if (throttle.millis() > 0)
+            Thread.sleep(throttle.millis());
+    }
+
+    private void refresh() {
+        client.admin().indices().prepareRefresh(index).get();
+    }
+
+    private long readWatermark() throws IOException {
+        GetResponse get = client.prepareGet(index, "committed", CommittedXidBlock.WATERMARK_ID)
+                .setRouting(routingTable[0])
+                .setRealtime(true)
+                .get();
+
+        if (!get.isExists())
+            return 0;
+
+        byte[] bytes = Base64.decode(String.valueOf(get.getSourceAsMap().get(CommittedXidBlock.XIDS_FIELD)));
+        return CommittedXidBlock.decodeWatermark(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Every shard has the same copy of each block, so they're all read from the first one.  The index was refreshed
+     * when the job started, after every transaction below the horizon had been marked committed
+     */
+    private boolean isCommitted(long xid) throws IOException {
+        // the blocks below the watermark have been deleted, but every xid below it still in the index is committed
+        if (xid < watermark)
+            return true;
+
+        long blockno = CommittedXidBlock.blockOf(xid);
+        CommittedXidBlock block = blocks.get(blockno);
+
+        if (block == null) {
+            blocks.put(blockno, block = new CommittedXidBlock(blockno));
+
+            SearchResponse response = scanCommitted(termFilter(CommittedXidBlock.BLOCK_FIELD, blockno), routingTable[0]);
+            while ((response = nextBatch(response)) != null) {
+                for (SearchHit hit : response.getHits())
+                    mergeXids(block, hit);
+            }
+        }
+
+        return block.contains(xid);
+    }
+
+    private static long longValue(SearchHitField field) {
+        return ((Number) field.getValue()).longValue();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("index", index);
+        builder.field("phase", phase);
+        builder.field("running", isRunning());
+        builder.field("horizon", horizon);
+        builder.field("watermark", watermark);
+        builder.field("data_scanned", dataScanned);
+        builder.field("data_deleted", dataDeleted);
+        builder.field("state_scanned", stateScanned);
+        builder.field("state_deleted", stateDeleted);
+        builder.field("blocks_deleted", blocksDeleted);
+        builder.field("blocks_folded", blocksFolded);
+        builder.field("started_at", startedAt);
+        builder.field("took_in_millis", (isRunning() ? System.currentTimeMillis() : finishedAt) - startedAt);
+        if (failure != null)
+            builder.field("failure", failure);
+        return builder;
+    }
+}
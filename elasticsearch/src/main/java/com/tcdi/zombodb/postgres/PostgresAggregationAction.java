@@ -16,7 +16,9 @@
  */
 package com.tcdi.zombodb.postgres;
 
+import com.tcdi.zombodb.query_parser.metadata.IndexMetadataService;
 import com.tcdi.zombodb.query_parser.rewriters.QueryRewriter;
+import com.tcdi.zombodb.query_parser.rewriters.RemoteLookups;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
@@ -40,9 +42,14 @@ import static org.elasticsearch.search.aggregations.AggregationBuilders.missing;
 
 public class PostgresAggregationAction extends BaseRestHandler {
 
+    private final IndexMetadataService metadataService;
+
     @Inject
-    public PostgresAggregationAction(Settings settings, RestController controller, Client client) {
+    public PostgresAggregationAction(Settings settings, RestController controller, Client client, IndexMetadataService metadataService) {
         super(settings, controller, client);
+
+        this.metadataService = metadataService;
+
         controller.registerHandler(GET, "/{index}/_pgagg", this);
         controller.registerHandler(POST, "/{index}/_pgagg", this);
     }
@@ -53,7 +60,7 @@ public class PostgresAggregationAction extends BaseRestHandler {
             final long start = System.currentTimeMillis();
             SearchRequestBuilder builder = new SearchRequestBuilder(client);
             String input = request.content().toUtf8();
-            final QueryRewriter rewriter = QueryRewriter.Factory.create(client, request.param("index"), request.param("preference"), input, true, true);
+            final QueryRewriter rewriter = QueryRewriter.Factory.create(client, RemoteLookups.blocking(client, metadataService), request.param("index"), request.param("preference"), input, true, true);
             QueryBuilder qb = rewriter.rewriteQuery();
             AbstractAggregationBuilder ab = rewriter.rewriteAggregations();
             SuggestBuilder.SuggestionBuilder tsb = rewriter.rewriteSuggestions();
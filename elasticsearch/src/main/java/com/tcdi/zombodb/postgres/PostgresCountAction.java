@@ -16,6 +16,8 @@
  */
 package com.tcdi.zombodb.postgres;
 
+import com.tcdi.zombodb.action.stats.ZomboDBMetrics;
+import com.tcdi.zombodb.query_parser.metadata.IndexMetadataService;
 import org.elasticsearch.action.admin.indices.refresh.RefreshRequestBuilder;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
@@ -25,58 +27,87 @@ import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.rest.*;
 
+import java.util.concurrent.TimeUnit;
+
 import static org.elasticsearch.rest.RestRequest.Method.GET;
 import static org.elasticsearch.rest.RestRequest.Method.POST;
 
 public class PostgresCountAction extends BaseRestHandler {
 
+    private final IndexMetadataService metadataService;
+
     @Inject
-    public PostgresCountAction(Settings settings, RestController controller, Client client) {
+    public PostgresCountAction(Settings settings, RestController controller, Client client, IndexMetadataService metadataService) {
         super(settings, controller, client);
+
+        this.metadataService = metadataService;
+
         controller.registerHandler(GET, "/{index}/_pgcount", this);
         controller.registerHandler(POST, "/{index}/_pgcount", this);
     }
 
     @Override
-    protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
-        long start = System.currentTimeMillis();
-        long count = -1;
-
-        try {
-            boolean isSelectivityQuery = request.paramAsBoolean("selectivity", false);
-            BytesRestResponse response;
-            QueryAndIndexPair query;
-
-            query = PostgresTIDResponseAction.buildJsonQueryFromRequestContent(client, request, !isSelectivityQuery, true);
-            SearchRequestBuilder builder = new SearchRequestBuilder(client);
-            builder.setIndices(query.getIndexName());
-            builder.setTypes("data");
-            builder.setSize(0);
-            builder.setSearchType(SearchType.COUNT);
-            builder.setPreference(request.param("preference"));
-            builder.setQueryCache(false);
-            builder.setFetchSource(false);
-            builder.setTrackScores(false);
-            builder.setNoFields();
-            builder.setQuery(query.getQueryBuilder());
-
-            SearchResponse searchResponse = client.execute(DynamicSearchActionHelper.getSearchAction(), builder.request()).get();
-
-            if (searchResponse.getTotalShards() != searchResponse.getSuccessfulShards())
-                throw new Exception(searchResponse.getTotalShards() - searchResponse.getSuccessfulShards() + " shards failed");
-
-            count = searchResponse.getHits().getTotalHits();
-
-            // and return that number as a string
-            response = new BytesRestResponse(RestStatus.OK, String.valueOf(count));
-            channel.sendResponse(response);
-        } catch (Throwable e) {
-            if (logger.isDebugEnabled())
-                logger.error("Error estimating records", e);
-            throw new RuntimeException(e);
-        } finally {
-            long end = System.currentTimeMillis();
-            logger.info("Estimated " + count + " records in " + ((end - start) / 1000D) + " seconds.");
-        }
+    protected void handleRequest(final RestRequest request, final RestChannel channel, final Client client) throws Exception {
+        final long start = System.currentTimeMillis();
+        final boolean isSelectivityQuery = request.paramAsBoolean("selectivity", false);
+
+        final long parseStart = System.nanoTime();
+        PostgresTIDResponseAction.buildJsonQueryFromRequestContent(client, metadataService, request, !isSelectivityQuery, true, new AsyncRestHelper.RestListener<QueryAndIndexPair>(channel) {
+            @Override
+            protected void processResponse(QueryAndIndexPair query) throws Exception {
+                ZomboDBMetrics.recordTime("pgcount", "parse", parseStart);
+                SearchRequestBuilder builder = new SearchRequestBuilder(client);
+                builder.setIndices(query.getIndexName());
+                builder.setTypes("data");
+                builder.setSize(0);
+                builder.setSearchType(SearchType.COUNT);
+                builder.setPreference(request.param("preference"));
+                builder.setQueryCache(false);
+                builder.setFetchSource(false);
+                builder.setTrackScores(false);
+                builder.setNoFields();
+                builder.setQuery(query.getQueryBuilder());
+
+                final long searchStart = System.nanoTime();
+                client.execute(DynamicSearchActionHelper.getSearchAction(), builder.request(), new AsyncRestHelper.RestListener<SearchResponse>(channel) {
+                    @Override
+                    protected void processResponse(SearchResponse searchResponse) throws Exception {
+                        ZomboDBMetrics.recordTime("pgcount", "search", searchStart);
+                        if (searchResponse.getTotalShards() != searchResponse.getSuccessfulShards())
+                            throw new Exception(searchResponse.getTotalShards() - searchResponse.getSuccessfulShards() + " shards failed");
+
+                        long count = searchResponse.getHits().getTotalHits();
+
+                        // and return that number as a string
+                        channel.sendResponse(new BytesRestResponse(RestStatus.OK, String.valueOf(count)));
+                        logEstimate(count, start);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        failed(t, start);
+                        super.onFailure(t);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                failed(t, start);
+                super.onFailure(t);
+            }
+        });
+    }
+
+    private void failed(Throwable t, long start) {
+        if (logger.isDebugEnabled())
+            logger.error("Error estimating records", t);
+        logEstimate(-1, start);
+    }
+
+    private void logEstimate(long count, long start) {
+        long end = System.currentTimeMillis();
+        ZomboDBMetrics.recordNanos("pgcount", count < 0 ? "failed" : "total", TimeUnit.MILLISECONDS.toNanos(end - start));
+        logger.info("Estimated " + count + " records in " + ((end - start) / 1000D) + " seconds.");
     }
 }
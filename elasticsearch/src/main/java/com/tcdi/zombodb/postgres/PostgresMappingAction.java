@@ -16,7 +16,9 @@
  */
 package com.tcdi.zombodb.postgres;
 
+import com.tcdi.zombodb.query_parser.metadata.IndexMetadataService;
 import com.tcdi.zombodb.query_parser.rewriters.QueryRewriter;
+import com.tcdi.zombodb.query_parser.rewriters.RemoteLookups;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
@@ -30,9 +32,14 @@ import static org.elasticsearch.rest.RestRequest.Method.POST;
 
 public class PostgresMappingAction extends BaseRestHandler {
 
+    private final IndexMetadataService metadataService;
+
     @Inject
-    public PostgresMappingAction(Settings settings, RestController controller, Client client) {
+    public PostgresMappingAction(Settings settings, RestController controller, Client client, IndexMetadataService metadataService) {
         super(settings, controller, client);
+
+        this.metadataService = metadataService;
+
         controller.registerHandler(GET, "/{index}/_pgmapping/{fieldname}", this);
         controller.registerHandler(POST, "/{index}/_pgmapping/{fieldname}", this);
     }
@@ -41,7 +48,7 @@ public class PostgresMappingAction extends BaseRestHandler {
     protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
         BytesRestResponse response;
 
-        QueryRewriter rewriter = QueryRewriter.Factory.create(client, request.param("index"), request.param("preference"), request.content().toUtf8(), true, false);
+        QueryRewriter rewriter = QueryRewriter.Factory.create(client, RemoteLookups.blocking(client, metadataService), request.param("index"), request.param("preference"), request.content().toUtf8(), true, false);
         rewriter.rewriteQuery();
         Map<String, ?> properties = rewriter.describedNestedObject(request.param("fieldname"));
 
@@ -16,20 +16,47 @@
  */
 package com.tcdi.zombodb.postgres;
 
+import com.tcdi.zombodb.action.stats.ZomboDBMetrics;
+import com.tcdi.zombodb.action.tidlist.TIDListAction;
+import com.tcdi.zombodb.action.tidlist.TIDListRequestBuilder;
+import com.tcdi.zombodb.action.tidlist.TIDListResponse;
+import com.tcdi.zombodb.query_parser.metadata.IndexMetadataService;
 import com.tcdi.zombodb.query_parser.rewriters.QueryRewriter;
+import com.tcdi.zombodb.query_parser.rewriters.RemoteLookups;
 import com.tcdi.zombodb.query_parser.utils.Utils;
-import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchAction;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchScrollRequestBuilder;
 import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.io.stream.ReleasableBytesStreamOutput;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.BigArrays;
 import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
 import org.elasticsearch.rest.*;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
 import static org.elasticsearch.rest.RestRequest.Method.GET;
@@ -37,43 +64,12 @@ import static org.elasticsearch.rest.RestRequest.Method.POST;
 
 public class PostgresTIDResponseAction extends BaseRestHandler {
 
-    static class TidArrayQuickSort {
-
-        byte[] tmp = new byte[10];
-        void quickSort(byte[] array, int offset, int low, int high) {
-
-            if (high <= low)
-                return;
-
-            int i = low;
-            int j = high;
-            int pivot = Utils.decodeInteger(array, offset + ((low+(high-low)/2) * 10));
-            while (i <= j) {
-                while (Utils.decodeInteger(array, offset+i*10) < pivot)
-                    i++;
-                while (Utils.decodeInteger(array, offset+j*10) > pivot)
-                    j--;
-                if (i <= j) {
-                    System.arraycopy(array, offset+i*10, tmp, 0, 10);
-                    System.arraycopy(array, offset+j*10, array, offset+i*10, 10);
-                    System.arraycopy(tmp, 0, array, offset+j*10, 10);
-                    i++;
-                    j--;
-                }
-            }
-            if (low < j)
-                quickSort(array, offset, low, j);
-            if (i < high)
-                quickSort(array, offset, i, high);
-        }
-    }
-
     private static class BinaryTIDResponse {
-        byte[] data;
+        BytesReference data;
         int many;
         double ttl;
 
-        private BinaryTIDResponse(byte[] data, int many, double ttl) {
+        private BinaryTIDResponse(BytesReference data, int many, double ttl) {
             this.data = data;
             this.many = many;
             this.ttl = ttl;
@@ -82,169 +78,603 @@ public class PostgresTIDResponseAction extends BaseRestHandler {
 
     public static final int INVALID_BLOCK_NUMBER = 0xFFFFFFFF;
 
+    /**
+     * How many concurrent SCAN searches a SIREn _pgtid request splits the index's shards across,
+     * unless the request has its own "parallelism" parameter
+     */
+    public static final String PARALLELISM_SETTING = "index.zombodb.pgtid.parallelism";
+
+    private static final String METRICS = "pgtid";
+
+    private final ClusterService clusterService;
+    private final IndexMetadataService metadataService;
+    private final BigArrays bigArrays;
+    private final CircuitBreaker breaker;
+    private final ThreadPool threadPool;
 
     @Inject
-    public PostgresTIDResponseAction(Settings settings, RestController controller, Client client) {
+    public PostgresTIDResponseAction(Settings settings, RestController controller, Client client, ClusterService clusterService, IndexMetadataService metadataService, BigArrays bigArrays, CircuitBreakerService breakerService, ThreadPool threadPool) {
         super(settings, controller, client);
+        this.clusterService = clusterService;
+        this.metadataService = metadataService;
+        this.threadPool = threadPool;
+        this.bigArrays = bigArrays.withCircuitBreaking();
+        this.breaker = breakerService.getBreaker(CircuitBreaker.Name.REQUEST);
         controller.registerHandler(GET, "/{index}/_pgtid", this);
         controller.registerHandler(POST, "/{index}/_pgtid", this);
     }
 
 
     @Override
-    protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
-        long totalStart = System.nanoTime();
-        SearchResponse response;
-        BinaryTIDResponse tids;
-        QueryAndIndexPair query;
-        int many = -1;
-        long parseStart = 0, parseEnd = 0;
-        double buildTime = 0, searchTime = 0;
+    protected void handleRequest(final RestRequest request, final RestChannel channel, final Client client) throws Exception {
+        final Timing timing = new Timing();
+        String format = request.param("format", "tid");
+        final int limit = request.paramAsInt("limit", -1);
+        final int parallelism = request.paramAsInt("parallelism", -1);
+        String sortField = request.param("sort_field", "_score");
+        String sortDirection = request.param("sort_direction", "desc");
+        final boolean bitmap;
+
+        if ("tid".equals(format))
+            bitmap = false;
+        else if ("bitmap".equals(format))
+            bitmap = true;
+        else
+            throw new ElasticsearchIllegalArgumentException("Unrecognized _pgtid format: " + format);
+
+        if ("_score".equals(sortField))
+            sortField = null;
+        if (!"asc".equals(sortDirection) && !"desc".equals(sortDirection))
+            throw new ElasticsearchIllegalArgumentException("Unrecognized _pgtid sort_direction: " + sortDirection);
+
+        final String finalSortField = sortField;
+        final boolean descending = "desc".equals(sortDirection);
+
+        timing.parseStart = System.nanoTime();
+        buildJsonQueryFromRequestContent(client, metadataService, request, true, false, new ResponseListener<QueryAndIndexPair>(channel, timing) {
+            @Override
+            protected void processResponse(QueryAndIndexPair query) throws Exception {
+                timing.parseEnd = System.nanoTime();
+
+                timing.searchStart = System.nanoTime();
+                if (DynamicSearchActionHelper.getSearchAction() == SearchAction.INSTANCE)
+                    searchTIDList(client, request, channel, query, bitmap, limit, finalSortField, descending, timing);
+                else if (limit >= 0)
+                    searchTopHits(client, request, channel, query, bitmap, limit, finalSortField, descending, timing);
+                else
+                    scanAndScroll(client, request, channel, query, bitmap, resolveParallelism(request.param("index"), parallelism), timing);
+            }
+        });
+    }
 
-        try {
-            parseStart = System.nanoTime();
-            query = buildJsonQueryFromRequestContent(client, request, true, false);
-            parseEnd = System.nanoTime();
+    /**
+     * Collect the matching TIDs directly on each shard
+     */
+    private void searchTIDList(Client client, RestRequest request, RestChannel channel, QueryAndIndexPair query, final boolean bitmap, int limit, String sortField, boolean descending, final Timing timing) {
+        TIDListRequest tidListRequest = new TIDListRequestBuilder(client)
+                .setIndices(query.getIndexName())
+                .setPreference(request.param("preference"))
+                .setScoring(!bitmap)
+                .setLimit(limit)
+                .setSort(sortField, descending)
+                .setQuery(query.getQueryBuilder())
+                .request();
+
+        // merging can take a while, so don't do it on a transport thread
+        tidListRequest.listenerThreaded(true);
+        client.execute(TIDListAction.INSTANCE, tidListRequest, new ResponseListener<TIDListResponse>(channel, timing) {
+            @Override
+            protected void processResponse(TIDListResponse response) throws Exception {
+                timing.searchEnd = System.nanoTime();
+
+                BinaryTIDResponse tids;
+                try {
+                    if (response.getTotalShards() != response.getSuccessfulShards())
+                        throw new Exception(response.getTotalShards() - response.getSuccessfulShards() + " shards failed");
 
+                    tids = buildResponse(response.getRuns(), response.getRunSizes(), response.getMany(), response.getMaxScore(), bitmap, System.currentTimeMillis());
+                } finally {
+                    // the runs have been copied into the response's pages
+                    response.close();
+                }
+                send(tids);
+            }
+        });
+    }
+
+    /**
+     * SIREn needs to coordinate the search itself, but only the top hits are needed
+     */
+    private void searchTopHits(Client client, RestRequest request, RestChannel channel, QueryAndIndexPair query, final boolean bitmap, int limit, String sortField, boolean descending, final Timing timing) {
+        SearchRequestBuilder builder = new SearchRequestBuilder(client);
+        builder.setIndices(query.getIndexName());
+        builder.setTypes("data");
+        builder.setSize(limit);
+        builder.setSearchType(SearchType.QUERY_THEN_FETCH);
+        builder.setPreference(request.param("preference"));
+        builder.setTrackScores(!bitmap || sortField == null);
+        builder.setQueryCache(true);
+        builder.setFetchSource(false);
+        builder.setNoFields();
+        builder.setQuery(query.getQueryBuilder());
+        SortOrder order = descending ? SortOrder.DESC : SortOrder.ASC;
+        builder.addSort(sortField == null ? SortBuilders.scoreSort().order(order) : SortBuilders.fieldSort(sortField).order(order));
+
+        client.execute(DynamicSearchActionHelper.getSearchAction(), builder.request(), new ResponseListener<SearchResponse>(channel, timing) {
+            @Override
+            protected void processResponse(SearchResponse response) throws Exception {
+                timing.searchEnd = System.nanoTime();
+
+                if (response.getTotalShards() != response.getSuccessfulShards())
+                    throw new Exception(response.getTotalShards() - response.getSuccessfulShards() + " shards failed");
+
+                send(buildBinaryResponse(response, bitmap));
+            }
+        });
+    }
+
+    /**
+     * SIREn needs to coordinate the search itself, so use SCAN/scroll.
+     * <p>
+     * The shards are split across <code>parallelism</code> lanes, each with its own SCAN search restricted
+     * to its shards by a "_shards:" preference, and the lanes' scroll requests all run concurrently
+     */
+    private void scanAndScroll(final Client client, RestRequest request, final RestChannel channel, QueryAndIndexPair query, final boolean bitmap, int parallelism, final Timing timing) {
+        String[] preferences = lanePreferences(query.getIndexName(), request.param("preference"), parallelism);
+        final SearchResponse[] responses = new SearchResponse[preferences.length];
+        final AtomicInteger pending = new AtomicInteger(preferences.length);
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        for (int i = 0; i < preferences.length; i++) {
+            final int lane = i;
             SearchRequestBuilder builder = new SearchRequestBuilder(client);
             builder.setIndices(query.getIndexName());
             builder.setTypes("data");
             builder.setSize(32768);
             builder.setScroll(TimeValue.timeValueMinutes(10));
             builder.setSearchType(SearchType.SCAN);
-            builder.setPreference(request.param("preference"));
-            builder.setTrackScores(true);
+            builder.setPreference(preferences[i]);
+            builder.setTrackScores(!bitmap);
             builder.setQueryCache(true);
             builder.setFetchSource(false);
             builder.setNoFields();
             builder.setQuery(query.getQueryBuilder());
 
-            long searchStart = System.currentTimeMillis();
-            response = client.execute(DynamicSearchActionHelper.getSearchAction(), builder.request()).get();
-            searchTime = (System.currentTimeMillis() - searchStart) / 1000D;
+            client.execute(DynamicSearchActionHelper.getSearchAction(), builder.request(), new ResponseListener<SearchResponse>(channel, timing) {
+                @Override
+                protected void processResponse(SearchResponse response) throws Exception {
+                    if (response.getTotalShards() != response.getSuccessfulShards())
+                        throw new Exception(response.getTotalShards() - response.getSuccessfulShards() + " shards failed");
+
+                    responses[lane] = response;
+                    if (pending.decrementAndGet() == 0) {
+                        // every lane knows how many hits it has, so now we know how big the results need to be
+                        timing.searchEnd = System.nanoTime();
+                        new ScrollCollector(client, channel, timing, bitmap, failed).start(responses);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    if (failed.compareAndSet(false, true))
+                        super.onFailure(t);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the request's "parallelism" parameter if it has one, otherwise the index's {@link #PARALLELISM_SETTING}
+     */
+    private int resolveParallelism(String index, int parallelism) {
+        if (parallelism > 0)
+            return parallelism;
+
+        IndexMetaData indexMetaData = clusterService.state().metaData().index(index);
+        return indexMetaData == null ? 1 : indexMetaData.settings().getAsInt(PARALLELISM_SETTING, 1);
+    }
+
+    /**
+     * @return one search preference per lane, each restricted to every <code>parallelism</code>'th shard,
+     * starting with the lane's own shard number
+     */
+    private String[] lanePreferences(String indexName, String preference, int parallelism) {
+        MetaData metaData = clusterService.state().metaData();
+        int shards = 0;
+
+        for (String index : metaData.concreteIndices(IndicesOptions.lenientExpandOpen(), Strings.splitStringByCommaToArray(indexName)))
+            shards = Math.max(shards, metaData.index(index).numberOfShards());
+
+        parallelism = Math.max(1, Math.min(parallelism, shards));
+        if (parallelism == 1)
+            return new String[]{preference};
+
+        String[] preferences = new String[parallelism];
+        for (int lane = 0; lane < parallelism; lane++) {
+            StringBuilder sb = new StringBuilder("_shards:");
+
+            for (int shard = lane; shard < shards; shard += parallelism) {
+                if (shard != lane)
+                    sb.append(',');
+                sb.append(shard);
+            }
+            if (preference != null)
+                sb.append(';').append(preference);
+
+            preferences[lane] = sb.toString();
+        }
+        return preferences;
+    }
 
-            if (response.getTotalShards() != response.getSuccessfulShards())
-                throw new Exception(response.getTotalShards() - response.getSuccessfulShards() + " shards failed");
+    /**
+     * Start/end times of each phase of a _pgtid request, for logging and {@link ZomboDBMetrics}
+     */
+    private class Timing {
+        private final long totalStart = System.nanoTime();
+        private volatile long parseStart, parseEnd;
+        private volatile long searchStart, searchEnd;
+        private volatile double buildTime;
 
-            tids = buildBinaryResponse(client, response);
-            many = tids.many;
+        private void finished(BinaryTIDResponse tids) {
             buildTime = tids.ttl;
+            log(tids.many);
 
-            channel.sendResponse(new BytesRestResponse(RestStatus.OK, "application/data", tids.data));
-        } catch (Throwable e) {
-            logger.error("Problem building response", e);
-            throw e;
-        } finally {
+            ZomboDBMetrics.recordNanos(METRICS, "parse", parseEnd - parseStart);
+            ZomboDBMetrics.recordNanos(METRICS, "search", searchEnd - searchStart);
+            ZomboDBMetrics.recordTime(METRICS, "total", totalStart);
+            ZomboDBMetrics.record(METRICS, "rows", tids.many);
+            ZomboDBMetrics.record(METRICS, "bytes", tids.data.length());
+        }
+
+        private void failed() {
+            log(-1);
+            ZomboDBMetrics.recordTime(METRICS, "failed", totalStart);
+        }
+
+        private void log(int many) {
             long totalEnd = System.nanoTime();
+            double searchTime = searchEnd == 0 ? 0 : (searchEnd - searchStart) / 1000D / 1000D / 1000D;
             logger.info("Found " + many + " rows (ttl=" + ((totalEnd - totalStart) / 1000D / 1000D / 1000D) + "s, search=" + searchTime + "s, parse=" + ((parseEnd - parseStart) / 1000D / 1000D / 1000D) + "s, build=" + buildTime + "s)");
         }
     }
 
-    public static QueryAndIndexPair buildJsonQueryFromRequestContent(Client client, RestRequest request, boolean doFullFieldDataLookups, boolean canDoSingleIndex) {
-        String queryString = request.content().toUtf8();
-        String indexName = request.param("index");
+    private void sendResponse(RestChannel channel, Timing timing, BinaryTIDResponse tids) {
+        timing.finished(tids);
+        channel.sendResponse(new BytesRestResponse(RestStatus.OK, "application/data", tids.data));
+    }
 
-        try {
-            QueryBuilder query;
+    private abstract class ResponseListener<Response> extends AsyncRestHelper.RestListener<Response> {
+        private final Timing timing;
 
-            if (queryString != null && queryString.trim().length() > 0) {
-                QueryRewriter qr = QueryRewriter.Factory.create(client, indexName, request.param("preference"), queryString, doFullFieldDataLookups, canDoSingleIndex);
-                query = qr.rewriteQuery();
-                indexName = qr.getSearchIndexName();
-            } else {
-                query = matchAllQuery();
-            }
+        private ResponseListener(RestChannel channel, Timing timing) {
+            super(channel);
+            this.timing = timing;
+        }
 
-            return new QueryAndIndexPair(query, indexName);
-        } catch (Exception e) {
-            throw new RuntimeException(queryString, e);
+        void send(BinaryTIDResponse tids) {
+            sendResponse(channel, timing, tids);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            timing.failed();
+            logger.error("Problem building response", t);
+            super.onFailure(t);
         }
     }
 
     /**
-     * All values are encoded in little-endian so that they can be directly
-     * copied into memory on x86
+     * Walks the scrolls of each lane's SCAN search without blocking.  Each lane sends its next scroll request
+     * before the current chunk of hits is encoded, and each chunk is encoded and sorted into its own run, so
+     * encoding overlaps with Elasticsearch fetching the next chunks.  The runs are merged once every lane is done.
+     * <p>
+     * The runs are charged to the request circuit breaker as they arrive, so a result too big for the node
+     * fails the request instead
      */
-    private BinaryTIDResponse buildBinaryResponse(Client client, SearchResponse searchResponse) throws Exception {
-        int many = (int) searchResponse.getHits().getTotalHits();
+    private class ScrollCollector {
+        private final Client client;
+        private final RestChannel channel;
+        private final Timing timing;
+        private final boolean bitmap;
+        private final AtomicBoolean failed;
+        private final long start = System.currentTimeMillis();
+        private int many;
+
+        // all guarded by this
+        private final List<byte[]> runs = new ArrayList<>();
+        private final List<Integer> runSizes = new ArrayList<>();
+        private int encoded;
+        private float maxscore;
+        private long charged;
+        private boolean released;
+
+        private ScrollCollector(Client client, RestChannel channel, Timing timing, boolean bitmap, AtomicBoolean failed) {
+            this.client = client;
+            this.channel = channel;
+            this.timing = timing;
+            this.bitmap = bitmap;
+            this.failed = failed;
+        }
 
-        long start = System.currentTimeMillis();
-        byte[] results = new byte[1 + 8 + 4 + (many * 10)];    // NULL + totalhits + maxscore + (many * (sizeof(int4)+sizeof(int2)+sizeof(float4)))
-        int offset = 0, maxscore_offset, first_byte;
-        float maxscore = 0;
-
-        results[0] = 0;
-        offset++;
-        offset += Utils.encodeLong(many, results, offset);
-
-        /* once we know the max score, it goes here */
-        maxscore_offset = offset;
-        offset += Utils.encodeFloat(0, results, offset);
-        first_byte = offset;
-
-        // kick off the first scroll request
-        ActionFuture<SearchResponse> future = client.searchScroll(new SearchScrollRequestBuilder(client)
-                .setScrollId(searchResponse.getScrollId())
-                .setScroll(TimeValue.timeValueMinutes(10))
-                .request()
-        );
-        int cnt = 0;
-        while (cnt < many) {
-            searchResponse = future.get();
-
-            if (searchResponse.getTotalShards() != searchResponse.getSuccessfulShards())
-                throw new Exception(searchResponse.getTotalShards() - searchResponse.getSuccessfulShards() + " shards failed");
-
-            if (searchResponse.getHits().getHits().length == 0) {
-                throw new Exception("Underflow in buildBinaryResponse:  Expected " + many + ", got " + cnt);
+        private void start(SearchResponse[] responses) throws Exception {
+            for (SearchResponse response : responses)
+                many += (int) response.getHits().getTotalHits();
+
+            if (many == 0) {
+                finish();
+                return;
+            }
+
+            for (SearchResponse response : responses) {
+                int expected = (int) response.getHits().getTotalHits();
+                if (expected > 0)
+                    new Lane(expected).scroll(response.getScrollId());
+            }
+        }
+
+        private synchronized byte[] newRun(int count) {
+            if (released)
+                throw new IllegalStateException("_pgtid request has already finished");
+
+            int bytes = count * TIDListResponse.BYTES_PER_TID;
+            breaker.addEstimateBytesAndMaybeBreak(bytes, "<zombodb_pgtid>");
+            charged += bytes;
+            return new byte[bytes];
+        }
+
+        /**
+         * @return true if this was the last run
+         */
+        private synchronized boolean addRun(byte[] run, int count, float runMax) {
+            if (released)
+                return false;
+
+            runs.add(run);
+            runSizes.add(count);
+            maxscore = Math.max(maxscore, runMax);
+            encoded += count;
+            return encoded == many;
+        }
+
+        private synchronized void release() {
+            if (!released) {
+                released = true;
+                breaker.addWithoutBreaking(-charged);
+                charged = 0;
+                runs.clear();
+            }
+        }
+
+        private void finish() throws Exception {
+            byte[][] runs;
+            int[] runSizes;
+            float maxscore;
+
+            synchronized (this) {
+                if (released)
+                    return;
+
+                runs = this.runs.toArray(new byte[this.runs.size()][]);
+                runSizes = new int[this.runSizes.size()];
+                for (int i = 0; i < runSizes.length; i++)
+                    runSizes[i] = this.runSizes.get(i);
+                maxscore = this.maxscore;
             }
 
-            if (cnt + searchResponse.getHits().getHits().length < many) {
-                // go ahead and do the next scroll request
-                // while we walk the hits of this chunk
-                future = client.searchScroll(new SearchScrollRequestBuilder(client)
-                        .setScrollId(searchResponse.getScrollId())
+            try {
+                sendResponse(channel, timing, buildResponse(runs, runSizes, many, maxscore, bitmap, start));
+            } finally {
+                release();
+            }
+        }
+
+        private class Lane extends ResponseListener<SearchResponse> {
+            private final int expected;
+
+            /**
+             * only changed by the response for this lane's most recent scroll request, before the next one is sent
+             */
+            private int received;
+            private long scrollStart;
+
+            private Lane(int expected) {
+                super(ScrollCollector.this.channel, ScrollCollector.this.timing);
+                this.expected = expected;
+            }
+
+            private void scroll(String scrollId) {
+                scrollStart = System.nanoTime();
+                client.searchScroll(new SearchScrollRequestBuilder(client)
+                        .setScrollId(scrollId)
                         .setScroll(TimeValue.timeValueMinutes(10))
                         .listenerThreaded(true)
-                        .request()
+                        .request(), this
                 );
             }
 
-            for (SearchHit hit : searchResponse.getHits()) {
-                String id;
-                float score;
-                int blockno;
-                char rowno;
+            @Override
+            protected void processResponse(SearchResponse searchResponse) throws Exception {
+                ZomboDBMetrics.recordTime(METRICS, "scroll", scrollStart);
+                if (failed.get())
+                    return;     // another lane already failed the request
+
+                if (searchResponse.getTotalShards() != searchResponse.getSuccessfulShards())
+                    throw new Exception(searchResponse.getTotalShards() - searchResponse.getSuccessfulShards() + " shards failed");
+
+                SearchHit[] hits = searchResponse.getHits().getHits();
+                if (hits.length == 0)
+                    throw new Exception("Underflow in buildBinaryResponse:  Expected " + expected + ", got " + received);
+                if (received + hits.length > expected)
+                    throw new Exception("Overflow in buildBinaryResponse:  Expected " + expected + ", got " + (received + hits.length));
+
+                byte[] run = newRun(hits.length);
+                int offset = 0;
+                float runMax = 0;
+
+                received += hits.length;
+                if (received < expected) {
+                    // go ahead and do the next scroll request
+                    // while we walk the hits of this chunk
+                    scroll(searchResponse.getScrollId());
+                }
 
-                try {
-                    id = hit.id();
-                    score = hit.score();
-
-                    int dash = id.indexOf('-', 1);
-                    blockno = Integer.parseInt(id.substring(0, dash), 10);
-                    rowno = (char) Integer.parseInt(id.substring(dash + 1), 10);
-                } catch (Exception nfe) {
-                    logger.warn("hit.id()=/" + hit.id() + "/ is not in the proper format.  Defaulting to INVALID_BLOCK_NUMBER");
-                    blockno = INVALID_BLOCK_NUMBER;
-                    rowno = 0;
-                    score = 0;
+                long encodeStart = System.nanoTime();
+                for (SearchHit hit : hits) {
+                    runMax = Math.max(runMax, encodeHit(hit, run, offset));
+                    offset += TIDListResponse.BYTES_PER_TID;
                 }
+                ZomboDBMetrics.recordTime(METRICS, "encode", encodeStart);
 
-                if (score > maxscore)
-                    maxscore = score;
+                long sortStart = System.nanoTime();
+                TidArrayRadixSort.sort(run, 0, hits.length, threadPool.executor(AsyncRestHelper.THREAD_POOL_NAME));
+                ZomboDBMetrics.recordTime(METRICS, "sort", sortStart);
 
-                offset += Utils.encodeInteger(blockno, results, offset);
-                offset += Utils.encodeCharacter(rowno, results, offset);
-                offset += Utils.encodeFloat(score, results, offset);
-                cnt++;
+                if (addRun(run, hits.length, runMax))
+                    finish();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (failed.compareAndSet(false, true)) {
+                    release();
+                    super.onFailure(t);
+                }
             }
         }
+    }
 
-        Utils.encodeFloat(maxscore, results, maxscore_offset);
+    /**
+     * Rewrites the request's query without blocking: the rewrite runs on the "zombodb" thread pool, and the
+     * searches it needs to resolve joins are answered through {@link RemoteLookups#rewrite(Client, IndexMetadataService, Executor, RemoteLookups.Rewrite, ActionListener)}
+     */
+    public static void buildJsonQueryFromRequestContent(final Client client, IndexMetadataService metadataService, RestRequest request, final boolean doFullFieldDataLookups, final boolean canDoSingleIndex, ActionListener<QueryAndIndexPair> listener) {
+        final String queryString = request.content().toUtf8();
+        final String indexName = request.param("index");
+        final String preference = request.param("preference");
+
+        RemoteLookups.rewrite(client, metadataService, client.threadPool().executor(AsyncRestHelper.THREAD_POOL_NAME), new RemoteLookups.Rewrite<QueryAndIndexPair>() {
+            @Override
+            public QueryAndIndexPair rewrite(RemoteLookups lookups) throws Exception {
+                try {
+                    QueryBuilder query;
+                    String searchIndexName = indexName;
+
+                    if (queryString != null && queryString.trim().length() > 0) {
+                        QueryRewriter qr = QueryRewriter.Factory.create(client, lookups, indexName, preference, queryString, doFullFieldDataLookups, canDoSingleIndex);
+                        query = qr.rewriteQuery();
+                        searchIndexName = qr.getSearchIndexName();
+                    } else {
+                        query = matchAllQuery();
+                    }
+
+                    return new QueryAndIndexPair(query, searchIndexName);
+                } catch (Exception e) {
+                    throw new RuntimeException(queryString, e);
+                }
+            }
+        }, listener);
+    }
+
+    /**
+     * Merge sorted runs of TIDs into the response, either as (blockno, offno, score) tuples or as per-block
+     * containers (see {@link TidBitmapEncoder}).
+     * <p>
+     * The response is written to recycled pages from {@link BigArrays} that are charged to the request circuit
+     * breaker, and Netty releases them once the response has been sent, so we never need one contiguous array
+     * for the entire response
+     */
+    private BinaryTIDResponse buildResponse(byte[][] runs, int[] runSizes, int many, float maxscore, boolean bitmap, long start) throws Exception {
+        ReleasableBytesStreamOutput out = new ReleasableBytesStreamOutput(bigArrays);
+        long mergeStart = System.nanoTime();
+        boolean success = false;
 
-        new TidArrayQuickSort().quickSort(results, first_byte, 0, many-1);
+        try {
+            long merged;
+
+            if (bitmap) {
+                TidBitmapEncoder encoder = new TidBitmapEncoder(out);
+
+                encoder.writeHeader(many);
+                merged = TidRunMerger.merge(runs, runSizes, encoder);
+                encoder.finish();
+            } else {
+                byte[] header = new byte[TIDListResponse.HEADER_SIZE];
+                int offset = 0;
+
+                // NULL + totalhits + maxscore
+                header[0] = 0;
+                offset++;
+                offset += Utils.encodeLong(many, header, offset);
+                Utils.encodeFloat(Float.isNaN(maxscore) ? 0 : maxscore, header, offset);
+
+                out.writeBytes(header, 0, header.length);
+                merged = TidRunMerger.merge(runs, runSizes, out);
+            }
+
+            if (merged != many)
+                throw new Exception("Merged " + merged + " rows, expected " + many);
+            ZomboDBMetrics.recordTime(METRICS, "merge", mergeStart);
+            success = true;
+        } finally {
+            if (!success)
+                out.bytes().close();
+        }
 
         long end = System.currentTimeMillis();
-        return new BinaryTIDResponse(results, many, (end - start) / 1000D);
+        return new BinaryTIDResponse(out.bytes(), many, (end - start) / 1000D);
+    }
+
+    /**
+     * Encode the top hits of a regular (non-SCAN) search, which are already limited and ordered by the sort
+     */
+    private BinaryTIDResponse buildBinaryResponse(SearchResponse searchResponse, boolean bitmap) throws Exception {
+        SearchHit[] hits = searchResponse.getHits().getHits();
+        int many = hits.length;
+
+        long start = System.currentTimeMillis();
+        byte[] results = new byte[many * TIDListResponse.BYTES_PER_TID];
+        int offset = 0;
+
+        long encodeStart = System.nanoTime();
+        for (SearchHit hit : hits) {
+            encodeHit(hit, results, offset);
+            offset += TIDListResponse.BYTES_PER_TID;
+        }
+        ZomboDBMetrics.recordTime(METRICS, "encode", encodeStart);
+
+        long sortStart = System.nanoTime();
+        TidArrayRadixSort.sort(results, 0, many, threadPool.executor(AsyncRestHelper.THREAD_POOL_NAME));
+        ZomboDBMetrics.recordTime(METRICS, "sort", sortStart);
+
+        return buildResponse(new byte[][]{results}, new int[]{many}, many, searchResponse.getHits().getMaxScore(), bitmap, start);
+    }
+
+    /**
+     * @return the hit's score, once its (blockno, offset, score) has been encoded at <code>offset</code>
+     */
+    private float encodeHit(SearchHit hit, byte[] results, int offset) {
+        String id;
+        float score;
+        int blockno;
+        char rowno;
+
+        try {
+            id = hit.id();
+            score = Float.isNaN(hit.score()) ? 0 : hit.score();
+
+            int dash = id.indexOf('-', 1);
+            blockno = Integer.parseInt(id.substring(0, dash), 10);
+            rowno = (char) Integer.parseInt(id.substring(dash + 1), 10);
+        } catch (Exception nfe) {
+            logger.warn("hit.id()=/" + hit.id() + "/ is not in the proper format.  Defaulting to INVALID_BLOCK_NUMBER");
+            blockno = INVALID_BLOCK_NUMBER;
+            rowno = 0;
+            score = 0;
+        }
+
+        offset += Utils.encodeInteger(blockno, results, offset);
+        offset += Utils.encodeCharacter(rowno, results, offset);
+        Utils.encodeFloat(score, results, offset);
+        return score;
     }
 }
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+
+import java.io.IOException;
+
+/**
+ * Reads the few top-level fields {@link ZombodbBulkAction} needs out of a document's raw JSON source, and
+ * splices a new "_prev_ctid" value into it, without ever parsing the document into a Map and serializing
+ * it back out again.
+ * <p>
+ * Only the top-level object is tokenized.  Nested objects and arrays are skipped, and Jackson skips
+ * over the contents of strings we don't ask for, so the cost barely depends on how big the document's
+ * other fields are
+ */
+public class SourcePatcher {
+
+    public static final String PREV_CTID_FIELD = "_prev_ctid";
+    public static final String XID_FIELD = "_xid";
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+
+    private int objectStart = -1;
+    private boolean hasFields;
+    private String prevCtid;
+    private int prevCtidStart = -1;
+    private int prevCtidEnd = -1;
+    private Long xid;
+    private String pkey;
+
+    /**
+     * @param pkeyFieldname the name of a top-level field whose scalar value should be remembered, or null
+     */
+    public SourcePatcher(BytesReference source, String pkeyFieldname) throws IOException {
+        if (!source.hasArray())
+            source = source.toBytesArray();
+
+        bytes = source.array();
+        offset = source.arrayOffset();
+        length = source.length();
+
+        scan(pkeyFieldname);
+    }
+
+    /**
+     * @return the document's "_prev_ctid", or null if it doesn't have one
+     */
+    public String getPrevCtid() {
+        return prevCtid;
+    }
+
+    /**
+     * @return the document's "_xid", or null if it doesn't have one
+     */
+    public Long getXid() {
+        return xid;
+    }
+
+    /**
+     * @return the document's primary key value as a string, or null if it doesn't have a scalar primary key
+     */
+    public String getPkey() {
+        return pkey;
+    }
+
+    /**
+     * @return a copy of the source with its "_prev_ctid" set to <code>value</code>, replacing the existing
+     * value if there is one, or added as the first field if not
+     */
+    public BytesReference setPrevCtid(String value) {
+        byte[] encoded = encodeString(value);
+        int start, end;
+        byte[] replacement;
+
+        if (prevCtidStart != -1) {
+            start = prevCtidStart;
+            end = prevCtidEnd;
+            replacement = encoded;
+        } else {
+            byte[] name = encodeString(PREV_CTID_FIELD);
+
+            start = end = objectStart + 1;
+            replacement = new byte[name.length + 1 + encoded.length + (hasFields ? 1 : 0)];
+            System.arraycopy(name, 0, replacement, 0, name.length);
+            replacement[name.length] = ':';
+            System.arraycopy(encoded, 0, replacement, name.length + 1, encoded.length);
+            if (hasFields)
+                replacement[replacement.length - 1] = ',';
+        }
+
+        byte[] patched = new byte[length - (end - start) + replacement.length];
+        System.arraycopy(bytes, offset, patched, 0, start);
+        System.arraycopy(replacement, 0, patched, start, replacement.length);
+        System.arraycopy(bytes, offset + end, patched, start + replacement.length, length - end);
+        return new BytesArray(patched);
+    }
+
+    private void scan(String pkeyFieldname) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(bytes, offset, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                throw new IOException("Document source is not a JSON object");
+
+            // depending on the Jackson version, byte offsets may or may not already account for where
+            // the source starts in its array, so work out our own position from the opening brace
+            objectStart = firstNonWhitespace();
+            long base = parser.getTokenLocation().getByteOffset() - objectStart;
+
+            JsonToken token;
+            while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                token = parser.nextToken();
+                hasFields = true;
+
+                if (PREV_CTID_FIELD.equals(name)) {
+                    prevCtidStart = (int) (parser.getTokenLocation().getByteOffset() - base);
+                    if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY)
+                        parser.skipChildren();
+                    else if (token != JsonToken.VALUE_NULL)
+                        prevCtid = parser.getText();    // also makes Jackson consume the whole token
+                    prevCtidEnd = (int) (parser.getCurrentLocation().getByteOffset() - base);
+                } else if (XID_FIELD.equals(name)) {
+                    if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT)
+                        xid = parser.getLongValue();
+                    else if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY)
+                        parser.skipChildren();
+                } else if (name.equals(pkeyFieldname)) {
+                    pkey = scalarAsString(parser, token);
+                } else if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                }
+            }
+
+            if (token != JsonToken.END_OBJECT)
+                throw new IOException("Malformed document source");
+        }
+    }
+
+    /**
+     * @return the value the way <code>String.valueOf()</code> would print it had it been parsed into a Map,
+     * or null if it isn't a scalar
+     */
+    private static String scalarAsString(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_STRING:
+            case VALUE_NUMBER_INT:
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                return parser.getText();
+            case VALUE_NUMBER_FLOAT:
+                return String.valueOf(parser.getDoubleValue());
+            case START_OBJECT:
+            case START_ARRAY:
+                parser.skipChildren();
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private int firstNonWhitespace() {
+        for (int i = 0; i < length; i++) {
+            byte b = bytes[offset + i];
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r')
+                return i;
+        }
+        return -1;
+    }
+
+    private static byte[] encodeString(String value) {
+        byte[] quoted = JsonStringEncoder.getInstance().quoteAsUTF8(value);
+        byte[] encoded = new byte[quoted.length + 2];
+
+        encoded[0] = '"';
+        System.arraycopy(quoted, 0, encoded, 1, quoted.length);
+        encoded[encoded.length - 1] = '"';
+        return encoded;
+    }
+}
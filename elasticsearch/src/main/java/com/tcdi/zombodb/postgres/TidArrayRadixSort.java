@@ -0,0 +1,304 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sorts an array of 10-byte (blockno, offset, score) TID records, as built for the _pgtid response,
+ * by block number and then by offset within each block.
+ * <p>
+ * Large arrays are sorted with a stable LSD radix sort (one pass per key byte, skipping passes where
+ * every record has the same byte), with the histogram and scatter phases of each pass split into chunks
+ * that can be shared with an {@link Executor} (normally the node's "zombodb" thread pool).  The calling
+ * thread always works through the chunks itself and only waits for chunks another thread has already
+ * started, so a busy or saturated pool just means the caller sorts alone.  Small arrays use an insertion sort.
+ * <p>
+ * Block numbers are compared as signed integers, which keeps {@link PostgresTIDResponseAction#INVALID_BLOCK_NUMBER} at the front
+ */
+public final class TidArrayRadixSort {
+    public static final int RECORD_SIZE = 10;
+
+    /**
+     * arrays with fewer records than this are insertion sorted
+     */
+    static final int INSERTION_SORT_THRESHOLD = 48;
+
+    /**
+     * arrays with fewer records than this are radix sorted by the calling thread
+     */
+    static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    /**
+     * byte positions of the sort key within a record, least significant first:
+     * the 2-byte offset, then the 4-byte block number
+     */
+    private static final int[] KEY_BYTES = new int[]{4, 5, 0, 1, 2, 3};
+
+    private static final int SIGN_BYTE = 3;
+
+    /**
+     * the most chunks each pass of a large sort is split into
+     */
+    private static final int THREADS = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    private TidArrayRadixSort() {
+    }
+
+    /**
+     * Sort <code>many</code> records starting at <code>offset</code> in <code>array</code> using only the calling thread
+     */
+    public static void sort(byte[] array, int offset, int many) {
+        sort(array, offset, many, null);
+    }
+
+    /**
+     * Sort <code>many</code> records starting at <code>offset</code> in <code>array</code>, sharing the work
+     * of large arrays with <code>executor</code> when it isn't null
+     */
+    public static void sort(byte[] array, int offset, int many, Executor executor) {
+        if (many < 2)
+            return;
+
+        if (many < INSERTION_SORT_THRESHOLD) {
+            insertionSort(array, offset, many);
+        } else {
+            radixSort(array, offset, many, many < PARALLEL_THRESHOLD || executor == null || THREADS == 1 ? null : executor);
+        }
+    }
+
+    static long key(byte[] array, int pos) {
+        int blockno = ((array[pos + 3]) << 24) |
+                ((array[pos + 2] & 0xFF) << 16) |
+                ((array[pos + 1] & 0xFF) << 8) |
+                ((array[pos] & 0xFF));
+        int offno = ((array[pos + 5] & 0xFF) << 8) | (array[pos + 4] & 0xFF);
+
+        return ((long) blockno << 16) | offno;
+    }
+
+    static void insertionSort(byte[] array, int offset, int many) {
+        byte[] tmp = new byte[RECORD_SIZE];
+
+        for (int i = 1; i < many; i++) {
+            int pos = offset + i * RECORD_SIZE;
+            long key = key(array, pos);
+            int j = i - 1;
+
+            if (key(array, offset + j * RECORD_SIZE) <= key)
+                continue;   // already in place
+
+            System.arraycopy(array, pos, tmp, 0, RECORD_SIZE);
+            while (j >= 0 && key(array, offset + j * RECORD_SIZE) > key)
+                j--;
+
+            // shift everything in (j, i) to the right by one record
+            int dest = offset + (j + 1) * RECORD_SIZE;
+            System.arraycopy(array, dest, array, dest + RECORD_SIZE, pos - dest);
+            System.arraycopy(tmp, 0, array, dest, RECORD_SIZE);
+        }
+    }
+
+    private static void radixSort(byte[] array, int offset, int many, Executor executor) {
+        int[][] global = histograms(array, offset, many);
+        byte[] tmp = null;
+        byte[] src = array, dst;
+        int srcOffset = offset, dstOffset;
+
+        for (int pass = 0; pass < KEY_BYTES.length; pass++) {
+            if (isTrivial(global[pass], many))
+                continue;   // every record has the same value for this byte
+
+            if (src == array) {
+                if (tmp == null)
+                    tmp = new byte[many * RECORD_SIZE];
+                dst = tmp;
+                dstOffset = 0;
+            } else {
+                dst = array;
+                dstOffset = offset;
+            }
+
+            scatter(src, srcOffset, dst, dstOffset, many, KEY_BYTES[pass], executor);
+
+            // the output of this pass is the input of the next
+            src = dst;
+            srcOffset = dstOffset;
+        }
+
+        if (src != array)
+            System.arraycopy(src, srcOffset, array, offset, many * RECORD_SIZE);
+    }
+
+    /**
+     * Counts the values of every key byte in a single read of the array
+     */
+    private static int[][] histograms(byte[] array, int offset, int many) {
+        int[][] counts = new int[KEY_BYTES.length][256];
+        int end = offset + many * RECORD_SIZE;
+
+        for (int pos = offset; pos < end; pos += RECORD_SIZE) {
+            for (int pass = 0; pass < KEY_BYTES.length; pass++)
+                counts[pass][bucket(array, pos, KEY_BYTES[pass])]++;
+        }
+        return counts;
+    }
+
+    private static boolean isTrivial(int[] counts, int many) {
+        for (int count : counts) {
+            if (count == many)
+                return true;
+            else if (count != 0)
+                return false;
+        }
+        return false;
+    }
+
+    private static int bucket(byte[] array, int pos, int keyByte) {
+        int b = array[pos + keyByte] & 0xFF;
+        return keyByte == SIGN_BYTE ? b ^ 0x80 : b;
+    }
+
+    /**
+     * Stable scatter of every record in <code>src</code> into <code>dst</code> by the key byte at <code>keyByte</code>
+     */
+    private static void scatter(final byte[] src, final int srcOffset, final byte[] dst, final int dstOffset, final int many, final int keyByte, Executor executor) {
+        int threads = executor == null ? 1 : THREADS;
+        final int chunk = (many + threads - 1) / threads;
+        final int nchunks = (many + chunk - 1) / chunk;
+        final int[][] counts = new int[nchunks][];
+
+        // per-chunk histograms
+        run(nchunks, executor, new Task() {
+            @Override
+            public void run(int t) {
+                int[] c = new int[256];
+                int end = srcOffset + Math.min(many, (t + 1) * chunk) * RECORD_SIZE;
+                for (int pos = srcOffset + t * chunk * RECORD_SIZE; pos < end; pos += RECORD_SIZE)
+                    c[bucket(src, pos, keyByte)]++;
+                counts[t] = c;
+            }
+        });
+
+        // turn them into starting positions, ordered by bucket and then by chunk so the sort is stable
+        int next = 0;
+        for (int b = 0; b < 256; b++) {
+            for (int t = 0; t < nchunks; t++) {
+                int cnt = counts[t][b];
+                counts[t][b] = next;
+                next += cnt;
+            }
+        }
+
+        // and move the records
+        run(nchunks, executor, new Task() {
+            @Override
+            public void run(int t) {
+                int[] positions = counts[t];
+                int end = srcOffset + Math.min(many, (t + 1) * chunk) * RECORD_SIZE;
+                for (int pos = srcOffset + t * chunk * RECORD_SIZE; pos < end; pos += RECORD_SIZE) {
+                    int to = dstOffset + (positions[bucket(src, pos, keyByte)]++) * RECORD_SIZE;
+                    dst[to] = src[pos];
+                    dst[to + 1] = src[pos + 1];
+                    dst[to + 2] = src[pos + 2];
+                    dst[to + 3] = src[pos + 3];
+                    dst[to + 4] = src[pos + 4];
+                    dst[to + 5] = src[pos + 5];
+                    dst[to + 6] = src[pos + 6];
+                    dst[to + 7] = src[pos + 7];
+                    dst[to + 8] = src[pos + 8];
+                    dst[to + 9] = src[pos + 9];
+                }
+            }
+        });
+    }
+
+    private interface Task {
+        void run(int t);
+    }
+
+    /**
+     * Runs tasks <code>0..ntasks-1</code>.  Helpers submitted to <code>executor</code> and the calling thread
+     * claim tasks from a shared counter, so a task is never left waiting in the executor's queue: the caller
+     * only waits for tasks a helper is already running
+     */
+    private static void run(final int ntasks, Executor executor, final Task task) {
+        if (ntasks == 1 || executor == null) {
+            for (int t = 0; t < ntasks; t++)
+                task.run(t);
+            return;
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger remaining = new AtomicInteger(ntasks);
+        final Throwable[] failure = new Throwable[1];
+        final Object lock = new Object();
+
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int t;
+                while ((t = next.getAndIncrement()) < ntasks) {
+                    try {
+                        task.run(t);
+                    } catch (Throwable e) {
+                        synchronized (lock) {
+                            if (failure[0] == null)
+                                failure[0] = e;
+                        }
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            synchronized (lock) {
+                                lock.notifyAll();
+                            }
+                        }
+                    }
+                }
+            }
+        };
+
+        for (int i = 1; i < ntasks; i++) {
+            try {
+                executor.execute(worker);
+            } catch (Exception e) {
+                // the pool is shut down or its queue is full, so the caller does the rest
+                break;
+            }
+        }
+        worker.run();
+
+        boolean interrupted = false;
+        synchronized (lock) {
+            while (remaining.get() > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (failure[0] instanceof RuntimeException)
+            throw (RuntimeException) failure[0];
+        else if (failure[0] instanceof Error)
+            throw (Error) failure[0];
+        else if (failure[0] != null)
+            throw new RuntimeException(failure[0]);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import com.tcdi.zombodb.query_parser.utils.Utils;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+/**
+ * Encodes sorted (blockno, offset, score) TID records as one container of offsets per heap block,
+ * dropping the scores.  This is the body of a <code>_pgtid?format=bitmap</code> response:
+ * <pre>
+ *     NULL + totalhits(int8)
+ *     then, for each distinct block, in block order:
+ *        blockno(int4) + type(int1) + cardinality(int2)
+ *        type 0 (ARRAY):   cardinality * offset(int2)
+ *        type 1 (BITMAP):  nbytes(int2) + nbytes, where bit (offset % 8) of byte (offset / 8) is set for each offset
+ * </pre>
+ * Whichever container is smaller is used.  As with the regular _pgtid format, everything is little-endian
+ */
+public class TidBitmapEncoder implements TidRunMerger.Visitor {
+    public static final int HEADER_SIZE = 1 + 8;
+
+    public static final byte ARRAY_CONTAINER = 0;
+    public static final byte BITMAP_CONTAINER = 1;
+
+    private final StreamOutput out;
+    private final byte[] scratch = new byte[8192 + 8];
+    private final char[] offsets = new char[65536];
+    private int blockno;
+    private int cardinality;
+    private int blocks;
+
+    public TidBitmapEncoder(StreamOutput out) {
+        this.out = out;
+    }
+
+    /**
+     * Write the response header.  Must be called before any records are visited
+     */
+    public void writeHeader(long many) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        header[0] = 0;
+        Utils.encodeLong(many, header, 1);
+        out.writeBytes(header, 0, header.length);
+    }
+
+    /**
+     * Encode <code>many</code> sorted records starting at <code>offset</code> in <code>array</code>
+     */
+    public void encode(byte[] array, int offset, int many) throws IOException {
+        for (int i = 0; i < many; i++)
+            visit(array, offset + i * TidArrayRadixSort.RECORD_SIZE);
+    }
+
+    @Override
+    public void visit(byte[] data, int pos) throws IOException {
+        int block = Utils.decodeInteger(data, pos);
+        char offno = (char) ((data[pos + 4] & 0xFF) | ((data[pos + 5] & 0xFF) << 8));
+
+        if (cardinality > 0 && block != blockno)
+            flush();
+
+        blockno = block;
+        if (cardinality == 0 || offsets[cardinality - 1] != offno)   // records are sorted, so duplicates are adjacent
+            offsets[cardinality++] = offno;
+    }
+
+    /**
+     * Write out the container for the last block.  Must be called after all records have been visited
+     */
+    public void finish() throws IOException {
+        if (cardinality > 0)
+            flush();
+    }
+
+    /**
+     * @return the number of block containers written so far
+     */
+    public int getBlockCount() {
+        return blocks;
+    }
+
+    private void flush() throws IOException {
+        int nbytes = offsets[cardinality - 1] / 8 + 1;
+        boolean bitmap = 2 + nbytes < cardinality * 2;
+        int len = 0;
+
+        len += Utils.encodeInteger(blockno, scratch, len);
+        scratch[len++] = bitmap ? BITMAP_CONTAINER : ARRAY_CONTAINER;
+        len += Utils.encodeCharacter((char) cardinality, scratch, len);
+
+        if (bitmap) {
+            len += Utils.encodeCharacter((char) nbytes, scratch, len);
+            out.writeBytes(scratch, 0, len);
+
+            for (int i = 0; i < nbytes; i++)
+                scratch[i] = 0;
+            for (int i = 0; i < cardinality; i++)
+                scratch[offsets[i] >> 3] |= 1 << (offsets[i] & 7);
+            out.writeBytes(scratch, 0, nbytes);
+        } else {
+            out.writeBytes(scratch, 0, len);
+
+            len = 0;
+            for (int i = 0; i < cardinality; i++) {
+                len += Utils.encodeCharacter(offsets[i], scratch, len);
+                if (len == scratch.length) {
+                    out.writeBytes(scratch, 0, len);
+                    len = 0;
+                }
+            }
+            out.writeBytes(scratch, 0, len);
+        }
+
+        cardinality = 0;
+        blocks++;
+    }
+}
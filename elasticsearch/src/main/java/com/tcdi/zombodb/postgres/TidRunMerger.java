@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import org.apache.lucene.util.PriorityQueue;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+/**
+ * K-way merges already-sorted runs of 10-byte TID records (see {@link TidArrayRadixSort}) into
+ * a {@link StreamOutput}, one fixed-size page at a time, so the merged result never has to
+ * exist as a single contiguous array
+ */
+public final class TidRunMerger {
+    public static final int PAGE_SIZE = 64 * 1024 / TidArrayRadixSort.RECORD_SIZE * TidArrayRadixSort.RECORD_SIZE;
+
+    private static class Run {
+        private final byte[] data;
+        private final int end;
+        private int pos;
+        private long key;
+
+        private Run(byte[] data, int many) {
+            this.data = data;
+            this.end = many * TidArrayRadixSort.RECORD_SIZE;
+            this.key = TidArrayRadixSort.key(data, 0);
+        }
+
+        /**
+         * @return false if this run is exhausted
+         */
+        private boolean advance() {
+            pos += TidArrayRadixSort.RECORD_SIZE;
+            if (pos >= end)
+                return false;
+            key = TidArrayRadixSort.key(data, pos);
+            return true;
+        }
+    }
+
+    private static class RunQueue extends PriorityQueue<Run> {
+        private RunQueue(int size) {
+            super(size);
+        }
+
+        @Override
+        protected boolean lessThan(Run a, Run b) {
+            return a.key < b.key;
+        }
+    }
+
+    /**
+     * Receives each merged record, in order
+     */
+    public interface Visitor {
+        void visit(byte[] data, int pos) throws IOException;
+    }
+
+    private TidRunMerger() {
+    }
+
+    private static RunQueue queue(byte[][] runs, int[] many) {
+        RunQueue queue = new RunQueue(Math.max(1, runs.length));
+        for (int i = 0; i < runs.length; i++) {
+            if (many[i] > 0)
+                queue.add(new Run(runs[i], many[i]));
+        }
+        return queue;
+    }
+
+    /**
+     * @param runs    each run holds <code>many[i]</code> sorted records, starting at offset zero
+     * @param many    the number of records in each run
+     * @param visitor called for every record, in sorted order
+     * @return the total number of records visited
+     */
+    public static long merge(byte[][] runs, int[] many, Visitor visitor) throws IOException {
+        RunQueue queue = queue(runs, many);
+        long cnt = 0;
+
+        while (queue.size() > 0) {
+            Run top = queue.top();
+
+            visitor.visit(top.data, top.pos);
+            cnt++;
+
+            if (top.advance())
+                queue.updateTop();
+            else
+                queue.pop();
+        }
+
+        return cnt;
+    }
+
+    /**
+     * @param runs  each run holds <code>many[i]</code> sorted records, starting at offset zero
+     * @param many  the number of records in each run
+     * @param out   where the merged records are written
+     * @return the total number of records written
+     */
+    public static long merge(byte[][] runs, int[] many, StreamOutput out) throws IOException {
+        RunQueue queue = queue(runs, many);
+        byte[] page = new byte[PAGE_SIZE];
+        int offset = 0;
+        long cnt = 0;
+
+        while (queue.size() > 0) {
+            Run top = queue.top();
+
+            if (queue.size() == 1) {
+                // nothing left to merge against, so copy out what remains of the last run
+                flush(page, offset, out);
+                offset = 0;
+                out.writeBytes(top.data, top.pos, top.end - top.pos);
+                cnt += (top.end - top.pos) / TidArrayRadixSort.RECORD_SIZE;
+                break;
+            }
+
+            System.arraycopy(top.data, top.pos, page, offset, TidArrayRadixSort.RECORD_SIZE);
+            offset += TidArrayRadixSort.RECORD_SIZE;
+            cnt++;
+
+            if (offset == PAGE_SIZE) {
+                flush(page, offset, out);
+                offset = 0;
+            }
+
+            if (top.advance())
+                queue.updateTop();
+            else
+                queue.pop();
+        }
+        flush(page, offset, out);
+
+        return cnt;
+    }
+
+    private static void flush(byte[] page, int length, StreamOutput out) throws IOException {
+        if (length > 0)
+            out.writeBytes(page, 0, length);
+    }
+}
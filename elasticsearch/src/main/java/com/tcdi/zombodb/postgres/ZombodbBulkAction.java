@@ -1,5 +1,12 @@
 package com.tcdi.zombodb.postgres;
 
+import com.tcdi.zombodb.action.prevctid.PrevCtidAction;
+import com.tcdi.zombodb.action.prevctid.PrevCtidRequestBuilder;
+import com.tcdi.zombodb.action.prevctid.PrevCtidResponse;
+import com.tcdi.zombodb.action.stats.ZomboDBMetrics;
+import com.tcdi.zombodb.query_parser.metadata.IndexMetadataService;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.WriteConsistencyLevel;
 import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsRequest;
@@ -23,6 +30,7 @@ import org.elasticsearch.client.Requests;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentBuilderString;
 import org.elasticsearch.common.xcontent.json.JsonXContent;
@@ -33,6 +41,10 @@ import org.elasticsearch.search.SearchHit;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static org.elasticsearch.index.query.FilterBuilders.idsFilter;
 import static org.elasticsearch.index.query.QueryBuilders.filteredQuery;
@@ -41,22 +53,30 @@ import static org.elasticsearch.rest.RestStatus.OK;
 
 public class ZombodbBulkAction extends BaseRestHandler {
 
+    private static final String METRICS = "zdbbulk";
+
+    private final IndexMetadataService metadataService;
+    private final BulkBackpressure backpressure;
+
     @Inject
-    public ZombodbBulkAction(Settings settings, RestController controller, Client client) {
+    public ZombodbBulkAction(Settings settings, RestController controller, Client client, IndexMetadataService metadataService, BulkBackpressure backpressure) {
         super(settings, controller, client);
 
+        this.metadataService = metadataService;
+        this.backpressure = backpressure;
+
         controller.registerHandler(POST, "/{index}/{type}/_zdbbulk", this);
+        controller.registerHandler(POST, "/{index}/{type}/_zdbframes", this);
     }
 
     @Override
     public void handleRequest(final RestRequest request, final RestChannel channel, final Client client) throws Exception {
-        BulkRequest bulkRequest = Requests.bulkRequest();
+        final long start = System.nanoTime();
+        final BulkRequest bulkRequest = Requests.bulkRequest();
         bulkRequest.listenerThreaded(false);
-        String defaultIndex = request.param("index");
-        String defaultType = request.param("type");
+        final String defaultIndex = request.param("index");
+        final String defaultType = request.param("type");
         String defaultRouting = request.param("routing");
-        boolean isdelete = false;
-        String pkeyFieldname = lookupPkeyFieldname(client, defaultIndex);
 
         String replicationType = request.param("replication");
         if (replicationType != null) {
@@ -68,57 +88,174 @@ public class ZombodbBulkAction extends BaseRestHandler {
         }
         bulkRequest.timeout(request.paramAsTime("timeout", BulkShardRequest.DEFAULT_TIMEOUT));
         bulkRequest.refresh(request.paramAsBoolean("refresh", bulkRequest.refresh()));
+
+        if (request.path().endsWith("/_zdbframes")) {
+            final List<BulkFrame> frames = BulkFrame.parse(request.content());
+
+            lookupPkeyFieldname(client, defaultIndex, new AsyncRestHelper.RestListener<String>(channel) {
+                @Override
+                protected void processResponse(String pkeyFieldname) throws Exception {
+                    ActionListener<Tracking> trackingListener = trackingListener(request, channel, client, bulkRequest, false, start);
+                    Tracking tracking = null;
+
+                    if (pkeyFieldname != null)
+                        tracking = handleFramesUsingPkey(client, frames, bulkRequest, defaultIndex, defaultType, pkeyFieldname);
+
+                    if (tracking != null)
+                        trackingListener.onResponse(tracking);
+                    else // couldn't do it by primary key, so do it the slow way
+                        handleFrames(client, frames, bulkRequest, defaultIndex, defaultType, trackingListener);
+                }
+            });
+            return;
+        }
+
         bulkRequest.add(request.content(), defaultIndex, defaultType, defaultRouting, null, true);
 
-        List<ActionRequest> trackingRequests = new ArrayList<>();
-        if (!bulkRequest.requests().isEmpty()) {
-            isdelete = bulkRequest.requests().get(0) instanceof DeleteRequest;
+        lookupPkeyFieldname(client, defaultIndex, new AsyncRestHelper.RestListener<String>(channel) {
+            @Override
+            protected void processResponse(String pkeyFieldname) throws Exception {
+                boolean isdelete = !bulkRequest.requests().isEmpty() && bulkRequest.requests().get(0) instanceof DeleteRequest;
+                ActionListener<Tracking> trackingListener = trackingListener(request, channel, client, bulkRequest, isdelete, start);
 
-            if (isdelete) {
-                trackingRequests = handleDeleteRequests(client, bulkRequest.requests(), defaultIndex, defaultType);
-            } else {
-                if (pkeyFieldname == null) {
-                    trackingRequests = handleIndexRequests(client, bulkRequest.requests(), defaultIndex, defaultType);
+                if (bulkRequest.requests().isEmpty()) {
+                    trackingListener.onResponse(new Tracking());
+                } else if (isdelete) {
+                    handleDeleteRequests(client, bulkRequest.requests(), defaultIndex, defaultType, trackingListener);
                 } else {
-                    trackingRequests = handleIndexRequestsUsingPkey(client, bulkRequest.requests(), defaultIndex, pkeyFieldname);
-                    if (trackingRequests == null) {
-                        // couldn't do it by primary key, so do it the slow way
-                        trackingRequests = handleIndexRequests(client, bulkRequest.requests(), defaultIndex, defaultType);
-                    }
+                    Tracking tracking = null;
+
+                    if (pkeyFieldname != null)
+                        tracking = handleIndexRequestsUsingPkey(client, bulkRequest.requests(), defaultIndex, pkeyFieldname);
+
+                    if (tracking != null)
+                        trackingListener.onResponse(tracking);
+                    else // couldn't do it by primary key, so do it the slow way
+                        handleIndexRequests(client, bulkRequest.requests(), defaultIndex, defaultType, trackingListener);
                 }
             }
-        }
+        });
+    }
+
+    private ActionListener<Tracking> trackingListener(final RestRequest request, final RestChannel channel, final Client client, final BulkRequest bulkRequest, final boolean isdelete, final long start) {
+        return new AsyncRestHelper.RestListener<Tracking>(channel) {
+            @Override
+            protected void processResponse(Tracking tracking) throws Exception {
+                ZomboDBMetrics.recordTime(METRICS, "lookup", start);
+                executeBulks(request, channel, client, bulkRequest, isdelete, tracking, start);
+            }
+        };
+    }
 
-        BulkResponse response;
+    /**
+     * For deletes the data is removed before its tracking documents, and the tracking bulk is only sent
+     * once the data bulk has succeeded.
+     *
+     * For everything else, rows that are UPDATEs can't be written until the tracking documents for their
+     * previous versions are, but INSERTs don't depend on tracking at all.  So the INSERTs are sent at the
+     * same time as the tracking bulk, and the UPDATEs follow once it has succeeded.  If tracking fails the
+     * UPDATEs are never sent and the tracking failures are reported back to Postgres
+     */
+    private void executeBulks(final RestRequest request, final RestChannel channel, final Client client, final BulkRequest bulkRequest, final boolean isdelete, final Tracking tracking, final long start) {
+        final AsyncRestHelper.RestListener<BulkResponse> responseListener = new AsyncRestHelper.RestListener<BulkResponse>(channel) {
+            @Override
+            protected void processResponse(BulkResponse response) throws Exception {
+                ZomboDBMetrics.recordNanos(METRICS, isdelete ? "tracking" : "data", TimeUnit.MILLISECONDS.toNanos(response.getTookInMillis()));
+                ZomboDBMetrics.recordTime(METRICS, "total", start);
+                ZomboDBMetrics.record(METRICS, "rows", bulkRequest.numberOfActions());
+                channel.sendResponse(buildResponse(response, backpressure, JsonXContent.contentBuilder()));
+            }
+        };
 
         if (isdelete) {
             bulkRequest.refresh(false);
-            response = client.bulk(bulkRequest).actionGet();
-            if (!response.hasFailures())
-                response = processTrackingRequests(request, client, trackingRequests);
+            backpressure.execute(client, bulkRequest, new AsyncRestHelper.RestListener<BulkResponse>(channel) {
+                @Override
+                protected void processResponse(BulkResponse response) throws Exception {
+                    ZomboDBMetrics.recordNanos(METRICS, "data", TimeUnit.MILLISECONDS.toNanos(response.getTookInMillis()));
+                    if (response.hasFailures())
+                        responseListener.onResponse(response);
+                    else
+                        processTrackingRequests(request, client, tracking.requests, responseListener);
+                }
+            });
+        } else if (tracking.dependents.isEmpty()) {
+            // nothing in this batch is an UPDATE
+            backpressure.execute(client, bulkRequest, responseListener);
         } else {
-            response = processTrackingRequests(request, client, trackingRequests);
-            if (!response.hasFailures())
-                response = client.bulk(bulkRequest).actionGet();
+            final BulkRequest independent = partOf(bulkRequest);
+            final BulkRequest dependent = partOf(bulkRequest);
+            for (ActionRequest ar : bulkRequest.requests()) {
+                if (tracking.dependents.contains(ar))
+                    dependent.requests().add(ar);
+                else
+                    independent.requests().add(ar);
+            }
+
+            final Pipeline pipeline = new Pipeline(responseListener);
+            final ActionListener<BulkResponse> trackingLane = pipeline.lane(0);
+
+            processTrackingRequests(request, client, tracking.requests, new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(BulkResponse response) {
+                    ZomboDBMetrics.recordNanos(METRICS, "tracking", TimeUnit.MILLISECONDS.toNanos(response.getTookInMillis()));
+                    if (response.hasFailures())
+                        trackingLane.onResponse(response);
+                    else
+                        backpressure.execute(client, dependent, trackingLane);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    trackingLane.onFailure(t);
+                }
+            });
+
+            if (independent.requests().isEmpty())
+                pipeline.lane(1).onResponse(new BulkResponse(new BulkItemResponse[0], 0));
+            else
+                backpressure.execute(client, independent, pipeline.lane(1));
         }
+    }
 
-        channel.sendResponse(buildResponse(response, JsonXContent.contentBuilder()));
+    /**
+     * @return an empty BulkRequest with the same settings as the specified one
+     */
+    private static BulkRequest partOf(BulkRequest template) {
+        BulkRequest part = Requests.bulkRequest();
+        part.listenerThreaded(false);
+        part.replicationType(template.replicationType());
+        part.consistencyLevel(template.consistencyLevel());
+        part.timeout(template.timeout());
+        part.refresh(template.refresh());
+        return part;
     }
 
-    private BulkResponse processTrackingRequests(RestRequest request, Client client, List<ActionRequest> trackingRequests) {
-        if (trackingRequests.isEmpty())
-            return new BulkResponse(new BulkItemResponse[0], 0);
+    private void processTrackingRequests(RestRequest request, Client client, List<ActionRequest> trackingRequests, ActionListener<BulkResponse> listener) {
+        if (trackingRequests.isEmpty()) {
+            listener.onResponse(new BulkResponse(new BulkItemResponse[0], 0));
+            return;
+        }
 
         BulkRequest bulkRequest;
         bulkRequest = Requests.bulkRequest();
+        bulkRequest.listenerThreaded(false);
         bulkRequest.timeout(request.paramAsTime("timeout", BulkShardRequest.DEFAULT_TIMEOUT));
         bulkRequest.refresh(request.paramAsBoolean("refresh", false));
         bulkRequest.requests().addAll(trackingRequests);
 
-        return client.bulk(bulkRequest).actionGet();
+        backpressure.execute(client, bulkRequest, listener);
     }
 
-    private RestResponse buildResponse(BulkResponse response, XContentBuilder builder) throws Exception {
+    static RestResponse buildResponse(BulkResponse response, XContentBuilder builder) throws Exception {
+        return buildResponse(response, null, builder);
+    }
+
+    /**
+     * Like Elasticsearch's own bulk response, except the items are only included if something failed, and
+     * the current bulk backpressure is included if there is any
+     */
+    static RestResponse buildResponse(BulkResponse response, BulkBackpressure backpressure, XContentBuilder builder) throws Exception {
         builder.startObject();
         if (response.hasFailures()) {
             builder.field(Fields.TOOK, response.getTookInMillis());
@@ -167,15 +304,16 @@ public class ZombodbBulkAction extends BaseRestHandler {
             }
             builder.endArray();
         }
+        if (backpressure != null)
+            backpressure.toXContent(builder, ToXContent.EMPTY_PARAMS);
         builder.endObject();
 
         return new BytesRestResponse(OK, builder);
     }
 
-    private List<ActionRequest> handleDeleteRequests(Client client, List<ActionRequest> requests, String defaultIndex, String defaultType) {
-        List<ActionRequest> trackingRequests = new ArrayList<>();
+    private void handleDeleteRequests(final Client client, List<ActionRequest> requests, final String defaultIndex, String defaultType, final ActionListener<Tracking> listener) {
         IdsFilterBuilder ids = idsFilter(defaultType);
-        Map<String, DeleteRequest> lookup = new HashMap<>(requests.size());
+        final Map<String, DeleteRequest> lookup = new HashMap<>(requests.size());
 
         for (ActionRequest ar : requests) {
             DeleteRequest doc = (DeleteRequest) ar;
@@ -184,7 +322,7 @@ public class ZombodbBulkAction extends BaseRestHandler {
             lookup.put(doc.id(), doc);
         }
 
-        SearchResponse response = client.search(
+        client.search(
                 new SearchRequestBuilder(client)
                         .setIndices(defaultIndex)
                         .setTypes(defaultType)
@@ -192,181 +330,367 @@ public class ZombodbBulkAction extends BaseRestHandler {
                         .setQuery(filteredQuery(null, ids))
                         .setSize(requests.size())
                         .addField("_prev_ctid")
-                        .request()
-        ).actionGet();
-
-        for (SearchHit hit : response.getHits()) {
-            DeleteRequest doc = lookup.get(hit.id());
-            String prevCtid = hit.field("_prev_ctid").getValue();
-
-            if (prevCtid == null)
-                throw new RuntimeException("Found null _prev_ctid for " + hit.getId());
-
-            if (doc != null) {
-                doc.routing(prevCtid);
-
-                trackingRequests.add(
-                        new DeleteRequestBuilder(client)
-                                .setId(doc.id())
-                                .setIndex(defaultIndex)
-                                .setType("state")
-                                .setRouting(prevCtid)
-                                .request()
-                );
-            }
-        }
+                        .listenerThreaded(true)
+                        .request(),
+                new ActionListener<SearchResponse>() {
+                    @Override
+                    public void onResponse(SearchResponse response) {
+                        Tracking tracking = new Tracking();
+
+                        try {
+                            for (SearchHit hit : response.getHits()) {
+                                DeleteRequest doc = lookup.get(hit.id());
+                                String prevCtid = hit.field("_prev_ctid").getValue();
+
+                                if (prevCtid == null)
+                                    throw new RuntimeException("Found null _prev_ctid for " + hit.getId());
+
+                                if (doc != null) {
+                                    doc.routing(prevCtid);
+
+                                    tracking.add(
+                                            new DeleteRequestBuilder(client)
+                                                    .setId(doc.id())
+                                                    .setIndex(defaultIndex)
+                                                    .setType("state")
+                                                    .setRouting(prevCtid)
+                                                    .request(),
+                                            doc
+                                    );
+                                }
+                            }
+
+                            if (tracking.requests.size() != response.getHits().getHits().length)
+                                throw new RuntimeException("didn't create enough tracking requests");
+                        } catch (Throwable t) {
+                            listener.onFailure(t);
+                            return;
+                        }
 
-        if (trackingRequests.size() != response.getHits().getHits().length)
-            throw new RuntimeException("didn't create enough tracking requests");
+                        listener.onResponse(tracking);
+                    }
 
-        return trackingRequests;
+                    @Override
+                    public void onFailure(Throwable t) {
+                        listener.onFailure(t);
+                    }
+                }
+        );
     }
 
-    private List<ActionRequest> handleIndexRequests(Client client, List<ActionRequest> requests, String defaultIndex, String defaultType) {
-        List<ActionRequest> trackingRequests = new ArrayList<>();
-        IdsFilterBuilder ids = idsFilter(defaultType);
-        Map<String, IndexRequest> lookup = new HashMap<>(requests.size());
+    private void handleIndexRequests(final Client client, List<ActionRequest> requests, final String defaultIndex, String defaultType, final ActionListener<Tracking> listener) throws IOException {
+        final Map<String, IndexRequest> lookup = new HashMap<>(requests.size());
 
         for (ActionRequest ar : requests) {
             IndexRequest doc = (IndexRequest) ar;
-            Map<String, Object> data = doc.sourceAsMap();
-            final String prevCtid = (String) data.get("_prev_ctid");
+            SourcePatcher source = new SourcePatcher(doc.source(), null);
+            final String prevCtid = source.getPrevCtid();
 
             if (prevCtid == null) {
                 // this IndexRequest represents an INSERT
                 // and as such its rerouting needs to reference itself+xid
-                Number xid = (Number) data.get("_xid");
-                String routing = doc.id() + ":" + xid.longValue();
+                long xid = source.getXid();
+                String routing = doc.id() + ":" + xid;
 
-                data.put("_prev_ctid", routing);
-                doc.source(data);
+                doc.source(source.setPrevCtid(routing));
                 doc.routing(routing);
                 doc.opType(IndexRequest.OpType.CREATE);
                 doc.versionType(VersionType.FORCE);
-                doc.version(xid.longValue());
+                doc.version(xid);
             } else {
                 // this IndexRequest represents an UPDATE
                 // so we'll look up its routing value in batch below
-                ids.addIds(prevCtid);
                 lookup.put(prevCtid, doc);
             }
         }
 
-        if (lookup.isEmpty())
-            return Collections.emptyList();
-
-        SearchResponse response = null;
-        int retries = 0;
-        while (retries <= 1) {
-
-            response = client.search(
-                    new SearchRequestBuilder(client)
-                            .setIndices(defaultIndex)
-                            .setTypes(defaultType)
-                            .setPreference("_primary")
-                            .setQuery(filteredQuery(null, ids))
-                            .setQueryCache(retries == 0)
-                            .setSize(lookup.size())
-                            .addField("_prev_ctid")
-                            .request()
-            ).actionGet();
-
-            if (response.getHits().getHits().length != lookup.size()) {
-                // didn't find everything, maybe it's because the index needs to be refreshed
-                // so lets do that and try one more time
-                client.admin().indices().refresh(Requests.refreshRequest(defaultIndex)).actionGet();
-                retries++;
-                continue;
+        if (lookup.isEmpty()) {
+            listener.onResponse(new Tracking());
+            return;
+        }
+
+        findPrevCtids(client, lookup.keySet(), defaultIndex, defaultType, new ActionListener<Map<String, String>>() {
+            @Override
+            public void onResponse(Map<String, String> prevCtids) {
+                Tracking tracking;
+                try {
+                    tracking = buildUpdateTrackingRequests(client, prevCtids, lookup, defaultIndex);
+                } catch (Throwable t) {
+                    listener.onFailure(t);
+                    return;
+                }
+                listener.onResponse(tracking);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                listener.onFailure(t);
             }
+        });
+    }
 
-            break;
+    /**
+     * Frames already carry each row's metadata, so their IndexRequests are built directly, and UPDATEs are
+     * only added to the bulk request once their routing values have been resolved
+     */
+    private void handleFrames(final Client client, List<BulkFrame> frames, final BulkRequest bulkRequest, final String defaultIndex, final String defaultType, final ActionListener<Tracking> listener) throws IOException {
+        final Map<String, BulkFrame> lookup = new HashMap<>();
+
+        for (BulkFrame frame : frames) {
+            if (frame.getPrevCtid() == null)
+                bulkRequest.add(newDataRequest(frame, defaultIndex, defaultType, frame.getId() + ":" + frame.getXid()));
+            else
+                lookup.put(frame.getPrevCtid(), frame);
         }
 
-        if (response.getHits().getHits().length != lookup.size())
-            throw new RuntimeException("Did not find all previous ctids an UPDATE");
+        if (lookup.isEmpty()) {
+            listener.onResponse(new Tracking());
+            return;
+        }
 
-        for (SearchHit hit : response.getHits()) {
-            String prevCtid = hit.field("_prev_ctid").getValue();
-            IndexRequest doc = lookup.get(hit.id());
+        findPrevCtids(client, lookup.keySet(), defaultIndex, defaultType, new ActionListener<Map<String, String>>() {
+            @Override
+            public void onResponse(Map<String, String> prevCtids) {
+                Tracking tracking = new Tracking();
+                try {
+                    for (Map.Entry<String, String> entry : prevCtids.entrySet()) {
+                        BulkFrame frame = lookup.get(entry.getKey());
+                        IndexRequest doc = newDataRequest(frame, defaultIndex, defaultType, entry.getValue());
+
+                        bulkRequest.add(doc);
+                        tracking.add(newTrackingRequest(client, defaultIndex, entry.getKey(), entry.getValue(), frame.getXid()), doc);
+                    }
+                } catch (Throwable t) {
+                    listener.onFailure(t);
+                    return;
+                }
+                listener.onResponse(tracking);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                listener.onFailure(t);
+            }
+        });
+    }
+
+    /**
+     * Like {@link #handleIndexRequestsUsingPkey(Client, List, String, String)}, every version of a row is routed by
+     * its primary key, so UPDATEs don't need their routing looked up
+     *
+     * @return null, without having added anything to <code>bulkRequest</code>, if any frame doesn't have a primary key value
+     */
+    private Tracking handleFramesUsingPkey(Client client, List<BulkFrame> frames, BulkRequest bulkRequest, String defaultIndex, String defaultType, String pkeyFieldname) throws IOException {
+        Tracking tracking = new Tracking();
+        List<IndexRequest> docs = new ArrayList<>(frames.size());
+
+        for (BulkFrame frame : frames) {
+            String pkey = frame.getPkey(pkeyFieldname);
+
+            if (pkey == null)
+                return null;    // can't use this at all
+
+            IndexRequest doc = newDataRequest(frame, defaultIndex, defaultType, pkey);
+            docs.add(doc);
+
+            if (frame.getPrevCtid() != null)
+                tracking.add(newTrackingRequest(client, defaultIndex, frame.getPrevCtid(), pkey, frame.getXid()), doc);
+        }
+
+        for (IndexRequest doc : docs)
+            bulkRequest.add(doc);
+        return tracking;
+    }
+
+    private static IndexRequest newDataRequest(BulkFrame frame, String defaultIndex, String defaultType, String routing) throws IOException {
+        return new IndexRequest(defaultIndex, defaultType, frame.getId())
+                .source(frame.buildSource(routing))
+                .routing(routing)
+                .opType(IndexRequest.OpType.CREATE)
+                .versionType(VersionType.FORCE)
+                .version(frame.getXid());
+    }
+
+    private static IndexRequest newTrackingRequest(Client client, String defaultIndex, String id, String routing, long xid) {
+        return new IndexRequestBuilder(client)
+                .setId(id)
+                .setIndex(defaultIndex)
+                .setType("state")
+                .setRouting(routing)
+                .setOpType(IndexRequest.OpType.INDEX)
+                .setVersionType(VersionType.FORCE)
+                .setVersion(xid)
+                .setSource("_ctid", routing)
+                .request();
+    }
+
+    /**
+     * The previous versions of the rows in an UPDATE batch might not be searchable yet, so their
+     * <code>_prev_ctid</code> values are resolved by {@link com.tcdi.zombodb.action.prevctid.TransportPrevCtidAction},
+     * which falls back to realtime gets for whatever isn't
+     */
+    private void findPrevCtids(Client client, final Set<String> ids, String defaultIndex, String defaultType, final ActionListener<Map<String, String>> listener) {
+        client.execute(PrevCtidAction.INSTANCE,
+                new PrevCtidRequestBuilder(client)
+                        .setIndices(defaultIndex)
+                        .setType(defaultType)
+                        .setIds(ids)
+                        .setListenerThreaded(true)
+                        .request(),
+                new ActionListener<PrevCtidResponse>() {
+                    @Override
+                    public void onResponse(PrevCtidResponse response) {
+                        if (response.getFailedShards() > 0)
+                            listener.onFailure(new ElasticsearchException("Unable to resolve previous ctids: " + response.getShardFailures()[0].reason()));
+                        else if (response.getPrevCtids().size() != ids.size())
+                            listener.onFailure(new RuntimeException("Did not find all previous ctids an UPDATE"));
+                        else
+                            listener.onResponse(response.getPrevCtids());
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        listener.onFailure(t);
+                    }
+                }
+        );
+    }
+
+    private Tracking buildUpdateTrackingRequests(Client client, Map<String, String> prevCtids, Map<String, IndexRequest> lookup, String defaultIndex) throws IOException {
+        Tracking tracking = new Tracking();
+
+        for (Map.Entry<String, String> entry : prevCtids.entrySet()) {
+            String prevCtid = entry.getValue();
+            IndexRequest doc = lookup.get(entry.getKey());
 
             if (doc == null)
                 continue;
 
-            Map<String, Object> data = doc.sourceAsMap();
-            Number xid = (Number) data.get("_xid");
+            SourcePatcher source = new SourcePatcher(doc.source(), null);
+            long xid = source.getXid();
 
-            data.put("_prev_ctid", prevCtid);
-            doc.source(data);
+            doc.source(source.setPrevCtid(prevCtid));
             doc.routing(prevCtid);
             doc.opType(IndexRequest.OpType.CREATE);
             doc.versionType(VersionType.FORCE);
-            doc.version(xid.longValue());
-
-            trackingRequests.add(
-                    new IndexRequestBuilder(client)
-                            .setId(hit.id())
-                            .setIndex(defaultIndex)
-                            .setType("state")
-                            .setRouting(prevCtid)
-                            .setOpType(IndexRequest.OpType.INDEX)
-                            .setVersionType(VersionType.FORCE)
-                            .setVersion(xid.longValue())
-                            .setSource("_ctid", prevCtid)
-                            .request()
-            );
+            doc.version(xid);
+
+            tracking.add(newTrackingRequest(client, defaultIndex, entry.getKey(), prevCtid, xid), doc);
 
         }
 
-        return trackingRequests;
+        return tracking;
     }
 
-    private List<ActionRequest> handleIndexRequestsUsingPkey(Client client, List<ActionRequest> requests, String defaultIndex, String pkeyFieldname) {
-        List<ActionRequest> trackingRequests = new ArrayList<>();
+    private Tracking handleIndexRequestsUsingPkey(Client client, List<ActionRequest> requests, String defaultIndex, String pkeyFieldname) throws IOException {
+        Tracking tracking = new Tracking();
         for (ActionRequest ar : requests) {
             IndexRequest doc = (IndexRequest) ar;
-            Map<String, Object> data = doc.sourceAsMap();
-            Object pkey = data.get(pkeyFieldname);
-            Object prevCtid = data.get("_prev_ctid");
-            Number xid = (Number) data.get("_xid");
+            SourcePatcher source = new SourcePatcher(doc.source(), pkeyFieldname);
+            String pkey = source.getPkey();
+            String prevCtid = source.getPrevCtid();
 
             if (pkey == null)
                 return null;    // can't use this at all
 
-            data.put("_prev_ctid", String.valueOf(pkey));
-            doc.routing(String.valueOf(pkey));
+            long xid = source.getXid();
+
+            doc.routing(pkey);
             doc.opType(IndexRequest.OpType.CREATE);
             doc.versionType(VersionType.FORCE);
-            doc.version(xid.longValue());
-            doc.source(data);
+            doc.version(xid);
+            doc.source(source.setPrevCtid(pkey));
 
             if (prevCtid != null) {
-                trackingRequests.add(
-                        new IndexRequestBuilder(client)
-                                .setId(String.valueOf(prevCtid))
-                                .setIndex(defaultIndex)
-                                .setType("state")
-                                .setRouting(String.valueOf(pkey))
-                                .setOpType(IndexRequest.OpType.INDEX)
-                                .setVersionType(VersionType.FORCE)
-                                .setVersion(xid.longValue())
-                                .setSource("_ctid", String.valueOf(pkey))
-                                .request()
-                );
+                tracking.add(newTrackingRequest(client, defaultIndex, prevCtid, pkey, xid), doc);
             }
 
         }
 
-        return trackingRequests;
+        return tracking;
     }
 
-    private String lookupPkeyFieldname(Client client, String index) {
-        GetMappingsResponse mappings = client.admin().indices().getMappings(new GetMappingsRequest().indices(index).types("data")).actionGet();
-        MappingMetaData mmd = mappings.getMappings().get(index).get("data");
+    private void lookupPkeyFieldname(Client client, final String index, final ActionListener<String> listener) {
+        IndexMetadataService.CachedIndex cached = metadataService.get(index);
+        if (cached != null) {
+            listener.onResponse(cached.getPrimaryKeyFieldName());
+            return;
+        }
+
+        // not in this node's cluster state yet, so ask the master
+        client.admin().indices().getMappings(new GetMappingsRequest().indices(index).types("data").listenerThreaded(true), new ActionListener<GetMappingsResponse>() {
+            @Override
+            public void onResponse(GetMappingsResponse mappings) {
+                MappingMetaData mmd = mappings.getMappings().get(index).get("data");
+                String pkeyFieldname;
+
+                try {
+                    pkeyFieldname = (String) ((Map) mmd.getSourceAsMap().get("_meta")).get("primary_key");
+                } catch (Throwable t) {
+                    listener.onFailure(t);
+                    return;
+                }
+                listener.onResponse(pkeyFieldname);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                listener.onFailure(t);
+            }
+        });
+    }
+
+    /**
+     * The tracking ("state") requests for a batch, along with the data requests that mustn't be written
+     * unless those tracking requests succeed
+     */
+    private static final class Tracking {
+        final List<ActionRequest> requests = new ArrayList<>();
+        final Set<ActionRequest> dependents = Collections.newSetFromMap(new IdentityHashMap<ActionRequest, Boolean>());
+
+        void add(ActionRequest trackingRequest, ActionRequest dependent) {
+            requests.add(trackingRequest);
+            dependents.add(dependent);
+        }
+    }
+
+    /**
+     * Joins the bulks that are in flight at the same time into a single BulkResponse.  Each lane
+     * reports exactly once, and the first failure is the one sent back
+     */
+    private static final class Pipeline {
+        private final ActionListener<BulkResponse> listener;
+        private final AtomicReferenceArray<BulkResponse> responses = new AtomicReferenceArray<>(2);
+        private final AtomicInteger pending = new AtomicInteger(2);
+        private final AtomicBoolean failed = new AtomicBoolean();
+        private final long start = System.currentTimeMillis();
+
+        private Pipeline(ActionListener<BulkResponse> listener) {
+            this.listener = listener;
+        }
+
+        ActionListener<BulkResponse> lane(final int idx) {
+            return new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(BulkResponse response) {
+                    responses.set(idx, response);
+                    if (pending.decrementAndGet() == 0 && !failed.get())
+                        finish();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    if (failed.compareAndSet(false, true))
+                        listener.onFailure(t);
+                }
+            };
+        }
 
-        try {
-            return (String) ((Map) mmd.getSourceAsMap().get("_meta")).get("primary_key");
-        } catch (IOException ioe) {
-            throw new RuntimeException(ioe);
+        private void finish() {
+            List<BulkItemResponse> items = new ArrayList<>();
+            for (int i = 0; i < responses.length(); i++)
+                Collections.addAll(items, responses.get(i).getItems());
+            listener.onResponse(new BulkResponse(items.toArray(new BulkItemResponse[items.size()]), System.currentTimeMillis() - start));
         }
     }
 
@@ -1,98 +1,132 @@
 package com.tcdi.zombodb.postgres;
 
-import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import com.tcdi.zombodb.query.CommittedXidBlock;
+import com.tcdi.zombodb.query_parser.metadata.IndexMetadataService;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.Requests;
-import org.elasticsearch.cluster.ClusterService;
-import org.elasticsearch.cluster.ClusterState;
-import org.elasticsearch.cluster.routing.operation.OperationRouting;
 import org.elasticsearch.common.inject.Inject;
-import org.elasticsearch.common.netty.util.internal.ConcurrentHashMap;
 import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.indices.IndexMissingException;
 import org.elasticsearch.rest.*;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.util.Map;
+import java.util.*;
 
 import static org.elasticsearch.rest.RestRequest.Method.POST;
 
+/**
+ * Marks transactions committed.  On indexes that store committed xids in {@link CommittedXidBlock}s, each
+ * request adds one document of its own to every block its xids fall into, on every shard, so commits never
+ * read, or contend over, a shared document.  {@link CompactionJob} folds them back into one document per block
+ */
 public class ZombodbCommitXIDAction extends BaseRestHandler {
 
-    private ClusterService clusterService;
-    private Map<String, String[]> routingTablesByIndex = new ConcurrentHashMap<>();
+    private final IndexMetadataService metadataService;
 
     @Inject
-    public ZombodbCommitXIDAction(Settings settings, RestController controller, Client client, ClusterService clusterService) {
+    public ZombodbCommitXIDAction(Settings settings, RestController controller, Client client, IndexMetadataService metadataService) {
         super(settings, controller, client);
 
-        this.clusterService = clusterService;
+        this.metadataService = metadataService;
 
         controller.registerHandler(POST, "/{index}/_zdbxid", this);
     }
 
     @Override
-    protected void handleRequest(RestRequest rest, RestChannel channel, Client client) throws Exception {
+    protected void handleRequest(RestRequest rest, final RestChannel channel, Client client) throws Exception {
         String index = rest.param("index");
         boolean refresh = rest.paramAsBoolean("refresh", false);
-        GetSettingsResponse indexSettings = client.admin().indices().getSettings(client.admin().indices().prepareGetSettings(index).request()).actionGet();
-        int shards = Integer.parseInt(indexSettings.getSetting(index, "index.number_of_shards"));
-        String[] routingTable = bruteForceRoutingValuesForShards(index, shards);
-
-        BulkRequest bulkRequest = Requests.bulkRequest();
-        bulkRequest.refresh(refresh);
+        IndexMetadataService.CachedIndex cached = metadataService.get(index);
+        if (cached == null)
+            throw new IndexMissingException(new Index(index));
+        String[] routingTable = cached.getRoutingTable();
 
+        SortedSet<Long> xids = new TreeSet<>();
         BufferedReader reader = new BufferedReader(new InputStreamReader(rest.content().streamInput()));
         String line;
-        while ((line = reader.readLine()) != null) {
-            Long xid = Long.valueOf(line);
+        while ((line = reader.readLine()) != null)
+            xids.add(Long.valueOf(line));
+
+        if (!cached.usesCommittedXidBlocks()) {
+            commitXidsByDocument(client, index, routingTable, xids, refresh, channel);
+            return;
+        }
+
+        // every shard needs its own copy of each block the xids fall into
+        Map<Long, CommittedXidBlock> blocks = new TreeMap<>();
+        Map<Long, long[]> bounds = new HashMap<>();
+        for (Long xid : xids) {
+            long blockno = CommittedXidBlock.blockOf(xid);
+            CommittedXidBlock block = blocks.get(blockno);
+            if (block == null) {
+                blocks.put(blockno, block = new CommittedXidBlock(blockno));
+                bounds.put(blockno, new long[]{xid, xid});
+            }
+            block.add(xid);
+            bounds.get(blockno)[1] = xid;   // xids are sorted
+        }
 
-            for (int i=0; i<shards; i++) {
+        BulkRequest bulkRequest = Requests.bulkRequest();
+        bulkRequest.refresh(refresh);
+        for (CommittedXidBlock block : blocks.values()) {
+            long[] range = bounds.get(block.getBlock());
+            byte[] encoded = block.encode();
+
+            for (String routing : routingTable) {
                 bulkRequest.add(
                         new IndexRequestBuilder(client)
                                 .setIndex(index)
                                 .setType("committed")
-                                .setRouting(routingTable[i])
-                                .setId(String.valueOf(xid))
-                                .setSource("_zdb_committed_xid", xid)
+                                .setRouting(routing)
+                                .setId(CommittedXidBlock.appendId(block.getBlock(), range[0], range[1]))
+                                .setSource(CommittedXidBlock.BLOCK_FIELD, block.getBlock(), CommittedXidBlock.XIDS_FIELD, encoded)
                                 .request()
                 );
             }
-
         }
 
-        BulkResponse response = client.bulk(bulkRequest).actionGet();
-        if (response.hasFailures())
-            throw new RuntimeException(response.buildFailureMessage());
-
-        channel.sendResponse(new BytesRestResponse(RestStatus.OK, String.valueOf("ok")));
+        execute(client, bulkRequest, channel);
     }
 
-    private String[] bruteForceRoutingValuesForShards(String index, int shards) {
-        String key = index+"."+shards;
-        String[] routingTable = routingTablesByIndex.get(key);
-
-        if (routingTable != null)
-            return routingTable;
+    /**
+     * Indexes created before committed xids were stored in blocks don't have the mapping for them, so they
+     * still get one "committed" document per xid per shard
+     */
+    private void commitXidsByDocument(Client client, String index, String[] routingTable, Set<Long> xids, boolean refresh, RestChannel channel) {
+        BulkRequest bulkRequest = Requests.bulkRequest();
+        bulkRequest.refresh(refresh);
 
-        ClusterState clusterState = clusterService.state();
-        OperationRouting operationRouting = clusterService.operationRouting();
+        for (Long xid : xids) {
+            for (String routing : routingTable) {
+                bulkRequest.add(
+                        new IndexRequestBuilder(client)
+                                .setIndex(index)
+                                .setType("committed")
+                                .setRouting(routing)
+                                .setId(String.valueOf(xid))
+                                .setSource("_zdb_committed_xid", xid)
+                                .request()
+                );
+            }
+        }
 
-        routingTable = new String[shards];
-        for (int i=0; i<shards; i++) {
-            String routing = String.valueOf(i);
+        execute(client, bulkRequest, channel);
+    }
 
-            int cnt=0;
-            while ( (operationRouting.indexShards(clusterState, index, "committed", routing, null).shardId()).id() != i)
-                routing = String.valueOf(i + ++cnt);
-            routingTable[i] = routing;
-        }
+    private static void execute(Client client, BulkRequest bulkRequest, final RestChannel channel) {
+        client.bulk(bulkRequest, new AsyncRestHelper.RestListener<BulkResponse>(channel) {
+            @Override
+            protected void processResponse(BulkResponse response) throws Exception {
+                if (response.hasFailures())
+                    throw new RuntimeException(response.buildFailureMessage());
 
-        routingTablesByIndex.put(key, routingTable);
-        return routingTable;
+                channel.sendResponse(new BytesRestResponse(RestStatus.OK, String.valueOf("ok")));
+            }
+        });
     }
-}
\ No newline at end of file
+}
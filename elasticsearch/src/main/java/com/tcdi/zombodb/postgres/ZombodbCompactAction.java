@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import com.tcdi.zombodb.query_parser.metadata.IndexMetadataService;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.concurrent.ConcurrentMap;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * Starts a {@link CompactionJob} in the background for an index, given Postgres' current global xmin as the
+ * <code>xmin</code> parameter, and reports the progress of the index's most recent job.
+ * <p>
+ * Only one job runs per index at a time:  while one is running, starting another just reports its progress
+ */
+public class ZombodbCompactAction extends BaseRestHandler {
+
+    private final IndexMetadataService metadataService;
+    private final ConcurrentMap<String, CompactionJob> jobs = ConcurrentCollections.newConcurrentMap();
+
+    @Inject
+    public ZombodbCompactAction(Settings settings, RestController controller, Client client, IndexMetadataService metadataService) {
+        super(settings, controller, client);
+
+        this.metadataService = metadataService;
+
+        controller.registerHandler(POST, "/{index}/{type}/_zdbcompact", this);
+        controller.registerHandler(GET, "/{index}/{type}/_zdbcompact", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+        String index = request.param("index");
+        String type = request.param("type");
+        IndexMetadataService.CachedIndex cached = metadataService.get(index);
+        if (cached == null)
+            throw new IndexMissingException(new Index(index));
+
+        CompactionJob job = jobs.get(index);
+        XContentBuilder builder = JsonXContent.contentBuilder();
+        builder.startObject();
+
+        if (request.method() == POST && (job == null || !job.isRunning())) {
+            if (!cached.usesCommittedXidBlocks()) {
+                // without committed xid blocks there's nowhere to keep a watermark
+                builder.field("index", index);
+                builder.field("phase", "unsupported");
+                builder.endObject();
+                channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+                return;
+            }
+
+            String xmin = request.param("xmin");
+            if (xmin == null)
+                throw new ElasticsearchIllegalArgumentException("Starting a compaction requires the global xmin");
+
+            CompactionJob started = new CompactionJob(client, index, type, cached.getRoutingTable(),
+                    Long.parseLong(xmin),
+                    request.paramAsInt("batch_size", 1000),
+                    request.paramAsTime("throttle", TimeValue.timeValueMillis(100)));
+
+            if (job == null ? jobs.putIfAbsent(index, started) == null : jobs.replace(index, job, started))
+                client.threadPool().executor(ThreadPool.Names.GENERIC).execute(started);
+            job = jobs.get(index);
+        }
+
+        if (job == null) {
+            builder.field("index", index);
+            builder.field("phase", "none");
+        } else {
+            job.toXContent(builder, request);
+        }
+
+        builder.endObject();
+        channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+    }
+}
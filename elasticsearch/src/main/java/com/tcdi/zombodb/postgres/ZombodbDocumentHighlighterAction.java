@@ -19,6 +19,7 @@ package com.tcdi.zombodb.postgres;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.tcdi.zombodb.highlight.AnalyzedField;
 import com.tcdi.zombodb.highlight.DocumentHighlighter;
+import com.tcdi.zombodb.query_parser.metadata.IndexMetadataService;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
@@ -33,9 +34,14 @@ import static org.elasticsearch.rest.RestRequest.Method.POST;
 
 public class ZombodbDocumentHighlighterAction extends BaseRestHandler {
 
+    private final IndexMetadataService metadataService;
+
     @Inject
-    public ZombodbDocumentHighlighterAction(Settings settings, RestController controller, Client client) {
+    public ZombodbDocumentHighlighterAction(Settings settings, RestController controller, Client client, IndexMetadataService metadataService) {
         super(settings, controller, client);
+
+        this.metadataService = metadataService;
+
         controller.registerHandler(GET, "/{index}/_zdbhighlighter", this);
         controller.registerHandler(POST, "/{index}/_zdbhighlighter", this);
     }
@@ -63,7 +69,7 @@ public class ZombodbDocumentHighlighterAction extends BaseRestHandler {
             List<AnalyzedField.Token> tokens = new ArrayList<>();
 
             for (Map<String, Object> document : documents) {
-                DocumentHighlighter highlighter = new DocumentHighlighter(client, request.param("index"), primaryKeyFieldname, document, queryString);
+                DocumentHighlighter highlighter = new DocumentHighlighter(client, metadataService, request.param("index"), primaryKeyFieldname, document, queryString);
                 tokens.addAll(highlighter.highlight());
             }
 
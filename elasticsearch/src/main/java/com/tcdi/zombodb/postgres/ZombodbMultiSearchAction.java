@@ -16,7 +16,9 @@
 package com.tcdi.zombodb.postgres;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tcdi.zombodb.query_parser.metadata.IndexMetadataService;
 import com.tcdi.zombodb.query_parser.rewriters.QueryRewriter;
+import com.tcdi.zombodb.query_parser.rewriters.RemoteLookups;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.search.MultiSearchRequestBuilder;
 import org.elasticsearch.action.search.MultiSearchResponse;
@@ -74,9 +76,14 @@ public class ZombodbMultiSearchAction extends BaseRestHandler {
         }
     }
 
+    private final IndexMetadataService metadataService;
+
     @Inject
-    protected ZombodbMultiSearchAction(Settings settings, RestController controller, Client client) {
+    protected ZombodbMultiSearchAction(Settings settings, RestController controller, Client client, IndexMetadataService metadataService) {
         super(settings, controller, client);
+
+        this.metadataService = metadataService;
+
         controller.registerHandler(GET, "/{index}/_zdbmsearch", this);
         controller.registerHandler(POST, "/{index}/_zdbmsearch", this);
     }
@@ -93,7 +100,7 @@ public class ZombodbMultiSearchAction extends BaseRestHandler {
             srb.setIndices(md.getIndexName());
             srb.setTypes("data");
             if (md.getPkey() != null) srb.addFieldDataField(md.getPkey());
-            srb.setQuery(QueryRewriter.Factory.create(client, md.getIndexName(), md.getPreference(), md.getQuery(), true, false).rewriteQuery());
+            srb.setQuery(QueryRewriter.Factory.create(client, RemoteLookups.blocking(client, metadataService), md.getIndexName(), md.getPreference(), md.getQuery(), true, false).rewriteQuery());
 
             msearchBuilder.add(srb);
         }
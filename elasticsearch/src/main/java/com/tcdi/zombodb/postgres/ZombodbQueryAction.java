@@ -15,7 +15,9 @@
  */
 package com.tcdi.zombodb.postgres;
 
+import com.tcdi.zombodb.query_parser.metadata.IndexMetadataService;
 import com.tcdi.zombodb.query_parser.rewriters.QueryRewriter;
+import com.tcdi.zombodb.query_parser.rewriters.RemoteLookups;
 import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.inject.Inject;
@@ -27,9 +29,14 @@ import static org.elasticsearch.rest.RestRequest.Method.GET;
 import static org.elasticsearch.rest.RestRequest.Method.POST;
 
 public class ZombodbQueryAction extends BaseRestHandler {
+    private final IndexMetadataService metadataService;
+
     @Inject
-    public ZombodbQueryAction(Settings settings, RestController controller, Client client) {
+    public ZombodbQueryAction(Settings settings, RestController controller, Client client, IndexMetadataService metadataService) {
         super(settings, controller, client);
+
+        this.metadataService = metadataService;
+
         controller.registerHandler(GET, "/{index}/_zdbquery", this);
         controller.registerHandler(POST, "/{index}/_zdbquery", this);
     }
@@ -47,7 +54,7 @@ public class ZombodbQueryAction extends BaseRestHandler {
                 QueryRewriter qr;
                 String json;
 
-                qr = QueryRewriter.Factory.create(client, request.param("index"), request.param("preference"), query, true, false);
+                qr = QueryRewriter.Factory.create(client, RemoteLookups.blocking(client, metadataService), request.param("index"), request.param("preference"), query, true, false);
                 json = qr.rewriteQuery().toString();
 
                 response = new BytesRestResponse(RestStatus.OK, "application/json", json);
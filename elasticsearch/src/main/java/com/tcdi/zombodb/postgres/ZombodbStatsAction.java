@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import com.tcdi.zombodb.action.stats.StatsAction;
+import com.tcdi.zombodb.action.stats.StatsRequest;
+import com.tcdi.zombodb.action.stats.StatsResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.rest.action.support.RestBuilderListener;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * Reports ZomboDB's node-level statistics, such as _pgtid cache hits and misses, for every node in the cluster
+ */
+public class ZombodbStatsAction extends BaseRestHandler {
+
+    @Inject
+    public ZombodbStatsAction(Settings settings, RestController controller, Client client) {
+        super(settings, controller, client);
+        controller.registerHandler(GET, "/_zdbstats", this);
+        controller.registerHandler(GET, "/_zdbstats/{nodeId}", this);
+    }
+
+    @Override
+    protected void handleRequest(final RestRequest request, RestChannel channel, Client client) throws Exception {
+        StatsRequest statsRequest = new StatsRequest(Strings.splitStringByCommaToArray(request.param("nodeId")));
+
+        client.execute(StatsAction.INSTANCE, statsRequest, new RestBuilderListener<StatsResponse>(channel) {
+            @Override
+            public RestResponse buildResponse(StatsResponse response, XContentBuilder builder) throws Exception {
+                builder.startObject();
+                response.toXContent(builder, request);
+                builder.endObject();
+                return new BytesRestResponse(RestStatus.OK, builder);
+            }
+        });
+    }
+}
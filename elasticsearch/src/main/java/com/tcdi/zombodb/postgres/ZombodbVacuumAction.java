@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import com.tcdi.zombodb.action.prevctid.PrevCtidAction;
+import com.tcdi.zombodb.action.prevctid.PrevCtidRequestBuilder;
+import com.tcdi.zombodb.action.prevctid.PrevCtidResponse;
+import com.tcdi.zombodb.action.stats.ZomboDBMetrics;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.WriteConsistencyLevel;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.bulk.BulkShardRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.rest.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * Deletes the rows VACUUM found to be dead.  The request body is nothing more than their ctids, each as a
+ * little-endian uint32 block number followed by a uint16 offset number.
+ * <p>
+ * The routing value (<code>_prev_ctid</code>) of each row is resolved on all the primary shards at once, by
+ * {@link com.tcdi.zombodb.action.prevctid.TransportPrevCtidAction}, {@link #MAX_CTIDS_PER_LOOKUP} rows at a time.
+ * Since a row's "state" document shares its routing, the data and state documents are then deleted together
+ * in a single bulk, which goes through {@link BulkBackpressure} like any other, to be split by shard and paced
+ */
+public class ZombodbVacuumAction extends BaseRestHandler {
+
+    private static final String METRICS = "zdbvacuum";
+
+    private static final int BYTES_PER_CTID = 4 + 2;
+
+    /**
+     * the most ctids whose routing values are resolved at once, since each one goes to every primary shard
+     */
+    static final int MAX_CTIDS_PER_LOOKUP = 100000;
+
+    private final BulkBackpressure backpressure;
+
+    @Inject
+    public ZombodbVacuumAction(Settings settings, RestController controller, Client client, BulkBackpressure backpressure) {
+        super(settings, controller, client);
+        this.backpressure = backpressure;
+
+        controller.registerHandler(POST, "/{index}/{type}/_zdbvacuum", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, final RestChannel channel, final Client client) throws Exception {
+        String index = request.param("index");
+        String type = request.param("type");
+        BulkRequest bulkRequest = Requests.bulkRequest();
+        bulkRequest.listenerThreaded(false);
+
+        String consistencyLevel = request.param("consistency");
+        if (consistencyLevel != null) {
+            bulkRequest.consistencyLevel(WriteConsistencyLevel.fromString(consistencyLevel));
+        }
+        bulkRequest.timeout(request.paramAsTime("timeout", BulkShardRequest.DEFAULT_TIMEOUT));
+        bulkRequest.refresh(request.paramAsBoolean("refresh", bulkRequest.refresh()));
+
+        vacuum(client, backpressure, index, type, request.content(), bulkRequest, new AsyncRestHelper.RestListener<BulkResponse>(channel) {
+            @Override
+            protected void processResponse(BulkResponse bulkResponse) throws Exception {
+                channel.sendResponse(ZombodbBulkAction.buildResponse(bulkResponse, JsonXContent.contentBuilder()));
+            }
+        });
+    }
+
+    /**
+     * Deletes the data and state documents of the ctids packed into <code>content</code>, as part of <code>bulkRequest</code>.
+     * Rows that aren't in the index have already been deleted, so they're skipped
+     *
+     * @throws ElasticsearchParseException if <code>content</code> isn't a whole number of ctids
+     */
+    static void vacuum(Client client, BulkBackpressure backpressure, String index, String type, BytesReference content, BulkRequest bulkRequest, ActionListener<BulkResponse> listener) {
+        vacuum(client, backpressure, index, type, content, bulkRequest, MAX_CTIDS_PER_LOOKUP, listener);
+    }
+
+    /**
+     * @param lookupSize the most ctids whose routing values are resolved in one {@link PrevCtidAction}
+     */
+    static void vacuum(Client client, BulkBackpressure backpressure, String index, String type, BytesReference content, BulkRequest bulkRequest, int lookupSize, ActionListener<BulkResponse> listener) {
+        List<String> ctids = parseCtids(content);
+        if (ctids.isEmpty()) {
+            listener.onResponse(new BulkResponse(new BulkItemResponse[0], 0));
+            return;
+        }
+
+        new Vacuum(client, backpressure, index, type, ctids, bulkRequest, lookupSize, listener).next();
+    }
+
+    /**
+     * One request's ctids, resolved a chunk at a time and then deleted
+     */
+    private static class Vacuum implements ActionListener<PrevCtidResponse> {
+        private final Client client;
+        private final BulkBackpressure backpressure;
+        private final String index;
+        private final String type;
+        private final List<String> ctids;
+        private final BulkRequest bulkRequest;
+        private final int lookupSize;
+        private final ActionListener<BulkResponse> listener;
+        private final long start = System.nanoTime();
+        private int resolved;
+
+        private Vacuum(Client client, BulkBackpressure backpressure, String index, String type, List<String> ctids, BulkRequest bulkRequest, int lookupSize, ActionListener<BulkResponse> listener) {
+            this.client = client;
+            this.backpressure = backpressure;
+            this.index = index;
+            this.type = type;
+            this.ctids = ctids;
+            this.bulkRequest = bulkRequest;
+            this.lookupSize = lookupSize;
+            this.listener = listener;
+        }
+
+        /**
+         * Resolves the next chunk of ctids, or deletes them all once every chunk has been
+         */
+        private void next() {
+            if (resolved == ctids.size()) {
+                ZomboDBMetrics.recordTime(METRICS, "lookup", start);
+                delete();
+                return;
+            }
+
+            List<String> chunk = new ArrayList<>(ctids.subList(resolved, Math.min(ctids.size(), resolved + lookupSize)));
+            resolved += chunk.size();
+
+            client.execute(PrevCtidAction.INSTANCE,
+                    new PrevCtidRequestBuilder(client)
+                            .setIndices(index)
+                            .setType(type)
+                            .setIds(chunk)
+                            .setListenerThreaded(true)
+                            .request(),
+                    this);
+        }
+
+        @Override
+        public void onResponse(PrevCtidResponse response) {
+            if (response.getFailedShards() > 0) {
+                listener.onFailure(new ElasticsearchException("Unable to resolve previous ctids: " + response.getShardFailures()[0].reason()));
+                return;
+            }
+
+            for (Map.Entry<String, String> entry : response.getPrevCtids().entrySet()) {
+                bulkRequest.add(new DeleteRequest(index, type, entry.getKey()).routing(entry.getValue()));
+                bulkRequest.add(new DeleteRequest(index, "state", entry.getKey()).routing(entry.getValue()));
+            }
+
+            next();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            listener.onFailure(t);
+        }
+
+        private void delete() {
+            if (bulkRequest.requests().isEmpty()) {
+                listener.onResponse(new BulkResponse(new BulkItemResponse[0], 0));
+                return;
+            }
+
+            backpressure.execute(client, bulkRequest, new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(BulkResponse bulkResponse) {
+                    ZomboDBMetrics.recordNanos(METRICS, "delete", TimeUnit.MILLISECONDS.toNanos(bulkResponse.getTookInMillis()));
+                    ZomboDBMetrics.recordTime(METRICS, "total", start);
+                    ZomboDBMetrics.record(METRICS, "rows", bulkRequest.numberOfActions() / 2);
+                    listener.onResponse(bulkResponse);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    listener.onFailure(t);
+                }
+            });
+        }
+    }
+
+    private static List<String> parseCtids(BytesReference content) {
+        if (content.length() % BYTES_PER_CTID != 0)
+            throw new ElasticsearchParseException("_zdbvacuum request body is not a whole number of ctids");
+
+        if (!content.hasArray())
+            content = content.toBytesArray();
+
+        List<String> ctids = new ArrayList<>(content.length() / BYTES_PER_CTID);
+        for (int pos = content.arrayOffset(); pos < content.arrayOffset() + content.length(); pos += BYTES_PER_CTID)
+            ctids.add(BulkFrame.ctid(content.array(), pos));
+        return ctids;
+    }
+}
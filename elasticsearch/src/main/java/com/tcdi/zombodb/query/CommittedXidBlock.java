@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.query;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The committed transaction ids within one block of {@link #XIDS_PER_BLOCK} consecutive xids.
+ * <p>
+ * Each shard stores a block in any number of "committed" documents, whose {@link #XIDS_FIELD}s are OR'd
+ * together:  every commit adds a document of its own (see {@link #appendId(long, long, long)}), and compaction
+ * folds them into a single document per block, whose id is just the block number.  Each document's
+ * {@link #XIDS_FIELD} holds its xids in whichever of two encodings is smaller:  a list of (first, last) ranges
+ * of committed xids, which is tiny when nearly every transaction commits, or a plain bitmap of the whole block
+ */
+public final class CommittedXidBlock {
+
+    public static final String BLOCK_FIELD = "_zdb_committed_block";
+    public static final String XIDS_FIELD = "_zdb_committed_xids";
+
+    public static final int XIDS_PER_BLOCK = 1 << 16;
+
+    /**
+     * Once compaction has deleted every aborted row below an xid, that xid becomes the shard's watermark:
+     * anything below it still referenced by the index is committed, and the blocks below it are deleted.
+     * The watermark is kept in a "committed" document whose {@link #BLOCK_FIELD} is this (otherwise
+     * impossible) block number, and whose {@link #XIDS_FIELD} is the little-endian watermark itself
+     */
+    public static final long WATERMARK_BLOCK = -1;
+    public static final String WATERMARK_ID = "watermark";
+
+    private static final byte RANGES = 0;
+    private static final byte BITMAP = 1;
+
+    private static final int BYTES_PER_RANGE = 2 + 2;
+    private static final int BITMAP_BYTES = XIDS_PER_BLOCK / 8;
+
+    private final long block;
+    private final long[] words = new long[XIDS_PER_BLOCK / 64];
+
+    public CommittedXidBlock(long block) {
+        this.block = block;
+    }
+
+    public static long blockOf(long xid) {
+        return xid >>> 16;
+    }
+
+    public long getBlock() {
+        return block;
+    }
+
+    /**
+     * @return true if the xid wasn't already in this block
+     */
+    public boolean add(long xid) {
+        if (blockOf(xid) != block)
+            throw new IllegalArgumentException("xid " + xid + " is not in block " + block);
+
+        int bit = (int) (xid & (XIDS_PER_BLOCK - 1));
+        long mask = 1L << bit;
+        if ((words[bit >>> 6] & mask) != 0)
+            return false;
+        words[bit >>> 6] |= mask;
+        return true;
+    }
+
+    public boolean contains(long xid) {
+        if (blockOf(xid) != block)
+            return false;
+
+        int bit = (int) (xid & (XIDS_PER_BLOCK - 1));
+        return (words[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    public void merge(CommittedXidBlock other) {
+        for (int i = 0; i < words.length; i++)
+            words[i] |= other.words[i];
+    }
+
+    public int cardinality() {
+        int cnt = 0;
+        for (long word : words)
+            cnt += Long.bitCount(word);
+        return cnt;
+    }
+
+    public byte[] encode() {
+        int ranges = 0;
+        for (int start = nextSetBit(0); start != -1; start = nextSetBit(nextClearBit(start)))
+            ranges++;
+
+        if (ranges * BYTES_PER_RANGE >= BITMAP_BYTES) {
+            byte[] bytes = new byte[1 + BITMAP_BYTES];
+            bytes[0] = BITMAP;
+            for (int i = 0; i < words.length; i++) {
+                for (int j = 0; j < 8; j++)
+                    bytes[1 + i * 8 + j] = (byte) (words[i] >>> (j * 8));
+            }
+            return bytes;
+        }
+
+        byte[] bytes = new byte[1 + ranges * BYTES_PER_RANGE];
+        int pos = 1;
+        bytes[0] = RANGES;
+        for (int start = nextSetBit(0); start != -1; ) {
+            int end = nextClearBit(start);
+            pos = encodeShort(start, bytes, pos);
+            pos = encodeShort(end - 1, bytes, pos);
+            start = nextSetBit(end);
+        }
+        return bytes;
+    }
+
+    public static CommittedXidBlock decode(long block, byte[] bytes, int offset, int length) throws IOException {
+        CommittedXidBlock decoded = new CommittedXidBlock(block);
+        decoded.merge(bytes, offset, length);
+        return decoded;
+    }
+
+    /**
+     * Adds the xids of an encoded block to this one, without decoding it into a block of its own first
+     */
+    public void merge(byte[] bytes, int offset, int length) throws IOException {
+        if (length < 1)
+            throw new IOException("Empty committed xid block " + block);
+
+        if (bytes[offset] == BITMAP) {
+            if (length != 1 + BITMAP_BYTES)
+                throw new IOException("Malformed committed xid bitmap for block " + block);
+            for (int i = 0; i < words.length; i++) {
+                long word = 0;
+                for (int j = 0; j < 8; j++)
+                    word |= (bytes[offset + 1 + i * 8 + j] & 0xFFL) << (j * 8);
+                words[i] |= word;
+            }
+        } else if (bytes[offset] == RANGES) {
+            if ((length - 1) % BYTES_PER_RANGE != 0)
+                throw new IOException("Malformed committed xid ranges for block " + block);
+            for (int pos = offset + 1; pos < offset + length; pos += BYTES_PER_RANGE) {
+                int start = decodeShort(bytes, pos);
+                int end = decodeShort(bytes, pos + 2);
+                if (end < start)
+                    throw new IOException("Malformed committed xid range for block " + block);
+                setRange(start, end + 1);
+            }
+        } else {
+            throw new IOException("Unknown committed xid block format: " + bytes[offset]);
+        }
+    }
+
+    /**
+     * The id of the document a commit adds to a block, for the committed xids between <code>first</code> and
+     * <code>last</code> inclusive.  No two commits share an xid, so they never share a document, and a commit
+     * that's sent again just writes the same document again
+     */
+    public static String appendId(long block, long first, long last) {
+        return block + ":" + first + "-" + last;
+    }
+
+    public static byte[] encodeWatermark(long xid) {
+        byte[] bytes = new byte[8];
+        for (int i = 0; i < 8; i++)
+            bytes[i] = (byte) (xid >>> (i * 8));
+        return bytes;
+    }
+
+    public static long decodeWatermark(byte[] bytes, int offset, int length) throws IOException {
+        if (length != 8)
+            throw new IOException("Malformed committed xid watermark");
+
+        long xid = 0;
+        for (int i = 0; i < 8; i++)
+            xid |= (bytes[offset + i] & 0xFFL) << (i * 8);
+        return xid;
+    }
+
+    private void setRange(int start, int end) {
+        int startWord = start >>> 6;
+        int endWord = (end - 1) >>> 6;
+        long startMask = -1L << start;
+        long endMask = -1L >>> -end;
+
+        if (startWord == endWord) {
+            words[startWord] |= startMask & endMask;
+        } else {
+            words[startWord] |= startMask;
+            Arrays.fill(words, startWord + 1, endWord, -1L);
+            words[endWord] |= endMask;
+        }
+    }
+
+    private int nextSetBit(int from) {
+        if (from >= XIDS_PER_BLOCK)
+            return -1;
+
+        int i = from >>> 6;
+        long word = words[i] & (-1L << from);
+        while (word == 0) {
+            if (++i == words.length)
+                return -1;
+            word = words[i];
+        }
+        return (i << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    private int nextClearBit(int from) {
+        int i = from >>> 6;
+        long word = ~words[i] & (-1L << from);
+        while (word == 0) {
+            if (++i == words.length)
+                return XIDS_PER_BLOCK;
+            word = ~words[i];
+        }
+        return (i << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    private static int encodeShort(int value, byte[] bytes, int pos) {
+        bytes[pos] = (byte) value;
+        bytes[pos + 1] = (byte) (value >>> 8);
+        return pos + 2;
+    }
+
+    private static int decodeShort(byte[] bytes, int pos) {
+        return (bytes[pos] & 0xFF) | ((bytes[pos + 1] & 0xFF) << 8);
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.query;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.SegmentReader;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.CacheStats;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lucene.SegmentReaderUtils;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.UncheckedExecutionException;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The xids this node has already seen committed, per index, so that visibility checks don't have to read
+ * them from the index's {@link CommittedXidBlock}s again.
+ * <p>
+ * Each index's xids are a bitmap, in pages of {@link CommittedXidBlock#XIDS_PER_BLOCK} xids.  Reads are
+ * lock-free.  Every xid below an index's compaction watermark is committed, so pages below it are evicted
+ * as the watermark advances (compaction moves it up to the oldest xmin Postgres still has).
+ * Past <code>zombodb.committed_xids.cache.max_pages</code>, an index's lowest pages are evicted first.
+ * <p>
+ * An index's xids are dropped once the cluster state no longer has it, or has a new index by the same name,
+ * since a recreated index starts its xids over.
+ * <p>
+ * When an xid isn't known yet, the {@link CommittedXidBlock} it's in is read from the shard.  What each segment
+ * contributes to a block is decoded once and kept, keyed on the segment's core, until the segment is closed or
+ * <code>zombodb.committed_xids.cache.max_segment_blocks</code> are kept.  A new searcher then only reads the
+ * "committed" documents of segments written since the last one, however many commits there have been since
+ * the last compaction
+ */
+public class CommittedXidCache extends AbstractComponent implements ClusterStateListener {
+
+    /**
+     * One index's known committed xids
+     */
+    static final class KnownXids {
+        private static final int WORDS_PER_PAGE = CommittedXidBlock.XIDS_PER_BLOCK / 64;
+
+        private final ConcurrentMap<Long, AtomicLongArray> pages = ConcurrentCollections.newConcurrentMap();
+        private final AtomicInteger totalPages;
+        private volatile long watermark;
+
+        KnownXids(AtomicInteger totalPages) {
+            this.totalPages = totalPages;
+        }
+
+        /**
+         * Only xids that were added are known, whatever the watermark:  unlike {@link CommittedXidLookup},
+         * this doesn't say every xid below it is committed, because a reader opened before the watermark was
+         * written may still have rows from aborted transactions below it
+         */
+        boolean contains(long xid) {
+            AtomicLongArray page = pages.get(CommittedXidBlock.blockOf(xid));
+            return page != null && (page.get(word(xid)) & mask(xid)) != 0;
+        }
+
+        void add(long xid) {
+            if (xid < watermark)
+                return;
+
+            long pageno = CommittedXidBlock.blockOf(xid);
+            AtomicLongArray page = pages.get(pageno);
+            if (page == null) {
+                AtomicLongArray existing = pages.putIfAbsent(pageno, page = new AtomicLongArray(WORDS_PER_PAGE));
+                if (existing != null)
+                    page = existing;
+                else
+                    totalPages.incrementAndGet();
+            }
+
+            int word = word(xid);
+            long mask = mask(xid);
+            while (true) {
+                long bits = page.get(word);
+                if ((bits & mask) != 0 || page.compareAndSet(word, bits, bits | mask))
+                    return;
+            }
+        }
+
+        /**
+         * Raises the watermark and evicts the pages entirely below it
+         *
+         * @return the number of pages evicted
+         */
+        int advance(long watermark) {
+            if (watermark <= this.watermark)
+                return 0;
+            this.watermark = watermark;
+
+            int evicted = 0;
+            for (Long pageno : pages.keySet()) {
+                if ((pageno + 1) * CommittedXidBlock.XIDS_PER_BLOCK <= watermark && pages.remove(pageno) != null)
+                    evicted++;
+            }
+            totalPages.addAndGet(-evicted);
+            return evicted;
+        }
+
+        /**
+         * @return true if a page was evicted
+         */
+        boolean evictLowestPage() {
+            Long lowest = null;
+            for (Long pageno : pages.keySet()) {
+                if (lowest == null || pageno < lowest)
+                    lowest = pageno;
+            }
+
+            if (lowest == null || pages.remove(lowest) == null)
+                return false;
+            totalPages.decrementAndGet();
+            return true;
+        }
+
+        int size() {
+            return pages.size();
+        }
+
+        private static int word(long xid) {
+            return (int) ((xid & (CommittedXidBlock.XIDS_PER_BLOCK - 1)) >>> 6);
+        }
+
+        private static long mask(long xid) {
+            return 1L << (xid & 63);
+        }
+    }
+
+    /**
+     * One block, as stored in one segment
+     */
+    private static final class SegmentBlock {
+        private final Object coreKey;
+        private final long block;
+
+        private SegmentBlock(Object coreKey, long block) {
+            this.coreKey = coreKey;
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SegmentBlock))
+                return false;
+            SegmentBlock other = (SegmentBlock) o;
+            return block == other.block && coreKey == other.coreKey;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(coreKey) + (int) (block ^ (block >>> 32));
+        }
+    }
+
+    private final ConcurrentMap<String, KnownXids> indexes = ConcurrentCollections.newConcurrentMap();
+    private final AtomicInteger totalPages = new AtomicInteger();
+    private final CounterMetric hits = new CounterMetric();
+    private final CounterMetric misses = new CounterMetric();
+    private final CounterMetric evictions = new CounterMetric();
+    private final int maxPages;
+    private final Cache<SegmentBlock, CommittedXidBlock> segmentBlocks;
+    private final Set<Object> registeredSegments = ConcurrentCollections.newConcurrentSet();
+    private final int maxSegmentBlocks;
+
+    @Inject
+    public CommittedXidCache(Settings settings, ClusterService clusterService) {
+        super(settings);
+        this.maxPages = settings.getAsInt("zombodb.committed_xids.cache.max_pages", 4096);
+        this.maxSegmentBlocks = settings.getAsInt("zombodb.committed_xids.cache.max_segment_blocks", 4096);
+        this.segmentBlocks = CacheBuilder.newBuilder()
+                .maximumSize(maxSegmentBlocks)
+                .recordStats()
+                .build();
+
+        clusterService.add(this);
+    }
+
+    /**
+     * @return the known committed xids of the specified index
+     */
+    KnownXids forIndex(String index) {
+        KnownXids xids = indexes.get(index);
+        if (xids == null) {
+            KnownXids existing = indexes.putIfAbsent(index, xids = new KnownXids(totalPages));
+            if (existing != null)
+                xids = existing;
+        }
+        return xids;
+    }
+
+    /**
+     * Is the xid committed, either because it's already known to be, or according to the lookup
+     */
+    boolean isCommitted(KnownXids xids, CommittedXidLookup lookup, long xid) throws IOException {
+        if (xid < lookup.getWatermark() || xids.contains(xid)) {
+            hits.inc();
+            return true;
+        }
+        misses.inc();
+
+        if (!lookup.isCommitted(xid))
+            return false;
+
+        xids.add(xid);
+        while (totalPages.get() > maxPages && xids.size() > 1 && xids.evictLowestPage())
+            evictions.inc();
+        return true;
+    }
+
+    /**
+     * @return the block as stored in the segment, loaded the first time it's asked for
+     */
+    CommittedXidBlock forSegment(AtomicReader reader, long block, Callable<CommittedXidBlock> loader) throws IOException {
+        SegmentReader segmentReader = SegmentReaderUtils.segmentReaderOrNull(reader);
+        if (maxSegmentBlocks <= 0 || segmentReader == null) {
+            // not a segment we'd hear the closing of, so nothing is kept for it
+            try {
+                return loader.call();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+
+        final Object coreKey = reader.getCoreCacheKey();
+        if (registeredSegments.add(coreKey)) {
+            segmentReader.addCoreClosedListener(new SegmentReader.CoreClosedListener() {
+                @Override
+                public void onClose(Object ownerCoreCacheKey) {
+                    registeredSegments.remove(coreKey);
+                    for (SegmentBlock key : segmentBlocks.asMap().keySet()) {
+                        if (key.coreKey == coreKey)
+                            segmentBlocks.invalidate(key);
+                    }
+                }
+            });
+        }
+
+        try {
+            return segmentBlocks.get(new SegmentBlock(coreKey, block), loader);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public void clusterChanged(ClusterChangedEvent event) {
+        if (!event.metaDataChanged())
+            return;
+
+        for (String index : indexes.keySet()) {
+            IndexMetaData current = event.state().metaData().index(index);
+            IndexMetaData previous = event.previousState().metaData().index(index);
+
+            if (current == null || (previous != null && !current.getUUID().equals(previous.getUUID())))
+                evict(index);
+        }
+    }
+
+    private void evict(String index) {
+        KnownXids xids = indexes.remove(index);
+        if (xids == null)
+            return;
+
+        int pages = xids.size();
+        totalPages.addAndGet(-pages);
+        evictions.inc(pages);
+    }
+
+    /**
+     * Evicts whatever is below the index's current compaction watermark
+     */
+    void advance(KnownXids xids, long watermark) {
+        evictions.inc(xids.advance(watermark));
+    }
+
+    public void clear() {
+        indexes.clear();
+        totalPages.set(0);
+        segmentBlocks.invalidateAll();
+    }
+
+    public CommittedXidCacheStats stats() {
+        int pages = totalPages.get();
+        long blocks = segmentBlocks.size();
+        CacheStats segmentStats = segmentBlocks.stats();
+        return new CommittedXidCacheStats(indexes.size(), pages, (pages + blocks) * (CommittedXidBlock.XIDS_PER_BLOCK / 8), maxPages, hits.count(), misses.count(), evictions.count(),
+                blocks, maxSegmentBlocks, segmentStats.hitCount(), segmentStats.missCount(), segmentStats.evictionCount());
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.query;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * A point-in-time view of one node's {@link CommittedXidCache}
+ */
+public class CommittedXidCacheStats implements Streamable, ToXContent {
+
+    private long indexes;
+    private long pages;
+    private long sizeInBytes;
+    private long maxPages;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long segmentBlocks;
+    private long maxSegmentBlocks;
+    private long segmentBlockHits;
+    private long segmentBlockMisses;
+    private long segmentBlockEvictions;
+
+    CommittedXidCacheStats() {
+    }
+
+    CommittedXidCacheStats(long indexes, long pages, long sizeInBytes, long maxPages, long hits, long misses, long evictions,
+                           long segmentBlocks, long maxSegmentBlocks, long segmentBlockHits, long segmentBlockMisses, long segmentBlockEvictions) {
+        this.indexes = indexes;
+        this.pages = pages;
+        this.sizeInBytes = sizeInBytes;
+        this.maxPages = maxPages;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.segmentBlocks = segmentBlocks;
+        this.maxSegmentBlocks = maxSegmentBlocks;
+        this.segmentBlockHits = segmentBlockHits;
+        this.segmentBlockMisses = segmentBlockMisses;
+        this.segmentBlockEvictions = segmentBlockEvictions;
+    }
+
+    public static CommittedXidCacheStats readCommittedXidCacheStats(StreamInput in) throws IOException {
+        CommittedXidCacheStats stats = new CommittedXidCacheStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    public long getIndexes() {
+        return indexes;
+    }
+
+    public long getPages() {
+        return pages;
+    }
+
+    public long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public long getMaxPages() {
+        return maxPages;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getSegmentBlocks() {
+        return segmentBlocks;
+    }
+
+    public long getMaxSegmentBlocks() {
+        return maxSegmentBlocks;
+    }
+
+    public long getSegmentBlockHits() {
+        return segmentBlockHits;
+    }
+
+    public long getSegmentBlockMisses() {
+        return segmentBlockMisses;
+    }
+
+    public long getSegmentBlockEvictions() {
+        return segmentBlockEvictions;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        indexes = in.readVLong();
+        pages = in.readVLong();
+        sizeInBytes = in.readVLong();
+        maxPages = in.readVLong();
+        hits = in.readVLong();
+        misses = in.readVLong();
+        evictions = in.readVLong();
+        segmentBlocks = in.readVLong();
+        maxSegmentBlocks = in.readVLong();
+        segmentBlockHits = in.readVLong();
+        segmentBlockMisses = in.readVLong();
+        segmentBlockEvictions = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(indexes);
+        out.writeVLong(pages);
+        out.writeVLong(sizeInBytes);
+        out.writeVLong(maxPages);
+        out.writeVLong(hits);
+        out.writeVLong(misses);
+        out.writeVLong(evictions);
+        out.writeVLong(segmentBlocks);
+        out.writeVLong(maxSegmentBlocks);
+        out.writeVLong(segmentBlockHits);
+        out.writeVLong(segmentBlockMisses);
+        out.writeVLong(segmentBlockEvictions);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("committed_xid_cache");
+        builder.field("indexes", indexes);
+        builder.field("pages", pages);
+        builder.field("size_in_bytes", sizeInBytes);
+        builder.field("max_pages", maxPages);
+        builder.field("hits", hits);
+        builder.field("misses", misses);
+        builder.field("evictions", evictions);
+        builder.field("segment_blocks", segmentBlocks);
+        builder.field("max_segment_blocks", maxSegmentBlocks);
+        builder.field("segment_block_hits", segmentBlockHits);
+        builder.field("segment_block_misses", segmentBlockMisses);
+        builder.field("segment_block_evictions", segmentBlockEvictions);
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.query;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.NumericUtils;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Answers whether an xid is committed, for one shard's searcher.
+ * <p>
+ * Each {@link CommittedXidBlock} is read from the shard at most once, so checking any number of
+ * xids from the same block costs a single term lookup plus a bitmap probe per xid.  What each segment
+ * holds of a block comes from {@link CommittedXidCache#forSegment}, so only segments new since the last
+ * lookup have their "committed" documents read.  Indexes created
+ * before committed xids were stored in blocks still have one "_zdb_committed_xid" term per xid, and
+ * those are checked too.  Xids below the shard's compaction watermark are committed without looking at all
+ */
+final class CommittedXidLookup {
+
+    private static final String LEGACY_FIELD = "_zdb_committed_xid";
+
+    private final IndexReader reader;
+    private final CommittedXidCache cache;
+    private final Bits liveDocs;
+    private final TermsEnum legacyXids;
+    private final long watermark;
+    private final Map<Long, CommittedXidBlock> blocks = new HashMap<>();
+    private final BytesRefBuilder builder = new BytesRefBuilder();
+
+    CommittedXidLookup(IndexReader reader, CommittedXidCache cache) throws IOException {
+        Terms legacyTerms = MultiFields.getTerms(reader, LEGACY_FIELD);
+
+        this.reader = reader;
+        this.cache = cache;
+        this.liveDocs = MultiFields.getLiveDocs(reader);
+        this.legacyXids = legacyTerms == null ? null : legacyTerms.iterator(null);
+        this.watermark = readWatermark();
+    }
+
+    /**
+     * @return the shard's compaction watermark, below which every xid still in the index is committed
+     */
+    long getWatermark() {
+        return watermark;
+    }
+
+    boolean isCommitted(long xid) throws IOException {
+        if (xid < watermark)
+            return true;
+
+        long blockno = CommittedXidBlock.blockOf(xid);
+        CommittedXidBlock block = blocks.get(blockno);
+
+        if (block == null)
+            blocks.put(blockno, block = readBlock(blockno));
+
+        if (block.contains(xid))
+            return true;
+
+        if (legacyXids == null)
+            return false;
+
+        NumericUtils.longToPrefixCoded(xid, 0, builder);
+        return legacyXids.seekExact(builder.get());
+    }
+
+    /**
+     * @return the shard's compaction watermark, below which every xid still in the index is committed
+     */
+    private long readWatermark() throws IOException {
+        final long[] watermark = new long[1];
+
+        NumericUtils.longToPrefixCoded(CommittedXidBlock.WATERMARK_BLOCK, 0, builder);
+        DocsEnum docs = MultiFields.getTermDocsEnum(reader, liveDocs, CommittedXidBlock.BLOCK_FIELD, builder.get(), DocsEnum.FLAG_NONE);
+        if (docs == null)
+            return 0;
+
+        int doc;
+        while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            reader.document(doc, new StoredFieldVisitor() {
+                @Override
+                public void binaryField(FieldInfo fieldInfo, byte[] value) throws IOException {
+                    watermark[0] = Math.max(watermark[0], CommittedXidBlock.decodeWatermark(value, 0, value.length));
+                }
+
+                @Override
+                public Status needsField(FieldInfo fieldInfo) throws IOException {
+                    return CommittedXidBlock.XIDS_FIELD.equals(fieldInfo.name) ? Status.YES : Status.NO;
+                }
+            });
+        }
+
+        return watermark[0];
+    }
+
+    /**
+     * @return the union of every "committed" document in the block:  the folded one, and those added by commits since
+     */
+    private CommittedXidBlock readBlock(long blockno) throws IOException {
+        CommittedXidBlock block = new CommittedXidBlock(blockno);
+
+        NumericUtils.longToPrefixCoded(blockno, 0, builder);
+        for (AtomicReaderContext context : reader.leaves()) {
+            Terms terms = context.reader().terms(CommittedXidBlock.BLOCK_FIELD);
+            if (terms == null || !terms.iterator(null).seekExact(builder.get()))
+                continue;
+
+            block.merge(cache.forSegment(context.reader(), blockno, new SegmentBlockLoader(context.reader(), blockno)));
+        }
+
+        return block;
+    }
+
+    /**
+     * Reads one segment's part of a block.  Deleted documents are included:  a segment's deletes change with
+     * every refresh, while what it holds doesn't, and an xid a deleted document says was committed still was
+     * (compaction only deletes them once they're folded into another document, or below the watermark)
+     */
+    private static final class SegmentBlockLoader implements Callable<CommittedXidBlock> {
+        private final AtomicReader reader;
+        private final long blockno;
+
+        private SegmentBlockLoader(AtomicReader reader, long blockno) {
+            this.reader = reader;
+            this.blockno = blockno;
+        }
+
+        @Override
+        public CommittedXidBlock call() throws IOException {
+            final CommittedXidBlock block = new CommittedXidBlock(blockno);
+            BytesRefBuilder builder = new BytesRefBuilder();
+
+            NumericUtils.longToPrefixCoded(blockno, 0, builder);
+            TermsEnum termsEnum = reader.terms(CommittedXidBlock.BLOCK_FIELD).iterator(null);
+            if (!termsEnum.seekExact(builder.get()))
+                return block;
+
+            DocsEnum docs = termsEnum.docs(null, null, DocsEnum.FLAG_NONE);
+            int doc;
+            while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                reader.document(doc, new StoredFieldVisitor() {
+                    @Override
+                    public void binaryField(FieldInfo fieldInfo, byte[] value) throws IOException {
+                        block.merge(value, 0, value.length);
+                    }
+
+                    @Override
+                    public Status needsField(FieldInfo fieldInfo) throws IOException {
+                        return CommittedXidBlock.XIDS_FIELD.equals(fieldInfo.name) ? Status.YES : Status.NO;
+                    }
+                });
+            }
+
+            return block;
+        }
+    }
+}
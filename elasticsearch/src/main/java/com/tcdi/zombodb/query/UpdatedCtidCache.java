@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.query;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.PriorityQueue;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.CacheStats;
+import org.elasticsearch.common.cache.RemovalListener;
+import org.elasticsearch.common.cache.RemovalNotification;
+import org.elasticsearch.common.cache.Weigher;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.UncheckedExecutionException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The distinct <code>_ctid</code> values of each segment's live "state" documents -- the rows that have been
+ * UPDATEd -- so that a visibility query only reads the segments that are new since the last one.
+ * <p>
+ * Entries are keyed on a segment reader's {@link IndexReader#getCombinedCoreAndDeletesKey()}, which changes
+ * whenever documents in the segment are deleted.  They're removed as soon as that reader is closed, and otherwise
+ * evicted least-recently-used once the cache's size in bytes goes over <code>zombodb.updated_ctids.cache.size</code>
+ */
+public class UpdatedCtidCache extends AbstractComponent {
+
+    private static final BytesRef[] EMPTY = new BytesRef[0];
+    private static final Term STATE_TYPE = new Term("_type", "state");
+
+    private final Cache<Object, BytesRef[]> cache;
+    private final Set<Object> registeredReaders = ConcurrentCollections.newConcurrentSet();
+    private final AtomicLong sizeInBytes = new AtomicLong();
+    private final long maxSizeInBytes;
+
+    @Inject
+    public UpdatedCtidCache(Settings settings) {
+        super(settings);
+
+        ByteSizeValue maxSize = settings.getAsMemory("zombodb.updated_ctids.cache.size", "1%");
+        this.maxSizeInBytes = maxSize.bytes();
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(1, maxSizeInBytes))
+                .weigher(new Weigher<Object, BytesRef[]>() {
+                    @Override
+                    public int weigh(Object key, BytesRef[] value) {
+                        return (int) Math.min(Integer.MAX_VALUE, weight(value));
+                    }
+                })
+                .removalListener(new RemovalListener<Object, BytesRef[]>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<Object, BytesRef[]> notification) {
+                        sizeInBytes.addAndGet(-weight(notification.getValue()));
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    private static long weight(BytesRef[] ctids) {
+        long bytes = 64 + ctids.length * 8;
+        for (BytesRef ctid : ctids)
+            bytes += ctid.length + 32;
+        return bytes;
+    }
+
+    public boolean isEnabled() {
+        return maxSizeInBytes > 0;
+    }
+
+    /**
+     * @return every updated ctid in the index, sorted and without duplicates
+     */
+    List<BytesRef> updatedCtids(IndexReader reader) throws IOException {
+        List<BytesRef[]> perSegment = new ArrayList<>(reader.leaves().size());
+
+        for (AtomicReaderContext context : reader.leaves()) {
+            BytesRef[] ctids = get(context.reader());
+            if (ctids.length > 0)
+                perSegment.add(ctids);
+        }
+
+        return merge(perSegment);
+    }
+
+    private BytesRef[] get(final AtomicReader reader) throws IOException {
+        if (!isEnabled())
+            return load(reader);
+
+        final Object readerKey = reader.getCombinedCoreAndDeletesKey();
+        if (registeredReaders.add(readerKey)) {
+            reader.addReaderClosedListener(new IndexReader.ReaderClosedListener() {
+                @Override
+                public void onClose(IndexReader reader) {
+                    registeredReaders.remove(readerKey);
+                    cache.invalidate(readerKey);
+                }
+            });
+        }
+
+        try {
+            return cache.get(readerKey, new Callable<BytesRef[]>() {
+                @Override
+                public BytesRef[] call() throws Exception {
+                    BytesRef[] ctids = load(reader);
+                    sizeInBytes.addAndGet(weight(ctids));
+                    return ctids;
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    public UpdatedCtidCacheStats stats() {
+        CacheStats stats = cache.stats();
+        return new UpdatedCtidCacheStats(cache.size(), sizeInBytes.get(), maxSizeInBytes, stats.hitCount(), stats.missCount(), stats.evictionCount());
+    }
+
+    /**
+     * Term ords are in term order, so marking the ords of the live state docs and reading them back gives
+     * the segment's ctids sorted and distinct
+     */
+    private static BytesRef[] load(AtomicReader reader) throws IOException {
+        DocsEnum docs = reader.termDocsEnum(STATE_TYPE);    // skips deleted docs
+        if (docs == null)
+            return EMPTY;
+
+        SortedDocValues ctids = FieldCache.DEFAULT.getTermsIndex(reader, "_ctid");
+        FixedBitSet ords = new FixedBitSet(ctids.getValueCount());
+        int doc;
+        while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            int ord = ctids.getOrd(doc);
+            if (ord >= 0)
+                ords.set(ord);
+        }
+
+        BytesRef[] result = new BytesRef[ords.cardinality()];
+        int i = 0;
+        for (int ord = ords.nextSetBit(0); ord != -1; ord = ord + 1 < ords.length() ? ords.nextSetBit(ord + 1) : -1)
+            result[i++] = BytesRef.deepCopyOf(ctids.lookupOrd(ord));
+        return result;
+    }
+
+    /**
+     * Merges sorted, distinct arrays into one sorted, distinct list
+     */
+    static List<BytesRef> merge(List<BytesRef[]> sorted) {
+        if (sorted.isEmpty())
+            return new ArrayList<>();
+
+        int total = 0;
+        for (BytesRef[] values : sorted)
+            total += values.length;
+
+        List<BytesRef> merged = new ArrayList<>(total);
+        if (sorted.size() == 1) {
+            for (BytesRef value : sorted.get(0))
+                merged.add(value);
+            return merged;
+        }
+
+        PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(sorted.size()) {
+            @Override
+            protected boolean lessThan(Cursor a, Cursor b) {
+                return a.current().compareTo(b.current()) < 0;
+            }
+        };
+        for (BytesRef[] values : sorted)
+            queue.add(new Cursor(values));
+
+        BytesRef last = null;
+        while (queue.size() > 0) {
+            Cursor top = queue.top();
+            BytesRef value = top.current();
+
+            if (last == null || !last.bytesEquals(value))
+                merged.add(last = value);
+
+            if (++top.pos < top.values.length)
+                queue.updateTop();
+            else
+                queue.pop();
+        }
+
+        return merged;
+    }
+
+    private static final class Cursor {
+        private final BytesRef[] values;
+        private int pos;
+
+        private Cursor(BytesRef[] values) {
+            this.values = values;
+        }
+
+        private BytesRef current() {
+            return values[pos];
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.query;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * A point-in-time view of one node's {@link UpdatedCtidCache}
+ */
+public class UpdatedCtidCacheStats implements Streamable, ToXContent {
+
+    private long entries;
+    private long sizeInBytes;
+    private long maxSizeInBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    UpdatedCtidCacheStats() {
+    }
+
+    UpdatedCtidCacheStats(long entries, long sizeInBytes, long maxSizeInBytes, long hits, long misses, long evictions) {
+        this.entries = entries;
+        this.sizeInBytes = sizeInBytes;
+        this.maxSizeInBytes = maxSizeInBytes;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    public static UpdatedCtidCacheStats readUpdatedCtidCacheStats(StreamInput in) throws IOException {
+        UpdatedCtidCacheStats stats = new UpdatedCtidCacheStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    public long getEntries() {
+        return entries;
+    }
+
+    public long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public long getMaxSizeInBytes() {
+        return maxSizeInBytes;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        entries = in.readVLong();
+        sizeInBytes = in.readVLong();
+        maxSizeInBytes = in.readVLong();
+        hits = in.readVLong();
+        misses = in.readVLong();
+        evictions = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(entries);
+        out.writeVLong(sizeInBytes);
+        out.writeVLong(maxSizeInBytes);
+        out.writeVLong(hits);
+        out.writeVLong(misses);
+        out.writeVLong(evictions);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("updated_ctid_cache");
+        builder.field("entries", entries);
+        builder.field("size_in_bytes", sizeInBytes);
+        builder.field("max_size_in_bytes", maxSizeInBytes);
+        builder.field("hits", hits);
+        builder.field("misses", misses);
+        builder.field("evictions", evictions);
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.query;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.RemovalListener;
+import org.elasticsearch.common.cache.RemovalNotification;
+import org.elasticsearch.common.cache.Weigher;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.UncheckedExecutionException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the per-segment bitsets of invisible documents that {@link ZomboDBVisibilityQuery} computes, keyed on
+ * the top-level {@link IndexReader} and the Postgres snapshot they were computed for.  Every query a transaction
+ * runs against the same reader shares them, and concurrent queries for the same snapshot compute them only once.
+ * <p>
+ * Like the {@link com.tcdi.zombodb.action.tidlist.TIDListCache}, a refresh opens a new reader so entries are
+ * never stale.  They're removed as soon as the reader they were built from is closed, and otherwise evicted
+ * least-recently-used once the cache's size in bytes goes over <code>zombodb.visibility.cache.size</code>.
+ * <p>
+ * Each reader's {@link VisibilityQueryHelper.SettledVersions}, which every snapshot starts from, are cached the same way,
+ * in the same cache, so the two together stay within that size
+ */
+public class VisibilityBitSetCache extends AbstractComponent {
+
+    static final class Key {
+        private final Object readerKey;
+        private final String fieldname;
+        private final long myXid;
+        private final long xmin;
+        private final long xmax;
+        private final long[] activeXids;
+        private final int hashCode;
+
+        /**
+         * @param activeXids sorted
+         */
+        Key(Object readerKey, String fieldname, long myXid, long xmin, long xmax, long[] activeXids) {
+            this.readerKey = readerKey;
+            this.fieldname = fieldname;
+            this.myXid = myXid;
+            this.xmin = xmin;
+            this.xmax = xmax;
+            this.activeXids = activeXids;
+
+            int result = readerKey.hashCode();
+            result = 31 * result + fieldname.hashCode();
+            result = 31 * result + (int) (myXid ^ (myXid >>> 32));
+            result = 31 * result + (int) (xmin ^ (xmin >>> 32));
+            result = 31 * result + (int) (xmax ^ (xmax >>> 32));
+            result = 31 * result + Arrays.hashCode(activeXids);
+            this.hashCode = result;
+        }
+
+        private long ramBytesUsed() {
+            return activeXids.length * 8 + 64;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+
+            Key other = (Key) obj;
+            return hashCode == other.hashCode &&
+                    readerKey == other.readerKey &&
+                    myXid == other.myXid &&
+                    xmin == other.xmin &&
+                    xmax == other.xmax &&
+                    fieldname.equals(other.fieldname) &&
+                    Arrays.equals(activeXids, other.activeXids);
+        }
+    }
+
+    private static final long[] NO_XIDS = new long[0];
+
+    /**
+     * One kind of entry's share of the cache
+     */
+    private static final class Kind {
+        private final AtomicLong sizeInBytes = new AtomicLong();
+        private final AtomicLong entries = new AtomicLong();
+        private final CounterMetric hits = new CounterMetric();
+        private final CounterMetric misses = new CounterMetric();
+        private final CounterMetric evictions = new CounterMetric();
+    }
+
+    /**
+     * Bitsets and settled versions share one cache, so they're weighed against the one limit
+     */
+    private final Cache<Key, Object> cache;
+    private final Kind bitsets = new Kind();
+    private final Kind settled = new Kind();
+    private final Set<Object> registeredReaders = ConcurrentCollections.newConcurrentSet();
+    private final long maxSizeInBytes;
+
+    @Inject
+    public VisibilityBitSetCache(Settings settings) {
+        super(settings);
+
+        ByteSizeValue maxSize = settings.getAsMemory("zombodb.visibility.cache.size", "1%");
+        this.maxSizeInBytes = maxSize.bytes();
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(1, maxSizeInBytes))
+                .weigher(new Weigher<Key, Object>() {
+                    @Override
+                    public int weigh(Key key, Object value) {
+                        return (int) Math.min(Integer.MAX_VALUE, weight(key, value));
+                    }
+                })
+                .removalListener(new RemovalListener<Key, Object>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<Key, Object> notification) {
+                        Kind kind = kindOf(notification.getValue());
+                        kind.sizeInBytes.addAndGet(-weight(notification.getKey(), notification.getValue()));
+                        kind.entries.decrementAndGet();
+                        if (notification.wasEvicted())
+                            kind.evictions.inc();
+                    }
+                })
+                .build();
+    }
+
+    private Kind kindOf(Object value) {
+        return value instanceof VisibilityQueryHelper.SettledVersions ? settled : bitsets;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long weight(Key key, Object value) {
+        long bytes = key.ramBytesUsed();
+        if (value instanceof VisibilityQueryHelper.SettledVersions)
+            return bytes + ((VisibilityQueryHelper.SettledVersions) value).ramBytesUsed();
+
+        for (FixedBitSet bits : ((Map<Integer, FixedBitSet>) value).values())
+            bytes += bits.getBits().length * 8 + 32;
+        return bytes;
+    }
+
+    public boolean isEnabled() {
+        return maxSizeInBytes > 0;
+    }
+
+    /**
+     * @return the cached bitsets for this key, computing (and caching) them if they aren't already
+     */
+    Map<Integer, FixedBitSet> get(IndexReader reader, Key key, Callable<Map<Integer, FixedBitSet>> loader) throws IOException {
+        return load(bitsets, reader, key, loader);
+    }
+
+    /**
+     * @return the reader's snapshot-independent {@link VisibilityQueryHelper.SettledVersions}, computing (and caching)
+     * them if they aren't already.  Their key's xids are all -1, which no snapshot has
+     */
+    VisibilityQueryHelper.SettledVersions getSettled(IndexReader reader, String fieldname, Callable<VisibilityQueryHelper.SettledVersions> loader) throws IOException {
+        return load(settled, reader, new Key(reader.getCombinedCoreAndDeletesKey(), fieldname, -1, -1, -1, NO_XIDS), loader);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <V> V load(final Kind kind, IndexReader reader, final Key key, final Callable<V> loader) throws IOException {
+        if (!isEnabled()) {
+            try {
+                return loader.call();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+
+        final Object readerKey = key.readerKey;
+        if (registeredReaders.add(readerKey)) {
+            reader.addReaderClosedListener(new IndexReader.ReaderClosedListener() {
+                @Override
+                public void onClose(IndexReader reader) {
+                    invalidate(readerKey);
+                }
+            });
+        }
+
+        final boolean[] loaded = new boolean[1];
+        try {
+            V value = (V) cache.get(key, new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    V value = loader.call();
+                    loaded[0] = true;
+                    kind.sizeInBytes.addAndGet(weight(key, value));
+                    kind.entries.incrementAndGet();
+                    return value;
+                }
+            });
+
+            if (loaded[0])
+                kind.misses.inc();
+            else
+                kind.hits.inc();
+            return value;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private void invalidate(Object readerKey) {
+        registeredReaders.remove(readerKey);
+        for (Key key : cache.asMap().keySet()) {
+            if (key.readerKey == readerKey)
+                cache.invalidate(key);
+        }
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    public VisibilityCacheStats stats() {
+        return new VisibilityCacheStats(maxSizeInBytes,
+                bitsets.entries.get(), bitsets.sizeInBytes.get(), bitsets.hits.count(), bitsets.misses.count(), bitsets.evictions.count(),
+                settled.entries.get(), settled.sizeInBytes.get(), settled.hits.count(), settled.misses.count(), settled.evictions.count());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.query;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * A point-in-time view of one node's {@link VisibilityBitSetCache}:  its bitsets and settled versions, which share
+ * its one maximum size
+ */
+public class VisibilityCacheStats implements Streamable, ToXContent {
+
+    private long maxSizeInBytes;
+    private long bitsetEntries;
+    private long bitsetSizeInBytes;
+    private long bitsetHits;
+    private long bitsetMisses;
+    private long bitsetEvictions;
+    private long settledEntries;
+    private long settledSizeInBytes;
+    private long settledHits;
+    private long settledMisses;
+    private long settledEvictions;
+
+    VisibilityCacheStats() {
+    }
+
+    VisibilityCacheStats(long maxSizeInBytes,
+                         long bitsetEntries, long bitsetSizeInBytes, long bitsetHits, long bitsetMisses, long bitsetEvictions,
+                         long settledEntries, long settledSizeInBytes, long settledHits, long settledMisses, long settledEvictions) {
+        this.maxSizeInBytes = maxSizeInBytes;
+        this.bitsetEntries = bitsetEntries;
+        this.bitsetSizeInBytes = bitsetSizeInBytes;
+        this.bitsetHits = bitsetHits;
+        this.bitsetMisses = bitsetMisses;
+        this.bitsetEvictions = bitsetEvictions;
+        this.settledEntries = settledEntries;
+        this.settledSizeInBytes = settledSizeInBytes;
+        this.settledHits = settledHits;
+        this.settledMisses = settledMisses;
+        this.settledEvictions = settledEvictions;
+    }
+
+    public static VisibilityCacheStats readVisibilityCacheStats(StreamInput in) throws IOException {
+        VisibilityCacheStats stats = new VisibilityCacheStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    public long getMaxSizeInBytes() {
+        return maxSizeInBytes;
+    }
+
+    public long getBitsetEntries() {
+        return bitsetEntries;
+    }
+
+    public long getBitsetSizeInBytes() {
+        return bitsetSizeInBytes;
+    }
+
+    public long getBitsetHits() {
+        return bitsetHits;
+    }
+
+    public long getBitsetMisses() {
+        return bitsetMisses;
+    }
+
+    public long getBitsetEvictions() {
+        return bitsetEvictions;
+    }
+
+    public long getSettledEntries() {
+        return settledEntries;
+    }
+
+    public long getSettledSizeInBytes() {
+        return settledSizeInBytes;
+    }
+
+    public long getSettledHits() {
+        return settledHits;
+    }
+
+    public long getSettledMisses() {
+        return settledMisses;
+    }
+
+    public long getSettledEvictions() {
+        return settledEvictions;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        maxSizeInBytes = in.readVLong();
+        bitsetEntries = in.readVLong();
+        bitsetSizeInBytes = in.readVLong();
+        bitsetHits = in.readVLong();
+        bitsetMisses = in.readVLong();
+        bitsetEvictions = in.readVLong();
+        settledEntries = in.readVLong();
+        settledSizeInBytes = in.readVLong();
+        settledHits = in.readVLong();
+        settledMisses = in.readVLong();
+        settledEvictions = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(maxSizeInBytes);
+        out.writeVLong(bitsetEntries);
+        out.writeVLong(bitsetSizeInBytes);
+        out.writeVLong(bitsetHits);
+        out.writeVLong(bitsetMisses);
+        out.writeVLong(bitsetEvictions);
+        out.writeVLong(settledEntries);
+        out.writeVLong(settledSizeInBytes);
+        out.writeVLong(settledHits);
+        out.writeVLong(settledMisses);
+        out.writeVLong(settledEvictions);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("visibility_cache");
+        builder.field("size_in_bytes", bitsetSizeInBytes + settledSizeInBytes);
+        builder.field("max_size_in_bytes", maxSizeInBytes);
+        builder.startObject("bitsets");
+        builder.field("entries", bitsetEntries);
+        builder.field("size_in_bytes", bitsetSizeInBytes);
+        builder.field("hits", bitsetHits);
+        builder.field("misses", bitsetMisses);
+        builder.field("evictions", bitsetEvictions);
+        builder.endObject();
+        builder.startObject("settled");
+        builder.field("entries", settledEntries);
+        builder.field("size_in_bytes", settledSizeInBytes);
+        builder.field("hits", settledHits);
+        builder.field("misses", settledMisses);
+        builder.field("evictions", settledEvictions);
+        builder.endObject();
+        builder.endObject();
+        return builder;
+    }
+}
@@ -16,92 +16,183 @@
 package com.tcdi.zombodb.query;
 
 import org.apache.lucene.index.*;
-import org.apache.lucene.queries.TermFilter;
 import org.apache.lucene.queries.TermsFilter;
+import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.join.ZomboDBTermsCollector;
 import org.apache.lucene.util.*;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.lucene.search.XBooleanFilter;
 import org.elasticsearch.common.lucene.search.XConstantScoreQuery;
+import org.elasticsearch.index.mapper.FieldMapper;
 import org.elasticsearch.search.internal.SearchContext;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListSet;
 
 final class VisibilityQueryHelper {
 
-    private static final ConcurrentSkipListSet<Long> KNOWN_COMMITTED_XIDS = new ConcurrentSkipListSet<>();
+    /**
+     * The distinct _ctids of the "state" docs, which represent the records in the index that have been
+     * updated.  Used below to determine visibility.  Each segment's _ctids are cached, so only segments
+     * that are new or have had deletes since the last query are read
+     */
+    static List<BytesRef> findUpdatedCtids(IndexSearcher searcher, UpdatedCtidCache cache) throws IOException {
+        return cache.updatedCtids(searcher.getIndexReader());
+    }
 
-    static List<BytesRef> findUpdatedCtids(IndexSearcher searcher) throws IOException {
-        final List<BytesRef> updatedCtids = new ArrayList<>();
+    /**
+     * Resolves every version of every updated row as far as it can be without a snapshot:  the newest committed
+     * version of each row is visible and the rest aren't.  For a row whose versions are all older than a
+     * snapshot's xmin, that's also the answer for the snapshot, since each of those transactions had finished
+     * before the snapshot was taken.  This doesn't depend on the snapshot, so it's computed once per reader.
+     * <p>
+     * Only the rows with a version at or above the shard's compaction watermark are read.  Compaction has
+     * already deleted the aborted and superseded versions below it, so any other row has a single, committed,
+     * version left, which is visible, and its newest xid is left at -1.  Each new reader then costs what's
+     * been written since the last compaction, not the table's whole update history
+     */
+    static SettledVersions settleVersions(String field, IndexSearcher searcher, List<BytesRef> updatedCtids, CommittedXidCache.KnownXids knownXids, CommittedXidCache cache) throws IOException {
+        long[] newestXids = new long[updatedCtids.size()];
+        Arrays.fill(newestXids, -1);
 
-        //
-        // search the "state" type and collect a distinct set of all the _ctids
-        // these represent the records in the index that have been updated
-        // used below to determine visibility
-        //
-        // We use XConstantScoreQuery here so that we exclude deleted docs
-        //
+        Map<Integer, FixedBitSet> dead = new HashMap<>();
+        if (updatedCtids.size() == 0)
+            return new SettledVersions(newestXids, dead);
 
-        searcher.search(new XConstantScoreQuery(SearchContext.current().filterCache().cache(new TermFilter(new Term("_type", "state")))),
-                new ZomboDBTermsCollector("_ctid") {
-                    SortedDocValues ctids;
+        CommittedXidLookup committedXids = new CommittedXidLookup(searcher.getIndexReader(), cache);
+        cache.advance(knownXids, committedXids.getWatermark());
 
-                    @Override
-                    public void collect(int doc) throws IOException {
-                        updatedCtids.add(BytesRef.deepCopyOf(ctids.get(doc)));
-                    }
+        Filter updated = SearchContext.current().filterCache().cache(new TermsFilter(field, updatedCtids));
+        Filter filter = writtenSince(field, searcher, updated, updatedCtids, committedXids.getWatermark());
+        if (filter == null)
+            return new SettledVersions(newestXids, dead);
 
-                    @Override
-                    public void setNextReader(AtomicReaderContext context) throws IOException {
-                        ctids = FieldCache.DEFAULT.getTermsIndex(context.reader(), "_ctid");
-                    }
-                }
-        );
+        Versions versions = collectVersions(field, searcher, filter, updatedCtids);
+        versions.sort();
+
+        List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+        boolean foundVisible = false;
+        for (int i = 0; i < versions.size; i++) {
+            if (i == 0 || versions.row[i] != versions.row[i - 1]) {
+                // first (newest) version of the next row
+                foundVisible = false;
+                newestXids[versions.row[i]] = versions.xid[i];
+            }
+
+            if (foundVisible || !cache.isCommitted(knownXids, committedXids, versions.xid[i]))
+                bitset(dead, null, leaves, versions.readerOrd[i]).set(versions.docid[i]);
+            else
+                foundVisible = true;
+        }
 
-        Collections.sort(updatedCtids);
-        return updatedCtids;
+        return new SettledVersions(newestXids, dead);
     }
 
-    static Map<Integer, FixedBitSet> determineVisibility(final Query query, final String field, final long myXid, final long xmin, final long xmax, final Set<Long> activeXids, IndexSearcher searcher, List<BytesRef> updatedCtids) throws IOException {
-        final Map<Integer, FixedBitSet> visibilityBitSets = new HashMap<>();
+    /**
+     * @return a filter for every version of the updated rows that have a version at or above the watermark, or
+     * null if none do.  <code>updated</code> itself if there's no watermark yet
+     */
+    private static Filter writtenSince(String field, IndexSearcher searcher, Filter updated, List<BytesRef> updatedCtids, long watermark) throws IOException {
+        FieldMapper<?> mapper = SearchContext.current().smartNameFieldMapper("_xid");
+        if (watermark <= 0 || mapper == null)
+            return updated;
 
-        if (updatedCtids.size() == 0)
-            return visibilityBitSets;
+        XBooleanFilter recent = new XBooleanFilter();
+        recent.add(updated, BooleanClause.Occur.MUST);
+        recent.add(mapper.rangeFilter(watermark, null, true, true, null), BooleanClause.Occur.MUST);
+
+        Versions versions = collectVersions(field, searcher, recent, updatedCtids);
+        FixedBitSet rows = new FixedBitSet(updatedCtids.size());
+        for (int i = 0; i < versions.size; i++)
+            rows.set(versions.row[i]);
+
+        if (rows.cardinality() == 0)
+            return null;
+
+        List<BytesRef> ctids = new ArrayList<>(rows.cardinality());
+        for (int row = rows.nextSetBit(0); row != -1; row = row + 1 < rows.length() ? rows.nextSetBit(row + 1) : -1)
+            ctids.add(updatedCtids.get(row));
+        return new TermsFilter(field, ctids);
+    }
+
+    /**
+     * Only the rows with a version at or above the snapshot's xmin are resolved against the snapshot.  Every
+     * other row's versions are as {@link #settleVersions(String, IndexSearcher, List, CommittedXidCache.KnownXids, CommittedXidCache)}
+     * left them, so the work here grows with the number of rows written since the oldest running transaction
+     * started rather than with the table's whole update history
+     */
+    static Map<Integer, FixedBitSet> determineVisibility(final Query query, final String field, final long myXid, final long xmin, final long xmax, final long[] activeXids, IndexSearcher searcher, final List<BytesRef> updatedCtids, SettledVersions settled, CommittedXidCache.KnownXids knownXids, CommittedXidCache cache) throws IOException {
+        List<BytesRef> recentCtids = new ArrayList<>();
+        for (int row = 0; row < updatedCtids.size(); row++) {
+            if (settled.newestXids[row] >= xmin)
+                recentCtids.add(updatedCtids.get(row));
+        }
+
+        if (recentCtids.isEmpty())
+            return settled.dead;
 
         //
-        // build a map of {@link VisibilityInfo} objects by each _prev_ctid
-        //
-        // We use XConstantScoreQuery here so that we exclude deleted docs
+        // the recent rows' versions replace whatever the settled bitsets say about them, with the settled
+        // bitsets copied the first time one of their segments is changed.  A map of these (key'd on reader
+        // ord) is what we return.
         //
 
-        final Map<BytesRef, List<VisibilityInfo>> map = new HashMap<>();
+        Versions versions = collectVersions(field, searcher, new TermsFilter(field, recentCtids), recentCtids);
+        versions.sort();
+
+        Map<Integer, FixedBitSet> visibilityBitSets = new HashMap<>(settled.dead);
+        List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+        CommittedXidLookup committedXids = new CommittedXidLookup(searcher.getIndexReader(), cache);
+        boolean foundVisible = false;
+        for (int i = 0; i < versions.size; i++) {
+            long xid = versions.xid[i];
+            FixedBitSet visibilityBitset = bitset(visibilityBitSets, settled.dead, leaves, versions.readerOrd[i]);
+
+            if (i == 0 || versions.row[i] != versions.row[i - 1])
+                foundVisible = false;   // first (newest) version of the next row
+
+            if (foundVisible || xid > xmax || Arrays.binarySearch(activeXids, xid) >= 0 || (xid != myXid && !cache.isCommitted(knownXids, committedXids, xid))) {
+                // document is not visible to us
+                visibilityBitset.set(versions.docid[i]);
+            } else {
+                visibilityBitset.clear(versions.docid[i]);
+                foundVisible = true;
+            }
+        }
+
+        return visibilityBitSets;
+    }
+
+    /**
+     * Collects every version of each row matched by the filter into {@link Versions}.  A row is identified by
+     * the position of its _prev_ctid in ctids, which is sorted, so that position is an ordinal that's the
+     * same in every segment
+     * <p>
+     * We use XConstantScoreQuery here so that we exclude deleted docs
+     */
+    private static Versions collectVersions(final String field, IndexSearcher searcher, Filter filter, final List<BytesRef> ctids) throws IOException {
+        final Versions versions = new Versions(ctids.size());
         searcher.search(
-                new XConstantScoreQuery(SearchContext.current().filterCache().cache(new TermsFilter(field, updatedCtids))),
+                new XConstantScoreQuery(filter),
                 new ZomboDBTermsCollector(field) {
                     private SortedDocValues prevCtids;
                     private SortedNumericDocValues xids;
                     private SortedNumericDocValues sequence;
                     private int ord;
-                    private int maxdoc;
 
                     @Override
                     public void collect(int doc) throws IOException {
+                        int row = Collections.binarySearch(ctids, prevCtids.get(doc));
+                        if (row < 0)
+                            return;
+
                         xids.setDocument(doc);
                         sequence.setDocument(doc);
-
-                        long xid = xids.valueAt(0);
-                        long seq = sequence.valueAt(0);
-                        BytesRef prevCtid = prevCtids.get(doc);
-
-                        List<VisibilityInfo> matchingDocs = map.get(prevCtid);
-
-                        if (matchingDocs == null)
-                            map.put(BytesRef.deepCopyOf(prevCtid), matchingDocs = new ArrayList<>());
-                        matchingDocs.add(new VisibilityInfo(ord, maxdoc, doc, xid, seq));
+                        versions.add(row, ord, doc, xids.valueAt(0), sequence.valueAt(0));
                     }
 
                     @Override
@@ -110,71 +201,128 @@ final class VisibilityQueryHelper {
                         xids = context.reader().getSortedNumericDocValues("_xid");
                         sequence = context.reader().getSortedNumericDocValues("_zdb_seq");
                         ord = context.ord;
-                        maxdoc = context.reader().maxDoc();
                     }
                 }
         );
+        return versions;
+    }
 
-        if (map.isEmpty())
-            return visibilityBitSets;
+    /**
+     * @return the bitset for the reader ord, created if there isn't one, or copied if it's the shared one
+     */
+    private static FixedBitSet bitset(Map<Integer, FixedBitSet> bitsets, Map<Integer, FixedBitSet> shared, List<AtomicReaderContext> leaves, int readerOrd) {
+        FixedBitSet bits = bitsets.get(readerOrd);
+        if (bits == null)
+            bitsets.put(readerOrd, bits = new FixedBitSet(leaves.get(readerOrd).reader().maxDoc()));
+        else if (shared != null && bits == shared.get(readerOrd))
+            bitsets.put(readerOrd, bits = bits.clone());
+        return bits;
+    }
 
-        //
-        // pick out the first VisibilityInfo for each document that is visible & committed
-        // and build a FixedBitSet for each reader 'ord' that contains visible
-        // documents.  A map of these (key'd on reader ord) is what we return.
-        //
+    /**
+     * What {@link #settleVersions(String, IndexSearcher, List, CommittedXidCache.KnownXids, CommittedXidCache)}
+     * found:  the xid of each row's newest version (or -1, if it has none at or above the watermark), and each
+     * segment's invisible versions.  Shared, so never modified
+     */
+    static final class SettledVersions {
+        final long[] newestXids;
+        final Map<Integer, FixedBitSet> dead;
 
-        BytesRefBuilder bytesRefBuilder = new BytesRefBuilder() {
-            /* overloaded to avoid making a copy of the byte array */
-            @Override
-            public BytesRef toBytesRef() {
-                return new BytesRef(this.bytes(), 0, this.length());
-            }
-        };
+        SettledVersions(long[] newestXids, Map<Integer, FixedBitSet> dead) {
+            this.newestXids = newestXids;
+            this.dead = dead;
+        }
 
-        Terms committedXidsTerms = MultiFields.getFields(searcher.getIndexReader()).terms("_zdb_committed_xid");
-        TermsEnum committedXidsEnum = committedXidsTerms == null ? null : committedXidsTerms.iterator(null);
-        for (List<VisibilityInfo> visibility : map.values()) {
-            CollectionUtil.introSort(visibility, new Comparator<VisibilityInfo>() {
-                @Override
-                public int compare(VisibilityInfo o1, VisibilityInfo o2) {
-                    int cmp = Long.compare(o2.xid, o1.xid);
-                    return cmp == 0 ? Long.compare(o2.sequence, o1.sequence) : cmp;
-                }
-            });
-
-            boolean foundVisible = false;
-            for (VisibilityInfo mapping : visibility) {
-
-                if (foundVisible || mapping.xid > xmax || activeXids.contains(mapping.xid) || (mapping.xid != myXid && !isCommitted(committedXidsEnum, mapping.xid, bytesRefBuilder))) {
-                    // document is not visible to us
-                    FixedBitSet visibilityBitset = visibilityBitSets.get(mapping.readerOrd);
-                    if (visibilityBitset == null)
-                        visibilityBitSets.put(mapping.readerOrd, visibilityBitset = new FixedBitSet(mapping.maxdoc));
-                    visibilityBitset.set(mapping.docid);
-                } else {
-                    foundVisible = true;
-                }
+        long ramBytesUsed() {
+            long bytes = newestXids.length * 8L + 64;
+            for (FixedBitSet bits : dead.values())
+                bytes += bits.getBits().length * 8L + 32;
+            return bytes;
+        }
+    }
+
+    /**
+     * Every version of the updated rows, as parallel arrays
+     */
+    static final class Versions {
+        int[] row;
+        int[] readerOrd;
+        int[] docid;
+        long[] xid;
+        long[] sequence;
+        int size;
+
+        Versions(int initialCapacity) {
+            initialCapacity = Math.max(1, initialCapacity);
+            row = new int[initialCapacity];
+            readerOrd = new int[initialCapacity];
+            docid = new int[initialCapacity];
+            xid = new long[initialCapacity];
+            sequence = new long[initialCapacity];
+        }
+
+        void add(int row, int readerOrd, int docid, long xid, long sequence) {
+            if (size == this.row.length) {
+                this.row = ArrayUtil.grow(this.row, size + 1);
+                this.readerOrd = Arrays.copyOf(this.readerOrd, this.row.length);
+                this.docid = Arrays.copyOf(this.docid, this.row.length);
+                this.xid = Arrays.copyOf(this.xid, this.row.length);
+                this.sequence = Arrays.copyOf(this.sequence, this.row.length);
             }
+
+            this.row[size] = row;
+            this.readerOrd[size] = readerOrd;
+            this.docid[size] = docid;
+            this.xid[size] = xid;
+            this.sequence[size] = sequence;
+            size++;
         }
 
-        return visibilityBitSets;
-    }
+        /**
+         * Sorts by row, and then each row's versions newest first:  by xid, and then by sequence
+         * within the same transaction
+         */
+        void sort() {
+            new IntroSorter() {
+                private int pivotRow;
+                private long pivotXid;
+                private long pivotSequence;
 
-    private static boolean isCommitted(TermsEnum termsEnum, long xid, BytesRefBuilder builder) throws IOException {
-        if (KNOWN_COMMITTED_XIDS.contains(xid))
-            return true;
+                @Override
+                protected int compare(int i, int j) {
+                    return compare(row[i], xid[i], sequence[i], j);
+                }
 
-        if (termsEnum == null)
-            return false;
+                @Override
+                protected void swap(int i, int j) {
+                    int tmp = row[i]; row[i] = row[j]; row[j] = tmp;
+                    tmp = readerOrd[i]; readerOrd[i] = readerOrd[j]; readerOrd[j] = tmp;
+                    tmp = docid[i]; docid[i] = docid[j]; docid[j] = tmp;
+                    long ltmp = xid[i]; xid[i] = xid[j]; xid[j] = ltmp;
+                    ltmp = sequence[i]; sequence[i] = sequence[j]; sequence[j] = ltmp;
+                }
 
-        NumericUtils.longToPrefixCoded(xid, 0, builder);
-        boolean isCommitted = termsEnum.seekExact(builder.toBytesRef());
+                @Override
+                protected void setPivot(int i) {
+                    pivotRow = row[i];
+                    pivotXid = xid[i];
+                    pivotSequence = sequence[i];
+                }
 
-        if (isCommitted)
-            KNOWN_COMMITTED_XIDS.add(xid);
+                @Override
+                protected int comparePivot(int j) {
+                    return compare(pivotRow, pivotXid, pivotSequence, j);
+                }
 
-        builder.clear();
-        return isCommitted;
+                private int compare(int row1, long xid1, long sequence1, int j) {
+                    int cmp = Integer.compare(row1, row[j]);
+                    if (cmp == 0)
+                        cmp = Long.compare(xid[j], xid1);
+                    if (cmp == 0)
+                        cmp = Long.compare(sequence[j], sequence1);
+                    return cmp;
+                }
+            }.sort(0, size);
+        }
     }
 }
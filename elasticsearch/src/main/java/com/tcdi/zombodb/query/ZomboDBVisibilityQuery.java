@@ -25,15 +25,16 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.FixedBitSet;
-import org.elasticsearch.common.lang3.ArrayUtils;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.lucene.search.XConstantScoreQuery;
 import org.elasticsearch.search.internal.SearchContext;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 class ZomboDBVisibilityQuery extends Query {
 
@@ -42,15 +43,29 @@ class ZomboDBVisibilityQuery extends Query {
     private final long myXid;
     private final long xmin;
     private final long xmax;
-    private final Set<Long> activeXids;
+    private final long[] activeXids;
+    private final VisibilityBitSetCache cache;
+    private final CommittedXidCache.KnownXids knownXids;
+    private final CommittedXidCache committedXidCache;
+    private final UpdatedCtidCache updatedCtidCache;
 
-    ZomboDBVisibilityQuery(Query query, String fieldname, long myXid, long xmin, long xmax, Set<Long> activeXids) {
+    ZomboDBVisibilityQuery(Query query, String fieldname, long myXid, long xmin, long xmax, Set<Long> activeXids, VisibilityBitSetCache cache, CommittedXidCache.KnownXids knownXids, CommittedXidCache committedXidCache, UpdatedCtidCache updatedCtidCache) {
         this.query = query;
         this.fieldname = fieldname;
         this.myXid = myXid;
         this.xmin = xmin;
         this.xmax = xmax;
-        this.activeXids = activeXids;
+        this.cache = cache;
+        this.knownXids = knownXids;
+        this.committedXidCache = committedXidCache;
+        this.updatedCtidCache = updatedCtidCache;
+
+        // sorted, so that the same snapshot always has the same array
+        this.activeXids = new long[activeXids.size()];
+        int i = 0;
+        for (Long xid : activeXids)
+            this.activeXids[i++] = xid;
+        Arrays.sort(this.activeXids);
     }
 
     @Override
@@ -58,23 +73,34 @@ class ZomboDBVisibilityQuery extends Query {
         class VisFilter extends Filter {
             private Map<Integer, FixedBitSet> visibilityBitSets = null;
             private final IndexSearcher searcher;
-            private final List<BytesRef> updatedCtids;
 
-            private VisFilter(IndexSearcher searcher, List<BytesRef> updatedCtids) {
+            private VisFilter(IndexSearcher searcher) {
                 this.searcher = searcher;
-                this.updatedCtids = updatedCtids;
             }
 
             @Override
             public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
-                if (visibilityBitSets == null)
-                    visibilityBitSets = VisibilityQueryHelper.determineVisibility(query, fieldname, myXid, xmin, xmax, activeXids, searcher, updatedCtids);
+                if (visibilityBitSets == null) {
+                    VisibilityBitSetCache.Key key = new VisibilityBitSetCache.Key(reader.getCombinedCoreAndDeletesKey(), fieldname, myXid, xmin, xmax, activeXids);
+                    visibilityBitSets = cache.get(reader, key, new Callable<Map<Integer, FixedBitSet>>() {
+                        @Override
+                        public Map<Integer, FixedBitSet> call() throws Exception {
+                            final List<BytesRef> updatedCtids = VisibilityQueryHelper.findUpdatedCtids(searcher, updatedCtidCache);
+                            VisibilityQueryHelper.SettledVersions settled = cache.getSettled(reader, fieldname, new Callable<VisibilityQueryHelper.SettledVersions>() {
+                                @Override
+                                public VisibilityQueryHelper.SettledVersions call() throws Exception {
+                                    return VisibilityQueryHelper.settleVersions(fieldname, searcher, updatedCtids, knownXids, committedXidCache);
+                                }
+                            });
+                            return VisibilityQueryHelper.determineVisibility(query, fieldname, myXid, xmin, xmax, activeXids, searcher, updatedCtids, settled, knownXids, committedXidCache);
+                        }
+                    });
+                }
                 return visibilityBitSets.get(context.ord);
             }
         }
 
-        IndexSearcher searcher = new IndexSearcher(reader);
-        return new XConstantScoreQuery(new VisFilter(searcher, VisibilityQueryHelper.findUpdatedCtids(searcher)));
+        return new XConstantScoreQuery(new VisFilter(new IndexSearcher(reader)));
     }
 
     @Override
@@ -84,7 +110,7 @@ class ZomboDBVisibilityQuery extends Query {
 
     @Override
     public String toString(String field) {
-        return "visibility(" + fieldname + ", query=" + query + ", myXid=" + myXid + ", xmin=" + xmin + ", xmax=" + xmax + ", active=" + ArrayUtils.toString(activeXids) + ")";
+        return "visibility(" + fieldname + ", query=" + query + ", myXid=" + myXid + ", xmin=" + xmin + ", xmax=" + xmax + ", active=" + Arrays.toString(activeXids) + ")";
     }
 
     @Override
@@ -95,7 +121,7 @@ class ZomboDBVisibilityQuery extends Query {
         hash = hash * 31 + (int)(myXid ^ (myXid >>> 32));
         hash = hash * 31 + (int)(xmin ^ (xmin >>> 32));
         hash = hash * 31 + (int)(xmax ^ (xmax >>> 32));
-        hash = hash * 31 + ArrayUtils.toString(activeXids).hashCode();
+        hash = hash * 31 + Arrays.hashCode(activeXids);
         return hash;
     }
 
@@ -112,6 +138,6 @@ class ZomboDBVisibilityQuery extends Query {
                 this.myXid == eq.myXid &&
                 this.xmin == eq.xmin &&
                 this.xmax == eq.xmax &&
-                ArrayUtils.isEquals(this.activeXids, eq.activeXids);
+                Arrays.equals(this.activeXids, eq.activeXids);
     }
 }
@@ -16,6 +16,7 @@
 package com.tcdi.zombodb.query;
 
 import org.apache.lucene.search.Query;
+import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.index.mapper.core.CompletionFieldMapper;
 import org.elasticsearch.index.query.QueryParseContext;
@@ -31,6 +32,17 @@ import java.util.Set;
 public class ZomboDBVisibilityQueryParser implements QueryParser {
     public static String NAME = "zombodb_visibility";
 
+    private final VisibilityBitSetCache cache;
+    private final CommittedXidCache committedXidCache;
+    private final UpdatedCtidCache updatedCtidCache;
+
+    @Inject
+    public ZomboDBVisibilityQueryParser(VisibilityBitSetCache cache, CommittedXidCache committedXidCache, UpdatedCtidCache updatedCtidCache) {
+        this.cache = cache;
+        this.committedXidCache = committedXidCache;
+        this.updatedCtidCache = updatedCtidCache;
+    }
+
     @Override
     public String[] names() {
         return new String[]{NAME};
@@ -87,6 +99,6 @@ public class ZomboDBVisibilityQueryParser implements QueryParser {
         else if (xmin == -1)
             throw new QueryParsingException(parseContext.index(), "[zdb visibility] missing [xmin]");
 
-        return new ZomboDBVisibilityQuery(query, fieldname, myXid, xmin, xmax, activeXids);
+        return new ZomboDBVisibilityQuery(query, fieldname, myXid, xmin, xmax, activeXids, cache, committedXidCache.forIndex(parseContext.index().name()), committedXidCache, updatedCtidCache);
     }
 }
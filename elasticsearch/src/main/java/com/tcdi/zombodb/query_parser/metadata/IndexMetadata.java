@@ -20,6 +20,7 @@ import com.tcdi.zombodb.query_parser.ASTIndexLink;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -42,19 +43,20 @@ public class IndexMetadata {
     private final ASTIndexLink link;
 
 
-    private Map<String, Map<String, Object>> fields;
-    private String pkeyFieldName;
-    private boolean alwaysResolveJoins = false;
+    private final Map<String, Map<String, Object>> fields;
+    private final String pkeyFieldName;
+    private final boolean alwaysResolveJoins;
 
     public IndexMetadata(ASTIndexLink link, MappingMetaData mmd) {
         this.link = link;
         try {
             Map meta = (Map) mmd.getSourceAsMap().get("_meta");
+            Map<String, Map<String, Object>> fields = (Map) mmd.getSourceAsMap().get("properties");
 
-            fields = (Map) mmd.getSourceAsMap().get("properties");
             fields.put("_all", (Map) mmd.getSourceAsMap().get("_all"));
-            pullUpMultiFields();
+            pullUpMultiFields(fields);
 
+            this.fields = Collections.unmodifiableMap(fields);
             pkeyFieldName = meta != null ? (String) meta.get("primary_key") : null;
             alwaysResolveJoins = meta.containsKey("always_resolve_joins") && "true".equals(String.valueOf(meta.get("always_resolve_joins")));
         } catch (IOException ioe) {
@@ -62,6 +64,16 @@ public class IndexMetadata {
         }
     }
 
+    /**
+     * Shares the already-parsed mapping of <code>metadata</code>, which {@link IndexMetadataService} caches
+     */
+    public IndexMetadata(ASTIndexLink link, IndexMetadata metadata) {
+        this.link = link;
+        this.fields = metadata.fields;
+        this.pkeyFieldName = metadata.pkeyFieldName;
+        this.alwaysResolveJoins = metadata.alwaysResolveJoins;
+    }
+
     public ASTIndexLink getLink() {
         return link;
     }
@@ -170,7 +182,7 @@ public class IndexMetadata {
         return fields.toString();
     }
 
-    private void pullUpMultiFields() {
+    private static void pullUpMultiFields(Map<String, Map<String, Object>> fields) {
         Map<String, Map<String, Object>> found = new HashMap<>();
         for(Map.Entry<String, Map<String, Object>> entry : fields.entrySet()) {
             Map<String, Object> multifields = (Map) entry.getValue().get("fields");
@@ -29,14 +29,32 @@ import java.util.*;
 
 public class IndexMetadataManager {
 
+    /**
+     * A linked index, and its mapping from either this node's {@link IndexMetadataService} or, if the index
+     * isn't in this node's cluster state yet, a GetMappings request
+     */
     public static class IndexLinkAndMapping {
         public ASTIndexLink link;
-        public ActionFuture<GetMappingsResponse> mapping;
+        private final IndexMetadataService.CachedIndex cached;
+        private final ActionFuture<GetMappingsResponse> mapping;
 
-        private IndexLinkAndMapping(ASTIndexLink link, ActionFuture<GetMappingsResponse> mapping) {
+        private IndexLinkAndMapping(ASTIndexLink link, IndexMetadataService.CachedIndex cached, ActionFuture<GetMappingsResponse> mapping) {
             this.link = link;
+            this.cached = cached;
             this.mapping = mapping;
         }
+
+        private Map<String, Object> getDataMapping() throws Exception {
+            if (cached != null)
+                return cached.getDataMapping();
+            return mapping.get().getMappings().get(link.getIndexName()).get("data").getSourceAsMap();
+        }
+
+        private IndexMetadata getMetadata() throws Exception {
+            if (cached != null)
+                return cached.getMetadata() == null ? null : new IndexMetadata(link, cached.getMetadata());
+            return new IndexMetadata(link, mapping.get().getMappings().get(link.getIndexName()).get("data"));
+        }
     }
 
     private final List<IndexLinkAndMapping> mappings = new ArrayList<>();
@@ -47,10 +65,19 @@ public class IndexMetadataManager {
     private Map<ASTIndexLink, IndexMetadata> metadataCache = new HashMap<>();
 
     private final Client client;
+    private final IndexMetadataService metadataService;
     private ASTIndexLink myIndex;
 
     public IndexMetadataManager(Client client, String indexName) {
+        this(client, null, indexName);
+    }
+
+    /**
+     * @param metadataService this node's service, or null to ask the master for every mapping
+     */
+    public IndexMetadataManager(Client client, IndexMetadataService metadataService, String indexName) {
         this.client = client;
+        this.metadataService = metadataService;
         myIndex = loadMapping(indexName, null);
     }
 
@@ -120,7 +147,7 @@ public class IndexMetadataManager {
         try {
             IndexMetadata md = metadataCache.get(link);
             if (md == null)
-                metadataCache.put(link, md = new IndexMetadata(link, lookupMapping(link).mapping.get().getMappings().get(link.getIndexName()).get("data")));
+                metadataCache.put(link, md = lookupMapping(link).getMetadata());
             return md;
         } catch (NullPointerException npe) {
             return null;
@@ -133,17 +160,33 @@ public class IndexMetadataManager {
         if (client == null)
             return link; // nothing we can do
 
-        GetMappingsRequest getMappingsRequest = new GetMappingsRequest();
-        getMappingsRequest.indices(indexName).types("data");
-        getMappingsRequest.indicesOptions(IndicesOptions.fromOptions(false, false, true, true));
-        getMappingsRequest.local(false);
+        IndexMetadataService.CachedIndex cached = metadataService == null ? null : metadataService.get(indexName);
+        ActionFuture<GetMappingsResponse> future = null;
+
+        if (cached == null) {
+            GetMappingsRequest getMappingsRequest = new GetMappingsRequest();
+            getMappingsRequest.indices(indexName).types("data");
+            getMappingsRequest.indicesOptions(IndicesOptions.fromOptions(false, false, true, true));
+            getMappingsRequest.local(false);
+
+            future = client.admin().indices().getMappings(getMappingsRequest);
+        }
 
-        ActionFuture<GetMappingsResponse> future = client.admin().indices().getMappings(getMappingsRequest);
         if (link == null) {
             try {
-                GetMappingsResponse response = future.get();
-                String firstIndexName = response.getMappings().iterator().next().key;
-                String pkey = (String) ((Map) response.getMappings().get(firstIndexName).get("data").getSourceAsMap().get("_meta")).get("primary_key");
+                String firstIndexName;
+                String pkey;
+
+                if (cached != null) {
+                    if (cached.getMetadata() == null)
+                        throw new RuntimeException(cached.getIndexName() + " has no data mapping");
+                    firstIndexName = cached.getIndexName();
+                    pkey = cached.getPrimaryKeyFieldName();
+                } else {
+                    GetMappingsResponse response = future.get();
+                    firstIndexName = response.getMappings().iterator().next().key;
+                    pkey = (String) ((Map) response.getMappings().get(firstIndexName).get("data").getSourceAsMap().get("_meta")).get("primary_key");
+                }
 
                 String alias = null;
                 if (!firstIndexName.equals(indexName)) {
@@ -158,7 +201,7 @@ public class IndexMetadataManager {
             }
         }
 
-        mappings.add(new IndexMetadataManager.IndexLinkAndMapping(link, future));
+        mappings.add(new IndexMetadataManager.IndexLinkAndMapping(link, cached, future));
         indexLinksByIndexName.put(indexName, link);
         return link;
     }
@@ -175,9 +218,9 @@ public class IndexMetadataManager {
         try {
             if (isNestedObjectFieldExternal(fieldname)) {
                 link = getExternalIndexLink(fieldname);
-                return (Map) lookupMapping(link).mapping.get().getMappings().get(link.getIndexName()).get("data").getSourceAsMap();
+                return lookupMapping(link).getDataMapping();
             } else {
-                Map properties = (Map) lookupMapping(link).mapping.get().getMappings().get(link.getIndexName()).get("data").getSourceAsMap().get("properties");
+                Map properties = (Map) lookupMapping(link).getDataMapping().get("properties");
                 return (Map<String, ?>) properties.get(fieldname);
             }
         } catch (NullPointerException npe) {
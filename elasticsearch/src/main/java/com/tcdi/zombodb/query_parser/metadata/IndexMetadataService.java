@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.query_parser.metadata;
+
+import com.tcdi.zombodb.query.CommittedXidBlock;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.cluster.routing.operation.OperationRouting;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.indices.IndexMissingException;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * This node's parsed metadata for each ZomboDB index, taken from the cluster state instead of asking the
+ * master for mappings and settings on every request.
+ * <p>
+ * An index's {@link CachedIndex} is built the first time it's asked for, and is rebuilt once the index's
+ * {@link IndexMetaData} changes (a new mapping, for example).  Like {@link ClusterChangedEvent#indexMetaDataChanged(IndexMetaData)},
+ * changes are detected by identity, since the cluster state only replaces an index's metadata when it changes
+ */
+public class IndexMetadataService extends AbstractComponent implements ClusterStateListener {
+
+    /**
+     * Everything ZomboDB needs to know about one version of an index's metadata.  Immutable
+     */
+    public static final class CachedIndex {
+        private final IndexMetaData source;
+        private final Map<String, Object> dataMapping;
+        private final IndexMetadata metadata;
+        private final String[] routingTable;
+        private final boolean committedXidBlocks;
+
+        private CachedIndex(IndexMetaData source, String[] routingTable) {
+            this.source = source;
+            this.routingTable = routingTable;
+
+            try {
+                MappingMetaData data = source.mapping("data");
+                MappingMetaData committed = source.mapping("committed");
+                Map committedProperties = committed == null ? null : (Map) committed.getSourceAsMap().get("properties");
+
+                this.dataMapping = data == null ? null : Collections.unmodifiableMap(data.getSourceAsMap());
+                this.metadata = data == null ? null : new IndexMetadata(null, data);
+                this.committedXidBlocks = committedProperties != null && committedProperties.containsKey(CommittedXidBlock.BLOCK_FIELD);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        }
+
+        public String getIndexName() {
+            return source.getIndex();
+        }
+
+        public IndexMetaData getIndexMetaData() {
+            return source;
+        }
+
+        /**
+         * @return the source of the index's "data" mapping, or null if it doesn't have one
+         */
+        public Map<String, Object> getDataMapping() {
+            return dataMapping;
+        }
+
+        /**
+         * @return the parsed "data" mapping, not yet associated with any {@link com.tcdi.zombodb.query_parser.ASTIndexLink},
+         * or null if the index doesn't have one
+         */
+        public IndexMetadata getMetadata() {
+            return metadata;
+        }
+
+        public String getPrimaryKeyFieldName() {
+            return metadata == null ? null : metadata.getPrimaryKeyFieldName();
+        }
+
+        public int getNumberOfShards() {
+            return routingTable.length;
+        }
+
+        /**
+         * @return a routing value for each shard, such that <code>getRoutingTable()[i]</code> routes to shard <code>i</code>
+         */
+        public String[] getRoutingTable() {
+            return routingTable;
+        }
+
+        /**
+         * @return true if the index stores committed xids in {@link CommittedXidBlock}s, rather than one document per xid
+         */
+        public boolean usesCommittedXidBlocks() {
+            return committedXidBlocks;
+        }
+    }
+
+    private final ClusterService clusterService;
+    private final ConcurrentMap<String, CachedIndex> cache = ConcurrentCollections.newConcurrentMap();
+
+    @Inject
+    public IndexMetadataService(Settings settings, ClusterService clusterService) {
+        super(settings);
+        this.clusterService = clusterService;
+
+        clusterService.add(this);
+    }
+
+    /**
+     * @param indexOrAlias the name of an index, or an alias of exactly one index
+     * @return the index's metadata, or null if it isn't in this node's cluster state
+     */
+    public CachedIndex get(String indexOrAlias) {
+        ClusterState state = clusterService.state();
+        IndexMetaData current;
+
+        try {
+            String[] indices = state.metaData().concreteIndices(IndicesOptions.fromOptions(false, false, true, true), indexOrAlias);
+            if (indices.length != 1)
+                return null;
+            current = state.metaData().index(indices[0]);
+        } catch (IndexMissingException ime) {
+            return null;
+        }
+
+        CachedIndex cached = cache.get(current.getIndex());
+        if (cached != null && cached.source == current)
+            return cached;
+
+        String[] routingTable = cached != null && cached.getNumberOfShards() == current.numberOfShards()
+                ? cached.routingTable
+                : bruteForceRoutingValuesForShards(state, current.getIndex(), current.numberOfShards());
+
+        cached = new CachedIndex(current, routingTable);
+        cache.put(current.getIndex(), cached);
+        return cached;
+    }
+
+    @Override
+    public void clusterChanged(ClusterChangedEvent event) {
+        if (!event.metaDataChanged())
+            return;
+
+        for (Map.Entry<String, CachedIndex> entry : cache.entrySet()) {
+            if (event.state().metaData().index(entry.getKey()) != entry.getValue().source)
+                cache.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private String[] bruteForceRoutingValuesForShards(ClusterState clusterState, String index, int shards) {
+        OperationRouting operationRouting = clusterService.operationRouting();
+
+        String[] routingTable = new String[shards];
+        for (int i = 0; i < shards; i++) {
+            String routing = String.valueOf(i);
+
+            int cnt = 0;
+            while ((operationRouting.indexShards(clusterState, index, "committed", routing, null).shardId()).id() != i)
+                routing = String.valueOf(i + ++cnt);
+            routingTable[i] = routing;
+        }
+
+        return routingTable;
+    }
+}
@@ -19,11 +19,10 @@ import com.tcdi.zombodb.query_parser.*;
 import com.tcdi.zombodb.query_parser.metadata.IndexMetadata;
 import com.tcdi.zombodb.query_parser.metadata.IndexMetadataManager;
 import com.tcdi.zombodb.query_parser.rewriters.QueryRewriter;
-import org.elasticsearch.action.ActionFuture;
+import com.tcdi.zombodb.query_parser.rewriters.RemoteLookups;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
-import org.elasticsearch.client.Client;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.aggregations.bucket.terms.TermsBuilder;
@@ -34,17 +33,17 @@ public class ExpansionOptimizer {
     private final QueryRewriter rewriter;
     private final ASTQueryTree tree;
     private final IndexMetadataManager metadataManager;
-    private final Client client;
+    private final RemoteLookups lookups;
     private final String searchPreference;
     private final boolean doFullFieldDataLookup;
 
     private Stack<ASTExpansion> generatedExpansionsStack = new Stack<>();
 
-    public ExpansionOptimizer(QueryRewriter rewriter, ASTQueryTree tree, IndexMetadataManager metadataManager, Client client, String searchPreference, boolean doFullFieldDataLookup) {
+    public ExpansionOptimizer(QueryRewriter rewriter, ASTQueryTree tree, IndexMetadataManager metadataManager, RemoteLookups lookups, String searchPreference, boolean doFullFieldDataLookup) {
         this.rewriter = rewriter;
         this.tree = tree;
         this.metadataManager = metadataManager;
-        this.client = client;
+        this.lookups = lookups;
         this.searchPreference = searchPreference;
         this.doFullFieldDataLookup = doFullFieldDataLookup;
     }
@@ -161,7 +160,7 @@ public class ExpansionOptimizer {
 
         QueryBuilder query = rewriter.applyVisibility(rewriter.build(nodeQuery), link.getIndexName());
 
-        SearchRequestBuilder builder = new SearchRequestBuilder(client)
+        SearchRequestBuilder builder = lookups.prepareSearch()
                 .setSize(0)
                 .setSearchType(SearchType.COUNT)
                 .setQuery(query)
@@ -172,10 +171,10 @@ public class ExpansionOptimizer {
                 .setPreference(searchPreference)
                 .addAggregation(termsBuilder);
 
-        ActionFuture<SearchResponse> future = client.search(builder.request());
+        // answered without blocking when the rewrite is driven by RemoteLookups.rewrite()
+        SearchResponse response = lookups.search(builder.request(), "expansion");
 
         try {
-            SearchResponse response = future.get();
             final Terms agg = (Terms) response.getAggregations().iterator().next();
 
             ASTArray array = new ASTArray(QueryParserTreeConstants.JJTARRAY);
@@ -19,9 +19,9 @@ package com.tcdi.zombodb.query_parser.optimizers;
 import com.tcdi.zombodb.query_parser.*;
 import com.tcdi.zombodb.query_parser.metadata.IndexMetadataManager;
 import com.tcdi.zombodb.query_parser.rewriters.QueryRewriter;
+import com.tcdi.zombodb.query_parser.rewriters.RemoteLookups;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchType;
-import org.elasticsearch.client.Client;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -29,13 +29,13 @@ import java.util.concurrent.ConcurrentHashMap;
 public class IndexLinkOptimizer {
     private static final Map<String, Long> COUNT_ESTIMATE_CACHE = new ConcurrentHashMap<>(1000);
 
-    private final Client client;
+    private final RemoteLookups lookups;
     private final QueryRewriter rewriter;
     private final ASTQueryTree tree;
     private final IndexMetadataManager metadataManager;
 
-    public IndexLinkOptimizer(Client client, QueryRewriter rewriter, ASTQueryTree tree, IndexMetadataManager metadataManager) {
-        this.client = client;
+    public IndexLinkOptimizer(RemoteLookups lookups, QueryRewriter rewriter, ASTQueryTree tree, IndexMetadataManager metadataManager) {
+        this.lookups = lookups;
         this.rewriter = rewriter;
         this.tree = tree;
         this.metadataManager = metadataManager;
@@ -390,7 +390,7 @@ public class IndexLinkOptimizer {
     }
 
     private long estimateCount(ASTExpansion expansion, boolean useQuery) {
-        SearchRequestBuilder builder = new SearchRequestBuilder(client);
+        SearchRequestBuilder builder = lookups.prepareSearch();
         builder.setIndices(expansion.getIndexLink().getIndexName());
         builder.setTypes("data");
         builder.setSize(0);
@@ -407,16 +407,12 @@ public class IndexLinkOptimizer {
         if (count != null)
             return count;
 
-        try {
-            count = client.search(builder.request()).get().getHits().getTotalHits();
-            if (COUNT_ESTIMATE_CACHE.size() >= 1000)
-                COUNT_ESTIMATE_CACHE.clear();
+        count = lookups.search(builder.request(), "estimate").getHits().getTotalHits();
+        if (COUNT_ESTIMATE_CACHE.size() >= 1000)
+            COUNT_ESTIMATE_CACHE.clear();
 
-            COUNT_ESTIMATE_CACHE.put(key, count);
-            return count;
-        } catch (Exception e) {
-            throw new RuntimeException("Problem estimating count", e);
-        }
+        COUNT_ESTIMATE_CACHE.put(key, count);
+        return count;
     }
 
 }
@@ -17,20 +17,20 @@ package com.tcdi.zombodb.query_parser.optimizers;
 
 import com.tcdi.zombodb.query_parser.*;
 import com.tcdi.zombodb.query_parser.metadata.IndexMetadataManager;
+import com.tcdi.zombodb.query_parser.rewriters.RemoteLookups;
 import com.tcdi.zombodb.query_parser.utils.Utils;
-import org.elasticsearch.client.Client;
 
 import java.util.ArrayList;
 import java.util.List;
 
 public class TermAnalyzerOptimizer {
 
-    private final Client client;
+    private final RemoteLookups lookups;
     private final IndexMetadataManager metadataManager;
     private final ASTQueryTree tree;
 
-    public TermAnalyzerOptimizer(Client client, IndexMetadataManager metadataManager, ASTQueryTree tree) {
-        this.client = client;
+    public TermAnalyzerOptimizer(RemoteLookups lookups, IndexMetadataManager metadataManager, ASTQueryTree tree) {
+        this.lookups = lookups;
         this.metadataManager = metadataManager;
         this.tree = tree;
     }
@@ -71,7 +71,7 @@ public class TermAnalyzerOptimizer {
         }
 
         QueryParserNode parentNode = (QueryParserNode) node.jjtGetParent();
-        QueryParserNode newNode = Utils.rewriteToken(client, metadataManager, node);
+        QueryParserNode newNode = Utils.rewriteToken(lookups, metadataManager, node);
         if (newNode instanceof ASTWord && "".equals(newNode.getValue())) {
             parentNode.removeNode(node);
             parentNode.renumber();
@@ -17,6 +17,7 @@
 package com.tcdi.zombodb.query_parser.rewriters;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tcdi.zombodb.action.stats.ZomboDBMetrics;
 import com.tcdi.zombodb.query_parser.*;
 import com.tcdi.zombodb.query_parser.QueryParser;
 import com.tcdi.zombodb.query_parser.metadata.IndexMetadata;
@@ -72,17 +73,24 @@ public abstract class QueryRewriter {
         }
 
         public static QueryRewriter create(Client client, String indexName, String searchPreference, String input, boolean doFullFieldDataLookup, boolean canDoSingleIndex) {
+            return create(client, RemoteLookups.blocking(client), indexName, searchPreference, input, doFullFieldDataLookup, canDoSingleIndex);
+        }
+
+        /**
+         * Create a rewriter whose searches and analyze requests go through <code>lookups</code>
+         */
+        public static QueryRewriter create(Client client, RemoteLookups lookups, String indexName, String searchPreference, String input, boolean doFullFieldDataLookup, boolean canDoSingleIndex) {
             if (IS_SIREN_AVAILABLE) {
                 try {
                     Class clazz = Class.forName("com.tcdi.zombodb.query_parser.rewriters.SirenQueryRewriter");
-                    Constructor ctor = clazz.getConstructor(Client.class, String.class, String.class, String.class, boolean.class, boolean.class);
-                    return (QueryRewriter) ctor.newInstance(client, indexName, searchPreference, input, doFullFieldDataLookup, canDoSingleIndex);
+                    Constructor ctor = clazz.getConstructor(Client.class, RemoteLookups.class, String.class, String.class, String.class, boolean.class, boolean.class);
+                    return (QueryRewriter) ctor.newInstance(client, lookups, indexName, searchPreference, input, doFullFieldDataLookup, canDoSingleIndex);
                 } catch (Exception e) {
                     e.printStackTrace();
                     throw new RuntimeException("Unable to construct SIREn-compatible QueryRewriter", e);
                 }
             } else {
-                return new ZomboDBQueryRewriter(client, indexName, searchPreference, input, doFullFieldDataLookup, canDoSingleIndex);
+                return new ZomboDBQueryRewriter(client, lookups, indexName, searchPreference, input, doFullFieldDataLookup, canDoSingleIndex);
             }
         }
     }
@@ -138,6 +146,7 @@ public abstract class QueryRewriter {
     private static final String DateSuffix = ".date";
 
     protected final Client client;
+    protected final RemoteLookups lookups;
     protected final String searchPreference;
     protected final boolean doFullFieldDataLookup;
     protected final ASTQueryTree tree;
@@ -151,14 +160,20 @@ public abstract class QueryRewriter {
     private boolean hasJsonAggregate = false;
 
     public QueryRewriter(Client client, String indexName, String input, String searchPreference, boolean doFullFieldDataLookup, boolean canDoSingleIndex) {
+        this(client, RemoteLookups.blocking(client), indexName, input, searchPreference, doFullFieldDataLookup, canDoSingleIndex);
+    }
+
+    public QueryRewriter(Client client, RemoteLookups lookups, String indexName, String input, String searchPreference, boolean doFullFieldDataLookup, boolean canDoSingleIndex) {
         this.client = client;
+        this.lookups = lookups;
         this.searchPreference = searchPreference;
         this.doFullFieldDataLookup = doFullFieldDataLookup;
 
-        metadataManager = new IndexMetadataManager(client, indexName);
+        metadataManager = new IndexMetadataManager(client, lookups.getMetadataService(), indexName);
 
         final StringBuilder newQuery = new StringBuilder(input.length());
 
+        long parseStart = System.nanoTime();
         try {
             arrayData = Utils.extractArrayData(input, newQuery);
 
@@ -167,6 +182,7 @@ public abstract class QueryRewriter {
         } catch (ParseException ioe) {
             throw new QueryRewriteException(ioe);
         }
+        ZomboDBMetrics.recordTime("query", "parse", parseStart);
 
         ASTAggregate aggregate = tree.getAggregate();
         ASTSuggest suggest = tree.getSuggest();
@@ -181,7 +197,9 @@ public abstract class QueryRewriter {
             }
         }
 
+        long optimizeStart = System.nanoTime();
         performOptimizations(client);
+        ZomboDBMetrics.recordTime("query", "optimize", optimizeStart);
 
         if (!metadataManager.getMetadataForMyIndex().alwaysResolveJoins()) {
             if (!hasJsonAggregate && canDoSingleIndex && !hasAgg && metadataManager.getUsedIndexes().size() == 1) {
@@ -196,8 +214,8 @@ public abstract class QueryRewriter {
      */
     protected void performOptimizations(Client client) {
         new ArrayDataOptimizer(tree, metadataManager, arrayData).optimize();
-        new IndexLinkOptimizer(client, this, tree, metadataManager).optimize();
-        new TermAnalyzerOptimizer(client, metadataManager, tree).optimize();
+        new IndexLinkOptimizer(lookups, this, tree, metadataManager).optimize();
+        new TermAnalyzerOptimizer(lookups, metadataManager, tree).optimize();
     }
 
     public String dumpAsString() {
@@ -1152,7 +1170,7 @@ public abstract class QueryRewriter {
         if (node.getOperator() == QueryParserNode.Operator.REGEX)
             return spanMultiTermQueryBuilder(regexpQuery(node.getFieldname(), node.getEscapedValue()));
 
-        return buildSpan(prox, Utils.convertToProximity(node.getFieldname(), Utils.analyzeForSearch(client, metadataManager, node.getFieldname(), node.getEscapedValue())));
+        return buildSpan(prox, Utils.convertToProximity(node.getFieldname(), Utils.analyzeForSearch(lookups, metadataManager, node.getFieldname(), node.getEscapedValue())));
     }
 
     private SpanQueryBuilder buildSpan(ASTProximity prox, ASTOr node) {
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.query_parser.rewriters;
+
+import com.tcdi.zombodb.action.stats.ZomboDBMetrics;
+import com.tcdi.zombodb.query_parser.metadata.IndexMetadataService;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.admin.indices.analyze.AnalyzeRequest;
+import org.elasticsearch.action.admin.indices.analyze.AnalyzeResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * The searches and analyze requests a {@link QueryRewriter} makes while it rewrites a query: the join
+ * expansions of {@link com.tcdi.zombodb.query_parser.optimizers.ExpansionOptimizer}, the count estimates
+ * of {@link com.tcdi.zombodb.query_parser.optimizers.IndexLinkOptimizer}, and term analysis.  Index mappings come from
+ * the node's {@link IndexMetadataService} when there is one.
+ * <p>
+ * A blocking instance (see {@link #blocking(Client, IndexMetadataService)}) waits for each answer.  {@link #rewrite(Client, IndexMetadataService, Executor, Rewrite, ActionListener)}
+ * never waits: the first lookup a rewrite can't answer from the responses it already has aborts that rewrite,
+ * the request is sent with a listener, and once the response arrives the rewrite runs again from the start.
+ * Rewriting is deterministic, so every pass gets at least one lookup further than the one before it, and
+ * no thread is ever parked waiting for another index to answer
+ */
+public class RemoteLookups {
+
+    /**
+     * What's rewritten.  It can be run more than once, so it shouldn't have any side effects outside of
+     * what it returns
+     */
+    public interface Rewrite<T> {
+        T rewrite(RemoteLookups lookups) throws Exception;
+    }
+
+    /**
+     * Thrown by a non-blocking instance to abort the current pass of a rewrite
+     */
+    private static abstract class Pending extends RuntimeException {
+        private final String key;
+        private final String metric;
+
+        private Pending(String key, String metric) {
+            super(key, null, false, false);
+            this.key = key;
+            this.metric = metric;
+        }
+
+        abstract void execute(Client client, ActionListener<ActionResponse> listener);
+    }
+
+    private final Client client;
+    private final IndexMetadataService metadataService;
+    private final boolean blocking;
+    private final Map<String, ActionResponse> responses = new ConcurrentHashMap<>();
+
+    private RemoteLookups(Client client, IndexMetadataService metadataService, boolean blocking) {
+        this.client = client;
+        this.metadataService = metadataService;
+        this.blocking = blocking;
+    }
+
+    /**
+     * @return an instance that waits for every lookup, and asks the master for every mapping
+     */
+    public static RemoteLookups blocking(Client client) {
+        return blocking(client, null);
+    }
+
+    /**
+     * @param metadataService the node's service, or null to ask the master for every mapping
+     * @return an instance that waits for every lookup, for callers that are allowed to block
+     */
+    public static RemoteLookups blocking(Client client, IndexMetadataService metadataService) {
+        return new RemoteLookups(client, metadataService, true);
+    }
+
+    /**
+     * Runs <code>rewrite</code> on <code>executor</code>, and again each time the response to one of its lookups
+     * arrives, until it completes or fails.  <code>listener</code> is notified on one of <code>executor</code>'s threads
+     */
+    public static <T> void rewrite(Client client, IndexMetadataService metadataService, Executor executor, Rewrite<T> rewrite, ActionListener<T> listener) {
+        new RemoteLookups(client, metadataService, false).fork(executor, rewrite, listener);
+    }
+
+    /**
+     * @return the node's metadata service, or null if mappings have to be asked for
+     */
+    public IndexMetadataService getMetadataService() {
+        return metadataService;
+    }
+
+    public SearchRequestBuilder prepareSearch() {
+        return new SearchRequestBuilder(client);
+    }
+
+    /**
+     * @param metric the "query" phase, in {@link ZomboDBMetrics}, the time spent waiting for this search is recorded under
+     */
+    public SearchResponse search(final SearchRequest request, String metric) {
+        String key = "search:" + Arrays.toString(request.indices()) + ":" + Arrays.toString(request.types()) + ":" +
+                request.searchType() + ":" + request.preference() + ":" + (request.source() == null ? "" : request.source().toUtf8());
+
+        SearchResponse response = (SearchResponse) responses.get(key);
+        if (response != null)
+            return response;
+
+        if (!blocking) {
+            throw new Pending(key, metric) {
+                @Override
+                void execute(Client client, final ActionListener<ActionResponse> listener) {
+                    client.search(request, new ActionListener<SearchResponse>() {
+                        @Override
+                        public void onResponse(SearchResponse response) {
+                            listener.onResponse(response);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            listener.onFailure(t);
+                        }
+                    });
+                }
+            };
+        }
+
+        long start = System.nanoTime();
+        response = client.search(request).actionGet();
+        ZomboDBMetrics.recordTime("query", metric, start);
+        responses.put(key, response);
+        return response;
+    }
+
+    public AnalyzeResponse analyze(String indexName, String analyzer, String text) {
+        String key = "analyze:" + indexName + ":" + analyzer + ":" + text;
+
+        AnalyzeResponse response = (AnalyzeResponse) responses.get(key);
+        if (response != null)
+            return response;
+
+        final AnalyzeRequest request = new AnalyzeRequest(indexName, text).analyzer(analyzer);
+        if (!blocking) {
+            throw new Pending(key, "analyze") {
+                @Override
+                void execute(Client client, final ActionListener<ActionResponse> listener) {
+                    client.admin().indices().analyze(request, new ActionListener<AnalyzeResponse>() {
+                        @Override
+                        public void onResponse(AnalyzeResponse response) {
+                            listener.onResponse(response);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            listener.onFailure(t);
+                        }
+                    });
+                }
+            };
+        }
+
+        long start = System.nanoTime();
+        response = client.admin().indices().analyze(request).actionGet();
+        ZomboDBMetrics.recordTime("query", "analyze", start);
+        responses.put(key, response);
+        return response;
+    }
+
+    private <T> void fork(final Executor executor, final Rewrite<T> rewrite, final ActionListener<T> listener) {
+        try {
+            executor.execute(new AbstractRunnable() {
+                @Override
+                protected void doRun() throws Exception {
+                    attempt(executor, rewrite, listener);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    listener.onFailure(t);
+                }
+            });
+        } catch (Throwable t) {
+            // rejected
+            listener.onFailure(t);
+        }
+    }
+
+    private <T> void attempt(final Executor executor, final Rewrite<T> rewrite, final ActionListener<T> listener) {
+        T result;
+
+        try {
+            result = rewrite.rewrite(this);
+        } catch (Throwable t) {
+            final Pending pending = pending(t);
+            if (pending == null) {
+                listener.onFailure(t);
+                return;
+            }
+
+            final long start = System.nanoTime();
+            pending.execute(client, new ActionListener<ActionResponse>() {
+                @Override
+                public void onResponse(ActionResponse response) {
+                    ZomboDBMetrics.recordTime("query", pending.metric, start);
+                    responses.put(pending.key, response);
+
+                    // this is a transport thread, so go back to the executor to try again
+                    fork(executor, rewrite, listener);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    listener.onFailure(t);
+                }
+            });
+            return;
+        }
+
+        listener.onResponse(result);
+    }
+
+    /**
+     * The rewriter and its optimizers wrap the exceptions they see, so look for a {@link Pending} anywhere in the chain
+     */
+    private static Pending pending(Throwable t) {
+        while (t != null) {
+            if (t instanceof Pending)
+                return (Pending) t;
+            t = t.getCause();
+        }
+        return null;
+    }
+}
@@ -23,13 +23,13 @@ import org.elasticsearch.client.Client;
  */
 public class ZomboDBQueryRewriter extends QueryRewriter {
 
-    public ZomboDBQueryRewriter(Client client, String indexName, String searchPreference, String input, boolean doFullFieldDataLookup, boolean canDoSingleIndex) {
-        super(client, indexName, input, searchPreference, doFullFieldDataLookup, canDoSingleIndex);
+    public ZomboDBQueryRewriter(Client client, RemoteLookups lookups, String indexName, String searchPreference, String input, boolean doFullFieldDataLookup, boolean canDoSingleIndex) {
+        super(client, lookups, indexName, input, searchPreference, doFullFieldDataLookup, canDoSingleIndex);
     }
 
     @Override
     protected void performOptimizations(Client client) {
         super.performOptimizations(client);
-        new ExpansionOptimizer(this, tree, metadataManager, client, searchPreference, doFullFieldDataLookup).optimize();
+        new ExpansionOptimizer(this, tree, metadataManager, lookups, searchPreference, doFullFieldDataLookup).optimize();
     }
 }
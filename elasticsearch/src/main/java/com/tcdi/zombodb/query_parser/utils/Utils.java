@@ -18,9 +18,8 @@ package com.tcdi.zombodb.query_parser.utils;
 
 import com.tcdi.zombodb.query_parser.*;
 import com.tcdi.zombodb.query_parser.metadata.IndexMetadataManager;
-import org.elasticsearch.action.admin.indices.analyze.AnalyzeRequestBuilder;
+import com.tcdi.zombodb.query_parser.rewriters.RemoteLookups;
 import org.elasticsearch.action.admin.indices.analyze.AnalyzeResponse;
-import org.elasticsearch.client.Client;
 
 import java.io.StringReader;
 import java.util.*;
@@ -211,38 +210,28 @@ public class Utils {
         return l;
     }
 
-    public static List<String> analyzeForSearch(Client client, IndexMetadataManager metadataManager, String fieldname, String phrase) throws RuntimeException {
+    public static List<String> analyzeForSearch(RemoteLookups lookups, IndexMetadataManager metadataManager, String fieldname, String phrase) throws RuntimeException {
         String analyzer = metadataManager.getMetadataForField(fieldname).getSearchAnalyzer(fieldname);
-        return analyze(client, metadataManager, analyzer, fieldname, phrase);
+        return analyze(lookups, metadataManager, analyzer, fieldname, phrase);
     }
 
-    private static List<String> analyzeForIndex(Client client, IndexMetadataManager metadataManager, String fieldname, String phrase) throws RuntimeException {
+    private static List<String> analyzeForIndex(RemoteLookups lookups, IndexMetadataManager metadataManager, String fieldname, String phrase) throws RuntimeException {
         String analyzer = metadataManager.getMetadataForField(fieldname).getIndexAnalyzer(fieldname);
-        return analyze(client, metadataManager, analyzer, fieldname, phrase);
+        return analyze(lookups, metadataManager, analyzer, fieldname, phrase);
     }
 
-    private static List<String> analyze(Client client, IndexMetadataManager metadataManager, String analyzer, String fieldname, String phrase) throws RuntimeException {
+    private static List<String> analyze(RemoteLookups lookups, IndexMetadataManager metadataManager, String analyzer, String fieldname, String phrase) throws RuntimeException {
         if (analyzer == null)
             return Arrays.asList(phrase);
 
-        try {
-            AnalyzeResponse response = client.admin().indices().analyze(
-                    new AnalyzeRequestBuilder(
-                            client.admin().indices(),
-                            metadataManager.getMetadataForField(fieldname).getLink().getIndexName(),
-                            phrase
-                    ).setAnalyzer(analyzer).request()
-            ).get();
-
-            List<String> tokens = new ArrayList<>();
-            for (AnalyzeResponse.AnalyzeToken t : response) {
-                tokens.add(t.getTerm());
-            }
+        AnalyzeResponse response = lookups.analyze(metadataManager.getMetadataForField(fieldname).getLink().getIndexName(), analyzer, phrase);
 
-            return tokens;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        List<String> tokens = new ArrayList<>();
+        for (AnalyzeResponse.AnalyzeToken t : response) {
+            tokens.add(t.getTerm());
         }
+
+        return tokens;
     }
 
     public static QueryParserNode convertToProximityForHighlighting(IndexMetadataManager metadataManager, ASTPhrase phrase) {
@@ -415,7 +404,7 @@ public class Utils {
         return nestedPath;
     }
 
-    public static QueryParserNode rewriteToken(Client client, IndexMetadataManager metadataManager, QueryParserNode node) throws RuntimeException {
+    public static QueryParserNode rewriteToken(RemoteLookups lookups, IndexMetadataManager metadataManager, QueryParserNode node) throws RuntimeException {
         List<String> initialAnalyze;
         boolean hasWildcards = node instanceof ASTFuzzy;
         String input = node.getEscapedValue();
@@ -446,9 +435,9 @@ public class Utils {
             }
         }
 
-        initialAnalyze = analyzeForSearch(client, metadataManager, node.getFieldname(), input);
+        initialAnalyze = analyzeForSearch(lookups, metadataManager, node.getFieldname(), input);
         if (initialAnalyze.isEmpty()) {
-            initialAnalyze = analyzeForIndex(client, metadataManager, node.getFieldname(), input);
+            initialAnalyze = analyzeForIndex(lookups, metadataManager, node.getFieldname(), input);
         }
 
         newToken = join(initialAnalyze);
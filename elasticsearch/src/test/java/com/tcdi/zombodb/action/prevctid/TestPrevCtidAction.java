@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.prevctid;
+
+import com.tcdi.zombodb.test.ZomboDBTestCase;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.elasticsearch.common.settings.ImmutableSettings.settingsBuilder;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestPrevCtidAction extends ZomboDBTestCase {
+    private static final String INDEX_NAME = "prevctid_test";
+
+    @BeforeClass
+    public static void indexDocuments() throws Exception {
+        new CreateIndexRequestBuilder(client().admin().indices(), INDEX_NAME)
+                .setSettings(settingsBuilder()
+                        .put("number_of_shards", 3)
+                        .put("number_of_replicas", 0)
+                        .put("refresh_interval", -1))
+                .addMapping("data", jsonBuilder()
+                        .startObject()
+                        .startObject("properties")
+                        .startObject("_prev_ctid").field("type", "string").field("index", "not_analyzed").field("store", true).endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+
+        // never refreshed, so these are only visible to realtime gets
+        for (int i = 0; i < 20; i++)
+            index("0-" + i, "routing-" + i);
+    }
+
+    private static void index(String id, String prevCtid) {
+        new IndexRequestBuilder(client(), INDEX_NAME)
+                .setType("data")
+                .setId(id)
+                .setRouting(prevCtid)
+                .setSource("_prev_ctid", prevCtid)
+                .execute().actionGet();
+    }
+
+    @Test
+    public void testResolvesUnrefreshedDocuments() throws Exception {
+        PrevCtidResponse response = execute("0-3", "0-11", "0-19");
+
+        assertEquals(3, response.getPrevCtids().size());
+        assertEquals("routing-3", response.getPrevCtids().get("0-3"));
+        assertEquals("routing-11", response.getPrevCtids().get("0-11"));
+        assertEquals("routing-19", response.getPrevCtids().get("0-19"));
+    }
+
+    @Test
+    public void testResolvesRefreshedAndUnrefreshedDocuments() throws Exception {
+        index("1-1", "routing-a");
+        index("1-2", "routing-b");
+        client().admin().indices().prepareRefresh(INDEX_NAME).execute().actionGet();
+
+        // found by the realtime round, on whichever shard has unrefreshed changes
+        index("2-1", "routing-c");
+
+        PrevCtidResponse response = execute("1-1", "1-2", "2-1", "0-7", "42-42");
+
+        assertEquals(4, response.getPrevCtids().size());
+        assertEquals("routing-a", response.getPrevCtids().get("1-1"));
+        assertEquals("routing-b", response.getPrevCtids().get("1-2"));
+        assertEquals("routing-c", response.getPrevCtids().get("2-1"));
+        assertEquals("routing-7", response.getPrevCtids().get("0-7"));
+    }
+
+    @Test
+    public void testMissingIdsAreOmitted() throws Exception {
+        PrevCtidResponse response = execute("0-5", "42-42");
+
+        assertEquals(Collections.singletonMap("0-5", "routing-5"), response.getPrevCtids());
+    }
+
+    @Test
+    public void testNoIds() throws Exception {
+        assertTrue(execute().getPrevCtids().isEmpty());
+    }
+
+    private static PrevCtidResponse execute(String... ids) throws Exception {
+        PrevCtidResponse response = client().execute(PrevCtidAction.INSTANCE,
+                new PrevCtidRequestBuilder(client()).setIndices(INDEX_NAME).setType("data").setIds(Arrays.asList(ids)).request()).get();
+        assertEquals(response.getTotalShards(), response.getSuccessfulShards());
+        return response;
+    }
+}
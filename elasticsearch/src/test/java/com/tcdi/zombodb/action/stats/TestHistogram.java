@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.stats;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestHistogram {
+    private static Random rnd = new Random(0);
+
+    @Test
+    public void testEmpty() throws Exception {
+        Histogram histogram = new Histogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.percentile(99.0));
+    }
+
+    @Test
+    public void testBuckets() throws Exception {
+        long[] values = {0, 1, 31, 32, 33, 63, 64, 65, 1000, 123456789L, Long.MAX_VALUE};
+
+        for (long value : values) {
+            int bucket = Histogram.bucketFor(value);
+            assertTrue(value + " above its bucket", value <= Histogram.highestValueIn(bucket));
+            if (bucket > 0)
+                assertTrue(value + " below its bucket", value > Histogram.highestValueIn(bucket - 1));
+        }
+    }
+
+    @Test
+    public void testSmallValuesAreExact() throws Exception {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 20; i++)
+            histogram.record(i);
+
+        assertEquals(10, histogram.percentile(50.0));
+        assertEquals(20, histogram.percentile(100.0));
+        assertEquals(1, histogram.getMin());
+        assertEquals(20, histogram.getMax());
+        assertEquals(10.5, histogram.getMean(), 0.0001);
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        Histogram histogram = new Histogram();
+        long[] values = new long[100000];
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.abs(rnd.nextGaussian() * 1000000);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double percentile : new double[]{50.0, 90.0, 99.0, 99.9}) {
+            long expected = values[(int) Math.ceil(percentile / 100D * values.length) - 1];
+            long actual = histogram.percentile(percentile);
+            assertTrue(percentile + ": expected " + expected + ", got " + actual, Math.abs(actual - expected) <= expected * 0.04);
+        }
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        Histogram a = new Histogram();
+        Histogram b = new Histogram();
+        Histogram both = new Histogram();
+
+        for (int i = 0; i < 10000; i++) {
+            long value = rnd.nextInt(5000000);
+            (i % 3 == 0 ? a : b).record(value);
+            both.record(value);
+        }
+
+        Histogram merged = a.snapshot();
+        merged.merge(b);
+
+        assertEquals(both.getCount(), merged.getCount());
+        assertEquals(both.getSum(), merged.getSum());
+        assertEquals(both.getMin(), merged.getMin());
+        assertEquals(both.getMax(), merged.getMax());
+        for (double percentile : new double[]{50.0, 90.0, 99.0, 99.9})
+            assertEquals(both.percentile(percentile), merged.percentile(percentile));
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.action.tidlist;
+
+import com.tcdi.zombodb.action.stats.NodeStats;
+import com.tcdi.zombodb.action.stats.StatsAction;
+import com.tcdi.zombodb.action.stats.StatsRequest;
+import com.tcdi.zombodb.query_parser.utils.Utils;
+import com.tcdi.zombodb.test.ZomboDBTestCase;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequestBuilder;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.shard.ShardId;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.elasticsearch.common.settings.ImmutableSettings.settingsBuilder;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestTIDListAction extends ZomboDBTestCase {
+    private static final String INDEX_NAME = "tidlist_test";
+
+    @BeforeClass
+    public static void indexDocuments() throws Exception {
+        new CreateIndexRequestBuilder(client().admin().indices(), INDEX_NAME)
+                .setSettings(settingsBuilder().put("number_of_shards", 3).put("number_of_replicas", 0))
+                .addMapping("data", jsonBuilder()
+                        .startObject()
+                        .startObject("properties")
+                        .startObject("n").field("type", "long").endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+
+        // 10 blocks of 10 rows each, where "n" counts up from zero
+        for (int i = 0; i < 100; i++) {
+            new IndexRequestBuilder(client(), INDEX_NAME)
+                    .setType("data")
+                    .setId((i / 10) + "-" + (i % 10 + 1))
+                    .setSource("n", i)
+                    .execute().actionGet();
+        }
+        client().admin().indices().refresh(new RefreshRequestBuilder(client().admin().indices()).setIndices(INDEX_NAME).request()).get();
+    }
+
+    @Test
+    public void testAllTIDsInBlockOrder() throws Exception {
+        TIDListResponse response = execute(new TIDListRequestBuilder(client()).setIndices(INDEX_NAME).setQuery(matchAllQuery()));
+
+        assertEquals(100, response.getMany());
+        assertEquals(3, response.getRuns().length);
+
+        int total = 0;
+        for (int i = 0; i < response.getRuns().length; i++) {
+            List<String> tids = tids(response.getRuns()[i], response.getRunSizes()[i]);
+            for (int j = 1; j < tids.size(); j++)
+                assertTrue(tids.get(j - 1) + " > " + tids.get(j), compare(tids.get(j - 1), tids.get(j)) < 0);
+            total += tids.size();
+        }
+        assertEquals(100, total);
+    }
+
+    @Test
+    public void testLimitByFieldDescending() throws Exception {
+        TIDListResponse response = execute(new TIDListRequestBuilder(client()).setIndices(INDEX_NAME).setQuery(matchAllQuery())
+                .setLimit(5)
+                .setSort("n", true));
+
+        assertLimited(response, "9-6", "9-7", "9-8", "9-9", "9-10");
+    }
+
+    @Test
+    public void testLimitByFieldAscending() throws Exception {
+        TIDListResponse response = execute(new TIDListRequestBuilder(client()).setIndices(INDEX_NAME).setQuery(matchAllQuery())
+                .setLimit(5)
+                .setSort("n", false));
+
+        assertLimited(response, "0-1", "0-2", "0-3", "0-4", "0-5");
+    }
+
+    @Test
+    public void testLimitByScore() throws Exception {
+        QueryBuilder query = boolQuery()
+                .should(termQuery("n", 42).boost(100))
+                .should(termQuery("n", 17).boost(50))
+                .should(matchAllQuery());
+        TIDListResponse response = execute(new TIDListRequestBuilder(client()).setIndices(INDEX_NAME).setQuery(query)
+                .setLimit(2)
+                .setSort(null, true));
+
+        assertLimited(response, "1-8", "4-3");
+    }
+
+    @Test
+    public void testLimitLargerThanResults() throws Exception {
+        TIDListResponse response = execute(new TIDListRequestBuilder(client()).setIndices(INDEX_NAME).setQuery(matchAllQuery())
+                .setLimit(1000)
+                .setSort("n", true));
+
+        assertEquals(100, response.getMany());
+    }
+
+    @Test
+    public void testRepeatedRequestsAreCached() throws Exception {
+        TIDListRequestBuilder builder = new TIDListRequestBuilder(client()).setIndices(INDEX_NAME).setQuery(termQuery("n", 7));
+        long hits = cacheHits();
+
+        TIDListResponse first = execute(builder);
+        TIDListResponse second = execute(builder);
+
+        assertEquals(1, first.getMany());
+        assertEquals(1, second.getMany());
+        assertEquals(hits + first.getSuccessfulShards(), cacheHits());
+    }
+
+    @Test
+    public void testCachedResponsesAreTrimmed() throws Exception {
+        // the collector grows its array ahead of what it's filled
+        ShardTIDListResponse response = new ShardTIDListResponse(INDEX_NAME, new ShardId(INDEX_NAME, 0), 3, 1, new byte[64 * TIDListResponse.BYTES_PER_TID]);
+        response.trim();
+
+        // the same length a remote node's breaker is charged for reading it
+        assertEquals(3 * TIDListResponse.BYTES_PER_TID, response.getTids().length);
+        assertEquals(64 + 3 * TIDListResponse.BYTES_PER_TID, response.ramBytesUsed());
+    }
+
+    @Test
+    public void testBreakerIsReleased() throws Exception {
+        long before = requestBreakerBytes();
+
+        TIDListResponse response = execute(new TIDListRequestBuilder(client()).setIndices(INDEX_NAME).setQuery(termQuery("n", 3)).setScoring(false));
+        // the shards' collectors have released theirs, and the coordinating node holds the one matching TID
+        assertEquals(TIDListResponse.BYTES_PER_TID, requestBreakerBytes() - before);
+
+        response.close();
+        assertEquals(before, requestBreakerBytes());
+
+        // limited responses are released as soon as the winners are picked
+        execute(new TIDListRequestBuilder(client()).setIndices(INDEX_NAME).setQuery(matchAllQuery()).setLimit(5).setSort("n", true));
+        assertEquals(before, requestBreakerBytes());
+    }
+
+    @Test
+    public void testBreakerTrips() throws Exception {
+        setRequestBreakerLimit("100b");
+        try {
+            TIDListResponse response = client().execute(TIDListAction.INSTANCE, new TIDListRequestBuilder(client())
+                    .setIndices(INDEX_NAME)
+                    .setQuery(termQuery("n", 11))
+                    .request()).get();
+
+            assertEquals(0, response.getSuccessfulShards());
+            assertEquals(response.getTotalShards(), response.getFailedShards());
+        } finally {
+            setRequestBreakerLimit("40%");
+        }
+    }
+
+    private static long requestBreakerBytes() throws Exception {
+        long bytes = 0;
+        for (org.elasticsearch.action.admin.cluster.node.stats.NodeStats stats : client().admin().cluster().prepareNodesStats().setBreaker(true).get())
+            bytes += stats.getBreaker().getStats(CircuitBreaker.Name.REQUEST).getEstimated();
+        return bytes;
+    }
+
+    private static void setRequestBreakerLimit(String limit) throws Exception {
+        client().admin().cluster().prepareUpdateSettings()
+                .setTransientSettings(settingsBuilder().put("indices.breaker.request.limit", limit))
+                .get();
+    }
+
+    private static long cacheHits() throws Exception {
+        long hits = 0;
+        for (NodeStats stats : client().execute(StatsAction.INSTANCE, new StatsRequest()).get())
+            hits += stats.getTIDListCacheStats().getHits();
+        return hits;
+    }
+
+    private static TIDListResponse execute(TIDListRequestBuilder builder) throws Exception {
+        TIDListResponse response = client().execute(TIDListAction.INSTANCE, builder.request()).get();
+        assertEquals(response.getTotalShards(), response.getSuccessfulShards());
+        return response;
+    }
+
+    private static void assertLimited(TIDListResponse response, String... expected) {
+        assertEquals(expected.length, response.getMany());
+        assertEquals(1, response.getRuns().length);
+
+        List<String> tids = tids(response.getRuns()[0], response.getRunSizes()[0]);
+        assertEquals(expected.length, tids.size());
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], tids.get(i));
+    }
+
+    private static List<String> tids(byte[] run, int many) {
+        List<String> tids = new ArrayList<>();
+        for (int i = 0; i < many; i++) {
+            int pos = i * TIDListResponse.BYTES_PER_TID;
+            int blockno = Utils.decodeInteger(run, pos);
+            int offno = (run[pos + 4] & 0xFF) | ((run[pos + 5] & 0xFF) << 8);
+            tids.add(blockno + "-" + offno);
+        }
+        return tids;
+    }
+
+    private static int compare(String a, String b) {
+        String[] x = a.split("-");
+        String[] y = b.split("-");
+        int cmp = Integer.compare(Integer.parseInt(x[0]), Integer.parseInt(y[0]));
+        return cmp != 0 ? cmp : Integer.compare(Integer.parseInt(x[1]), Integer.parseInt(y[1]));
+    }
+}
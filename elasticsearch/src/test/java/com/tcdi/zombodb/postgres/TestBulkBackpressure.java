@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestBulkBackpressure {
+
+    @Test
+    public void testPartitionGroupsByShard() throws Exception {
+        List<int[]> parts = BulkBackpressure.partition(new int[]{2, 0, 2, 1, 0, 2}, 10);
+
+        assertEquals(3, parts.size());
+        assertArrayEquals(new int[]{1, 4}, parts.get(0));
+        assertArrayEquals(new int[]{3}, parts.get(1));
+        assertArrayEquals(new int[]{0, 2, 5}, parts.get(2));
+    }
+
+    @Test
+    public void testPartitionLimitsPartSize() throws Exception {
+        List<int[]> parts = BulkBackpressure.partition(new int[]{0, 0, 0, 0, 0, 1}, 2);
+
+        assertEquals(4, parts.size());
+        assertArrayEquals(new int[]{0, 1}, parts.get(0));
+        assertArrayEquals(new int[]{2, 3}, parts.get(1));
+        assertArrayEquals(new int[]{4}, parts.get(2));
+        assertArrayEquals(new int[]{5}, parts.get(3));
+    }
+
+    @Test
+    public void testPartitionSkipsEmptyShards() throws Exception {
+        assertEquals(0, BulkBackpressure.partition(new int[0], 10).size());
+        assertEquals(1, BulkBackpressure.partition(new int[]{3, 3}, 10).size());
+    }
+
+    @Test
+    public void testBatchSizeHalvesOnRejection() throws Exception {
+        assertEquals(500, BulkBackpressure.nextBatchSize(1000, 1, 0, 50, 100, 10000));
+        assertEquals(100, BulkBackpressure.nextBatchSize(150, 10, 0, 50, 100, 10000));
+    }
+
+    @Test
+    public void testBatchSizeGrowsWhileQueueIsShort() throws Exception {
+        assertEquals(1100, BulkBackpressure.nextBatchSize(1000, 0, 12, 50, 100, 10000));
+        assertEquals(1000, BulkBackpressure.nextBatchSize(1000, 0, 13, 50, 100, 10000));
+        assertEquals(10000, BulkBackpressure.nextBatchSize(9950, 0, 0, 50, 100, 10000));
+        assertEquals(1100, BulkBackpressure.nextBatchSize(1000, 0, 500, -1, 100, 10000));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class TestBulkFrame {
+
+    @Test
+    public void testParsesHeaders() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame(out, 1, 2, 0, 0, 42, 7, "{\"a\":1}");
+        frame(out, 0xFFFFFFFEL, 65535, 3, 4, Long.MAX_VALUE, 8, "{}");
+
+        List<BulkFrame> frames = BulkFrame.parse(new BytesArray(out.toByteArray()));
+
+        assertEquals(2, frames.size());
+        assertEquals("1-2", frames.get(0).getId());
+        assertNull(frames.get(0).getPrevCtid());
+        assertEquals(42, frames.get(0).getXid());
+        assertEquals(7, frames.get(0).getSequence());
+
+        assertEquals("4294967294-65535", frames.get(1).getId());
+        assertEquals("3-4", frames.get(1).getPrevCtid());
+        assertEquals(Long.MAX_VALUE, frames.get(1).getXid());
+        assertEquals(8, frames.get(1).getSequence());
+    }
+
+    @Test
+    public void testEmptyContent() throws Exception {
+        assertEquals(0, BulkFrame.parse(new BytesArray(new byte[0])).size());
+    }
+
+    @Test
+    public void testAppendsToJson() throws Exception {
+        assertSource("{\"a\":\"b\"}", "1-2:42", "{\"a\":\"b\",\"_xid\":42,\"_zdb_seq\":7,\"_prev_ctid\":\"1-2:42\"}");
+        assertSource(" { \"a\" : [1, 2] } \n", "1-2:42", " { \"a\" : [1, 2] ,\"_xid\":42,\"_zdb_seq\":7,\"_prev_ctid\":\"1-2:42\"}");
+        assertSource("{}", "x", "{\"_xid\":42,\"_zdb_seq\":7,\"_prev_ctid\":\"x\"}");
+        assertSource("{ }", "x", "{ \"_xid\":42,\"_zdb_seq\":7,\"_prev_ctid\":\"x\"}");
+        assertSource("{\"a\":1}", "a \"quoted\" pkey", "{\"a\":1,\"_xid\":42,\"_zdb_seq\":7,\"_prev_ctid\":\"a \\\"quoted\\\" pkey\"}");
+    }
+
+    @Test
+    public void testPkey() throws Exception {
+        assertEquals("42", single("{\"a\":{\"id\":1},\"id\":42}").getPkey("id"));
+        assertEquals("abc", single("{\"id\":\"abc\",\"b\":[1,2]}").getPkey("id"));
+        assertNull(single("{\"id\":[1,2]}").getPkey("id"));
+        assertNull(single("{\"a\":1}").getPkey("id"));
+    }
+
+    @Test
+    public void testRejectsNonObjects() throws Exception {
+        assertInvalid("[1,2]");
+        assertInvalid("{\"a\":1");
+        assertInvalid("");
+    }
+
+    @Test
+    public void testRejectsTruncatedFrames() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame(out, 1, 1, 0, 0, 1, 1, "{\"a\":1}");
+        byte[] bytes = out.toByteArray();
+
+        for (int length : new int[]{bytes.length - 1, BulkFrame.HEADER_SIZE - 1, BulkFrame.HEADER_SIZE + 1}) {
+            try {
+                BulkFrame.parse(new BytesArray(bytes, 0, length));
+                fail("parsed a frame truncated to " + length + " bytes");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    private static void assertSource(String json, String routing, String expected) throws Exception {
+        assertEquals(expected, single(json).buildSource(routing).toUtf8());
+    }
+
+    private static void assertInvalid(String json) throws Exception {
+        try {
+            single(json).buildSource("1-1");
+            fail("accepted " + json);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static BulkFrame single(String json) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame(out, 1, 1, 0, 0, 42, 7, json);
+        return BulkFrame.parse(new BytesArray(out.toByteArray())).get(0);
+    }
+
+    private static void frame(ByteArrayOutputStream out, long blockno, int offno, long prevBlockno, int prevOffno, long xid, long sequence, String json) {
+        byte[] doc = json.getBytes(StandardCharsets.UTF_8);
+        write(out, blockno, 4);
+        write(out, offno, 2);
+        write(out, prevBlockno, 4);
+        write(out, prevOffno, 2);
+        write(out, xid, 8);
+        write(out, sequence, 8);
+        write(out, doc.length, 4);
+        out.write(doc, 0, doc.length);
+    }
+
+    private static void write(ByteArrayOutputStream out, long value, int bytes) {
+        for (int i = 0; i < bytes; i++)
+            out.write((int) (value >>> (i * 8)) & 0xFF);
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import com.tcdi.zombodb.query.CommittedXidBlock;
+import com.tcdi.zombodb.test.ZomboDBTestCase;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.VersionType;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.elasticsearch.common.settings.ImmutableSettings.settingsBuilder;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestCompactionJob extends ZomboDBTestCase {
+
+    /**
+     * the first xid of block 1
+     */
+    private static final long BOUNDARY = CommittedXidBlock.XIDS_PER_BLOCK;
+
+    @Test
+    public void testTwoPassesAcrossBlockBoundary() throws Exception {
+        String index = createIndex("compaction_passes");
+
+        // "1-1" is UPDATEd by an aborted transaction, and then again, and it's the row's only version that
+        // stays visible until then
+        indexRow(index, "1-1", "1-1", BOUNDARY - 6);
+        indexRow(index, "1-2", "1-1", BOUNDARY + 4);
+        indexRow(index, "1-3", "1-1", BOUNDARY + 164);
+        indexState(index, "1-1", "1-1", BOUNDARY + 164);
+
+        // "5-1" is UPDATEd by a transaction that's still running after both passes
+        indexRow(index, "5-1", "5-1", BOUNDARY - 3);
+        indexRow(index, "5-2", "5-1", BOUNDARY + 364);
+        indexState(index, "5-1", "5-1", BOUNDARY + 364);
+
+        indexRow(index, "2-1", "2-1:" + (BOUNDARY - 1), BOUNDARY - 1);
+        indexRow(index, "3-1", "3-1:" + (BOUNDARY - 5), BOUNDARY - 5);
+
+        commit(index, BOUNDARY - 6, BOUNDARY - 5, BOUNDARY - 3);
+        commit(index, BOUNDARY + 164);
+
+        // below the boundary:  "2-1" was aborted, and block 0 is replaced by the watermark
+        run(index, BOUNDARY);
+        assertEquals(BOUNDARY, watermark(index));
+        assertFalse(exists(index, "data", "2-1", "2-1:" + (BOUNDARY - 1)));
+        assertTrue(exists(index, "data", "1-1", "1-1"));
+        assertTrue(exists(index, "data", "1-2", "1-1"));
+        assertTrue(exists(index, "data", "3-1", "3-1:" + (BOUNDARY - 5)));
+        assertTrue(exists(index, "data", "5-1", "5-1"));
+        assertFalse(exists(index, "committed", CommittedXidBlock.appendId(0, BOUNDARY - 6, BOUNDARY - 3), "0"));
+        assertTrue(exists(index, "state", "1-1", "1-1"));
+
+        // the second pass can only know "1-1" and "5-1" were committed from the watermark
+        run(index, BOUNDARY + 200);
+        assertEquals(BOUNDARY + 200, watermark(index));
+        assertFalse(exists(index, "data", "1-2", "1-1"));
+        assertFalse(exists(index, "data", "1-1", "1-1"));
+        assertTrue(exists(index, "data", "1-3", "1-1"));
+        assertFalse(exists(index, "state", "1-1", "1-1"));
+        assertTrue(exists(index, "data", "5-1", "5-1"));
+        assertTrue(exists(index, "data", "5-2", "5-1"));
+        assertTrue(exists(index, "state", "5-1", "5-1"));
+        assertTrue(exists(index, "data", "3-1", "3-1:" + (BOUNDARY - 5)));
+    }
+
+    @Test
+    public void testFoldsCommittedBlocks() throws Exception {
+        String index = createIndex("compaction_fold");
+        long first = 3 * BOUNDARY;
+
+        commit(index, first + 1, first + 2);
+        commit(index, first + 10);
+        run(index, 0);
+
+        assertFalse(exists(index, "committed", CommittedXidBlock.appendId(3, first + 1, first + 2), "0"));
+        assertFalse(exists(index, "committed", CommittedXidBlock.appendId(3, first + 10, first + 10), "0"));
+        assertEquals(Arrays.asList(first + 1, first + 2, first + 10), committed(index, 3));
+
+        // folded again, on top of the folded document
+        commit(index, first + 20);
+        run(index, 0);
+
+        assertFalse(exists(index, "committed", CommittedXidBlock.appendId(3, first + 20, first + 20), "0"));
+        assertEquals(Arrays.asList(first + 1, first + 2, first + 10, first + 20), committed(index, 3));
+    }
+
+    @Test
+    public void testKeepsNewestCommittedVersionBelowHorizon() throws Exception {
+        List<CompactionJob.Version> dead = new ArrayList<>();
+        boolean resolved = CompactionJob.compactVersions(versions(
+                version("0-1", 10, 0, true),
+                version("0-2", 20, 0, true),
+                version("0-3", 30, 0, false),
+                version("0-4", 20, 1, true)
+        ), 100, dead);
+
+        assertTrue(resolved);
+        assertEquals(Arrays.asList("0-3", "0-2", "0-1"), ids(dead));
+    }
+
+    @Test
+    public void testLeavesVersionsAtOrAboveHorizon() throws Exception {
+        List<CompactionJob.Version> dead = new ArrayList<>();
+        boolean resolved = CompactionJob.compactVersions(versions(
+                version("0-1", 10, 0, true),
+                version("0-2", 20, 0, true),
+                version("0-3", 100, 0, false),
+                version("0-4", 150, 0, false)
+        ), 100, dead);
+
+        assertFalse(resolved);
+        assertEquals(Arrays.asList("0-1"), ids(dead));
+    }
+
+    @Test
+    public void testEveryVersionAborted() throws Exception {
+        List<CompactionJob.Version> dead = new ArrayList<>();
+        boolean resolved = CompactionJob.compactVersions(versions(
+                version("0-1", 10, 0, false),
+                version("0-2", 20, 0, false)
+        ), 100, dead);
+
+        assertTrue(resolved);
+        assertEquals(Arrays.asList("0-2", "0-1"), ids(dead));
+    }
+
+    private static CompactionJob.Version version(String id, long xid, long sequence, boolean committed) {
+        CompactionJob.Version version = new CompactionJob.Version(id, xid, sequence);
+        version.committed = committed;
+        return version;
+    }
+
+    private static List<CompactionJob.Version> versions(CompactionJob.Version... versions) {
+        return new ArrayList<>(Arrays.asList(versions));
+    }
+
+    private static List<String> ids(List<CompactionJob.Version> versions) {
+        List<String> ids = new ArrayList<>();
+        for (CompactionJob.Version version : versions)
+            ids.add(version.id);
+        return ids;
+    }
+
+    private static String createIndex(String index) throws Exception {
+        new CreateIndexRequestBuilder(client().admin().indices(), index)
+                .setSettings(settingsBuilder()
+                        .put("number_of_shards", 1)
+                        .put("number_of_replicas", 0)
+                        .put("refresh_interval", -1))
+                .addMapping("data", jsonBuilder().startObject().startObject("properties")
+                        .startObject("_prev_ctid").field("type", "string").field("index", "not_analyzed").field("store", true).endObject()
+                        .startObject("_xid").field("type", "long").endObject()
+                        .startObject("_zdb_seq").field("type", "long").endObject()
+                        .endObject().endObject())
+                .addMapping("state", jsonBuilder().startObject().startObject("properties")
+                        .startObject("_ctid").field("type", "string").field("index", "not_analyzed").endObject()
+                        .endObject().endObject())
+                .addMapping("committed", jsonBuilder().startObject().startObject("properties")
+                        .startObject(CommittedXidBlock.BLOCK_FIELD).field("type", "long").endObject()
+                        .startObject(CommittedXidBlock.XIDS_FIELD).field("type", "binary").field("store", true).endObject()
+                        .endObject().endObject())
+                .execute().actionGet();
+        return index;
+    }
+
+    private static void indexRow(String index, String id, String routing, long xid) {
+        client().index(new IndexRequest(index, "data", id).routing(routing).source("_prev_ctid", routing, "_xid", xid, "_zdb_seq", 0)).actionGet();
+    }
+
+    private static void indexState(String index, String id, String routing, long xid) {
+        client().index(new IndexRequest(index, "state", id).routing(routing).source("_ctid", routing).versionType(VersionType.FORCE).version(xid)).actionGet();
+    }
+
+    /**
+     * The same documents {@link ZombodbCommitXIDAction} adds for a commit of the given (sorted) xids, on the index's only shard
+     */
+    private static void commit(String index, long... xids) {
+        long blockno = CommittedXidBlock.blockOf(xids[0]);
+        CommittedXidBlock block = new CommittedXidBlock(blockno);
+        for (long xid : xids)
+            block.add(xid);
+
+        client().index(new IndexRequest(index, "committed", CommittedXidBlock.appendId(blockno, xids[0], xids[xids.length - 1]))
+                .routing("0")
+                .source(CommittedXidBlock.BLOCK_FIELD, blockno, CommittedXidBlock.XIDS_FIELD, block.encode())).actionGet();
+    }
+
+    private static void run(String index, long horizon) throws Exception {
+        CompactionJob job = new CompactionJob(client(), index, "data", new String[]{"0"}, horizon, 2, TimeValue.timeValueMillis(0));
+        job.run();
+
+        XContentBuilder builder = JsonXContent.contentBuilder();
+        builder.startObject();
+        job.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        assertEquals(builder.string(), "done", job.getPhase());
+    }
+
+    private static boolean exists(String index, String type, String id, String routing) {
+        return client().prepareGet(index, type, id).setRouting(routing).setRealtime(true).get().isExists();
+    }
+
+    private static long watermark(String index) throws Exception {
+        GetResponse get = client().prepareGet(index, "committed", CommittedXidBlock.WATERMARK_ID).setRouting("0").get();
+        byte[] bytes = Base64.decode(String.valueOf(get.getSourceAsMap().get(CommittedXidBlock.XIDS_FIELD)));
+        return CommittedXidBlock.decodeWatermark(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return the xids in the block's folded document
+     */
+    private static List<Long> committed(String index, long blockno) throws Exception {
+        GetResponse get = client().prepareGet(index, "committed", String.valueOf(blockno)).setRouting("0").get();
+        byte[] bytes = Base64.decode(String.valueOf(get.getSourceAsMap().get(CommittedXidBlock.XIDS_FIELD)));
+        CommittedXidBlock block = CommittedXidBlock.decode(blockno, bytes, 0, bytes.length);
+
+        List<Long> xids = new ArrayList<>();
+        for (long xid = blockno * CommittedXidBlock.XIDS_PER_BLOCK; xid < (blockno + 1) * CommittedXidBlock.XIDS_PER_BLOCK; xid++) {
+            if (block.contains(xid))
+                xids.add(xid);
+        }
+        return xids;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestSourcePatcher {
+
+    @Test
+    public void testReadsTopLevelFields() throws Exception {
+        SourcePatcher patcher = patcher("{\"title\":\"x\",\"_xid\":42,\"_prev_ctid\":\"1-2\",\"id\":17}", "id");
+
+        assertEquals("1-2", patcher.getPrevCtid());
+        assertEquals(42L, (long) patcher.getXid());
+        assertEquals("17", patcher.getPkey());
+    }
+
+    @Test
+    public void testIgnoresNestedFields() throws Exception {
+        SourcePatcher patcher = patcher("{\"nested\":{\"_xid\":1,\"_prev_ctid\":\"9-9\",\"id\":3},\"list\":[{\"id\":4}],\"_xid\":2}", "id");
+
+        assertNull(patcher.getPrevCtid());
+        assertEquals(2L, (long) patcher.getXid());
+        assertNull(patcher.getPkey());
+    }
+
+    @Test
+    public void testScalarPkeys() throws Exception {
+        assertEquals("abc", patcher("{\"id\":\"abc\"}", "id").getPkey());
+        assertEquals("true", patcher("{\"id\":true}", "id").getPkey());
+        assertEquals("1.5", patcher("{\"id\":1.5}", "id").getPkey());
+        assertNull(patcher("{\"id\":null}", "id").getPkey());
+        assertNull(patcher("{\"id\":[1,2]}", "id").getPkey());
+    }
+
+    @Test
+    public void testAddsPrevCtid() throws Exception {
+        assertPatched("{\"_xid\":42,\"a\":\"b\"}", "5-6:42", "{\"_prev_ctid\":\"5-6:42\",\"_xid\":42,\"a\":\"b\"}");
+        assertPatched("  {\"_xid\":42}", "5-6:42", "  {\"_prev_ctid\":\"5-6:42\",\"_xid\":42}");
+        assertPatched("{}", "1-1", "{\"_prev_ctid\":\"1-1\"}");
+    }
+
+    @Test
+    public void testReplacesPrevCtid() throws Exception {
+        assertPatched("{\"a\":1,\"_prev_ctid\":\"1-2\",\"b\":[1,{\"c\":2}]}", "3-4", "{\"a\":1,\"_prev_ctid\":\"3-4\",\"b\":[1,{\"c\":2}]}");
+        assertPatched("{\"a\":1,\"_prev_ctid\": \"1-2\" ,\"b\":2}", "3-4", "{\"a\":1,\"_prev_ctid\": \"3-4\" ,\"b\":2}");
+        assertPatched("{\"_prev_ctid\":null}", "3-4", "{\"_prev_ctid\":\"3-4\"}");
+        assertPatched("{\"_prev_ctid\":12345,\"x\":0}", "3-4", "{\"_prev_ctid\":\"3-4\",\"x\":0}");
+        assertPatched("{\"_prev_ctid\":\"a\\\"b\"}", "3-4", "{\"_prev_ctid\":\"3-4\"}");
+    }
+
+    @Test
+    public void testEscapesValue() throws Exception {
+        assertPatched("{}", "a\"b\\c", "{\"_prev_ctid\":\"a\\\"b\\\\c\"}");
+    }
+
+    @Test
+    public void testSourceWithinLargerArray() throws Exception {
+        // bulk request sources are slices of the whole request body
+        String body = "{\"index\":{}}\n{\"_xid\":7,\"_prev_ctid\":\"1-1\"}\n";
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        int start = body.indexOf('\n') + 1;
+        BytesReference source = new BytesArray(bytes, start, body.length() - start - 1);
+
+        SourcePatcher patcher = new SourcePatcher(source, null);
+        assertEquals(7L, (long) patcher.getXid());
+        assertEquals("{\"_xid\":7,\"_prev_ctid\":\"2-2\"}", patcher.setPrevCtid("2-2").toUtf8());
+    }
+
+    @Test
+    public void testMultiByteCharacters() throws Exception {
+        assertPatched("{\"t\":\"h\u00e9llo \u2603\",\"_prev_ctid\":\"1-1\",\"u\":\"\u00fc\"}", "2-2", "{\"t\":\"h\u00e9llo \u2603\",\"_prev_ctid\":\"2-2\",\"u\":\"\u00fc\"}");
+    }
+
+    private static SourcePatcher patcher(String json, String pkeyFieldname) throws Exception {
+        return new SourcePatcher(new BytesArray(json), pkeyFieldname);
+    }
+
+    private static void assertPatched(String json, String prevCtid, String expected) throws Exception {
+        assertEquals(expected, patcher(json, null).setPrevCtid(prevCtid).toUtf8());
+    }
+}
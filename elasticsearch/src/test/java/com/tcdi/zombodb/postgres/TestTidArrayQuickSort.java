@@ -47,7 +47,7 @@ public class TestTidArrayQuickSort {
             offset += Utils.encodeFloat(score, array, offset);
         }
 
-        new PostgresTIDResponseAction.TidArrayQuickSort().quickSort(array, first_byte, 0, many-1);
+        new TidArrayQuickSort().quickSort(array, first_byte, 0, many-1);
 
         return array;
     }
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import com.tcdi.zombodb.query_parser.utils.Utils;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestTidArrayRadixSort {
+    private static Random rnd = new Random(0);
+
+    @Test
+    public void testSmall() throws Exception {
+        for (int many = 0; many < 5000; many++)
+            assertSorted(many, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testFewBlocks() throws Exception {
+        // lots of duplicate block numbers, so ordering by offset matters
+        assertSorted(10000, 3);
+        assertSorted(TidArrayRadixSort.PARALLEL_THRESHOLD + 1, 3);
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            assertSorted(TidArrayRadixSort.PARALLEL_THRESHOLD * 4 + 7, Integer.MAX_VALUE, executor);
+            assertSorted(TidArrayRadixSort.PARALLEL_THRESHOLD + 1, 3, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSaturatedExecutor() throws Exception {
+        // every thread is busy and the queue is full, so the caller has to sort on its own
+        final CountDownLatch release = new CountDownLatch(1);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1));
+        try {
+            for (int i = 0; i < 2; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            release.await();
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+
+            assertSorted(TidArrayRadixSort.PARALLEL_THRESHOLD * 2 + 3, Integer.MAX_VALUE, executor);
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSameAsQuickSortForBlocks() throws Exception {
+        byte[] radix = random(100000, Integer.MAX_VALUE);
+        byte[] quick = Arrays.copyOf(radix, radix.length);
+
+        TidArrayRadixSort.sort(radix, 13, 100000);
+        new TidArrayQuickSort().quickSort(quick, 13, 0, 100000 - 1);
+
+        for (int i = 0; i < 100000; i++)
+            assertEquals(Utils.decodeInteger(quick, 13 + i * 10), Utils.decodeInteger(radix, 13 + i * 10));
+    }
+
+    private void assertSorted(int many, int maxBlock) {
+        assertSorted(many, maxBlock, null);
+    }
+
+    private void assertSorted(int many, int maxBlock, Executor executor) {
+        byte[] array = random(many, maxBlock);
+        byte[] header = Arrays.copyOf(array, 13);
+        long[] before = records(array, many);
+
+        TidArrayRadixSort.sort(array, 13, many, executor);
+
+        long[] after = records(array, many);
+        Arrays.sort(before);
+        Arrays.sort(after);
+        assertArrayEquals("many=" + many + " is not a permutation", before, after);
+        assertArrayEquals("many=" + many + " changed the header", header, Arrays.copyOf(array, 13));
+
+        for (int i = 1; i < many; i++) {
+            long prev = TidArrayRadixSort.key(array, 13 + (i - 1) * 10);
+            long curr = TidArrayRadixSort.key(array, 13 + i * 10);
+            assertTrue("many=" + many + "; prev=" + prev + ", curr=" + curr, prev <= curr);
+        }
+    }
+
+    private long[] records(byte[] array, int many) {
+        long[] hashes = new long[many];
+        for (int i = 0; i < many; i++)
+            hashes[i] = Arrays.hashCode(Arrays.copyOfRange(array, 13 + i * 10, 13 + (i + 1) * 10));
+        return hashes;
+    }
+
+    private byte[] random(int many, int maxBlock) {
+        byte[] array = new byte[1 + 8 + 4 + (many * 10)];    // NULL + totalhits + maxscore + (many * (sizeof(int4)+sizeof(int2)+sizeof(float4)))
+        int offset = 0;
+
+        array[0] = 0;
+        offset++;
+        offset += Utils.encodeLong(many, array, offset);
+        offset += Utils.encodeFloat(32768, array, offset); // max_score
+
+        for (int i = 0; i < many; i++) {
+            int blockno = maxBlock == Integer.MAX_VALUE ? rnd.nextInt() : rnd.nextInt(maxBlock);
+            char offno = (char) rnd.nextInt();
+            float score = rnd.nextFloat();
+
+            offset += Utils.encodeInteger(blockno, array, offset);
+            offset += Utils.encodeCharacter(offno, array, offset);
+            offset += Utils.encodeFloat(score, array, offset);
+        }
+
+        return array;
+    }
+}
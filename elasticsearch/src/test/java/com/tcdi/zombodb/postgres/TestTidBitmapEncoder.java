@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import com.tcdi.zombodb.query_parser.utils.Utils;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestTidBitmapEncoder {
+    private static Random rnd = new Random(0);
+
+    @Test
+    public void testEmpty() throws Exception {
+        byte[] bytes = encode(new byte[0], 0);
+
+        assertEquals(TidBitmapEncoder.HEADER_SIZE, bytes.length);
+        assertEquals(0, decodeLong(bytes, 1));
+    }
+
+    @Test
+    public void testSparseBlocksUseArrays() throws Exception {
+        byte[] array = records(new int[]{1, 1, 7}, new int[]{5, 200, 3});
+        byte[] bytes = encode(array, 3);
+
+        assertEquals(TidBitmapEncoder.HEADER_SIZE + (4 + 1 + 2 + 2 * 2) + (4 + 1 + 2 + 2), bytes.length);
+        assertEquals(TidBitmapEncoder.ARRAY_CONTAINER, bytes[TidBitmapEncoder.HEADER_SIZE + 4]);
+        assertDecodesTo(array, 3, bytes);
+    }
+
+    @Test
+    public void testDenseBlocksUseBitmaps() throws Exception {
+        int[] blocks = new int[200];
+        int[] offsets = new int[200];
+        for (int i = 0; i < 200; i++) {
+            blocks[i] = i / 100;
+            offsets[i] = 1 + i % 100;
+        }
+        byte[] array = records(blocks, offsets);
+        byte[] bytes = encode(array, 200);
+
+        // 100 offsets in a block fit in 13 bytes instead of 200
+        assertEquals(TidBitmapEncoder.HEADER_SIZE + 2 * (4 + 1 + 2 + 2 + 13), bytes.length);
+        assertEquals(TidBitmapEncoder.BITMAP_CONTAINER, bytes[TidBitmapEncoder.HEADER_SIZE + 4]);
+        assertDecodesTo(array, 200, bytes);
+    }
+
+    @Test
+    public void testRandom() throws Exception {
+        for (int maxBlock : new int[]{1, 10, 1000, Integer.MAX_VALUE}) {
+            int many = 50000;
+            int[] blocks = new int[many];
+            int[] offsets = new int[many];
+            for (int i = 0; i < many; i++) {
+                blocks[i] = maxBlock == Integer.MAX_VALUE ? rnd.nextInt() : rnd.nextInt(maxBlock);
+                offsets[i] = 1 + rnd.nextInt(291);
+            }
+            byte[] array = records(blocks, offsets);
+            TidArrayRadixSort.sort(array, 0, many);
+
+            assertDecodesTo(array, many, encode(array, many));
+        }
+    }
+
+    private byte[] encode(byte[] array, int many) throws Exception {
+        BytesStreamOutput out = new BytesStreamOutput();
+        TidBitmapEncoder encoder = new TidBitmapEncoder(out);
+
+        encoder.writeHeader(many);
+        encoder.encode(array, 0, many);
+        encoder.finish();
+
+        return out.bytes().toBytes();
+    }
+
+    /**
+     * decode the containers and make sure they contain exactly the distinct (block, offset) pairs of the sorted input
+     */
+    private void assertDecodesTo(byte[] array, int many, byte[] bytes) {
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < many; i++) {
+            long key = TidArrayRadixSort.key(array, i * 10);
+            if (expected.isEmpty() || expected.get(expected.size() - 1) != key)
+                expected.add(key);
+        }
+
+        List<Long> actual = new ArrayList<>();
+        int pos = TidBitmapEncoder.HEADER_SIZE;
+        assertEquals(many, decodeLong(bytes, 1));
+        while (pos < bytes.length) {
+            int blockno = Utils.decodeInteger(bytes, pos);
+            byte type = bytes[pos + 4];
+            int cardinality = decodeShort(bytes, pos + 5);
+            pos += 7;
+
+            if (type == TidBitmapEncoder.ARRAY_CONTAINER) {
+                for (int i = 0; i < cardinality; i++) {
+                    actual.add(((long) blockno << 16) | decodeShort(bytes, pos));
+                    pos += 2;
+                }
+            } else {
+                int nbytes = decodeShort(bytes, pos);
+                int found = 0;
+                pos += 2;
+                for (int i = 0; i < nbytes * 8; i++) {
+                    if ((bytes[pos + (i >> 3)] & (1 << (i & 7))) != 0) {
+                        actual.add(((long) blockno << 16) | i);
+                        found++;
+                    }
+                }
+                assertEquals(cardinality, found);
+                pos += nbytes;
+            }
+        }
+
+        assertEquals(expected, actual);
+    }
+
+    private static long decodeLong(byte[] bytes, int pos) {
+        return (Utils.decodeInteger(bytes, pos) & 0xFFFFFFFFL) | ((long) Utils.decodeInteger(bytes, pos + 4) << 32);
+    }
+
+    private static int decodeShort(byte[] bytes, int pos) {
+        return (bytes[pos] & 0xFF) | ((bytes[pos + 1] & 0xFF) << 8);
+    }
+
+    private static byte[] records(int[] blocks, int[] offsets) {
+        byte[] array = new byte[blocks.length * 10];
+        int offset = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            offset += Utils.encodeInteger(blocks[i], array, offset);
+            offset += Utils.encodeCharacter((char) offsets[i], array, offset);
+            offset += Utils.encodeFloat(0, array, offset);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import com.tcdi.zombodb.query_parser.utils.Utils;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestTidRunMerger {
+    private static Random rnd = new Random(0);
+
+    @Test
+    public void testNoRuns() throws Exception {
+        assertMerged(new int[0], Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testEmptyRuns() throws Exception {
+        assertMerged(new int[]{0, 0, 0}, Integer.MAX_VALUE);
+        assertMerged(new int[]{0, 17, 0}, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testSingleRun() throws Exception {
+        assertMerged(new int[]{TidRunMerger.PAGE_SIZE * 3}, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testManyRuns() throws Exception {
+        assertMerged(new int[]{1, 1000, 25000, 7, 0, 100000}, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testFewBlocks() throws Exception {
+        // every run shares the same handful of blocks
+        assertMerged(new int[]{5000, 5000, 5000, 5000, 5000}, 3);
+    }
+
+    private void assertMerged(int[] many, int maxBlock) throws Exception {
+        byte[][] runs = new byte[many.length][];
+        int total = 0;
+        for (int i = 0; i < many.length; i++) {
+            runs[i] = random(many[i], maxBlock);
+            TidArrayRadixSort.sort(runs[i], 0, many[i]);
+            total += many[i];
+        }
+
+        BytesStreamOutput out = new BytesStreamOutput();
+        assertEquals(total, TidRunMerger.merge(runs, many, out));
+
+        byte[] merged = out.bytes().toBytes();
+        assertEquals(total * 10, merged.length);
+
+        byte[] expected = new byte[total * 10];
+        int offset = 0;
+        for (int i = 0; i < many.length; i++) {
+            System.arraycopy(runs[i], 0, expected, offset, many[i] * 10);
+            offset += many[i] * 10;
+        }
+        long[] before = records(expected, total);
+        long[] after = records(merged, total);
+        Arrays.sort(before);
+        Arrays.sort(after);
+        assertArrayEquals("not a permutation", before, after);
+
+        for (int i = 1; i < total; i++) {
+            long prev = TidArrayRadixSort.key(merged, (i - 1) * 10);
+            long curr = TidArrayRadixSort.key(merged, i * 10);
+            assertTrue("prev=" + prev + ", curr=" + curr, prev <= curr);
+        }
+    }
+
+    private long[] records(byte[] array, int many) {
+        long[] hashes = new long[many];
+        for (int i = 0; i < many; i++)
+            hashes[i] = Arrays.hashCode(Arrays.copyOfRange(array, i * 10, (i + 1) * 10));
+        return hashes;
+    }
+
+    private byte[] random(int many, int maxBlock) {
+        byte[] array = new byte[many * 10];
+        int offset = 0;
+
+        for (int i = 0; i < many; i++) {
+            int blockno = maxBlock == Integer.MAX_VALUE ? rnd.nextInt() : rnd.nextInt(maxBlock);
+            char offno = (char) rnd.nextInt();
+            float score = rnd.nextFloat();
+
+            offset += Utils.encodeInteger(blockno, array, offset);
+            offset += Utils.encodeCharacter(offno, array, offset);
+            offset += Utils.encodeFloat(score, array, offset);
+        }
+
+        return array;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.postgres;
+
+import com.tcdi.zombodb.test.ZomboDBTestCase;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetRequestBuilder;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.elasticsearch.common.settings.ImmutableSettings.settingsBuilder;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestZombodbVacuumAction extends ZomboDBTestCase {
+    private static final String INDEX_NAME = "vacuum_test";
+
+    @BeforeClass
+    public static void indexDocuments() throws Exception {
+        new CreateIndexRequestBuilder(client().admin().indices(), INDEX_NAME)
+                .setSettings(settingsBuilder()
+                        .put("number_of_shards", 3)
+                        .put("number_of_replicas", 0)
+                        .put("refresh_interval", -1))
+                .addMapping("data", jsonBuilder()
+                        .startObject()
+                        .startObject("properties")
+                        .startObject("_prev_ctid").field("type", "string").field("index", "not_analyzed").field("store", true).endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+
+        // 1-1 was UPDATEd to 1-2, so they and 1-1's state document all share 1-1's routing
+        index("data", "1-1", "1-1");
+        index("data", "1-2", "1-1");
+        index("state", "1-1", "1-1");
+        index("data", "2-5", "2-5:42");
+        index("data", "70000-3", "70000-3:42");
+        index("data", "3-1", "3-1");
+        index("data", "3-2", "3-1");
+        index("state", "3-1", "3-1");
+    }
+
+    @Test
+    public void testDeletesDataAndStateDocuments() throws Exception {
+        BulkResponse response = vacuum(ctids(1, 1, 2, 5, 9, 9));
+
+        assertFalse(response.buildFailureMessage(), response.hasFailures());
+
+        // 9-9 isn't in the index, so it's not even asked to be deleted
+        assertEquals(4, response.getItems().length);
+        for (BulkItemResponse item : response.getItems())
+            assertTrue(item.getId().equals("1-1") || item.getId().equals("2-5"));
+
+        assertFalse(exists("data", "1-1", "1-1"));
+        assertFalse(exists("state", "1-1", "1-1"));
+        assertFalse(exists("data", "2-5", "2-5:42"));
+        assertTrue(exists("data", "1-2", "1-1"));
+        assertTrue(exists("data", "70000-3", "70000-3:42"));
+    }
+
+    @Test
+    public void testResolvesInChunks() throws Exception {
+        BulkResponse response = vacuum(ctids(3, 1, 9, 9, 3, 2), 1);
+
+        assertFalse(response.buildFailureMessage(), response.hasFailures());
+        assertEquals(4, response.getItems().length);
+        assertFalse(exists("data", "3-1", "3-1"));
+        assertFalse(exists("state", "3-1", "3-1"));
+        assertFalse(exists("data", "3-2", "3-1"));
+    }
+
+    @Test
+    public void testOnlyMissingCtids() throws Exception {
+        assertEquals(0, vacuum(ctids(9, 9, 9, 10)).getItems().length);
+        assertEquals(0, vacuum(new byte[0]).getItems().length);
+    }
+
+    @Test
+    public void testMalformedBody() throws Exception {
+        byte[] ctids = ctids(70000, 3);
+        byte[] truncated = new byte[ctids.length - 1];
+        System.arraycopy(ctids, 0, truncated, 0, truncated.length);
+
+        try {
+            vacuum(truncated);
+            fail("vacuumed a partial ctid");
+        } catch (ElasticsearchParseException e) {
+            // expected
+        }
+
+        assertTrue(exists("data", "70000-3", "70000-3:42"));
+    }
+
+    private static void index(String type, String id, String routing) {
+        new IndexRequestBuilder(client(), INDEX_NAME)
+                .setType(type)
+                .setId(id)
+                .setRouting(routing)
+                .setSource("_prev_ctid", routing)
+                .execute().actionGet();
+    }
+
+    private static boolean exists(String type, String id, String routing) {
+        return new GetRequestBuilder(client(), INDEX_NAME).setType(type).setId(id).setRouting(routing).setRealtime(true).execute().actionGet().isExists();
+    }
+
+    private static BulkResponse vacuum(byte[] body) throws Exception {
+        return vacuum(body, ZombodbVacuumAction.MAX_CTIDS_PER_LOOKUP);
+    }
+
+    private static BulkResponse vacuum(byte[] body, int lookupSize) throws Exception {
+        PlainActionFuture<BulkResponse> future = PlainActionFuture.newFuture();
+        ZombodbVacuumAction.vacuum(client(), instance(BulkBackpressure.class), INDEX_NAME, "data", new BytesArray(body), Requests.bulkRequest(), lookupSize, future);
+        return future.get();
+    }
+
+    /**
+     * @param ctids pairs of block and offset numbers, packed the way Postgres sends them
+     */
+    private static byte[] ctids(long... ctids) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < ctids.length; i += 2) {
+            for (int b = 0; b < 4; b++)
+                out.write((int) (ctids[i] >>> (b * 8)) & 0xFF);
+            for (int b = 0; b < 2; b++)
+                out.write((int) (ctids[i + 1] >>> (b * 8)) & 0xFF);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.query;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestCommittedXidBlock {
+
+    @Test
+    public void testAddAndContains() throws Exception {
+        long base = 3L * CommittedXidBlock.XIDS_PER_BLOCK;
+        CommittedXidBlock block = new CommittedXidBlock(3);
+
+        assertTrue(block.add(base + 42));
+        assertFalse(block.add(base + 42));
+        assertTrue(block.contains(base + 42));
+        assertFalse(block.contains(base + 43));
+        assertFalse(block.contains(42));
+        assertEquals(3, CommittedXidBlock.blockOf(base + CommittedXidBlock.XIDS_PER_BLOCK - 1));
+
+        try {
+            block.add(42);
+            fail("added an xid from another block");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMostlyCommittedBlocksEncodeAsRanges() throws Exception {
+        CommittedXidBlock block = new CommittedXidBlock(0);
+        for (long xid = 0; xid < CommittedXidBlock.XIDS_PER_BLOCK; xid++) {
+            if (xid != 100 && xid != 5000)
+                block.add(xid);
+        }
+
+        byte[] encoded = block.encode();
+        assertEquals(1 + 3 * 4, encoded.length);
+        assertSame(block, CommittedXidBlock.decode(0, encoded, 0, encoded.length));
+    }
+
+    @Test
+    public void testSparseBlocksEncodeAsBitmaps() throws Exception {
+        CommittedXidBlock block = new CommittedXidBlock(7);
+        for (long xid = 0; xid < CommittedXidBlock.XIDS_PER_BLOCK; xid += 2)
+            block.add(7L * CommittedXidBlock.XIDS_PER_BLOCK + xid);
+
+        byte[] encoded = block.encode();
+        assertEquals(1 + CommittedXidBlock.XIDS_PER_BLOCK / 8, encoded.length);
+        assertSame(block, CommittedXidBlock.decode(7, encoded, 0, encoded.length));
+    }
+
+    @Test
+    public void testRandomRoundTrips() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            CommittedXidBlock block = new CommittedXidBlock(1);
+            int many = random.nextInt(i % 2 == 0 ? 100 : 60000);
+            for (int j = 0; j < many; j++)
+                block.add(CommittedXidBlock.XIDS_PER_BLOCK + random.nextInt(CommittedXidBlock.XIDS_PER_BLOCK));
+
+            byte[] encoded = block.encode();
+            byte[] padded = new byte[encoded.length + 3];
+            System.arraycopy(encoded, 0, padded, 2, encoded.length);
+            assertSame(block, CommittedXidBlock.decode(1, padded, 2, encoded.length));
+        }
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        CommittedXidBlock a = new CommittedXidBlock(0);
+        CommittedXidBlock b = new CommittedXidBlock(0);
+        a.add(1);
+        b.add(2);
+        a.merge(b);
+
+        assertTrue(a.contains(1));
+        assertTrue(a.contains(2));
+        assertEquals(2, a.cardinality());
+    }
+
+    @Test
+    public void testMergeEncoded() throws Exception {
+        CommittedXidBlock ranges = new CommittedXidBlock(3);
+        for (long xid = 3 * CommittedXidBlock.XIDS_PER_BLOCK; xid < 3 * CommittedXidBlock.XIDS_PER_BLOCK + 100; xid++)
+            ranges.add(xid);
+        CommittedXidBlock bitmap = new CommittedXidBlock(3);
+        for (long xid = 3 * CommittedXidBlock.XIDS_PER_BLOCK + 50; xid < 4 * CommittedXidBlock.XIDS_PER_BLOCK; xid += 2)
+            bitmap.add(xid);
+
+        CommittedXidBlock merged = new CommittedXidBlock(3);
+        byte[] encoded = ranges.encode();
+        merged.merge(encoded, 0, encoded.length);
+        encoded = bitmap.encode();
+        merged.merge(encoded, 0, encoded.length);
+
+        ranges.merge(bitmap);
+        assertArrayEquals(ranges.encode(), merged.encode());
+    }
+
+    @Test
+    public void testWatermarkRoundTrips() throws Exception {
+        for (long xid : new long[]{0, 1, 65535, 65536, 0xFFFFFFFFL, (5L << 32) | 123456})
+            assertEquals(xid, CommittedXidBlock.decodeWatermark(CommittedXidBlock.encodeWatermark(xid), 0, 8));
+
+        try {
+            CommittedXidBlock.decodeWatermark(new byte[4], 0, 4);
+            fail("decoded a truncated watermark");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEmptyBlock() throws Exception {
+        byte[] encoded = new CommittedXidBlock(0).encode();
+        assertEquals(1, encoded.length);
+        assertEquals(0, CommittedXidBlock.decode(0, encoded, 0, encoded.length).cardinality());
+    }
+
+    private static void assertSame(CommittedXidBlock expected, CommittedXidBlock actual) {
+        long base = expected.getBlock() * CommittedXidBlock.XIDS_PER_BLOCK;
+        assertEquals(expected.cardinality(), actual.cardinality());
+        for (long xid = base; xid < base + CommittedXidBlock.XIDS_PER_BLOCK; xid++)
+            assertEquals(expected.contains(xid), actual.contains(xid));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.query;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestCommittedXidCache {
+
+    @Test
+    public void testContainsAddedXids() throws Exception {
+        CommittedXidCache.KnownXids xids = new CommittedXidCache.KnownXids(new AtomicInteger());
+
+        xids.add(3);
+        xids.add(64);
+        xids.add(65535);
+        xids.add(65536);
+        xids.add(10L * CommittedXidBlock.XIDS_PER_BLOCK + 12345);
+
+        assertTrue(xids.contains(3));
+        assertTrue(xids.contains(64));
+        assertTrue(xids.contains(65535));
+        assertTrue(xids.contains(65536));
+        assertTrue(xids.contains(10L * CommittedXidBlock.XIDS_PER_BLOCK + 12345));
+        assertFalse(xids.contains(2));
+        assertFalse(xids.contains(63));
+        assertFalse(xids.contains(65537));
+        assertFalse(xids.contains(10L * CommittedXidBlock.XIDS_PER_BLOCK + 12344));
+        assertEquals(3, xids.size());
+    }
+
+    @Test
+    public void testAdvanceEvictsPagesBelowWatermark() throws Exception {
+        AtomicInteger totalPages = new AtomicInteger();
+        CommittedXidCache.KnownXids xids = new CommittedXidCache.KnownXids(totalPages);
+        for (long page = 0; page < 4; page++)
+            xids.add(page * CommittedXidBlock.XIDS_PER_BLOCK + 7);
+        assertEquals(4, totalPages.get());
+
+        // the page the watermark falls in is kept
+        assertEquals(2, xids.advance(2L * CommittedXidBlock.XIDS_PER_BLOCK + 100));
+        assertEquals(2, totalPages.get());
+        assertFalse(xids.contains(7));
+        assertTrue(xids.contains(2L * CommittedXidBlock.XIDS_PER_BLOCK + 7));
+        assertTrue(xids.contains(3L * CommittedXidBlock.XIDS_PER_BLOCK + 7));
+
+        // and nothing below it is added again
+        xids.add(5);
+        assertFalse(xids.contains(5));
+        assertEquals(0, xids.advance(CommittedXidBlock.XIDS_PER_BLOCK));
+    }
+
+    @Test
+    public void testEvictLowestPage() throws Exception {
+        AtomicInteger totalPages = new AtomicInteger();
+        CommittedXidCache.KnownXids xids = new CommittedXidCache.KnownXids(totalPages);
+        xids.add(5L * CommittedXidBlock.XIDS_PER_BLOCK);
+        xids.add(2L * CommittedXidBlock.XIDS_PER_BLOCK);
+        xids.add(9L * CommittedXidBlock.XIDS_PER_BLOCK);
+
+        assertTrue(xids.evictLowestPage());
+        assertFalse(xids.contains(2L * CommittedXidBlock.XIDS_PER_BLOCK));
+        assertTrue(xids.contains(5L * CommittedXidBlock.XIDS_PER_BLOCK));
+        assertEquals(2, totalPages.get());
+
+        assertTrue(xids.evictLowestPage());
+        assertTrue(xids.evictLowestPage());
+        assertFalse(xids.evictLowestPage());
+        assertEquals(0, totalPages.get());
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.query;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestUpdatedCtidCache {
+
+    @Test
+    public void testMergesSegments() throws Exception {
+        assertEquals(refs("0-1", "1-1", "1-2", "2-7", "9-9"),
+                UpdatedCtidCache.merge(Arrays.asList(array("1-1", "2-7"), array("0-1", "1-2", "9-9"))));
+    }
+
+    @Test
+    public void testRemovesDuplicatesAcrossSegments() throws Exception {
+        assertEquals(refs("1-1", "1-2", "3-3"),
+                UpdatedCtidCache.merge(Arrays.asList(array("1-1", "1-2"), array("1-2", "3-3"), array("1-1"))));
+    }
+
+    @Test
+    public void testSingleSegment() throws Exception {
+        List<BytesRef[]> segments = new ArrayList<>();
+        segments.add(array("1-1", "1-2"));
+        assertEquals(refs("1-1", "1-2"), UpdatedCtidCache.merge(segments));
+    }
+
+    @Test
+    public void testNoSegments() throws Exception {
+        assertEquals(0, UpdatedCtidCache.merge(new ArrayList<BytesRef[]>()).size());
+    }
+
+    private static BytesRef[] array(String... values) {
+        List<BytesRef> refs = refs(values);
+        return refs.toArray(new BytesRef[refs.size()]);
+    }
+
+    private static List<BytesRef> refs(String... values) {
+        List<BytesRef> refs = new ArrayList<>();
+        for (String value : values)
+            refs.add(new BytesRef(value));
+        return refs;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.query;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class TestVisibilityBitSetCache {
+
+    @Test
+    public void testSameSnapshotIsSameKey() throws Exception {
+        Object reader = new Object();
+        VisibilityBitSetCache.Key a = new VisibilityBitSetCache.Key(reader, "_prev_ctid", 10, 5, 12, new long[]{6, 9});
+        VisibilityBitSetCache.Key b = new VisibilityBitSetCache.Key(reader, "_prev_ctid", 10, 5, 12, new long[]{6, 9});
+
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+    }
+
+    @Test
+    public void testDifferentSnapshotsAreDifferentKeys() throws Exception {
+        Object reader = new Object();
+        VisibilityBitSetCache.Key key = new VisibilityBitSetCache.Key(reader, "_prev_ctid", 10, 5, 12, new long[]{6, 9});
+
+        assertNotEquals(key, new VisibilityBitSetCache.Key(new Object(), "_prev_ctid", 10, 5, 12, new long[]{6, 9}));
+        assertNotEquals(key, new VisibilityBitSetCache.Key(reader, "other", 10, 5, 12, new long[]{6, 9}));
+        assertNotEquals(key, new VisibilityBitSetCache.Key(reader, "_prev_ctid", 11, 5, 12, new long[]{6, 9}));
+        assertNotEquals(key, new VisibilityBitSetCache.Key(reader, "_prev_ctid", 10, 6, 12, new long[]{6, 9}));
+        assertNotEquals(key, new VisibilityBitSetCache.Key(reader, "_prev_ctid", 10, 5, 13, new long[]{6, 9}));
+        assertNotEquals(key, new VisibilityBitSetCache.Key(reader, "_prev_ctid", 10, 5, 12, new long[]{6}));
+        assertNotEquals(key, new VisibilityBitSetCache.Key(reader, "_prev_ctid", 10, 5, 12, new long[]{6, 8}));
+    }
+}
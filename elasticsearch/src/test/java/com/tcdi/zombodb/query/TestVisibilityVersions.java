@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.query;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestVisibilityVersions {
+
+    @Test
+    public void testSortsRowsNewestFirst() throws Exception {
+        VisibilityQueryHelper.Versions versions = new VisibilityQueryHelper.Versions(1);
+        versions.add(2, 0, 10, 100, 1);
+        versions.add(0, 1, 11, 100, 1);
+        versions.add(2, 1, 12, 300, 1);
+        versions.add(0, 0, 13, 200, 1);
+        versions.add(2, 0, 14, 300, 7);
+        versions.add(1, 2, 15, 50, 1);
+
+        versions.sort();
+
+        assertEquals(6, versions.size);
+        assertVersion(versions, 0, 0, 0, 13, 200, 1);
+        assertVersion(versions, 1, 0, 1, 11, 100, 1);
+        assertVersion(versions, 2, 1, 2, 15, 50, 1);
+        assertVersion(versions, 3, 2, 0, 14, 300, 7);
+        assertVersion(versions, 4, 2, 1, 12, 300, 1);
+        assertVersion(versions, 5, 2, 0, 10, 100, 1);
+    }
+
+    @Test
+    public void testGrows() throws Exception {
+        VisibilityQueryHelper.Versions versions = new VisibilityQueryHelper.Versions(0);
+        for (int i = 0; i < 1000; i++)
+            versions.add(i % 10, i % 3, i, i, 1000 - i);
+
+        versions.sort();
+
+        assertEquals(1000, versions.size);
+        for (int i = 1; i < versions.size; i++) {
+            if (versions.row[i] == versions.row[i - 1])
+                assertTrue(versions.xid[i] < versions.xid[i - 1]);
+            else
+                assertEquals(versions.row[i - 1] + 1, versions.row[i]);
+            assertEquals(versions.xid[i], versions.docid[i]);
+            assertEquals(1000 - versions.xid[i], versions.sequence[i]);
+            assertEquals(versions.xid[i] % 3, versions.readerOrd[i]);
+        }
+    }
+
+    private static void assertVersion(VisibilityQueryHelper.Versions versions, int i, int row, int readerOrd, int docid, long xid, long sequence) {
+        assertEquals(row, versions.row[i]);
+        assertEquals(readerOrd, versions.readerOrd[i]);
+        assertEquals(docid, versions.docid[i]);
+        assertEquals(xid, versions.xid[i]);
+        assertEquals(sequence, versions.sequence[i]);
+    }
+}
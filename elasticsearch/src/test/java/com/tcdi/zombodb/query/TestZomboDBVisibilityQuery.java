@@ -0,0 +1,415 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.query;
+
+import com.tcdi.zombodb.action.stats.NodeStats;
+import com.tcdi.zombodb.action.stats.StatsAction;
+import com.tcdi.zombodb.action.stats.StatsRequest;
+import com.tcdi.zombodb.query_parser.rewriters.QueryRewriter;
+import com.tcdi.zombodb.test.ZomboDBTestCase;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.elasticsearch.common.settings.ImmutableSettings.settingsBuilder;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs <code>#visibility()</code> queries through the query parser against a local node, and compares the rows
+ * they find with what the original algorithm -- sort every version of each updated row newest first, and the
+ * first one that's visible to the snapshot is the row's only visible version -- says they should be
+ */
+public class TestZomboDBVisibilityQuery extends ZomboDBTestCase {
+
+    private static final class Version {
+        private final String id;
+        private final String prevCtid;
+        private final long xid;
+        private final long sequence;
+
+        private Version(String id, String prevCtid, long xid, long sequence) {
+            this.id = id;
+            this.prevCtid = prevCtid;
+            this.xid = xid;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final class Snapshot {
+        private final long myXid;
+        private final long xmin;
+        private final long xmax;
+        private final long[] activeXids;
+
+        private Snapshot(long myXid, long xmin, long xmax, long... activeXids) {
+            this.myXid = myXid;
+            this.xmin = xmin;
+            this.xmax = xmax;
+            this.activeXids = activeXids;
+        }
+
+        private boolean isActive(long xid) {
+            for (long active : activeXids) {
+                if (active == xid)
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "#visibility(" + myXid + ", " + xmin + ", " + xmax + ", " + Arrays.toString(activeXids).replace(" ", "") + ")";
+        }
+    }
+
+    /**
+     * 125 and 140 are still running, and 135 is the snapshot's own transaction
+     */
+    private static final Set<Long> COMMITTED = new HashSet<>(Arrays.asList(100L, 101L, 103L, 110L, 120L, 130L, 160L));
+
+    private static final Snapshot OWN_XID = new Snapshot(135, 115, 150, 125, 140);
+    private static final Snapshot OLDER = new Snapshot(140, 125, 150, 125, 135);
+    private static final Snapshot EVERYTHING_FINISHED = new Snapshot(170, 170, 170);
+
+    private final List<Version> versions = new ArrayList<>();
+    private final Set<String> updatedCtids = new HashSet<>();
+
+    @Test
+    public void testSameAsBaseline() throws Exception {
+        String index = createIndex("visibility_baseline");
+        indexRows(index);
+
+        for (Snapshot snapshot : Arrays.asList(OWN_XID, OLDER, EVERYTHING_FINISHED))
+            assertEquals(snapshot.toString(), baseline(snapshot), visible(index, snapshot));
+    }
+
+    @Test
+    public void testCachedIsSameAsBaseline() throws Exception {
+        String index = createIndex("visibility_cached");
+        indexRows(index);
+
+        // the second round's bitsets are the ones the first round cached for the same reader and snapshot
+        for (int round = 0; round < 2; round++) {
+            for (Snapshot snapshot : Arrays.asList(OWN_XID, OLDER, EVERYTHING_FINISHED, OWN_XID))
+                assertEquals("round " + round + ": " + snapshot, baseline(snapshot), visible(index, snapshot));
+        }
+
+        // a refresh opens a new reader, so nothing cached for the old one can be used
+        update(index, "1-1", version("1-4", 130));
+        update(index, "3-1", version("3-3", 135));
+        refresh(index);
+
+        for (Snapshot snapshot : Arrays.asList(OWN_XID, OLDER, EVERYTHING_FINISHED))
+            assertEquals("refreshed: " + snapshot, baseline(snapshot), visible(index, snapshot));
+    }
+
+    @Test
+    public void testXminPruningIsSameAsBaseline() throws Exception {
+        String index = createIndex("visibility_xmin");
+        indexRows(index);
+
+        // a new transaction's snapshots, as the running ones finish -- by aborting -- and xmin moves past them
+        for (long xmin = 99; xmin <= 171; xmin++) {
+            List<Long> active = new ArrayList<>();
+            for (long xid : new long[]{125, 135, 140}) {
+                if (xid >= xmin)
+                    active.add(xid);
+            }
+
+            long[] activeXids = new long[active.size()];
+            for (int i = 0; i < activeXids.length; i++)
+                activeXids[i] = active.get(i);
+
+            Snapshot snapshot = new Snapshot(171, xmin, 171, activeXids);
+            assertEquals(snapshot.toString(), baseline(snapshot), visible(index, snapshot));
+        }
+    }
+
+    @Test
+    public void testSettledBelowWatermarkIsSameAsBaseline() throws Exception {
+        String index = createIndex("visibility_watermark");
+        indexRows(index);
+
+        // what compaction up to 115 leaves:  no aborted versions below it, and only the newest committed one of each row
+        delete(index, "1-1");
+        delete(index, "2-2");
+        delete(index, "6-2");
+        delete(index, "9-1");
+        client().index(new IndexRequest(index, "committed", CommittedXidBlock.WATERMARK_ID)
+                .routing("0")
+                .source(CommittedXidBlock.BLOCK_FIELD, CommittedXidBlock.WATERMARK_BLOCK, CommittedXidBlock.XIDS_FIELD, CommittedXidBlock.encodeWatermark(115))).actionGet();
+        refresh(index);
+
+        for (Snapshot snapshot : Arrays.asList(OWN_XID, OLDER, EVERYTHING_FINISHED))
+            assertEquals(snapshot.toString(), baseline(snapshot), visible(index, snapshot));
+
+        // "2-1" had nothing above the watermark, and now has to be settled again
+        update(index, "2-1", version("2-3", 130));
+        refresh(index);
+
+        for (Snapshot snapshot : Arrays.asList(OWN_XID, OLDER, EVERYTHING_FINISHED))
+            assertEquals("refreshed: " + snapshot, baseline(snapshot), visible(index, snapshot));
+    }
+
+    @Test
+    public void testDeletedIndexForgetsCommittedXids() throws Exception {
+        String index = createIndex("visibility_deleted");
+        indexRows(index);
+        assertEquals(baseline(OWN_XID), visible(index, OWN_XID));
+
+        long before = cachedIndexes();
+        client().admin().indices().prepareDelete(index).get();
+        assertEquals(before - 1, cachedIndexes());
+
+        // recreated with none of its xids committed, so only the rows that were never UPDATEd are visible
+        versions.clear();
+        updatedCtids.clear();
+        createIndex(index);
+        update(index, "1-1", version("1-1", 100), version("1-2", 110));
+        insert(index, version("7-1", 103));
+        refresh(index);
+
+        assertEquals(new TreeSet<>(Collections.singletonList("7-1")), visible(index, OWN_XID));
+    }
+
+    @Test
+    public void testSegmentBlocksAreReadOnce() throws Exception {
+        String index = createIndex("visibility_segment_blocks");
+        indexRows(index);
+
+        // with xmin this low, the aborted xids are looked up again for every snapshot
+        Snapshot first = new Snapshot(171, 100, 171);
+        assertEquals(baseline(first), visible(index, first));
+        CommittedXidCacheStats before = committedXidCacheStats();
+
+        Snapshot second = new Snapshot(171, 101, 171);
+        assertEquals(baseline(second), visible(index, second));
+        CommittedXidCacheStats after = committedXidCacheStats();
+
+        assertEquals(before.getSegmentBlockMisses(), after.getSegmentBlockMisses());
+        assertTrue(after.getSegmentBlockHits() > before.getSegmentBlockHits());
+    }
+
+    @Test
+    public void testSettledVersionsShareTheCacheSize() throws Exception {
+        String index = createIndex("visibility_cache_stats");
+        indexRows(index);
+
+        VisibilityCacheStats before = visibilityCacheStats();
+        assertEquals(baseline(OWN_XID), visible(index, OWN_XID));
+        assertEquals(baseline(OLDER), visible(index, OLDER));
+        VisibilityCacheStats after = visibilityCacheStats();
+
+        // both snapshots start from the same settled versions
+        assertEquals(before.getSettledMisses() + 1, after.getSettledMisses());
+        assertTrue(after.getSettledHits() > before.getSettledHits());
+        assertTrue(after.getSettledEntries() > 0);
+        assertTrue(after.getBitsetEntries() > 0);
+        assertTrue(after.getBitsetSizeInBytes() + after.getSettledSizeInBytes() <= after.getMaxSizeInBytes());
+    }
+
+    private static VisibilityCacheStats visibilityCacheStats() throws Exception {
+        return client().execute(StatsAction.INSTANCE, new StatsRequest()).get().iterator().next().getVisibilityCacheStats();
+    }
+
+    private static long cachedIndexes() throws Exception {
+        long indexes = 0;
+        for (NodeStats stats : client().execute(StatsAction.INSTANCE, new StatsRequest()).get())
+            indexes += stats.getCommittedXidCacheStats().getIndexes();
+        return indexes;
+    }
+
+    private static CommittedXidCacheStats committedXidCacheStats() throws Exception {
+        return client().execute(StatsAction.INSTANCE, new StatsRequest()).get().iterator().next().getCommittedXidCacheStats();
+    }
+
+    private void indexRows(String index) throws Exception {
+        // every version committed, on both sides of the xmins
+        update(index, "1-1", version("1-1", 100), version("1-2", 110), version("1-3", 120));
+        // the newest version was aborted
+        update(index, "2-1", version("2-1", 101), version("2-2", 102));
+        // the newest version is still running
+        update(index, "3-1", version("3-1", 103), version("3-2", 125));
+        // UPDATEd twice by the snapshot's own transaction, so its sequence decides
+        update(index, "4-1", version("4-1", 110), version("4-2", 135, 0), version("4-3", 135, 1));
+        // UPDATEd after the snapshot was taken
+        update(index, "5-1", version("5-1", 120), version("5-2", 160));
+        // an aborted UPDATE, and then one that's still running
+        update(index, "6-1", version("6-1", 101), version("6-2", 111), version("6-3", 140));
+        // a state document, but only one version
+        update(index, "8-1", version("8-1", 130));
+
+        // never UPDATEd
+        insert(index, version("7-1", 103));
+        insert(index, version("9-1", 102));
+
+        commit(index, COMMITTED);
+        refresh(index);
+    }
+
+    private static Version version(String id, long xid) {
+        return version(id, xid, 0);
+    }
+
+    private static Version version(String id, long xid, long sequence) {
+        return new Version(id, null, xid, sequence);
+    }
+
+    private void update(String index, String ctid, Version... row) {
+        for (Version version : row)
+            index(index, new Version(version.id, ctid, version.xid, version.sequence));
+
+        client().index(new IndexRequest(index, "state", ctid).routing(ctid).source("_ctid", ctid)).actionGet();
+        updatedCtids.add(ctid);
+    }
+
+    private void delete(String index, String id) {
+        for (Iterator<Version> itr = versions.iterator(); itr.hasNext(); ) {
+            Version version = itr.next();
+            if (version.id.equals(id)) {
+                client().prepareDelete(index, "data", id).setRouting(version.prevCtid).get();
+                itr.remove();
+            }
+        }
+    }
+
+    private void insert(String index, Version version) {
+        index(index, new Version(version.id, version.id + ":" + version.xid, version.xid, version.sequence));
+    }
+
+    private void index(String index, Version version) {
+        client().index(new IndexRequest(index, "data", version.id)
+                .routing(version.prevCtid)
+                .source("kind", "row", "_prev_ctid", version.prevCtid, "_xid", version.xid, "_zdb_seq", version.sequence)).actionGet();
+        versions.add(version);
+    }
+
+    /**
+     * @return the ids the original algorithm says are visible to the snapshot
+     */
+    private Set<String> baseline(Snapshot snapshot) {
+        Map<String, List<Version>> rows = new HashMap<>();
+        Set<String> visible = new TreeSet<>();
+
+        for (Version version : versions) {
+            if (!updatedCtids.contains(version.prevCtid)) {
+                visible.add(version.id);
+                continue;
+            }
+
+            List<Version> row = rows.get(version.prevCtid);
+            if (row == null)
+                rows.put(version.prevCtid, row = new ArrayList<>());
+            row.add(version);
+        }
+
+        for (List<Version> row : rows.values()) {
+            Collections.sort(row, new Comparator<Version>() {
+                @Override
+                public int compare(Version o1, Version o2) {
+                    int cmp = Long.compare(o2.xid, o1.xid);
+                    return cmp == 0 ? Long.compare(o2.sequence, o1.sequence) : cmp;
+                }
+            });
+
+            for (Version version : row) {
+                if (version.xid > snapshot.xmax || snapshot.isActive(version.xid) || (version.xid != snapshot.myXid && !COMMITTED.contains(version.xid)))
+                    continue;
+
+                visible.add(version.id);
+                break;
+            }
+        }
+
+        return visible;
+    }
+
+    /**
+     * @return the ids a query with the snapshot's <code>#visibility()</code> finds
+     */
+    private static Set<String> visible(String index, Snapshot snapshot) {
+        SearchResponse response = client().prepareSearch(index)
+                .setTypes("data")
+                .setQuery(QueryRewriter.Factory.create(client(), index, null, snapshot + " kind:row", true, false).rewriteQuery())
+                .setSize(1000)
+                .get();
+
+        Set<String> ids = new TreeSet<>();
+        for (SearchHit hit : response.getHits())
+            ids.add(hit.getId());
+        return ids;
+    }
+
+    private static String createIndex(String index) throws Exception {
+        new CreateIndexRequestBuilder(client().admin().indices(), index)
+                .setSettings(settingsBuilder()
+                        .put("number_of_shards", 1)
+                        .put("number_of_replicas", 0)
+                        .put("refresh_interval", -1))
+                .addMapping("data", jsonBuilder().startObject()
+                        .startObject("_source").field("enabled", false).endObject()
+                        .startObject("_meta").field("primary_key", "id").field("always_resolve_joins", false).endObject()
+                        .startObject("properties")
+                        .startObject("kind").field("type", "string").field("index", "not_analyzed").endObject()
+                        .startObject("_xid").field("type", "long").field("index", "not_analyzed")
+                        .startObject("fielddata").field("format", "doc_values").endObject().endObject()
+                        .startObject("_prev_ctid").field("type", "string").field("index", "not_analyzed").field("store", true)
+                        .startObject("fielddata").field("format", "paged_bytes").endObject().endObject()
+                        .startObject("_zdb_seq").field("type", "long").field("index", "not_analyzed")
+                        .startObject("fielddata").field("format", "doc_values").endObject().endObject()
+                        .endObject()
+                        .endObject())
+                .addMapping("state", jsonBuilder().startObject()
+                        .startObject("_source").field("enabled", false).endObject()
+                        .startObject("properties")
+                        .startObject("_ctid").field("type", "string").field("index", "not_analyzed").endObject()
+                        .endObject()
+                        .endObject())
+                .addMapping("committed", jsonBuilder().startObject()
+                        .startObject("properties")
+                        .startObject(CommittedXidBlock.BLOCK_FIELD).field("type", "long").field("index", "not_analyzed").endObject()
+                        .startObject(CommittedXidBlock.XIDS_FIELD).field("type", "binary").field("store", true).endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        return index;
+    }
+
+    /**
+     * The documents {@link com.tcdi.zombodb.postgres.ZombodbCommitXIDAction} adds for a commit, on the index's only shard
+     */
+    private static void commit(String index, Set<Long> xids) {
+        SortedSet<Long> sorted = new TreeSet<>(xids);
+        long blockno = CommittedXidBlock.blockOf(sorted.first());
+        CommittedXidBlock block = new CommittedXidBlock(blockno);
+        for (long xid : sorted)
+            block.add(xid);
+
+        client().index(new IndexRequest(index, "committed", CommittedXidBlock.appendId(blockno, sorted.first(), sorted.last()))
+                .routing("0")
+                .source(CommittedXidBlock.BLOCK_FIELD, blockno, CommittedXidBlock.XIDS_FIELD, block.encode())).actionGet();
+    }
+
+    private static void refresh(String index) {
+        client().admin().indices().prepareRefresh(index).get();
+    }
+}
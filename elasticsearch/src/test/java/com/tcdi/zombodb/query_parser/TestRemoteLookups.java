@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 ZomboDB, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tcdi.zombodb.query_parser;
+
+import com.tcdi.zombodb.postgres.AsyncRestHelper;
+import com.tcdi.zombodb.query_parser.rewriters.QueryRewriter;
+import com.tcdi.zombodb.query_parser.rewriters.RemoteLookups;
+import com.tcdi.zombodb.test.ZomboDBTestCase;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link RemoteLookups}
+ */
+public class TestRemoteLookups extends ZomboDBTestCase {
+
+    @Test
+    public void testJoinIsSameAsBlocking() throws Exception {
+        String query = "#options(user_data:(owner_user_id=<so_users.idxso_users>id), comment_data:(id=<so_comments.idxso_comments>post_id)) " +
+                "(user_data.display_name:j* and comment_data.user_display_name:j*)";
+
+        AtomicInteger passes = new AtomicInteger();
+        assertEquals(blocking(query), nonBlocking(query, passes));
+
+        // each side of the join needs a search, and each search is another pass
+        assertTrue("only " + passes.get() + " passes", passes.get() > 2);
+    }
+
+    @Test
+    public void testAnalyzedPhraseIsSameAsBlocking() throws Exception {
+        String query = "phrase_field:'The Quick Brown Fox' and exact_field:ABC";
+
+        assertEquals(blocking(query), nonBlocking(query, new AtomicInteger()));
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        try {
+            nonBlocking("outside:(one w/4 (inside:two))", new AtomicInteger());
+            fail("Should not be here");
+        } catch (ExecutionException ee) {
+            assertEquals("Cannot mix fieldnames in PROXIMITY expression", ee.getCause().getMessage());
+        }
+    }
+
+    private String blocking(String query) {
+        return QueryRewriter.Factory.create(client(), DEFAULT_INDEX_NAME, null, query, true, false).rewriteQuery().toString();
+    }
+
+    private String nonBlocking(final String query, final AtomicInteger passes) throws Exception {
+        PlainActionFuture<String> future = PlainActionFuture.newFuture();
+
+        RemoteLookups.rewrite(client(), null, client().threadPool().executor(AsyncRestHelper.THREAD_POOL_NAME), new RemoteLookups.Rewrite<String>() {
+            @Override
+            public String rewrite(RemoteLookups lookups) throws Exception {
+                passes.incrementAndGet();
+                return QueryRewriter.Factory.create(client(), lookups, DEFAULT_INDEX_NAME, null, query, true, false).rewriteQuery().toString();
+            }
+        }, future);
+
+        return future.get();
+    }
+}
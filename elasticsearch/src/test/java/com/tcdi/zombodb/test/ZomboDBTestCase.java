@@ -26,6 +26,7 @@ import org.elasticsearch.common.io.stream.OutputStreamStreamOutput;
 import org.elasticsearch.common.logging.log4j.LogConfigurator;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.node.Node;
+import org.elasticsearch.node.internal.InternalNode;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 
@@ -101,6 +102,13 @@ public abstract class ZomboDBTestCase {
         return node.client();
     }
 
+    /**
+     * @return the test node's instance of a node-level component
+     */
+    protected static <T> T instance(Class<T> type) {
+        return ((InternalNode) node).injector().getInstance(type);
+    }
+
     @AfterClass
     public static void afterClass() {
         try {
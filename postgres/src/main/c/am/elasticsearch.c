@@ -196,12 +196,12 @@ void elasticsearch_createNewIndex(ZDBIndexDescriptor *indexDescriptor, int shard
 			"          \"properties\": { \"_ctid\":{\"type\":\"string\",\"index\":\"not_analyzed\"} }"
 			"      },"
             "      \"committed\": {"
-            "          \"_source\": { \"enabled\": false },"
 			"          \"_routing\": { \"required\": true },"
             "          \"_all\": { \"enabled\": false },"
             "          \"_field_names\": { \"index\": \"no\", \"store\": false },"
             "          \"properties\": {"
-            "             \"_zdb_committed_xid\": { \"type\": \"long\",\"index\":\"not_analyzed\" }"
+            "             \"_zdb_committed_block\": { \"type\": \"long\",\"index\":\"not_analyzed\" },"
+            "             \"_zdb_committed_xids\": { \"type\": \"binary\",\"store\":true }"
             "          }"
             "      }"
             "   },"
@@ -795,6 +795,15 @@ void elasticsearch_freeSearchResponse(ZDBSearchResponse *searchResponse) {
     pfree(searchResponse);
 }
 
+static void appendLittleEndian(StringInfo buf, uint64 value, int nbytes) {
+    int i;
+
+    enlargeStringInfo(buf, nbytes);
+    for (i = 0; i < nbytes; i++)
+        buf->data[buf->len++] = (char) ((value >> (i * 8)) & 0xFF);
+    buf->data[buf->len] = '\0';
+}
+
 static uint64 count_deleted_docs(ZDBIndexDescriptor *indexDescriptor) {
 	StringInfo endpoint = makeStringInfo();
 	StringInfo response;
@@ -805,13 +814,19 @@ static uint64 count_deleted_docs(ZDBIndexDescriptor *indexDescriptor) {
 	return (uint64) atoll(response->data);
 }
 
+/*
+ * each ctid is 6 bytes, so batch_size alone would send over a million per request, and every one of them
+ * is looked up on every primary shard.  Keep to what _zdbvacuum resolves in one go
+ */
+#define MAX_VACUUM_CTIDS 100000
+
 void elasticsearch_bulkDelete(ZDBIndexDescriptor *indexDescriptor, ItemPointer itemPointers, int nitems) {
 	StringInfo endpoint = makeStringInfo();
 	StringInfo request  = makeStringInfo();
 	StringInfo response;
 	int        i;
 
-    appendStringInfo(endpoint, "%s/%s/data/_zdbbulk?consistency=default", indexDescriptor->url, indexDescriptor->fullyQualifiedName);
+    appendStringInfo(endpoint, "%s/%s/data/_zdbvacuum?consistency=default", indexDescriptor->url, indexDescriptor->fullyQualifiedName);
     if (strcmp("-1", indexDescriptor->refreshInterval) == 0) {
         appendStringInfo(endpoint, "&refresh=true");
     }
@@ -819,9 +834,11 @@ void elasticsearch_bulkDelete(ZDBIndexDescriptor *indexDescriptor, ItemPointer i
     for (i=0; i<nitems; i++) {
         ItemPointer item = &itemPointers[i];
 
-        appendStringInfo(request, "{\"delete\":{\"_id\":\"%d-%d\"}}\n", ItemPointerGetBlockNumber(item), ItemPointerGetOffsetNumber(item));
+        /* _zdbvacuum takes nothing but the dead ctids */
+        appendLittleEndian(request, ItemPointerGetBlockNumber(item), 4);
+        appendLittleEndian(request, ItemPointerGetOffsetNumber(item), 2);
 
-        if (request->len >= indexDescriptor->batch_size) {
+        if (request->len >= Min(indexDescriptor->batch_size, MAX_VACUUM_CTIDS * 6)) {
             response = rest_call("POST", endpoint->data, request, indexDescriptor->compressionLevel);
             checkForBulkError(response, "delete");
 
@@ -851,29 +868,38 @@ void elasticsearch_bulkDelete(ZDBIndexDescriptor *indexDescriptor, ItemPointer i
     freeStringInfo(request);
 }
 
-static void appendBatchInsertData(ZDBIndexDescriptor *indexDescriptor, ItemPointer ht_ctid, text *value, StringInfo bulk, bool isupdate, ItemPointer old_ctid, TransactionId xmin, uint64 sequence) {
-    /* the data */
-    appendStringInfo(bulk, "{\"index\":{\"_id\":\"%d-%d\"}}\n", ItemPointerGetBlockNumber(ht_ctid), ItemPointerGetOffsetNumber(ht_ctid));
-
-    if (indexDescriptor->hasJson)
-        appendBinaryStringInfoAndStripLineBreaks(bulk, VARDATA(value), VARSIZE(value) - VARHDRSZ);
-    else
-        appendBinaryStringInfo(bulk, VARDATA(value), VARSIZE(value) - VARHDRSZ);
-
-    /* backup to remove the last '}' of the value json, so that we can... */
-    while (bulk->data[bulk->len] != '}')
-        bulk->len--;
+void elasticsearch_compact(ZDBIndexDescriptor *indexDescriptor, TransactionId oldestXmin) {
+	StringInfo endpoint = makeStringInfo();
+	StringInfo response;
 
-    /* ...append our transaction id to the json */
-    appendStringInfo(bulk, ",\"_xid\":%lu", convert_xid(xmin));
+	/*
+	 * no snapshot can see anything older than oldestXmin, so ES can drop the aborted rows,
+	 * superseded row versions, and committed xids below it.  The compaction itself runs in
+	 * the background, and this just reports its progress
+	 */
+	appendStringInfo(endpoint, "%s/%s/data/_zdbcompact?xmin=%lu", indexDescriptor->url, indexDescriptor->fullyQualifiedName, convert_xid(oldestXmin));
+	response = rest_call("POST", endpoint->data, NULL, indexDescriptor->compressionLevel);
 
-	/* and the sequence number */
-	appendStringInfo(bulk, ",\"_zdb_seq\":%lu", sequence);
+	elog(zdbloglevel, "[zombodb vacuum] compacting %s: %s", indexDescriptor->fullyQualifiedName, response->data);
 
-	if (isupdate)
-		appendStringInfo(bulk, ",\"_prev_ctid\":\"%d-%d\"", ItemPointerGetBlockNumber(old_ctid), ItemPointerGetOffsetNumber(old_ctid));
+	freeStringInfo(response);
+	freeStringInfo(endpoint);
+}
 
-	appendStringInfo(bulk, "}\n");
+static void appendBatchInsertData(ZDBIndexDescriptor *indexDescriptor, ItemPointer ht_ctid, text *value, StringInfo bulk, bool isupdate, ItemPointer old_ctid, TransactionId xmin, uint64 sequence) {
+    /*
+     * a _zdbframes frame:  the row's ctid, the ctid it replaces (if any), its transaction id and
+     * sequence number as fixed-width fields, followed by the length-prefixed json of the row.
+     * Elasticsearch adds the metadata fields to the json itself
+     */
+    appendLittleEndian(bulk, ItemPointerGetBlockNumber(ht_ctid), 4);
+    appendLittleEndian(bulk, ItemPointerGetOffsetNumber(ht_ctid), 2);
+    appendLittleEndian(bulk, isupdate ? ItemPointerGetBlockNumber(old_ctid) : 0, 4);
+    appendLittleEndian(bulk, isupdate ? ItemPointerGetOffsetNumber(old_ctid) : 0, 2);
+    appendLittleEndian(bulk, convert_xid(xmin), 8);
+    appendLittleEndian(bulk, sequence, 8);
+    appendLittleEndian(bulk, VARSIZE(value) - VARHDRSZ, 4);
+    appendBinaryStringInfo(bulk, VARDATA(value), VARSIZE(value) - VARHDRSZ);
 }
 
 static PostDataEntry *checkout_batch_pool(BatchInsertData *batch) {
@@ -913,11 +939,12 @@ elasticsearch_batchInsertRow(ZDBIndexDescriptor *indexDescriptor, ItemPointer ct
         fast_path = batch->rest->available > before && batch->nrecs >= (batch->nprocessed/batch->nrequests) - 250;
     }
 
-    if (fast_path || batch->bulk->buff->len >= indexDescriptor->batch_size) {
+    if (fast_path || batch->bulk->buff->len >= indexDescriptor->batch_size ||
+            (batch->rest->recommended_batch_size > 0 && batch->nrecs >= batch->rest->recommended_batch_size)) {
         StringInfo endpoint = makeStringInfo();
 
         /* don't &refresh=true here as a full .refreshIndex() is called after batchInsertFinish() */
-        appendStringInfo(endpoint, "%s/%s/data/_zdbbulk?consistency=default", indexDescriptor->url, indexDescriptor->fullyQualifiedName);
+        appendStringInfo(endpoint, "%s/%s/data/_zdbframes?consistency=default", indexDescriptor->url, indexDescriptor->fullyQualifiedName);
 
         /* send the request to index this batch */
         rest_multi_call(batch->rest, "POST", endpoint->data, batch->bulk, indexDescriptor->compressionLevel);
@@ -947,7 +974,7 @@ void elasticsearch_batchInsertFinish(ZDBIndexDescriptor *indexDescriptor) {
             StringInfo endpoint = makeStringInfo();
             StringInfo response;
 
-            appendStringInfo(endpoint, "%s/%s/data/_zdbbulk?consistency=default", indexDescriptor->url, indexDescriptor->fullyQualifiedName);
+            appendStringInfo(endpoint, "%s/%s/data/_zdbframes?consistency=default", indexDescriptor->url, indexDescriptor->fullyQualifiedName);
 
             if (batch->nrequests == 0) {
 				/*
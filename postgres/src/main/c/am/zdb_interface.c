@@ -85,6 +85,7 @@ static char *wrapper_highlight(ZDBIndexDescriptor *indexDescriptor, char *query,
 static void wrapper_freeSearchResponse(ZDBSearchResponse *searchResponse);
 
 static void wrapper_bulkDelete(ZDBIndexDescriptor *indexDescriptor, ItemPointer itemPointers, int nitems);
+static void wrapper_compact(ZDBIndexDescriptor *indexDescriptor, TransactionId oldestXmin);
 
 static void wrapper_batchInsertRow(ZDBIndexDescriptor *indexDescriptor, ItemPointer ctid, text *data, bool isupdate, ItemPointer old_ctid, TransactionId xmin, CommandId commandId, uint64 sequence);
 static void wrapper_batchInsertFinish(ZDBIndexDescriptor *indexDescriptor);
@@ -265,6 +266,7 @@ ZDBIndexDescriptor *zdb_alloc_index_descriptor(Relation indexRel) {
     desc->implementation->highlight               = wrapper_highlight;
     desc->implementation->freeSearchResponse      = wrapper_freeSearchResponse;
     desc->implementation->bulkDelete              = wrapper_bulkDelete;
+    desc->implementation->compact                 = wrapper_compact;
     desc->implementation->batchInsertRow          = wrapper_batchInsertRow;
     desc->implementation->batchInsertFinish       = wrapper_batchInsertFinish;
 	desc->implementation->markTransactionCommitted = wrapper_markTransactionCommitted;
@@ -578,6 +580,18 @@ static void wrapper_bulkDelete(ZDBIndexDescriptor *indexDescriptor, ItemPointer
     MemoryContextDelete(me);
 }
 
+static void wrapper_compact(ZDBIndexDescriptor *indexDescriptor, TransactionId oldestXmin) {
+    MemoryContext me         = AllocSetContextCreate(TopTransactionContext, "wrapper_compact", 512, 64, 64);
+    MemoryContext oldContext = MemoryContextSwitchTo(me);
+
+    Assert(!indexDescriptor->isShadow);
+
+    elasticsearch_compact(indexDescriptor, oldestXmin);
+
+    MemoryContextSwitchTo(oldContext);
+    MemoryContextDelete(me);
+}
+
 static void wrapper_batchInsertRow(ZDBIndexDescriptor *indexDescriptor, ItemPointer ctid, text *data, bool isupdate, ItemPointer old_ctid, TransactionId xmin, CommandId commandId, uint64 sequence) {
     MemoryContext oldContext = MemoryContextSwitchTo(TopTransactionContext);
 
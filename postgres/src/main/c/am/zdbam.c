@@ -915,6 +915,13 @@ Datum zdbvacuumcleanup(PG_FUNCTION_ARGS) {
     if (desc->isShadow)
         PG_RETURN_POINTER(stats);
 
+    /* let ES drop whatever no snapshot can see anymore */
+#if (PG_VERSION_NUM < 90400)
+    desc->implementation->compact(desc, GetOldestXmin(true, true));
+#else
+    desc->implementation->compact(desc, GetOldestXmin(NULL, true));
+#endif
+
     /* Finally, vacuum the FSM */
     IndexFreeSpaceMapVacuum(info->index);
 
@@ -92,6 +92,7 @@ void rest_multi_init(MultiRestState *state, int nhandles) {
     state->nhandles     = nhandles;
     state->multi_handle = curl_multi_init();
     state->available    = nhandles;
+    state->recommended_batch_size = 0;
     for (i = 0; i < nhandles; i++) {
         state->handles[i]    = NULL;
         state->errorbuffs[i] = NULL;
@@ -240,6 +241,14 @@ void rest_multi_partial_cleanup(MultiRestState *state, bool finalize, bool fast)
                         elog(ERROR, "i=%d, libcurl error:  handle=%p, %s: %s, response_code=%ld, result=%d", i, handle, state->errorbuffs[i], state->responses[i]->data, response_code, msg->data.result);
                     }
 
+                    /* _zdbbulk and _zdbframes tell us how many rows to send per request while the cluster is busy */
+                    if (state->responses[i] != NULL) {
+                        char *recommended = strstr(state->responses[i]->data, "\"recommended_batch_size\":");
+
+                        if (recommended != NULL)
+                            state->recommended_batch_size = (int) strtol(recommended + strlen("\"recommended_batch_size\":"), NULL, 10);
+                    }
+
                     if (state->errorbuffs[i] != NULL) {
                         pfree(state->errorbuffs[i]);
                         state->errorbuffs[i] = NULL;
@@ -40,6 +40,9 @@ typedef struct MultiRestState {
     CURLM *multi_handle;
     int   available;
 
+    /* the latest "recommended_batch_size" Elasticsearch returned, or zero if it hasn't */
+    int   recommended_batch_size;
+
     StringInfo *pool;
 } MultiRestState;
 